@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Song;
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Measures the round trip times of the control connection while a full list of songs is
+ * fetched, with the list on the control connection, and with the list on the bulk connection.
+ * The probes of the connection stand in for status updates and transport commands, which wait
+ * behind the pages of the list on a single connection.
+ * <p>
+ * The results are logged, e.g. <code>adb logcat -s BulkConnectionBenchmark</code>.
+ */
+public class BulkConnectionBenchmark extends ServiceTestCase<SqueezeService> {
+    private static final String TAG = "BulkConnectionBenchmark";
+
+    private static final int SONGS = 20000;
+
+    /** Probe often, so there are enough round trips while the list is fetched. */
+    private static final int PROBE_INTERVAL_MS = 20;
+
+    /** Number of milliseconds to wait for the client before failing. */
+    private static final int TIMEOUT_IN_MS = 120000;
+
+    public BulkConnectionBenchmark() {
+        super(SqueezeService.class);
+    }
+
+    private final Object mLock = new Object();
+
+    private int mHandshakeCount;
+
+    private int mSongCount;
+
+    private ISqueezeService mService;
+
+    private SqueezeboxServerMock mServer;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = (ISqueezeService) bindService(
+                new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+        getService().cli.setLibraryIndexEnabled(false);
+        getService().cli.setProbeTimes(PROBE_INTERVAL_MS, TIMEOUT_IN_MS);
+    }
+
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        mService.disconnect();
+        if (mServer != null) {
+            mServer.kill();
+        }
+        shutdownService();
+        super.tearDown();
+    }
+
+    public void testStatusLatencyDuringFullList() throws Exception {
+        ConnectionHealth single = fetch(false);
+        ConnectionHealth bulk = fetch(true);
+        Log.i(TAG, "p99 round trip with one connection: " + single.getP99Micros()
+                + "us, with the bulk connection: " + bulk.getP99Micros() + "us");
+        assertTrue(single.toString(), single.getRttCount() > 0);
+        assertTrue(bulk.toString(), bulk.getRttCount() > 0);
+    }
+
+    /**
+     * Connect to a new server, and fetch all its songs.
+     *
+     * @return The health of the control connection while the songs were fetched.
+     */
+    private ConnectionHealth fetch(boolean bulk) throws Exception {
+        CliClient cli = getService().cli;
+        cli.setBulkConnectionEnabled(bulk);
+        mServer = SqueezeboxServerMock.starter().songs(SONGS).connections(2).start();
+        synchronized (mLock) {
+            mHandshakeCount = 0;
+            mSongCount = 0;
+        }
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT, "test", "test");
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        synchronized (mLock) {
+            while (mHandshakeCount == 0 && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(1, mHandshakeCount);
+        }
+        if (bulk) {
+            while (mServer.getReceivedLines("login ").size() < 2
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, mServer.getReceivedLines("login ").size());
+            // Time for the reply to the login to arrive.
+            Thread.sleep(500);
+        }
+
+        // Only the round trips while the songs are fetched.
+        cli.mProbe.reset();
+        long start = System.nanoTime();
+        cli.requestItems("songs", -1, new IServiceItemListCallback<Song>() {
+            @Override
+            public void onItemsReceived(int count, int start, Map<String, String> parameters,
+                    List<Song> items, Class<Song> dataType) {
+                synchronized (mLock) {
+                    mSongCount += items.size();
+                    mLock.notifyAll();
+                }
+            }
+
+            @Override
+            public Object getClient() {
+                return BulkConnectionBenchmark.this;
+            }
+        });
+        synchronized (mLock) {
+            while (mSongCount < SONGS && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(SONGS, mSongCount);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        ConnectionHealth health = mService.getConnectionHealth();
+        Log.i(TAG, (bulk ? "Bulk connection: " : "One connection: ") + SONGS + " songs in "
+                + elapsedMillis + "ms, " + health);
+
+        mService.disconnect();
+        mServer.kill();
+        mServer.join(TIMEOUT_IN_MS);
+        mServer = null;
+        return health;
+    }
+
+    public void onEvent(HandshakeComplete event) {
+        synchronized (mLock) {
+            mHandshakeCount++;
+            mLock.notifyAll();
+        }
+    }
+}
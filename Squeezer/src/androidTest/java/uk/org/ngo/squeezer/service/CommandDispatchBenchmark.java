@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares finding the handler of received lines with a {@link CommandDispatcher} against
+ * looking up the raw tokens in one hash map per kind of command, over a mix of lines recorded
+ * from a server with two players, one of them playing.
+ * <p>
+ * The results are logged, e.g. <code>adb logcat -s CommandDispatchBenchmark</code>.
+ */
+public class CommandDispatchBenchmark extends TestCase {
+    private static final String TAG = "CommandDispatchBenchmark";
+
+    private static final int WARMUP_ROUNDS = 2000;
+
+    private static final int ROUNDS = 20000;
+
+    private static final String PLAYER = "00%3A04%3A20%3A17%3A64%3A31";
+
+    private static final String OTHER_PLAYER = "00%3A04%3A20%3A12%3A05%3Ac2";
+
+    /** The lines, in the proportions they were received. */
+    private static final String[] LINES = {
+            PLAYER + " status - 1 tags%3AaCdejJKlstxyu subscribe%3A1 player_name%3AKitchen"
+                    + " player_connected%3A1 player_ip%3A192.168.1.20%3A37410 power%3A1"
+                    + " signalstrength%3A0 mode%3Aplay time%3A31.5 rate%3A1 duration%3A245.2"
+                    + " can_seek%3A1 mixer%20volume%3A40 playlist%20repeat%3A0"
+                    + " playlist%20shuffle%3A0 playlist%20mode%3Aoff seq_no%3A0"
+                    + " playlist_cur_index%3A3 playlist_timestamp%3A1490000000.5"
+                    + " playlist_tracks%3A12 id%3A4242 title%3ASong artist%3AArtist"
+                    + " album%3AAlbum",
+            PLAYER + " time 31.5",
+            PLAYER + " time 32.5",
+            PLAYER + " time 33.5",
+            PLAYER + " playlist newsong Song 3",
+            PLAYER + " playlist open file%3A%2F%2F%2Fmusic%2Fsong.mp3",
+            PLAYER + " playlist pause 0",
+            PLAYER + " mixer volume 45",
+            PLAYER + " prefset server volume 45",
+            OTHER_PLAYER + " client reconnect",
+            OTHER_PLAYER + " status - 1 tags%3AaCdejJKlstxyu subscribe%3A1 mode%3Astop",
+            OTHER_PLAYER + " pause 1",
+            "serverstatus 0 0 lastscan%3A1490000000 player%20count%3A2",
+            "rescan done",
+            PLAYER + " playerpref alarmsEnabled 1",
+    };
+
+    private static final String[] GLOBAL = {
+            "players", "artists", "albums", "years", "genres", "musicfolder", "songs",
+            "playlists", "playlists tracks", "alarm playlists", "search", "radios", "apps",
+            "rescan", "serverstatus", "alarm", "login", "pref", "can", "getstring", "version",
+    };
+
+    private static final String[] PREFIXED = {};
+
+    private static final String[] GLOBAL_PLAYER_SPECIFIC = {"alarms", "client", "prefset"};
+
+    private static final String[] PLAYER_SPECIFIC = {
+            "status", "play", "stop", "pause", "playlist", "playerpref",
+    };
+
+    private static final String[] PREFIXED_PLAYER_SPECIFIC = {"items"};
+
+    private static Map<String, String> handlers(String[] commands) {
+        Map<String, String> handlers = new HashMap<String, String>();
+        for (String command : commands) {
+            handlers.put(command, command);
+        }
+        return handlers;
+    }
+
+    private final Map<String, String> global = handlers(GLOBAL);
+
+    private final Map<String, String> prefixed = handlers(PREFIXED);
+
+    private final Map<String, String> globalPlayerSpecific = handlers(GLOBAL_PLAYER_SPECIFIC);
+
+    private final Map<String, String> playerSpecific = handlers(PLAYER_SPECIFIC);
+
+    private final Map<String, String> prefixedPlayerSpecific = handlers(PREFIXED_PLAYER_SPECIFIC);
+
+    private final CommandDispatcher<String> dispatcher = new CommandDispatcher.Builder<String>()
+            .add(0, global)
+            .add(1, prefixed)
+            .add(1, globalPlayerSpecific)
+            .add(1, playerSpecific)
+            .add(2, prefixedPlayerSpecific)
+            .build();
+
+    private final TokenCursor tokens = new TokenCursor();
+
+    private byte[][] lines;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        lines = new byte[LINES.length][];
+        for (int i = 0; i < LINES.length; i++) {
+            lines[i] = LINES[i].getBytes();
+        }
+    }
+
+    /** Find the handler the way CliClient did before the dispatcher. */
+    private String findInMaps(TokenCursor tokens) {
+        String handler;
+        if ((handler = global.get(tokens.raw(0))) != null) {
+            return handler;
+        }
+        String command = tokens.raw(1);
+        if ((handler = prefixed.get(command)) != null) {
+            return handler;
+        }
+        if ((handler = globalPlayerSpecific.get(command)) != null) {
+            return handler;
+        }
+        if ((handler = playerSpecific.get(command)) != null) {
+            return handler;
+        }
+        if (tokens.size() > 2) {
+            return prefixedPlayerSpecific.get(tokens.raw(2));
+        }
+        return null;
+    }
+
+    public void testSameHandlers() {
+        for (byte[] line : lines) {
+            tokens.reset(line, 0, line.length);
+            assertEquals(new String(line), findInMaps(tokens), dispatcher.find(tokens));
+        }
+    }
+
+    public void testDispatch() {
+        run(WARMUP_ROUNDS, false);
+        run(WARMUP_ROUNDS, true);
+
+        long maps = run(ROUNDS, false);
+        long dispatched = run(ROUNDS, true);
+        long lineCount = (long) ROUNDS * lines.length;
+        Log.i(TAG, "Hash maps: " + maps / lineCount + "ns/line, dispatcher: "
+                + dispatched / lineCount + "ns/line (" + dispatcher + ")");
+    }
+
+    /** @return The time taken to find the handlers of the lines, in nanoseconds. */
+    private long run(int rounds, boolean useDispatcher) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (byte[] line : lines) {
+                tokens.reset(line, 0, line.length);
+                String handler = (useDispatcher ? dispatcher.find(tokens) : findInMaps(tokens));
+                if (handler != null) {
+                    found++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(found > 0);
+        return elapsed;
+    }
+}
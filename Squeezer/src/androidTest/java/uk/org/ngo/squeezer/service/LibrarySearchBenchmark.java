@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import uk.org.ngo.squeezer.Util;
+
+/**
+ * Measures how long searches of the library index take with 100,000 songs, for the four lists
+ * the search screen shows.
+ * <p>
+ * The results are logged, e.g. <code>adb logcat -s LibrarySearchBenchmark</code>.
+ */
+public class LibrarySearchBenchmark extends AndroidTestCase {
+    private static final String TAG = "LibrarySearchBenchmark";
+
+    private static final String SERVER = "benchmark:9000";
+
+    private static final int SONGS = 100000;
+
+    private static final int RUNS = 20;
+
+    private static final String[] WORDS = {
+            "love", "night", "blue", "heart", "rain", "city", "fire", "dream", "home", "river",
+            "song", "light", "dance", "summer", "road", "moon", "gold", "time", "world", "girl",
+            "black", "star", "wild", "sweet", "lonely", "morning", "street", "ghost", "angel",
+            "train", "ocean", "shadow", "silver", "winter", "garden", "honey", "thunder", "paper",
+            "electric", "velvet", "midnight", "crystal", "desert", "echo", "mirror", "island",
+    };
+
+    /** The lists the search screen shows, with the tag of the name they are searched by. */
+    private static final String[][] LISTS = {
+            {"songs", "title", "tags%3AaCdejJKlstxyu sort%3Atitle"},
+            {"albums", "album", "tags%3Aalyj sort%3Aalbum"},
+            {"artists", "artist", ""},
+            {"genres", "genre", ""},
+    };
+
+    private static final String[] TERMS = {"m", "mi", "midnight", "midnight tr", "x", "4"};
+
+    private LibraryDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LibraryDatabase.delete(getContext(), SERVER);
+        mDatabase = new LibraryDatabase(getContext(), SERVER);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        LibraryDatabase.delete(getContext(), SERVER);
+        super.tearDown();
+    }
+
+    public void testSearch() throws Exception {
+        long fillStart = System.nanoTime();
+        Random random = new Random(1);
+        fill(random, LISTS[0], SONGS);
+        fill(random, LISTS[1], SONGS / 10);
+        fill(random, LISTS[2], SONGS / 100);
+        fill(random, LISTS[3], 20);
+        Log.i(TAG, "Indexed " + SONGS + " songs in "
+                + (System.nanoTime() - fillStart) / 1000000 + "ms");
+
+        List<String> results = new ArrayList<String>();
+        for (String term : TERMS) {
+            long[] micros = new long[RUNS];
+            int found = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                found = 0;
+                for (String[] list : LISTS) {
+                    LibraryQuery query = LibraryQuery.parse(list[0] + " 0 50 " + list[2]
+                            + " search%3A" + Util.encode(term), syncTags(list[0]), true);
+                    assertNotNull(query);
+                    found += mDatabase.count(query);
+                    mDatabase.records(query);
+                }
+                micros[run] = (System.nanoTime() - start) / 1000;
+            }
+            Arrays.sort(micros);
+            String result = "'" + term + "': " + found + " items, median "
+                    + micros[RUNS / 2] / 1000.0 + "ms, max " + micros[RUNS - 1] / 1000.0 + "ms";
+            Log.i(TAG, result);
+            results.add(result);
+        }
+        Log.i(TAG, "Results: " + results);
+    }
+
+    private static String syncTags(String list) {
+        String tags = LibraryIndex.syncTags(list);
+        assertNotNull(tags);
+        return tags;
+    }
+
+    /** Fill a list of the index with items named from random words. */
+    private void fill(Random random, String[] list, int count) {
+        List<LibraryRecord> records = new ArrayList<LibraryRecord>();
+        for (int i = 0; i < count; i++) {
+            LibraryRecord record = new LibraryRecord();
+            record.id = String.valueOf(i);
+            record.position = i;
+            record.name = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            record.tokens = ("id%3A" + i + " " + list[1] + "%3A" + Util.encode(record.name))
+                    .getBytes();
+            records.add(record);
+            if (records.size() == LibraryIndex.SYNC_PAGE_SIZE || i == count - 1) {
+                mDatabase.write(list[0], records, 1);
+                records.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import uk.org.ngo.squeezer.Util;
+import uk.org.ngo.squeezer.framework.TagRecord;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.Song;
+
+/**
+ * Compares the allocations and time taken to apply the status lines of a real-time player
+ * subscription, by decoding each line in to a record and a new song as the client did before,
+ * against comparing them with the player state in place with {@link PlayerStatusDiff}.
+ * <p>
+ * The status lines are those of a song playing for a minute, one per second, after which the
+ * next song starts. The results are logged, e.g.
+ * <code>adb logcat -s PlayerStatusDiffBenchmark</code>.
+ */
+public class PlayerStatusDiffBenchmark extends TestCase {
+    private static final String TAG = "PlayerStatusDiffBenchmark";
+
+    private static final int WARMUP_ROUNDS = 20;
+
+    private static final int ROUNDS = 200;
+
+    private static final String PLAYER_ID = "00:04:20:17:64:31";
+
+    private static final String PLAYER = "00%3A04%3A20%3A17%3A64%3A31";
+
+    /** Seconds each song plays for. */
+    private static final int SONG_SECONDS = 60;
+
+    private final TokenCursor tokens = new TokenCursor();
+
+    private ScheduledThreadPoolExecutor executor;
+
+    private CommandDebouncer debouncer;
+
+    private final PlaybackClock clock = new PlaybackClock(Ticker.systemTicker());
+
+    private byte[][] lines;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = new ScheduledThreadPoolExecutor(1);
+        debouncer = new CommandDebouncer(executor, 10000, new CommandDebouncer.Sender() {
+            @Override
+            public void send(String playerId, String parameter, int value) {
+            }
+        });
+
+        lines = new byte[2 * SONG_SECONDS][];
+        for (int i = 0; i < lines.length; i++) {
+            int song = i / SONG_SECONDS;
+            lines[i] = (PLAYER + " status - 1 tags%3AaCdejJKlstxyu subscribe%3A1"
+                    + " player_name%3AKitchen player_connected%3A1 power%3A1 mode%3Aplay"
+                    + " time%3A" + (i % SONG_SECONDS) + ".5 rate%3A1 duration%3A245.2"
+                    + " can_seek%3A1 mixer%20volume%3A40 playlist%20repeat%3A0"
+                    + " playlist%20shuffle%3A0 playlist_cur_index%3A" + song
+                    + " playlist_tracks%3A12 id%3A" + (4242 + song) + " title%3ASong%20" + song
+                    + " artist%3ABj%C3%B6rk album%3AAlbum coverid%3A9a8b7c6d"
+                    + " year%3A1997 genre%3AElectronic").getBytes();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /** Apply the status the way CliClient did before {@link PlayerStatusDiff}. */
+    private void applyRecord(TokenCursor tokens, PlayerState state) {
+        TagRecord record = CliClient.parseRecord(tokens);
+        state.setPoweredOn(Util.parseDecimalIntOrZero(record.get("power")) == 1);
+        state.setShuffleStatus(record.get("playlist shuffle"));
+        state.setRepeatStatus(record.get("playlist repeat"));
+        state.setCurrentPlaylistTracksNum(
+                Util.parseDecimalIntOrZero(record.get("playlist_tracks")));
+        state.setCurrentPlaylistIndex(
+                Util.parseDecimalIntOrZero(record.get("playlist_cur_index")));
+        state.setCurrentPlaylist(record.get("playlist_name"));
+        state.setSleep(Util.parseDecimalIntOrZero(record.get("will_sleep_in")));
+        state.setSleepDuration(Util.parseDecimalIntOrZero(record.get("sleep")));
+        state.setCurrentSong(new Song(record));
+        state.setCurrentSongDuration(Util.parseDecimalIntOrZero(record.get("duration")));
+        int time = Util.parseDecimalIntOrZero(record.get("time"));
+        if (!debouncer.isStale(PLAYER_ID, CliClient.PARAMETER_TIME, time)) {
+            state.setCurrentTimeSecond(time);
+        }
+        int volume = Util.parseDecimalIntOrZero(record.get("mixer volume"));
+        if (!debouncer.isStale(PLAYER_ID, CliClient.PARAMETER_VOLUME, volume)) {
+            state.setCurrentVolume(volume);
+        }
+        state.setSyncMaster(record.get("sync_master"));
+        state.setSyncSlaves(Splitter.on(",").omitEmptyStrings()
+                .splitToList(Strings.nullToEmpty(record.get("sync_slaves"))));
+        state.setSubscriptionType(record.get("subscribe"));
+        String mode = record.get("mode");
+        if (PlayerState.PLAY_STATE_PLAY.equals(mode)) {
+            state.setPlayStatus(PlayerState.PLAY_STATE_PLAY);
+        }
+    }
+
+    /** Apply the status the way CliClient does. */
+    private void applyDiff(TokenCursor tokens, PlayerState state) {
+        int changes = PlayerStatusDiff.apply(tokens, state, PLAYER_ID, debouncer,
+                clock);
+        if ((changes & PlayerStatusDiff.SONG) != 0) {
+            state.setCurrentSong(new Song(CliClient.parseRecord(tokens)));
+        }
+    }
+
+    public void testSameState() {
+        PlayerState recorded = new PlayerState();
+        PlayerState diffed = new PlayerState();
+        for (byte[] line : lines) {
+            tokens.reset(line, 0, line.length);
+            applyRecord(tokens, recorded);
+            tokens.reset(line, 0, line.length);
+            applyDiff(tokens, diffed);
+
+            String message = new String(line);
+            assertEquals(message, recorded.getCurrentSong(), diffed.getCurrentSong());
+            assertEquals(message, recorded.getCurrentTimeSecond(),
+                    diffed.getCurrentTimeSecond());
+            assertEquals(message, recorded.getCurrentPlaylistIndex(),
+                    diffed.getCurrentPlaylistIndex());
+            assertEquals(message, recorded.getShuffleStatus(), diffed.getShuffleStatus());
+            assertEquals(message, recorded.getPlayStatus(), diffed.getPlayStatus());
+            assertEquals(message, recorded.getSyncSlaves(), diffed.getSyncSlaves());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testAllocationsPerStatusLine() {
+        run(WARMUP_ROUNDS, false);
+        run(WARMUP_ROUNDS, true);
+
+        Debug.startAllocCounting();
+        try {
+            long recordNanos = run(ROUNDS, false);
+            long recordAllocations = Debug.getThreadAllocCount();
+            long recordBytes = Debug.getThreadAllocSize();
+
+            long diffNanos = run(ROUNDS, true);
+            long diffAllocations = Debug.getThreadAllocCount();
+            long diffBytes = Debug.getThreadAllocSize();
+
+            long lineCount = (long) ROUNDS * lines.length;
+            Log.i(TAG, "Record and song: " + recordAllocations / lineCount + " allocations, "
+                    + recordBytes / lineCount + " bytes, " + recordNanos / lineCount
+                    + "ns per status line. In place: " + diffAllocations / lineCount
+                    + " allocations, " + diffBytes / lineCount + " bytes, "
+                    + diffNanos / lineCount + "ns per status line");
+
+            // Only the first line of each song makes a new one.
+            assertTrue(diffAllocations * 10 < recordAllocations);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Apply the lines to a new state, with the allocation counts of the thread reset.
+     *
+     * @return The time taken to apply the lines, in nanoseconds.
+     */
+    @SuppressWarnings("deprecation")
+    private long run(int rounds, boolean inPlace) {
+        PlayerState state = new PlayerState();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (byte[] line : lines) {
+                tokens.reset(line, 0, line.length);
+                if (inPlace) {
+                    applyDiff(tokens, state);
+                } else {
+                    applyRecord(tokens, state);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertNotNull(state.getCurrentSong());
+        return elapsed;
+    }
+}
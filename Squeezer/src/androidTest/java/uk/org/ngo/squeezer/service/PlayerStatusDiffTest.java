@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.Song;
+
+/**
+ * Tests applying status lines to a {@link PlayerState} in place. The status of a real-time
+ * subscription is applied every second, most of them only move the position.
+ */
+public class PlayerStatusDiffTest extends TestCase {
+
+    private static final String PLAYER_ID = "00:04:20:17:64:31";
+
+    private static final String PLAYER = "00%3A04%3A20%3A17%3A64%3A31";
+
+    private static final String STATUS = PLAYER + " status - 1 tags%3AaCdejJKlstxyu"
+            + " subscribe%3A1 power%3A1 mode%3Aplay mixer%20volume%3A40 playlist%20repeat%3A0"
+            + " playlist%20shuffle%3A1 playlist_cur_index%3A3 playlist_tracks%3A12"
+            + " playlist_name%3AMy%20list sync_slaves%3A00%3A04%3A20%3A12%3A05%3Ac2"
+            + " sync_master%3A" + PLAYER + " duration%3A245.2 id%3A4242 title%3ASong"
+            + " artist%3ABj%C3%B6rk album%3AAlbum";
+
+    private final PlayerState state = new PlayerState();
+
+    private final TokenCursor tokens = new TokenCursor();
+
+    private ScheduledThreadPoolExecutor executor;
+
+    private CommandDebouncer debouncer;
+
+    private final PlaybackClock clock = new PlaybackClock(Ticker.systemTicker());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = new ScheduledThreadPoolExecutor(1);
+        debouncer = new CommandDebouncer(executor, 10000, new CommandDebouncer.Sender() {
+            @Override
+            public void send(String playerId, String parameter, int value) {
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /** Apply the status with the position, making a new song when asked to, like the client. */
+    private int apply(String status, String time) {
+        byte[] line = (status + " time%3A" + time).getBytes();
+        tokens.reset(line, 0, line.length);
+        int changes = PlayerStatusDiff.apply(tokens, state, PLAYER_ID, debouncer,
+                clock);
+        if ((changes & PlayerStatusDiff.SONG) != 0) {
+            state.setCurrentSong(new Song(CliClient.parseRecord(tokens)));
+        }
+        return changes;
+    }
+
+    public void testFirstStatus() {
+        int changes = apply(STATUS, "31.5");
+        assertTrue((changes & PlayerStatusDiff.SONG) != 0);
+        assertTrue((changes & PlayerStatusDiff.POWER) != 0);
+        assertTrue((changes & PlayerStatusDiff.PLAY_STATUS) != 0);
+        assertTrue((changes & PlayerStatusDiff.SYNC) != 0);
+
+        assertTrue(state.isPoweredOn());
+        assertEquals(PlayerState.PLAY_STATE_PLAY, state.getPlayStatus());
+        assertEquals(40, state.getCurrentVolume());
+        assertEquals(PlayerState.ShuffleStatus.SHUFFLE_SONG, state.getShuffleStatus());
+        assertEquals(PlayerState.RepeatStatus.REPEAT_OFF, state.getRepeatStatus());
+        assertEquals(3, state.getCurrentPlaylistIndex());
+        assertEquals(12, state.getCurrentPlaylistTracksNum());
+        assertEquals("My list", state.getCurrentPlaylist());
+        assertEquals(245, state.getCurrentSongDuration());
+        assertEquals(31, state.getCurrentTimeSecond());
+        assertEquals(PLAYER_ID, state.getSyncMaster());
+        assertEquals(Arrays.asList("00:04:20:12:05:c2"), state.getSyncSlaves());
+        assertEquals(PlayerState.NOTIFY_REAL_TIME, state.getSubscriptionType());
+    }
+
+    public void testOnlyTheTimeChanged() {
+        apply(STATUS, "31.5");
+        Song song = state.getCurrentSong();
+
+        assertEquals(PlayerStatusDiff.SONG_TIME, apply(STATUS, "32.5"));
+        assertSame(song, state.getCurrentSong());
+        assertEquals(32, state.getCurrentTimeSecond());
+        assertEquals(0, apply(STATUS, "32.9"));
+    }
+
+    public void testSongChanged() {
+        apply(STATUS, "31.5");
+        Song song = state.getCurrentSong();
+
+        int changes = apply(STATUS.replace("id%3A4242", "id%3A4243"), "0");
+        assertTrue((changes & PlayerStatusDiff.SONG) != 0);
+        assertEquals("4243", state.getCurrentSong().getId());
+
+        changes = apply(STATUS.replace("title%3ASong", "title%3ASong%202"), "0");
+        assertTrue("Metadata changed", (changes & PlayerStatusDiff.SONG) != 0);
+        assertEquals("Song 2", state.getCurrentSong().getName());
+        assertNotSame(song, state.getCurrentSong());
+    }
+
+    public void testMissingFieldsAreReset() {
+        apply(STATUS, "31.5");
+
+        int changes = apply(PLAYER + " status - 1 tags%3AaCdejJKlstxyu subscribe%3A1"
+                + " mode%3Astop", "0");
+        assertTrue((changes & PlayerStatusDiff.POWER) != 0);
+        assertTrue((changes & PlayerStatusDiff.PLAYLIST) != 0);
+        assertTrue((changes & PlayerStatusDiff.SYNC) != 0);
+        assertTrue((changes & PlayerStatusDiff.PLAY_STATUS) != 0);
+        assertFalse(state.isPoweredOn());
+        assertNull(state.getShuffleStatus());
+        assertEquals("", state.getCurrentPlaylist());
+        assertNull(state.getSyncMaster());
+        assertTrue(state.getSyncSlaves().isEmpty());
+        assertEquals(PlayerState.PLAY_STATE_STOP, state.getPlayStatus());
+    }
+
+    public void testUnknownModeIsIgnored() {
+        apply(STATUS, "31.5");
+
+        int changes = apply(STATUS.replace("mode%3Aplay", "mode%3Arewind"), "31.5");
+        assertEquals(0, changes & PlayerStatusDiff.PLAY_STATUS);
+        assertEquals(PlayerState.PLAY_STATE_PLAY, state.getPlayStatus());
+    }
+}
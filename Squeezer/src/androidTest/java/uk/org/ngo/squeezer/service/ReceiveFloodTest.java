@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Floods the client with lines from the mock server, faster than they can be handled, and checks
+ * that the lines waiting to be handled stay bounded and that they are all handled.
+ * <p>
+ * The high-water marks are logged, e.g. <code>adb logcat -s ReceiveFloodTest</code>.
+ */
+public class ReceiveFloodTest extends ServiceTestCase<SqueezeService> {
+    private static final String TAG = "ReceiveFloodTest";
+
+    private static final int LINES = 100000;
+
+    /** Notifications for players the client doesn't know, so they are cheap to handle. */
+    private static final String[] FLOOD = {
+            "00%3A04%3A20%3A17%3A64%3A31 pause 1",
+            "00%3A04%3A20%3A12%3A05%3Ac2 pause 0",
+            "00%3A04%3A20%3A17%3A64%3A31 play",
+            "00%3A04%3A20%3A12%3A05%3Ac2 stop",
+    };
+
+    /** Number of milliseconds to wait for the flood to be handled before failing. */
+    private static final int TIMEOUT_IN_MS = 120000;
+
+    public ReceiveFloodTest() {
+        super(SqueezeService.class);
+    }
+
+    private final Object mLockHandshakeComplete = new Object();
+
+    private boolean mHandshakeComplete;
+
+    private ISqueezeService mService;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = (ISqueezeService) bindService(new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+    }
+
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        mService.disconnect();
+        shutdownService();
+        super.tearDown();
+    }
+
+    public void testFlood() throws Exception {
+        SqueezeboxServerMock server = SqueezeboxServerMock.starter().start();
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT, "test", "test");
+        synchronized (mLockHandshakeComplete) {
+            if (!mHandshakeComplete) {
+                mLockHandshakeComplete.wait(TIMEOUT_IN_MS);
+            }
+        }
+        assertTrue(mHandshakeComplete);
+
+        CliClient cli = getService().cli;
+        StreamDispatcher streams = cli.getStreamDispatcher();
+        long before = handled(streams);
+        long start = System.currentTimeMillis();
+        server.flood(FLOOD, LINES);
+        long written = System.currentTimeMillis() - start;
+
+        long end = start + TIMEOUT_IN_MS;
+        while (handled(streams) - before < LINES && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals("All the lines were handled", LINES, handled(streams) - before);
+        assertTrue("Still connected", mService.isConnected());
+
+        LineBatchPool received = cli.mReceivedBatches;
+        assertTrue(received.getMaxInUse() <= received.getCapacity());
+        for (int lane = 0; lane < streams.getLaneCount(); lane++) {
+            LineBatchPool batches = streams.getBatches(lane);
+            assertTrue(batches.getMaxInUse() <= batches.getCapacity());
+        }
+
+        Log.i(TAG, LINES + " lines written in " + written + "ms, handled in " + elapsed
+                + "ms. Received: " + received + ", " + streams);
+    }
+
+    private static long handled(StreamDispatcher streams) {
+        long handled = 0;
+        for (int lane = 0; lane < streams.getLaneCount(); lane++) {
+            handled += streams.getHandledCount(lane);
+        }
+        return handled;
+    }
+
+    public void onEvent(HandshakeComplete event) {
+        synchronized (mLockHandshakeComplete) {
+            mHandshakeComplete = true;
+            mLockHandshakeComplete.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Song;
+import uk.org.ngo.squeezer.service.event.ConnectionChanged;
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Kills the mock server while the client waits for a list, and checks that the client reconnects
+ * when the server is started again, and that the list arrives. Also stalls the mock server, and
+ * checks that the probes of the connection notice, and the client reconnects, and restarts it
+ * with a different password, and checks that the rejected login isn't tried again. The bulk
+ * connection is only made by the test of it, so the other tests see a single connection.
+ */
+public class ReconnectTest extends ServiceTestCase<SqueezeService> {
+
+    private static final int SONGS = 100;
+
+    /** Latency of the first server, so it can be killed before it replies. */
+    private static final int LATENCY_IN_MS = 2000;
+
+    /** Number of milliseconds to wait for the client before failing. */
+    private static final int TIMEOUT_IN_MS = 30000;
+
+    public ReconnectTest() {
+        super(SqueezeService.class);
+    }
+
+    private final Object mLock = new Object();
+
+    private int mHandshakeCount;
+
+    private final List<Integer> mConnectionStates = new ArrayList<Integer>();
+
+    private final List<Song> mSongs = new ArrayList<Song>();
+
+    private ISqueezeService mService;
+
+    private SqueezeboxServerMock mServer;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = (ISqueezeService) bindService(
+                new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+        getService().cli.setLibraryIndexEnabled(false);
+        getService().cli.setBulkConnectionEnabled(false);
+    }
+
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        mService.disconnect();
+        if (mServer != null) {
+            mServer.kill();
+        }
+        shutdownService();
+        super.tearDown();
+    }
+
+    private void connect() throws InterruptedException {
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT, "test", "test");
+        awaitHandshakes(1);
+        synchronized (mLock) {
+            // Only the states after the connection was made.
+            mConnectionStates.clear();
+        }
+    }
+
+    private void awaitHandshakes(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        synchronized (mLock) {
+            while (mHandshakeCount < count && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(count, mHandshakeCount);
+        }
+    }
+
+    /** Wait until the server has received a line containing the text, and return it. */
+    private static String awaitLine(SqueezeboxServerMock server, String text)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (server.getReceivedLines(text).isEmpty() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        List<String> lines = server.getReceivedLines(text);
+        assertEquals(1, lines.size());
+        return lines.get(0);
+    }
+
+    public void testFetchCompletesAfterServerRestart() throws Exception {
+        mServer = SqueezeboxServerMock.starter().songs(SONGS).latency(LATENCY_IN_MS).start();
+        connect();
+
+        getService().cli.requestItems("songs", 0, SONGS, new IServiceItemListCallback<Song>() {
+            @Override
+            public void onItemsReceived(int count, int start, Map<String, String> parameters,
+                    List<Song> items, Class<Song> dataType) {
+                synchronized (mLock) {
+                    mSongs.addAll(items);
+                    mLock.notifyAll();
+                }
+            }
+
+            @Override
+            public Object getClient() {
+                return ReconnectTest.this;
+            }
+        });
+        String request = awaitLine(mServer, "songs 0 ");
+
+        // The reply is lost with the server.
+        mServer.kill();
+        mServer = SqueezeboxServerMock.starter().songs(SONGS).start();
+
+        awaitHandshakes(2);
+        assertEquals("The request is sent again with its correlation id", request,
+                awaitLine(mServer, "songs 0 "));
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        synchronized (mLock) {
+            while (mSongs.size() < SONGS && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(SONGS, mSongs.size());
+            assertTrue(mConnectionStates.contains(ConnectionState.RECONNECTING));
+            assertFalse(mConnectionStates.contains(ConnectionState.DISCONNECTED));
+        }
+        assertTrue(mService.isConnected());
+    }
+
+    public void testDisconnectWhileReconnecting() throws Exception {
+        mServer = SqueezeboxServerMock.starter().start();
+        connect();
+
+        mServer.kill();
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (!getService().cli.isReconnecting() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(getService().cli.isReconnecting());
+
+        mService.disconnect();
+        assertFalse(getService().cli.isReconnecting());
+        mServer = SqueezeboxServerMock.starter().start();
+
+        // Longer than the first attempt to reconnect would have waited.
+        Thread.sleep(3000);
+        assertTrue(mServer.getReceivedLines("login").isEmpty());
+        synchronized (mLock) {
+            assertEquals(ConnectionState.DISCONNECTED,
+                    (int) mConnectionStates.get(mConnectionStates.size() - 1));
+        }
+    }
+
+    public void testRejectedLoginIsNotRetried() throws Exception {
+        mServer = SqueezeboxServerMock.starter().username("test").password("test").start();
+        connect();
+
+        // The server comes back with a different password.
+        mServer.kill();
+        mServer = SqueezeboxServerMock.starter().username("test").password("changed").start();
+
+        // Well before the attempts to reconnect would have run out.
+        long end = System.currentTimeMillis() + 10000;
+        synchronized (mLock) {
+            while (!mConnectionStates.contains(ConnectionState.LOGIN_FAILED)
+                    && System.currentTimeMillis() < end) {
+                mLock.wait(100);
+            }
+            assertTrue(mConnectionStates.toString(),
+                    mConnectionStates.contains(ConnectionState.LOGIN_FAILED));
+        }
+        assertFalse(getService().cli.isReconnecting());
+
+        // Longer than the next attempt to reconnect would have waited.
+        Thread.sleep(3000);
+        assertEquals(1, mServer.getReceivedLines("login").size());
+        synchronized (mLock) {
+            assertEquals(ConnectionState.LOGIN_FAILED,
+                    (int) mConnectionStates.get(mConnectionStates.size() - 1));
+        }
+    }
+
+    public void testStalledConnectionIsMadeAgain() throws Exception {
+        getService().cli.setProbeTimes(100, 1000);
+        mServer = SqueezeboxServerMock.starter().start();
+        connect();
+
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (mService.getConnectionHealth().getRttCount() < 3
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        ConnectionHealth health = mService.getConnectionHealth();
+        assertTrue(health.toString(), health.getRttCount() >= 3);
+        assertTrue(health.toString(), health.getP99Micros() > 0);
+        assertEquals(0, health.getStallCount());
+
+        // The connection stays open, but nothing arrives.
+        mServer.stall();
+        end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (!getService().cli.isReconnecting() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(getService().cli.isReconnecting());
+        assertEquals(1, mService.getConnectionHealth().getStallCount());
+
+        mServer.kill();
+        mServer = SqueezeboxServerMock.starter().start();
+        awaitHandshakes(2);
+        assertTrue(mService.isConnected());
+        assertEquals(1, mService.getConnectionHealth().getStallCount());
+    }
+
+    public void testBulkConnectionIsMadeAgain() throws Exception {
+        getService().cli.setBulkConnectionEnabled(true);
+        mServer = SqueezeboxServerMock.starter().songs(SONGS).connections(2).start();
+        connect();
+        awaitConnections(mServer, 2);
+
+        mServer.kill();
+        mServer = SqueezeboxServerMock.starter().songs(SONGS).connections(2).start();
+        awaitHandshakes(2);
+        awaitConnections(mServer, 2);
+
+        getService().cli.requestItems("songs", 0, SONGS, new IServiceItemListCallback<Song>() {
+            @Override
+            public void onItemsReceived(int count, int start, Map<String, String> parameters,
+                    List<Song> items, Class<Song> dataType) {
+                synchronized (mLock) {
+                    mSongs.addAll(items);
+                    mLock.notifyAll();
+                }
+            }
+
+            @Override
+            public Object getClient() {
+                return ReconnectTest.this;
+            }
+        });
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        synchronized (mLock) {
+            while (mSongs.size() < SONGS && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(SONGS, mSongs.size());
+        }
+    }
+
+    private static void awaitConnections(SqueezeboxServerMock server, int count)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        while (server.getConnectionCount() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getConnectionCount());
+    }
+
+    public void onEvent(HandshakeComplete event) {
+        synchronized (mLock) {
+            mHandshakeCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    public void onEvent(ConnectionChanged event) {
+        synchronized (mLock) {
+            mConnectionStates.add(event.connectionState);
+        }
+    }
+}
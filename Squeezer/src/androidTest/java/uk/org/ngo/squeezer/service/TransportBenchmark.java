@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.model.Song;
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.test.mock.CometServerMock;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Compares fetching a full list of songs over the CLI with fetching it over the Comet interface,
+ * and checks that the Comet interface carries the handshake and the list intact.
+ * <p>
+ * The results are logged, e.g. <code>adb logcat -s TransportBenchmark</code>.
+ */
+public class TransportBenchmark extends ServiceTestCase<SqueezeService> {
+    private static final String TAG = "TransportBenchmark";
+
+    private static final int SONGS = 20000;
+
+    /** Number of milliseconds to wait for the client before failing. */
+    private static final int TIMEOUT_IN_MS = 120000;
+
+    public TransportBenchmark() {
+        super(SqueezeService.class);
+    }
+
+    private final Object mLock = new Object();
+
+    private int mHandshakeCount;
+
+    private int mSongCount;
+
+    private ISqueezeService mService;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = (ISqueezeService) bindService(
+                new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+        getService().cli.setLibraryIndexEnabled(false);
+        getService().cli.setBulkConnectionEnabled(false);
+    }
+
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        mService.disconnect();
+        getService().cli.setCometTransport(false);
+        shutdownService();
+        super.tearDown();
+    }
+
+    public void testFullListOverEachTransport() throws Exception {
+        SqueezeboxServerMock cliServer = SqueezeboxServerMock.starter().songs(SONGS).start();
+        long cliMillis;
+        try {
+            cliMillis = fetch(false, "localhost:" + SqueezeboxServerMock.CLI_PORT);
+        } finally {
+            cliServer.kill();
+            cliServer.join(TIMEOUT_IN_MS);
+        }
+
+        CometServerMock cometServer = CometServerMock.start(SONGS);
+        long cometMillis;
+        try {
+            cometMillis = fetch(true, "localhost:" + CometServerMock.HTTP_PORT);
+            assertEquals(1, cometServer.getReceivedCommands("version ?").size());
+            assertTrue(cometServer.getReceivedCommands("listen").isEmpty());
+        } finally {
+            cometServer.kill();
+            cometServer.join(TIMEOUT_IN_MS);
+        }
+        Log.i(TAG, SONGS + " songs over the CLI in " + cliMillis + "ms, over the Comet interface"
+                + " in " + cometMillis + "ms");
+    }
+
+    /**
+     * Connect to a server, and fetch all its songs.
+     *
+     * @return The time taken to fetch the songs, in milliseconds.
+     */
+    private long fetch(boolean comet, String hostPort) throws Exception {
+        CliClient cli = getService().cli;
+        synchronized (mLock) {
+            mHandshakeCount = 0;
+            mSongCount = 0;
+        }
+        // Not through the service, which takes the transport from the preferences.
+        cli.setCometTransport(comet);
+        cli.startConnect(getService(), hostPort, "test", "test");
+        long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+        synchronized (mLock) {
+            while (mHandshakeCount == 0 && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(1, mHandshakeCount);
+        }
+
+        long start = System.nanoTime();
+        cli.requestItems("songs", -1, new IServiceItemListCallback<Song>() {
+            @Override
+            public void onItemsReceived(int count, int start, Map<String, String> parameters,
+                    List<Song> items, Class<Song> dataType) {
+                synchronized (mLock) {
+                    mSongCount += items.size();
+                    mLock.notifyAll();
+                }
+            }
+
+            @Override
+            public Object getClient() {
+                return TransportBenchmark.this;
+            }
+        });
+        synchronized (mLock) {
+            while (mSongCount < SONGS && System.currentTimeMillis() < end) {
+                mLock.wait(TIMEOUT_IN_MS);
+            }
+            assertEquals(SONGS, mSongCount);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, (comet ? "Comet: " : "CLI: ") + SONGS + " songs in " + elapsedMillis + "ms, "
+                + mService.getConnectionHealth());
+
+        mService.disconnect();
+        return elapsedMillis;
+    }
+
+    public void onEvent(HandshakeComplete event) {
+        synchronized (mLock) {
+            mHandshakeCount++;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.test.mock;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emulates the Comet interface of LMS's web server for testing purposes, with the replies of
+ * {@link SqueezeboxServerMock} to the commands of the handshake and to lists of songs.
+ * <p>
+ * Long polls are held until the server is killed, as no subscription ever changes.
+ */
+public class CometServerMock extends Thread {
+
+    private static final String TAG = CometServerMock.class.getSimpleName();
+
+    public static final int HTTP_PORT = 9092;
+
+    private static final String CLIENT_ID = "0a1b2c3d";
+
+    private final int songs;
+
+    private volatile ServerSocket serverSocket;
+
+    private volatile boolean killed;
+
+    /** The sockets of the connections accepted so far. */
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    /** Every command received from the client, in order, as the CLI would receive it. */
+    private final List<String> receivedCommands = new ArrayList<String>();
+
+    /**
+     * Start a server.
+     *
+     * @param songs Number of songs in the library, returned by the songs command.
+     */
+    public static CometServerMock start(int songs) throws IOException {
+        CometServerMock server = new CometServerMock(songs);
+        server.serverSocket = new ServerSocket();
+        server.serverSocket.setReuseAddress(true);
+        server.serverSocket.bind(new InetSocketAddress(HTTP_PORT));
+        server.start();
+        return server;
+    }
+
+    private CometServerMock(int songs) {
+        super("CometServerMock");
+        this.songs = songs;
+    }
+
+    /** @return The commands received so far that contain the given text. */
+    public List<String> getReceivedCommands(String text) {
+        List<String> commands = new ArrayList<String>();
+        synchronized (receivedCommands) {
+            for (String command : receivedCommands) {
+                if (command.contains(text)) {
+                    commands.add(command);
+                }
+            }
+        }
+        return commands;
+    }
+
+    /** Close the connections and stop listening, releasing the long polls unanswered. */
+    public void kill() {
+        killed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Mock server listening on port: " + serverSocket.getLocalPort());
+        while (!killed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            new Thread("CometServerMockConnection") {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }.start();
+        }
+    }
+
+    /** Serve the requests of a connection, which is kept alive, until it's closed. */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (!killed) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                int contentLength = 0;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                int read = 0;
+                while (read < contentLength) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                String response = respond(new JSONArray(new String(body, "UTF-8")));
+                if (response == null) {
+                    break;
+                }
+                byte[] bytes = response.getBytes("UTF-8");
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                        + "Content-Length: " + bytes.length + "\r\n\r\n").getBytes("UTF-8"));
+                out.write(bytes);
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Mock server connection closed: " + e);
+        } catch (JSONException e) {
+            Log.w(TAG, "Mock server got a bad request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return null;
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The response to the messages of a request, or null if the server was killed while
+     *     a long poll was held.
+     */
+    private String respond(JSONArray messages) throws JSONException {
+        JSONArray response = new JSONArray();
+        boolean connect = false;
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            String channel = message.getString("channel");
+            JSONObject reply = new JSONObject().put("channel", channel);
+            if (message.has("id")) {
+                reply.put("id", message.get("id"));
+            }
+            if ("/meta/handshake".equals(channel)) {
+                reply.put("successful", true).put("clientId", CLIENT_ID);
+            } else if ("/meta/connect".equals(channel)) {
+                connect = true;
+                reply.put("successful", true);
+            } else if ("/slim/request".equals(channel)) {
+                JSONObject data = message.getJSONObject("data");
+                JSONArray request = data.getJSONArray("request");
+                String responseChannel = data.getString("response");
+                reply = new JSONObject().put("channel", responseChannel)
+                        .put("id", message.get("id"))
+                        .put("data", result(request.getJSONArray(1)));
+            } else {
+                reply.put("successful", true);
+            }
+            response.put(reply);
+        }
+        if (connect) {
+            synchronized (this) {
+                while (!killed) {
+                    try {
+                        wait(1000);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+        return response.toString();
+    }
+
+    /** @return The data of the result of a command. */
+    private JSONObject result(JSONArray params) throws JSONException {
+        StringBuilder command = new StringBuilder();
+        for (int i = 0; i < params.length(); i++) {
+            command.append(i > 0 ? " " : "").append(params.getString(i));
+        }
+        Log.d(TAG, "Mock server got: " + command);
+        synchronized (receivedCommands) {
+            receivedCommands.add(command.toString());
+        }
+
+        String name = params.getString(0);
+        JSONObject data = new JSONObject();
+        if ("can".equals(name)) {
+            data.put("_can", 0);
+        } else if ("pref".equals(name)) {
+            String pref = params.getString(1);
+            data.put("_p2", "httpport".equals(pref) ? String.valueOf(HTTP_PORT)
+                    : "jivealbumsort".equals(pref) ? "album" : "");
+        } else if ("version".equals(name)) {
+            data.put("_version", "7.7.2");
+        } else if ("players".equals(name)) {
+            data.put("count", 0);
+        } else if ("songs".equals(name)) {
+            int start = params.getInt(1);
+            int itemsPerResponse = params.getInt(2);
+            JSONArray loop = new JSONArray();
+            for (int i = start; i < Math.min(songs, start + itemsPerResponse); i++) {
+                loop.put(new JSONObject().put("id", i).put("title", "Song " + i)
+                        .put("artist", "Artist").put("album", "Album").put("duration", 245.2)
+                        .put("artist_id", i % Math.max(1, songs / 100))
+                        .put("album_id", i % Math.max(1, songs / 10))
+                        .put("genre_id", i % 20).put("year", 1980 + i % 30)
+                        .put("tracknum", 1 + i / Math.max(1, songs / 10)));
+            }
+            data.put("titles_loop", loop).put("count", songs);
+        }
+        return data;
+    }
+}
@@ -9,8 +9,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import uk.org.ngo.squeezer.itemlist.dialog.AlbumViewDialog.AlbumsSortOrder;
 
@@ -21,6 +27,9 @@ import uk.org.ngo.squeezer.itemlist.dialog.AlbumViewDialog.AlbumsSortOrder;
  * inputstream, and reply to the outputstream, until the connection is broken or the exit command is
  * received, at which point the connection is terminated.
  * <p/>
+ * If the instance accepts more than one connection, the others are served alongside the first,
+ * and are closed with it.
+ * <p/>
  * To make a new connection a new instance must be started.
  *
  * @author Kurt Aaholst <kaaholst@gmail.com>
@@ -80,6 +89,33 @@ public class SqueezeboxServerMock extends Thread {
             return this;
         }
 
+        /** Number of songs in the library, returned by the songs command. */
+        public Starter songs(int songs) {
+            this.songs = songs;
+            return this;
+        }
+
+        /**
+         * Answer <code>serverstatus</code> with this last scan time, and generate artists,
+         * albums, genres and years for the songs, so the library can be indexed.
+         */
+        public Starter lastscan(String lastscan) {
+            this.lastscan = lastscan;
+            return this;
+        }
+
+        /** Accept this many connections, e.g. for the second connection of the client. */
+        public Starter connections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        /** Delay each reply by this many milliseconds, to simulate network latency. */
+        public Starter latency(int latencyMillis) {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
         private String username;
 
         private String password;
@@ -89,6 +125,14 @@ public class SqueezeboxServerMock extends Thread {
         private boolean canMusicFolder = true;
 
         private AlbumsSortOrder albumsSortOrder = AlbumsSortOrder.album;
+
+        private int songs;
+
+        private String lastscan;
+
+        private int latencyMillis;
+
+        private int connections = 1;
     }
 
     public static Starter starter() {
@@ -101,6 +145,10 @@ public class SqueezeboxServerMock extends Thread {
         canRandomplay = starter.canRandomplay;
         canMusicFolder = starter.canMusicFolder;
         albumsSortOrder = starter.albumsSortOrder;
+        songs = starter.songs;
+        lastscan = starter.lastscan;
+        latencyMillis = starter.latencyMillis;
+        connections = starter.connections;
     }
 
     private String username;
@@ -113,16 +161,191 @@ public class SqueezeboxServerMock extends Thread {
 
     private AlbumsSortOrder albumsSortOrder;
 
+    private int songs;
+
+    private String lastscan;
+
+    private int latencyMillis;
+
+    private int connections;
+
+    private volatile ServerSocket serverSocket;
+
+    /** The first connection, which {@link #send(String)} and {@link #flood} write to. */
+    private volatile Connection firstConnection;
+
+    /** The sockets of the connections accepted so far. */
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private volatile boolean stalled;
+
+    /** Every line received from the client, in order. */
+    private final List<String> receivedLines = new ArrayList<String>();
+
+    /**
+     * @return The lines received so far that contain the given text.
+     */
+    public List<String> getReceivedLines(String text) {
+        List<String> lines = new ArrayList<String>();
+        synchronized (receivedLines) {
+            for (String line : receivedLines) {
+                if (line.contains(text)) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Close the connection and stop listening without replying to the client, as if the server
+     * had crashed, e.g. to test that the client reconnects. Replies that are waiting for the
+     * simulated latency are lost.
+     */
+    public void kill() {
+        closeAll();
+    }
+
+    private void closeAll() {
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /** @return The number of connections accepted so far. */
+    public int getConnectionCount() {
+        synchronized (sockets) {
+            return sockets.size();
+        }
+    }
+
+    /**
+     * Stop replying to the client, and ignore what it sends, without closing the connection, as
+     * if the connection were half-open.
+     */
+    public void stall() {
+        stalled = true;
+    }
+
+    /**
+     * Send a line to the client, e.g. a notification, after the simulated latency.
+     */
+    public void send(String line) {
+        firstConnection.reply(line);
+    }
+
+    /**
+     * Send lines to the client as fast as it reads them, ignoring the simulated latency. Returns
+     * once they have all been written, so it blocks while the client isn't reading.
+     *
+     * @param lines The lines to send, in turn.
+     * @param count The number of lines to send.
+     */
+    public void flood(String[] lines, int count) {
+        PrintWriter out = firstConnection.out;
+        for (int i = 0; i < count; i++) {
+            out.print(lines[i % lines.length] + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The reply to a <code>songs &lt;start> &lt;itemsPerResponse> &lt;tagged-params></code>
+     *     request, echoing the tagged parameters.
+     */
+    private String songs(String[] tokens) {
+        return list(tokens, songs);
+    }
+
+    /**
+     * @return The reply to a <code>serverstatus 0 0 &lt;tagged-params></code> request, echoing
+     *     the tagged parameters, with the last scan time if there is one.
+     */
+    private String serverstatus(String[] tokens) {
+        StringBuilder sb = new StringBuilder("serverstatus 0 0");
+        for (int i = 3; i < tokens.length; i++) {
+            sb.append(' ').append(tokens[i].replace(":", "%3A"));
+        }
+        if (lastscan != null) {
+            sb.append(" lastscan%3A").append(lastscan).append(" info%20total%20songs%3A")
+                    .append(songs);
+        }
+        return sb.toString();
+    }
+
+    private int artists() {
+        return Math.max(1, songs / 100);
+    }
+
+    private int albums() {
+        return Math.max(1, songs / 10);
+    }
+
+    private static final int GENRES = 20;
+
+    private static final int YEARS = 30;
+
+    /**
+     * @return The reply to a <code>&lt;command> &lt;start> &lt;itemsPerResponse>
+     *     &lt;tagged-params></code> request for a list of the generated library, echoing the
+     *     tagged parameters.
+     */
+    private String list(String[] tokens, int count) {
+        int start = Integer.parseInt(tokens[1]);
+        int itemsPerResponse = Integer.parseInt(tokens[2]);
+        StringBuilder sb = new StringBuilder(tokens[0]).append(' ').append(start).append(' ')
+                .append(itemsPerResponse);
+        for (int i = 3; i < tokens.length; i++) {
+            sb.append(' ').append(tokens[i].replace(":", "%3A"));
+        }
+        for (int i = start; i < Math.min(count, start + itemsPerResponse); i++) {
+            if ("songs".equals(tokens[0])) {
+                sb.append(" id%3A").append(i)
+                        .append(" title%3ASong%20").append(i)
+                        .append(" artist%3AArtist album%3AAlbum duration%3A245.2")
+                        .append(" artist_id%3A").append(i % artists())
+                        .append(" album_id%3A").append(i % albums())
+                        .append(" genre_id%3A").append(i % GENRES)
+                        .append(" year%3A").append(1980 + i % YEARS)
+                        .append(" tracknum%3A").append(1 + i / albums());
+            } else if ("artists".equals(tokens[0])) {
+                sb.append(" id%3A").append(i).append(" artist%3AArtist%20").append(i);
+            } else if ("albums".equals(tokens[0])) {
+                sb.append(" id%3A").append(i).append(" album%3AAlbum%20").append(i)
+                        .append(" artist%3AArtist%20").append(i % artists())
+                        .append(" year%3A").append(1980 + i % YEARS);
+            } else if ("genres".equals(tokens[0])) {
+                sb.append(" id%3A").append(i).append(" genre%3AGenre%20").append(i);
+            } else if ("years".equals(tokens[0])) {
+                sb.append(" year%3A").append(1980 + i);
+            }
+        }
+        sb.append(" count%3A").append(count);
+        return sb.toString();
+    }
+
     @Override
     public void run() {
-        ServerSocket serverSocket;
-        Socket socket;
-        BufferedReader in;
-        PrintWriter out;
+        Connection connection;
         try {
-            // Establish server socket
-            serverSocket = new ServerSocket(CLI_PORT);
+            // Establish server socket, which may be bound again as soon as it's closed, so
+            // another instance can be started after this one is killed.
+            serverSocket = new ServerSocket();
             serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(CLI_PORT));
 
             // Wait for incoming connection
             Log.d(TAG, "Mock server listening on port: " + serverSocket.getLocalPort());
@@ -130,76 +353,178 @@ public class SqueezeboxServerMock extends Thread {
                 accepting = true;
                 serverReadyMonitor.notifyAll();
             }
-            socket = serverSocket.accept();
-
-            Log.d(TAG, "Mock server connected to: " + socket.getRemoteSocketAddress());
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 128);
-            out = new PrintWriter(socket.getOutputStream(), true);
+            connection = accept();
+            if (connection == null) {
+                Log.d(TAG, "Mock server killed before a connection");
+                return;
+            }
         } catch (IOException e) {
             throw new Error(e);
         }
+        firstConnection = connection;
+
+        if (connections > 1) {
+            new Thread("MockServerAcceptor") {
+                @Override
+                public void run() {
+                    for (int i = 1; i < connections; i++) {
+                        try {
+                            Connection connection = accept();
+                            if (connection == null) {
+                                return;
+                            }
+                            new Thread(connection, "MockServerConnection" + i).start();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Mock server failed to accept a connection", e);
+                            return;
+                        }
+                    }
+                }
+            }.start();
+        }
 
-        boolean loggedIn = (username == null || password == null);
+        connection.run();
+        Log.d(TAG, "Mock server closing sockets");
+        closeAll();
+    }
 
-        while(! Thread.interrupted()) {
-            // read data from Socket
-            String line;
-            try {
-                line = in.readLine();
-            } catch (IOException e) {
-                line = null;
+    /**
+     * Accept a connection.
+     *
+     * @return The connection, or null if the server was killed.
+     */
+    private Connection accept() throws IOException {
+        Socket socket;
+        try {
+            socket = serverSocket.accept();
+        } catch (IOException e) {
+            if (serverSocket.isClosed()) {
+                return null;
             }
-            Log.d(TAG, "Mock server got: " + line);
-            if (line == null) {
-                break; // Client disconnected
+            throw e;
+        }
+        Log.d(TAG, "Mock server connected to: " + socket.getRemoteSocketAddress());
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return new Connection(socket);
+    }
+
+    /** A connection from the client, served until it's closed. */
+    private class Connection implements Runnable {
+        private final Socket socket;
+
+        private final BufferedReader in;
+
+        private final PrintWriter out;
+
+        /** Writes the delayed replies, in order. */
+        private final ScheduledExecutorService replyExecutor
+                = Executors.newSingleThreadScheduledExecutor();
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 128);
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        /** Send a reply to the client, after the simulated latency. */
+        private void reply(final String line) {
+            if (latencyMillis == 0) {
+                out.println(line);
+                return;
             }
+            replyExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    out.println(line);
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            boolean loggedIn = (username == null || password == null);
+
+            while (!Thread.interrupted()) {
+                // read data from Socket
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (IOException e) {
+                    line = null;
+                }
+                Log.d(TAG, "Mock server got: " + line);
+                if (line == null) {
+                    break; // Client disconnected
+                }
+                synchronized (receivedLines) {
+                    receivedLines.add(line);
+                }
+                if (stalled) {
+                    continue;
+                }
 
-            String[] tokens = line.split(" ");
+                String[] tokens = line.split(" ");
 
-            if ("login".equals(tokens[0])) {
-                out.println(tokens[0] + ' ' + tokens[1] + " ******");
-                if (username != null && password != null) {
-                    if (tokens.length < 2 || !username.equals(tokens[1])) {
-                        break;
+                if ("login".equals(tokens[0])) {
+                    reply(tokens[0] + ' ' + tokens[1] + " ******");
+                    if (username != null && password != null) {
+                        if (tokens.length < 2 || !username.equals(tokens[1])) {
+                            break;
+                        }
+                        if (tokens.length < 3 || !password.equals(tokens[2])) {
+                            break;
+                        }
                     }
-                    if (tokens.length < 3 || !password.equals(tokens[2])) {
+                    loggedIn = true;
+                } else {
+                    if (!loggedIn) {
                         break;
                     }
-                }
-                loggedIn = true;
-            } else {
-                if (!loggedIn) {
-                    break;
-                }
 
-                if ("exit".equals(line)) {
-                    out.println(line);
-                    break;
-                } else if ("listen 1".equals(line)) {
-                    //Just ignore, mock doesn't support server side events
-                    out.println("listen 1");
-                } else if ("can musicfolder ?".equals(line)) {
-                    out.println("can musicfolder " + (canMusicFolder ? 1 : 0));
-                } else if ("can randomplay ?".equals(line)) {
-                    out.println("can randomplay " + (canRandomplay ? 1 : 0));
-                } else if ("pref httpport ?".equals(line)) {
-                    out.println("pref httpport 9092");
-                } else if ("pref jivealbumsort ?".equals(line)) {
-                    out.println("pref jivealbumsort " + albumsSortOrder);
-                } else if ("version ?".equals(line)) {
-                    out.println("version 7.7.2");
-                } else if ("players".equals(tokens[0])) {
-                    //TODO implement
-                } else {
-                    out.println(line);
+                    if ("exit".equals(line)) {
+                        reply(line);
+                        break;
+                    } else if ("listen 1".equals(line)) {
+                        //Just ignore, mock doesn't support server side events
+                        reply("listen 1");
+                    } else if ("can musicfolder ?".equals(line)) {
+                        reply("can musicfolder " + (canMusicFolder ? 1 : 0));
+                    } else if ("can randomplay ?".equals(line)) {
+                        reply("can randomplay " + (canRandomplay ? 1 : 0));
+                    } else if ("pref httpport ?".equals(line)) {
+                        reply("pref httpport 9092");
+                    } else if ("pref jivealbumsort ?".equals(line)) {
+                        reply("pref jivealbumsort " + albumsSortOrder);
+                    } else if ("version ?".equals(line)) {
+                        reply("version 7.7.2");
+                    } else if ("players".equals(tokens[0])) {
+                        //TODO implement
+                    } else if ("songs".equals(tokens[0])) {
+                        reply(songs(tokens));
+                    } else if ("serverstatus".equals(tokens[0])) {
+                        reply(serverstatus(tokens));
+                    } else if (lastscan != null && "artists".equals(tokens[0])) {
+                        reply(list(tokens, artists()));
+                    } else if (lastscan != null && "albums".equals(tokens[0])) {
+                        reply(list(tokens, albums()));
+                    } else if (lastscan != null && "genres".equals(tokens[0])) {
+                        reply(list(tokens, GENRES));
+                    } else if (lastscan != null && "years".equals(tokens[0])) {
+                        reply(list(tokens, YEARS));
+                    } else {
+                        reply(line);
+                    }
                 }
             }
+            replyExecutor.shutdown();
+            try {
+                replyExecutor.awaitTermination(latencyMillis + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+            closeQuietly(socket);
         }
-        try {
-            Log.d(TAG, "Mock server closing socket");
-            socket.close();
-            serverSocket.close();
-        } catch (IOException e) {}
     }
 
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.test.server;
+
+import android.content.Context;
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.Preferences;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.model.Song;
+import uk.org.ngo.squeezer.service.ISqueezeService;
+import uk.org.ngo.squeezer.service.SqueezeService;
+import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Measures how long it takes to fetch a full list of songs from the mock server, with different
+ * simulated network latencies and numbers of page requests in flight.
+ * <p>
+ * The results are logged, e.g. <code>adb logcat -s FullListPagingBenchmark</code>.
+ */
+public class FullListPagingBenchmark extends ServiceTestCase<SqueezeService> {
+    private static final String TAG = "FullListPagingBenchmark";
+
+    private static final int SONGS = 1000;
+
+    private static final int[] LATENCIES_MS = {0, 10, 50, 100};
+
+    private static final int[] WINDOWS = {1, 2, 4, 8};
+
+    /** Number of milliseconds to wait for a fetch before aborting. */
+    private static final int TIMEOUT_IN_MS = 60000;
+
+    public FullListPagingBenchmark() {
+        super(SqueezeService.class);
+    }
+
+    private final Object mLockHandshakeComplete = new Object();
+
+    private boolean mHandshakeComplete;
+
+    private ISqueezeService mService;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = (ISqueezeService) bindService(new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+    }
+
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        getSystemContext().getSharedPreferences(Preferences.NAME, Context.MODE_PRIVATE).edit()
+                .remove(Preferences.KEY_FULL_LIST_WINDOW).commit();
+        shutdownService();
+        super.tearDown();
+    }
+
+    /** Receives the songs, and notifies itself when they have all arrived in order. */
+    private static class SongCounter implements IServiceItemListCallback<Song> {
+        private int mReceived;
+
+        private boolean mInOrder = true;
+
+        @Override
+        public synchronized void onItemsReceived(int count, int start,
+                Map<String, String> parameters, List<Song> items, Class<Song> dataType) {
+            if (start != mReceived) {
+                mInOrder = false;
+            }
+            mReceived += items.size();
+            if (mReceived >= count) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public Object getClient() {
+            return this;
+        }
+
+        synchronized boolean await(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (mReceived < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return mReceived >= count;
+        }
+    }
+
+    public void testFullListFetch() throws Exception {
+        List<String> results = new ArrayList<String>();
+        for (int latency : LATENCIES_MS) {
+            StringBuilder sb = new StringBuilder("latency ").append(latency).append("ms:");
+            for (int window : WINDOWS) {
+                sb.append(" window ").append(window).append('=')
+                        .append(fetchMillis(latency, window)).append("ms");
+            }
+            Log.i(TAG, sb.toString());
+            results.add(sb.toString());
+        }
+        Log.i(TAG, SONGS + " songs, results: " + results);
+    }
+
+    /**
+     * @return The time to fetch all the songs from a new mock server.
+     */
+    private long fetchMillis(int latency, int window) throws Exception {
+        getSystemContext().getSharedPreferences(Preferences.NAME, Context.MODE_PRIVATE).edit()
+                .putInt(Preferences.KEY_FULL_LIST_WINDOW, window).commit();
+        mService.preferenceChanged(Preferences.KEY_FULL_LIST_WINDOW);
+
+        SqueezeboxServerMock.starter().songs(SONGS).latency(latency).start();
+        mHandshakeComplete = false;
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT, "test", "test");
+        synchronized (mLockHandshakeComplete) {
+            if (!mHandshakeComplete) {
+                mLockHandshakeComplete.wait(TIMEOUT_IN_MS);
+            }
+        }
+        assertTrue(mHandshakeComplete);
+
+        SongCounter counter = new SongCounter();
+        long start = System.currentTimeMillis();
+        mService.songs(counter, -1, "title", null);
+        assertTrue("Fetched all the songs", counter.await(SONGS, TIMEOUT_IN_MS));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Songs arrived in order", counter.mInOrder);
+
+        mService.disconnect();
+        // Give the mock server time to close its socket before the next one starts.
+        Thread.sleep(500);
+        return elapsed;
+    }
+
+    public void onEvent(HandshakeComplete event) {
+        synchronized (mLockHandshakeComplete) {
+            mHandshakeComplete = true;
+            mLockHandshakeComplete.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.test.server;
+
+import android.content.Intent;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.ngo.squeezer.service.ISqueezeService;
+import uk.org.ngo.squeezer.service.LibraryDatabase;
+import uk.org.ngo.squeezer.service.SqueezeService;
+import uk.org.ngo.squeezer.service.event.LibrarySynced;
+import uk.org.ngo.squeezer.test.mock.SqueezeboxServerMock;
+
+/**
+ * Measures how fast the library index is synchronized from a generated mock library, both
+ * into an empty index and again after a rescan that didn't change anything.
+ * <p>
+ * The results are logged, e.g. <code>adb logcat -s LibrarySyncBenchmark</code>.
+ */
+public class LibrarySyncBenchmark extends ServiceTestCase<SqueezeService> {
+    private static final String TAG = "LibrarySyncBenchmark";
+
+    private static final int[] SONGS = {1000, 10000, 80000};
+
+    /** The server as the library index identifies it: the mock's host and HTTP port. */
+    private static final String SERVER = "localhost:9092";
+
+    /** Number of milliseconds to wait for a synchronization before aborting. */
+    private static final int TIMEOUT_IN_MS = 600000;
+
+    public LibrarySyncBenchmark() {
+        super(SqueezeService.class);
+    }
+
+    private final Object mLockSynced = new Object();
+
+    private LibrarySynced mSynced;
+
+    private ISqueezeService mService;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = (ISqueezeService) bindService(new Intent(getSystemContext(), SqueezeService.class));
+        mService.getEventBus().register(this);
+    }
+
+    protected void tearDown() throws Exception {
+        mService.getEventBus().unregister(this);
+        LibraryDatabase.delete(getSystemContext(), SERVER);
+        shutdownService();
+        super.tearDown();
+    }
+
+    public void testSync() throws Exception {
+        List<String> results = new ArrayList<String>();
+        for (int songs : SONGS) {
+            LibraryDatabase.delete(getSystemContext(), SERVER);
+
+            LibrarySynced initial = sync(songs, "1");
+            assertEquals("Everything is new", initial.items, initial.written);
+
+            LibrarySynced resync = sync(songs, "2");
+            assertEquals("Nothing changed", 0, resync.written);
+            assertEquals(0, resync.removed);
+
+            String result = songs + " songs: initial " + initial + ", resync " + resync;
+            Log.i(TAG, result);
+            results.add(result);
+        }
+        Log.i(TAG, "Results: " + results);
+    }
+
+    /**
+     * @return The synchronization of the library index with a new mock server.
+     */
+    private LibrarySynced sync(int songs, String lastscan) throws Exception {
+        SqueezeboxServerMock.starter().songs(songs).lastscan(lastscan).start();
+        synchronized (mLockSynced) {
+            mSynced = null;
+            mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT, "test", "test");
+            long end = System.currentTimeMillis() + TIMEOUT_IN_MS;
+            while (mSynced == null && System.currentTimeMillis() < end) {
+                mLockSynced.wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+        }
+        assertNotNull("Library index was synchronized", mSynced);
+
+        mService.disconnect();
+        // Give the mock server time to close its socket before the next one starts.
+        Thread.sleep(500);
+        return mSynced;
+    }
+
+    public void onEvent(LibrarySynced event) {
+        synchronized (mLockSynced) {
+            mSynced = event;
+            mLockSynced.notifyAll();
+        }
+    }
+}
@@ -3,12 +3,19 @@ package uk.org.ngo.squeezer.test.server;
 
 import android.content.Intent;
 import android.test.ServiceTestCase;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.itemlist.dialog.AlbumViewDialog;
+import uk.org.ngo.squeezer.model.Player;
+import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.service.ConnectionState;
 import uk.org.ngo.squeezer.service.ISqueezeService;
 import uk.org.ngo.squeezer.service.SqueezeService;
@@ -201,6 +208,141 @@ public class SqueezeServiceTest extends ServiceTestCase<SqueezeService> {
                 ConnectionState.LOGIN_FAILED), mActualConnectionStates);
     }
 
+    /**
+     * Verify that dragging the volume slider sends far fewer commands than there are UI events,
+     * and that the last volume the user chose is the one that is sent last.
+     *
+     * @throws InterruptedException
+     */
+    public void testVolumeDragIsCoalesced() throws InterruptedException {
+        SqueezeboxServerMock server = SqueezeboxServerMock.starter().start();
+
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT,
+                "test", "test");
+
+        synchronized (mLockHandshakeComplete) {
+            mLockHandshakeComplete.wait(TIMEOUT_IN_MS);
+        }
+
+        TagRecord record = new TagRecord();
+        record.put(Tag.PLAYERID, "00:04:20:17:7d:2e");
+        record.put(Tag.NAME, "Test player");
+        Player player = new Player(record);
+
+        // Simulate a drag from 0 to 100 over a second, with an event every 10ms.
+        long start = System.currentTimeMillis();
+        for (int volume = 0; volume <= 100; volume++) {
+            mService.adjustVolumeTo(player, volume);
+            Thread.sleep(10);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Thread.sleep(500);
+
+        List<String> commands = server.getReceivedLines(" mixer volume ");
+        Log.i(TAG, "Volume drag: 101 events in " + elapsed + "ms sent " + commands.size()
+                + " commands");
+        assertFalse(commands.isEmpty());
+        assertTrue("Sent " + commands.size() + " commands in " + elapsed + "ms",
+                commands.size() <= elapsed / 100 + 2);
+        assertTrue(commands.get(commands.size() - 1).endsWith(" mixer volume 100"));
+
+        mService.disconnect();
+    }
+
+    /** Counts the songs it receives, and notifies itself when they arrive. */
+    private static class SongCounter implements IServiceItemListCallback<Song> {
+        private int mReceived;
+
+        @Override
+        public synchronized void onItemsReceived(int count, int start,
+                Map<String, String> parameters, List<Song> items, Class<Song> dataType) {
+            mReceived += items.size();
+            notifyAll();
+        }
+
+        @Override
+        public Object getClient() {
+            return this;
+        }
+
+        synchronized int await(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (mReceived < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return mReceived;
+        }
+    }
+
+    /**
+     * Verify that identical requests made while the first is waiting for its reply are not
+     * sent, and that all the callbacks receive the items.
+     *
+     * @throws Exception
+     */
+    public void testIdenticalRequestsShareReplies() throws Exception {
+        SqueezeboxServerMock server = SqueezeboxServerMock.starter().songs(100).latency(200).start();
+
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT,
+                "test", "test");
+
+        synchronized (mLockHandshakeComplete) {
+            mLockHandshakeComplete.wait(TIMEOUT_IN_MS);
+        }
+
+        SongCounter first = new SongCounter();
+        SongCounter second = new SongCounter();
+        SongCounter third = new SongCounter();
+        mService.songs(first, 0, "title", null);
+        mService.songs(second, 0, "title", null);
+        mService.songs(third, 0, "title", null);
+
+        // The first page is fetched as the first item, then the rest of the page.
+        assertEquals(20, first.await(20, TIMEOUT_IN_MS));
+        assertEquals(20, second.await(20, TIMEOUT_IN_MS));
+        assertEquals(20, third.await(20, TIMEOUT_IN_MS));
+        assertEquals(1, server.getReceivedLines("songs 0 1 ").size());
+        assertEquals(1, server.getReceivedLines("songs 1 ").size());
+
+        mService.disconnect();
+    }
+
+    /**
+     * Verify that browsing the same list again is answered from the cache, until the server
+     * reports a rescan.
+     */
+    public void testRepeatedBrowsingIsCachedUntilRescan() throws Exception {
+        SqueezeboxServerMock server = SqueezeboxServerMock.starter().songs(100).start();
+
+        mService.startConnect("localhost:" + SqueezeboxServerMock.CLI_PORT,
+                "test", "test");
+
+        synchronized (mLockHandshakeComplete) {
+            mLockHandshakeComplete.wait(TIMEOUT_IN_MS);
+        }
+
+        SongCounter first = new SongCounter();
+        mService.songs(first, 0, "title", null);
+        assertEquals(20, first.await(20, TIMEOUT_IN_MS));
+
+        SongCounter second = new SongCounter();
+        mService.songs(second, 0, "title", null);
+        assertEquals(20, second.await(20, TIMEOUT_IN_MS));
+        assertEquals("Second page is served from the cache",
+                1, server.getReceivedLines("songs 0 1 ").size());
+        assertEquals(1, server.getReceivedLines("songs 1 ").size());
+
+        server.send("rescan done");
+        Thread.sleep(500);
+
+        SongCounter third = new SongCounter();
+        mService.songs(third, 0, "title", null);
+        assertEquals(20, third.await(20, TIMEOUT_IN_MS));
+        assertEquals("Rescan clears the cache", 2, server.getReceivedLines("songs 0 1 ").size());
+
+        mService.disconnect();
+    }
+
     public void onEvent(ConnectionChanged event) {
         mActualConnectionStates.add(event.connectionState);
 
@@ -52,6 +52,9 @@ public final class Preferences {
     // Optional Squeezebox Server password
     private static final String KEY_PASSWORD = "squeezer.password";
 
+    // Reach the Squeezebox Server through the Comet interface of its web server, not the CLI
+    private static final String KEY_COMET_TRANSPORT = "squeezer.comet";
+
     // The playerId that we were last connected to. e.g. "00:04:20:17:04:7f"
     public static final String KEY_LAST_PLAYER = "squeezer.lastplayer";
 
@@ -88,6 +91,18 @@ public final class Preferences {
     // Fade-in period? (0 = disable fade-in)
     public static final String KEY_FADE_IN_SECS = "squeezer.fadeInSecs";
 
+    // How many pages of a full list to request at once
+    public static final String KEY_FULL_LIST_WINDOW = "squeezer.fullListWindow";
+
+    // Keep an index of the server's library on the device
+    public static final String KEY_LIBRARY_INDEX = "squeezer.libraryIndex";
+
+    // Fetch pages of the library on a second connection to the server
+    public static final String KEY_BULK_CONNECTION = "squeezer.bulkConnection";
+
+    // Record the sessions with the server, for replaying later
+    public static final String KEY_RECORD_SESSIONS = "squeezer.recordSessions";
+
     // What do to when an album is selected in the list view
     protected static final String KEY_ON_SELECT_ALBUM_ACTION = "squeezer.action.onselect.album";
 
@@ -227,6 +242,16 @@ public final class Preferences {
         editor.commit();
     }
 
+    public boolean isCometTransport(ServerAddress serverAddress) {
+        return sharedPreferences.getBoolean(serverAddress + KEY_COMET_TRANSPORT, false);
+    }
+
+    public void saveCometTransport(ServerAddress serverAddress, boolean comet) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putBoolean(serverAddress + KEY_COMET_TRANSPORT, comet);
+        editor.commit();
+    }
+
     public String getTheme() {
         return getStringPreference(KEY_ON_THEME_SELECT_ACTION, null);
     }
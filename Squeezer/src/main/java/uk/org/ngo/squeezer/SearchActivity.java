@@ -20,28 +20,56 @@ import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.KeyEvent;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
 import android.widget.AbsListView;
+import android.widget.EditText;
 import android.widget.ExpandableListView;
+import android.widget.TextView;
 
 import java.util.List;
 import java.util.Map;
 
 import uk.org.ngo.squeezer.framework.ItemListActivity;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+import uk.org.ngo.squeezer.service.ConnectionState;
 import uk.org.ngo.squeezer.service.ISqueezeService;
+import uk.org.ngo.squeezer.service.SqueezeService;
+import uk.org.ngo.squeezer.service.event.ConnectionChanged;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.service.event.LibraryChanged;
 
+/**
+ * Searches the library as the search term is typed.
+ * <p>
+ * The search starts when typing pauses (see {@link SearchPipeline#DEBOUNCE_MS}), or straight away
+ * when the search is submitted. Changing the term cancels the requests for the previous term, and
+ * only results for the latest term are shown.
+ */
 public class SearchActivity extends ItemListActivity {
 
     private View loadingLabel;
 
+    private EditText searchInput;
+
     private ExpandableListView resultsExpandableListView;
 
     private SearchAdapter searchResultsAdapter;
 
-    private String searchString;
+    private SearchPipeline searchPipeline;
+
+    /** Searches for the typed term, once typing has paused. */
+    private final Runnable debouncedSearch = new Runnable() {
+        @Override
+        public void run() {
+            search(searchInput.getText().toString());
+        }
+    };
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -53,6 +81,34 @@ public class SearchActivity extends ItemListActivity {
         searchResultsAdapter = new SearchAdapter(this);
         resultsExpandableListView = (ExpandableListView) findViewById(R.id.search_expandable_list);
         resultsExpandableListView.setOnScrollListener(new ScrollListener());
+        searchPipeline = new SearchPipeline(searchResultsAdapter.getGroupCount());
+
+        searchInput = (EditText) findViewById(R.id.search_input);
+        searchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                getUIThreadHandler().removeCallbacks(debouncedSearch);
+                getUIThreadHandler().postDelayed(debouncedSearch, SearchPipeline.DEBOUNCE_MS);
+            }
+        });
+        searchInput.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                    search(v.getText().toString());
+                    return true;
+                }
+                return false;
+            }
+        });
 
         handleIntent(getIntent());
     }
@@ -66,8 +122,19 @@ public class SearchActivity extends ItemListActivity {
     private void handleIntent(Intent intent) {
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
             String query = intent.getStringExtra(SearchManager.QUERY);
-            doSearch(query);
+            searchInput.setText(query);
+            searchInput.setSelection(searchInput.length());
+            search(query);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        getUIThreadHandler().removeCallbacks(debouncedSearch);
+        if (BuildConfig.DEBUG) {
+            Log.d(getTag(), "Search: " + searchPipeline);
         }
+        super.onPause();
     }
 
     @Override
@@ -91,15 +158,32 @@ public class SearchActivity extends ItemListActivity {
      * Setting the list adapter will trigger a layout pass, which requires information from
      * the server.  Only do this after the handshake has completed.  When done, perform the
      * search.
+     * <p>
+     * The handshake may be with another server, or follow a disconnection that happened while
+     * the activity was paused, so the cached results are dropped.
      */
     public void onEventMainThread(HandshakeComplete event) {
+        searchPipeline.clearCache();
         resultsExpandableListView.setAdapter(searchResultsAdapter);
         doSearch();
     }
 
+    /** Results from before a disconnection may be from another server, so are dropped. */
+    public void onEventMainThread(ConnectionChanged event) {
+        if (event.connectionState == ConnectionState.DISCONNECTED) {
+            searchPipeline.clearCache();
+        }
+    }
+
+    /** The server is rescanning its library, so the cached results may be out of date. */
+    public void onEventMainThread(LibraryChanged event) {
+        searchPipeline.clearCache();
+    }
+
     @Override
     protected void orderPage(@NonNull ISqueezeService service, int start) {
-        service.search(start, searchString, itemListCallback);
+        String searchString = searchPipeline.getTerm();
+        service.search(start, searchString, new SearchCallback(searchString));
     }
 
     @Override
@@ -121,17 +205,27 @@ public class SearchActivity extends ItemListActivity {
     }
 
     /**
-     * Saves the search query, and attempts to query the service for <code>searchString</code>. If
-     * the service binding has not completed yet then {@link #onEventMainThread(HandshakeComplete)}
-     * will re-query for the saved search query.
+     * Makes the term the latest search term, and searches for it if it has changed. The requests
+     * for the previous term are cancelled.
      *
-     * @param searchString The string to search fo.
+     * @param searchString The string to search for.
      */
-    private void doSearch(String searchString) {
-        this.searchString = searchString;
-        if (searchString != null && searchString.length() > 0 && getService() != null) {
-            clearAndReOrderItems();
+    private void search(String searchString) {
+        getUIThreadHandler().removeCallbacks(debouncedSearch);
+        if (!searchPipeline.setTerm(searchString)) {
+            return;
         }
+        ISqueezeService service = getService();
+        if (service != null) {
+            service.cancelItemListRequests(this);
+        }
+        if (searchPipeline.getTerm().length() == 0) {
+            // Nothing to search for, so don't leave the results of the previous term showing.
+            clearItems();
+            loadingLabel.setVisibility(View.GONE);
+            return;
+        }
+        doSearch();
     }
 
     @Override
@@ -142,23 +236,61 @@ public class SearchActivity extends ItemListActivity {
     }
 
     /**
-     * Searches for the saved search query.
+     * Attempts to query the service for the latest search term. If the service binding has not
+     * completed yet then {@link #onEventMainThread(HandshakeComplete)} will re-query.
+     * <p>
+     * If the results of the term are cached they are shown straight away, and refreshed by the
+     * query.
      */
     private void doSearch() {
-        doSearch(searchString);
+        String searchString = searchPipeline.getTerm();
+        ISqueezeService service = getService();
+        if (searchString == null || searchString.length() == 0 || service == null) {
+            return;
+        }
+
+        List<SearchPipeline.Delivery> cached = searchPipeline.cached(searchString);
+        if (cached == null) {
+            clearAndReOrderItems();
+            return;
+        }
+
+        clearItems();
+        for (SearchPipeline.Delivery delivery : cached) {
+            showItems(delivery.count, delivery.start, delivery.items, delivery.dataType);
+        }
+        try {
+            orderPage(service, 0);
+        } catch (SqueezeService.HandshakeNotCompleteException e) {
+            // The cached results are shown, the search is repeated after the handshake.
+        }
     }
 
-    private final IServiceItemListCallback itemListCallback = new IServiceItemListCallback() {
+    @SuppressWarnings("unchecked")
+    private void showItems(int count, int start, List items, Class dataType) {
+        onItemsReceived(count, start, items.size());
+        searchResultsAdapter.updateItems(count, start, items, dataType);
+        loadingLabel.setVisibility(View.GONE);
+        resultsExpandableListView.setVisibility(View.VISIBLE);
+    }
+
+    /** Receives the results of a search for one term. */
+    private class SearchCallback implements IServiceItemListCallback {
+        private final String searchString;
+
+        SearchCallback(String searchString) {
+            this.searchString = searchString;
+        }
+
         @Override
         public void onItemsReceived(final int count, final int start, Map parameters, final List items, final Class dataType) {
-            SearchActivity.super.onItemsReceived(count, start, items.size());
-
             getUIThreadHandler().post(new Runnable() {
                 @Override
                 public void run() {
-                    searchResultsAdapter.updateItems(count, start, items, dataType);
-                    loadingLabel.setVisibility(View.GONE);
-                    resultsExpandableListView.setVisibility(View.VISIBLE);
+                    // Results for a term that has since changed are dropped.
+                    if (searchPipeline.onItemsReceived(searchString, count, start, items, dataType)) {
+                        showItems(count, start, items, dataType);
+                    }
                 }
             });
         }
@@ -167,6 +299,6 @@ public class SearchActivity extends ItemListActivity {
         public Object getClient() {
             return SearchActivity.this;
         }
-    };
+    }
 
 }
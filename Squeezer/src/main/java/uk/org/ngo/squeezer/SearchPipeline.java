@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the search term as it is typed, so only the results for the latest term are
+ * shown.
+ * <p>
+ * Each term is searched for in turn. Results that arrive for a term that has been replaced are
+ * dropped, and the first page of results of recent terms is kept, so going back to a term (e.g.
+ * with backspace) shows its results without searching again.
+ * <p>
+ * Not thread safe, all the methods are called on the UI thread.
+ */
+class SearchPipeline {
+
+    /** How long to wait after a keystroke before searching. */
+    static final long DEBOUNCE_MS = 300;
+
+    /** The number of terms whose results are kept. */
+    private static final int CACHED_TERMS = 16;
+
+    /** Results received for a term, one item per delivery. */
+    static class Delivery {
+        final int count;
+        final int start;
+        final List<?> items;
+        final Class<?> dataType;
+
+        Delivery(int count, int start, List<?> items, Class<?> dataType) {
+            this.count = count;
+            this.start = start;
+            this.items = items;
+            this.dataType = dataType;
+        }
+    }
+
+    /** The first page of each type of results of a term, the latest received. */
+    private static class Results {
+        final Map<Class<?>, Delivery> deliveries = new LinkedHashMap<Class<?>, Delivery>();
+    }
+
+    /** The number of kinds of items a search returns, e.g. songs, albums, artists, genres. */
+    private final int mGroups;
+
+    private final Map<String, Results> mResults = new LinkedHashMap<String, Results>(
+            CACHED_TERMS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Results> eldest) {
+            return size() > CACHED_TERMS;
+        }
+    };
+
+    /** The latest term, or null. */
+    private String mTerm;
+
+    /** When the search for the latest term started, from {@link System#nanoTime()}. */
+    private long mSearchStartNanos;
+
+    /** True while no results have arrived for the latest term. */
+    private boolean mAwaitingFirstResult;
+
+    private int mSearchCount;
+
+    private int mCancelledCount;
+
+    private int mStaleCount;
+
+    private int mCacheHitCount;
+
+    private int mFirstResultCount;
+
+    private long mFirstResultMillisTotal;
+
+    private long mFirstResultMillisLast;
+
+    /**
+     * @param groups The number of kinds of items a search returns. The results of a term are
+     *     complete when the first page of each kind has arrived.
+     */
+    SearchPipeline(int groups) {
+        mGroups = groups;
+    }
+
+    /**
+     * @return The term as it is searched for: without surrounding white space.
+     */
+    static String normalize(String term) {
+        return (term == null ? "" : term.trim());
+    }
+
+    /** @return The latest term, or null. */
+    String getTerm() {
+        return mTerm;
+    }
+
+    /**
+     * Make the term the latest. If results for the previous term were still expected, its
+     * search is cancelled.
+     *
+     * @return True if the term has changed, and should be searched for.
+     */
+    boolean setTerm(String term) {
+        term = normalize(term);
+        if (term.equals(mTerm)) {
+            return false;
+        }
+        if (mAwaitingFirstResult) {
+            mCancelledCount++;
+        }
+        mTerm = term;
+        mSearchCount++;
+        mSearchStartNanos = System.nanoTime();
+        mAwaitingFirstResult = term.length() > 0;
+        return true;
+    }
+
+    /** @return True if results for the term should be shown. */
+    boolean isCurrent(String term) {
+        return term.equals(mTerm);
+    }
+
+    /**
+     * Record results that arrived.
+     *
+     * @return True if the results are for the latest term and should be shown, false if they
+     *     are stale and should be dropped.
+     */
+    boolean onItemsReceived(String term, int count, int start, List<?> items,
+            Class<?> dataType) {
+        if (!isCurrent(term)) {
+            mStaleCount++;
+            return false;
+        }
+        if (mAwaitingFirstResult) {
+            mAwaitingFirstResult = false;
+            mFirstResultMillisLast = (System.nanoTime() - mSearchStartNanos) / 1000000;
+            mFirstResultMillisTotal += mFirstResultMillisLast;
+            mFirstResultCount++;
+        }
+        if (start == 0) {
+            Results results = mResults.get(term);
+            if (results == null) {
+                results = new Results();
+                mResults.put(term, results);
+            }
+            // Replaces the page received earlier, e.g. when a cached term is searched again.
+            results.deliveries.put(dataType,
+                    new Delivery(count, start, new ArrayList<Object>(items), dataType));
+        }
+        return true;
+    }
+
+    /**
+     * @return The first page of each kind of results of the term, if they have all arrived,
+     *     otherwise null.
+     */
+    List<Delivery> cached(String term) {
+        Results results = mResults.get(normalize(term));
+        if (results == null || results.deliveries.size() < mGroups) {
+            return null;
+        }
+        mCacheHitCount++;
+        if (isCurrent(normalize(term))) {
+            mAwaitingFirstResult = false;
+        }
+        return new ArrayList<Delivery>(results.deliveries.values());
+    }
+
+    /**
+     * Forget the cached results, e.g. when the library may have changed, or after disconnecting
+     * from the server.
+     */
+    void clearCache() {
+        mResults.clear();
+    }
+
+    /** @return The number of terms searched for. */
+    int getSearchCount() {
+        return mSearchCount;
+    }
+
+    /** @return The number of searches that were replaced before any results arrived. */
+    int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    /** @return The number of deliveries dropped because their term had been replaced. */
+    int getStaleCount() {
+        return mStaleCount;
+    }
+
+    /** @return The number of terms whose results were shown from the cache. */
+    int getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /**
+     * @return The average time from starting a search to the first results arriving, in
+     *     milliseconds, or -1 if no results have arrived.
+     */
+    long getAverageFirstResultMillis() {
+        return (mFirstResultCount == 0 ? -1 : mFirstResultMillisTotal / mFirstResultCount);
+    }
+
+    /** @return The time the latest search took to get its first results, in milliseconds. */
+    long getLastFirstResultMillis() {
+        return mFirstResultMillisLast;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchPipeline{searches=" + mSearchCount + ", cancelled=" + mCancelledCount
+                + ", stale=" + mStaleCount + ", cacheHits=" + mCacheHitCount
+                + ", firstResultMs(avg)=" + getAverageFirstResultMillis()
+                + ", firstResultMs(last)=" + mFirstResultMillisLast + "}";
+    }
+}
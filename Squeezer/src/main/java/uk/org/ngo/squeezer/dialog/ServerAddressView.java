@@ -25,6 +25,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.Spinner;
@@ -53,6 +54,7 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
     private Spinner mServersSpinner;
     private EditText mUserNameEditText;
     private EditText mPasswordEditText;
+    private CheckBox mCometTransportCheckBox;
     private View mScanResults;
     private View mScanProgress;
 
@@ -84,6 +86,7 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
             mServerAddressEditText = (EditText) findViewById(R.id.server_address);
             mUserNameEditText = (EditText) findViewById(R.id.username);
             mPasswordEditText = (EditText) findViewById(R.id.password);
+            mCometTransportCheckBox = (CheckBox) findViewById(R.id.comet_transport);
             setServerAddress(serverAddress.address);
 
             // Set up the servers spinner.
@@ -122,8 +125,10 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
         String address = mServerAddressEditText.getText().toString();
 
         // Append the default port if necessary.
+        boolean comet = mCometTransportCheckBox.isChecked();
         if (!address.contains(":")) {
-            address += ":" + getResources().getInteger(R.integer.DefaultPort);
+            address += ":" + getResources().getInteger(
+                    comet ? R.integer.DefaultHttpPort : R.integer.DefaultPort);
         }
 
         Preferences.ServerAddress serverAddress = mPreferences.saveServerAddress(address);
@@ -136,6 +141,7 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
         final String userName = mUserNameEditText.getText().toString();
         final String password = mPasswordEditText.getText().toString();
         mPreferences.saveUserCredentials(serverAddress, userName, password);
+        mPreferences.saveCometTransport(serverAddress, comet);
     }
 
     public void onDismiss() {
@@ -216,6 +222,7 @@ public class ServerAddressView extends LinearLayout implements ScanNetworkTask.S
         mServerAddressEditText.setText(serverAddress.address);
         mUserNameEditText.setText(mPreferences.getUserName(serverAddress));
         mPasswordEditText.setText(mPreferences.getPassword(serverAddress));
+        mCometTransportCheckBox.setChecked(mPreferences.isCometTransport(serverAddress));
     }
 
     private String getServerName(String ipPort) {
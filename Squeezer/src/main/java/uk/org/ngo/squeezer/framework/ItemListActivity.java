@@ -197,13 +197,18 @@ public abstract class ItemListActivity extends BaseActivity {
 
         // If this doesn't add any items, then don't register the page a received
         if (start < count && size != 0) {
-            // Because we might receive a page in chunks, we test if this is the end of a page
-            // before we register the page as received.
-            if (((start + size) % mPageSize == 0) || (start + size == count)) {
-                // Add this page of data to mReceivedPages and remove from mOrderedPages.
-                int pageStart = (start + size == count) ? start : start + size - mPageSize;
-                mReceivedPages.add(pageStart);
-                mOrderedPages.remove(pageStart);
+            // The server sends a page in chunks which may be smaller or larger than a page, in
+            // order. A page has been received when a chunk reaches the end of it, so register
+            // every page that ends in this chunk.
+            int end = Math.min(start + size, count);
+            for (int pageStart = (start / mPageSize) * mPageSize; pageStart < end;
+                    pageStart += mPageSize) {
+                int pageEnd = Math.min(pageStart + mPageSize, count);
+                if (pageEnd > start && pageEnd <= end) {
+                    // Add this page of data to mReceivedPages and remove from mOrderedPages.
+                    mReceivedPages.add(pageStart);
+                    mOrderedPages.remove(pageStart);
+                }
             }
         }
     }
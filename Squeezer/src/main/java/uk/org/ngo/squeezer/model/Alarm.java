@@ -18,12 +18,13 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Alarm extends Item {
@@ -33,13 +34,13 @@ public class Alarm extends Item {
         return String.valueOf(tod);
     }
 
-    public Alarm(Map<String, String> record) {
-        setId(record.get("id"));
-        tod = Util.parseDecimalIntOrZero(record.get("time"));
-        setDow(record.get("dow"));
-        enabled = Util.parseDecimalIntOrZero(record.get("enabled")) == 1;
-        repeat = Util.parseDecimalIntOrZero(record.get("repeat")) == 1;
-        url = record.get("url");
+    public Alarm(TagRecord record) {
+        setId(record.get(Tag.ID));
+        tod = Util.parseDecimalIntOrZero(record.get(Tag.TIME));
+        setDow(record.get(Tag.DOW));
+        enabled = Util.parseDecimalIntOrZero(record.get(Tag.ENABLED)) == 1;
+        repeat = Util.parseDecimalIntOrZero(record.get(Tag.REPEAT)) == 1;
+        url = record.get(Tag.URL);
         if ("CURRENT_PLAYLIST".equals(url)) url = "";
     }
 
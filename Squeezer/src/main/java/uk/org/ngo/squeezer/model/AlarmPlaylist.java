@@ -18,10 +18,10 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class AlarmPlaylist extends Item {
@@ -49,11 +49,11 @@ public class AlarmPlaylist extends Item {
     public AlarmPlaylist() {
     }
 
-    public AlarmPlaylist(Map<String, String> record) {
-        setId(record.get("url"));
-        title = record.get("title");
-        category = record.get("category");
-        singleton = Util.parseDecimalIntOrZero(record.get("singleton")) == 1;
+    public AlarmPlaylist(TagRecord record) {
+        setId(record.get(Tag.URL));
+        title = record.get(Tag.TITLE);
+        category = record.get(Tag.CATEGORY);
+        singleton = Util.parseDecimalIntOrZero(record.get(Tag.SINGLETON)) == 1;
     }
 
     public static final Creator<AlarmPlaylist> CREATOR = new Creator<AlarmPlaylist>() {
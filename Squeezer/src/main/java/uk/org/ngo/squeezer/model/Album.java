@@ -26,6 +26,8 @@ import java.util.Map;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.ArtworkItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 public class Album extends ArtworkItem {
 
@@ -89,12 +91,16 @@ public class Album extends ArtworkItem {
     }
 
     public Album(Map<String, String> record) {
-        setId(record.containsKey("album_id") ? record.get("album_id") : record.get("id"));
-        setName(record.get("album"));
-        setArtist(record.get("artist"));
-        setYear(Util.parseDecimalIntOrZero(record.get("year")));
-        setArtwork_track_id(record.get("artwork_track_id"));
-        mArtworkUrl = Uri.parse(Strings.nullToEmpty(record.get("artwork_url")));
+        this(TagRecord.fromMap(record));
+    }
+
+    public Album(TagRecord record) {
+        setId(record.has(Tag.ALBUM_ID) ? record.get(Tag.ALBUM_ID) : record.get(Tag.ID));
+        setName(record.get(Tag.ALBUM));
+        setArtist(record.get(Tag.ARTIST));
+        setYear(Util.parseDecimalIntOrZero(record.get(Tag.YEAR)));
+        setArtwork_track_id(record.get(Tag.ARTWORK_TRACK_ID));
+        mArtworkUrl = Uri.parse(Strings.nullToEmpty(record.get(Tag.ARTWORK_URL)));
     }
 
     public static final Creator<Album> CREATOR = new Creator<Album>() {
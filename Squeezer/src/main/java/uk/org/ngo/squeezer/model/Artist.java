@@ -18,9 +18,9 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.framework.PlaylistItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Artist extends PlaylistItem {
@@ -52,10 +52,10 @@ public class Artist extends PlaylistItem {
         setName(artist);
     }
 
-    public Artist(Map<String, String> record) {
-        setId(record.containsKey("contributor_id") ? record.get("contributor_id")
-                : record.get("id"));
-        name = record.containsKey("contributor") ? record.get("contributor") : record.get("artist");
+    public Artist(TagRecord record) {
+        setId(record.has(Tag.CONTRIBUTOR_ID) ? record.get(Tag.CONTRIBUTOR_ID)
+                : record.get(Tag.ID));
+        name = record.has(Tag.CONTRIBUTOR) ? record.get(Tag.CONTRIBUTOR) : record.get(Tag.ARTIST);
     }
 
     public static final Creator<Artist> CREATOR = new Creator<Artist>() {
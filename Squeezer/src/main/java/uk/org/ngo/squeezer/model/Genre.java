@@ -18,9 +18,9 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.framework.PlaylistItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Genre extends PlaylistItem {
@@ -47,9 +47,9 @@ public class Genre extends PlaylistItem {
         return this;
     }
 
-    public Genre(Map<String, String> record) {
-        setId(record.containsKey("genre_id") ? record.get("genre_id") : record.get("id"));
-        name = record.get("genre");
+    public Genre(TagRecord record) {
+        setId(record.has(Tag.GENRE_ID) ? record.get(Tag.GENRE_ID) : record.get(Tag.ID));
+        name = record.get(Tag.GENRE);
     }
 
     public static final Creator<Genre> CREATOR = new Creator<Genre>() {
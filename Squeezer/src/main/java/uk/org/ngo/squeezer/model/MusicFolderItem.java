@@ -22,9 +22,9 @@ import android.support.annotation.NonNull;
 
 import com.google.common.base.Strings;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.framework.PlaylistItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 /**
  * Encapsulate a music folder item on the Squeezeserver.
@@ -106,12 +106,12 @@ public class MusicFolderItem extends PlaylistItem {
         return mDownloadUrl;
     }
 
-    public MusicFolderItem(Map<String, String> record) {
-        setId(record.get("id"));
-        name = record.get("filename");
-        type = record.get("type");
-        url = Uri.parse(Strings.nullToEmpty(record.get("url")));
-        mDownloadUrl = Uri.parse(Strings.nullToEmpty(record.get("download_url")));
+    public MusicFolderItem(TagRecord record) {
+        setId(record.get(Tag.ID));
+        name = record.get(Tag.FILENAME);
+        type = record.get(Tag.TYPE);
+        url = Uri.parse(Strings.nullToEmpty(record.get(Tag.URL)));
+        mDownloadUrl = Uri.parse(Strings.nullToEmpty(record.get(Tag.DOWNLOAD_URL)));
     }
 
     public static final Creator<MusicFolderItem> CREATOR = new Creator<MusicFolderItem>() {
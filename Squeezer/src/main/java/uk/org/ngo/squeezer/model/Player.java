@@ -31,11 +31,12 @@ import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.Comparator;
-import java.util.Map;
 import java.util.Set;
 
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Player extends Item implements Comparable {
@@ -80,13 +81,13 @@ public class Player extends Item implements Comparable {
                 ALARMS_ENABLED);
     }
 
-    public Player(Map<String, String> record) {
-        setId(record.get("playerid"));
-        mIp = record.get("ip");
-        mName = record.get("name");
-        mModel = record.get("model");
-        mCanPowerOff = Util.parseDecimalIntOrZero(record.get("canpoweroff")) == 1;
-        mConnected = Util.parseDecimalIntOrZero(record.get("connected")) == 1;
+    public Player(TagRecord record) {
+        setId(record.get(Tag.PLAYERID));
+        mIp = record.get(Tag.IP);
+        mName = record.get(Tag.NAME);
+        mModel = record.get(Tag.MODEL);
+        mCanPowerOff = Util.parseDecimalIntOrZero(record.get(Tag.CANPOWEROFF)) == 1;
+        mConnected = Util.parseDecimalIntOrZero(record.get(Tag.CONNECTED)) == 1;
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
             mHashCode = mHashFunction.hashString(getId(), Charsets.UTF_8);
@@ -39,12 +39,17 @@ import uk.org.ngo.squeezer.service.ServerString;
 
 public class PlayerState implements Parcelable {
 
-    @StringDef({NOTIFY_NONE, NOTIFY_ON_CHANGE, NOTIFY_REAL_TIME})
+    @StringDef({NOTIFY_NONE, NOTIFY_ON_CHANGE, NOTIFY_REAL_TIME, NOTIFY_DRIFT_CORRECTION})
     @Retention(RetentionPolicy.SOURCE)
     public @interface PlayerSubscriptionType {}
     public static final String NOTIFY_NONE = "-";
     public static final String NOTIFY_ON_CHANGE = "0";
     public static final String NOTIFY_REAL_TIME = "1";
+    /**
+     * Updates on change, and every 30 seconds to correct the drift of the position the service
+     * extrapolates in between.
+     */
+    public static final String NOTIFY_DRIFT_CORRECTION = "30";
 
     public PlayerState() {
     }
@@ -117,6 +122,9 @@ public class PlayerState implements Parcelable {
 
     private Song currentSong;
 
+    /** Hash of the fields {@link #currentSong} was made from, as received. Not parcelled. */
+    private int currentSongHash;
+
     /** The name of the current playlist, which may be the empty string. */
     @NonNull
     private String currentPlaylist;
@@ -127,6 +135,14 @@ public class PlayerState implements Parcelable {
 
     private int currentTimeSecond;
 
+    /**
+     * The position in the current song last reported by the server, in milliseconds, and when it
+     * was received, in nanoseconds of a monotonic clock. Not parcelled.
+     */
+    private int positionMillis;
+
+    private long positionNanos;
+
     private int currentSongDuration;
 
     private int currentVolume;
@@ -244,6 +260,22 @@ public class PlayerState implements Parcelable {
         return true;
     }
 
+    /**
+     * @return The hash of the fields the current song was made from, see
+     *     {@link #setCurrentSongHash(int)}.
+     */
+    public int getCurrentSongHash() {
+        return currentSongHash;
+    }
+
+    /**
+     * Remember the hash of the fields the current song was made from, so a status with the same
+     * fields can be recognised without making a new song.
+     */
+    public void setCurrentSongHash(int hash) {
+        currentSongHash = hash;
+    }
+
     /** @return the name of the current playlist, may be the empty string. */
     @NonNull
     public String getCurrentPlaylist() {
@@ -299,6 +331,31 @@ public class PlayerState implements Parcelable {
         return true;
     }
 
+    /**
+     * @return The position in the current song last reported by the server, in milliseconds.
+     *     See {@link #setPosition(int, long)}.
+     */
+    public int getPositionMillis() {
+        return positionMillis;
+    }
+
+    /** @return When the position was reported, in nanoseconds of a monotonic clock. */
+    public long getPositionNanos() {
+        return positionNanos;
+    }
+
+    /**
+     * Remember the position in the current song at a moment, from which the current position can
+     * be extrapolated while the player plays.
+     *
+     * @param millis The position, in milliseconds.
+     * @param nanos When the player was at the position, in nanoseconds of a monotonic clock.
+     */
+    public void setPosition(int millis, long nanos) {
+        positionMillis = millis;
+        positionNanos = nanos;
+    }
+
     public int getCurrentSongDuration() {
         return currentSongDuration;
     }
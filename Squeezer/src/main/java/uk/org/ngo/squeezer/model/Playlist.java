@@ -18,9 +18,9 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.framework.PlaylistItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Playlist extends PlaylistItem {
@@ -47,9 +47,9 @@ public class Playlist extends PlaylistItem {
         return this;
     }
 
-    public Playlist(Map<String, String> record) {
-        setId(record.containsKey("playlist_id") ? record.get("playlist_id") : record.get("id"));
-        name = record.get("playlist");
+    public Playlist(TagRecord record) {
+        setId(record.has(Tag.PLAYLIST_ID) ? record.get(Tag.PLAYLIST_ID) : record.get(Tag.ID));
+        name = record.get(Tag.PLAYLIST);
     }
 
     public static final Creator<Playlist> CREATOR = new Creator<Playlist>() {
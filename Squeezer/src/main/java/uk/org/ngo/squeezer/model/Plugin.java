@@ -18,11 +18,11 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Plugin extends Item {
@@ -98,12 +98,12 @@ public class Plugin extends Item {
         setIconResource(iconResource);
     }
 
-    public Plugin(Map<String, String> record) {
-        setId(record.get("cmd"));
-        name = record.get("name");
-        type = record.get("type");
-        icon = record.get("icon");
-        weight = Util.parseDecimalIntOrZero(record.get("weight"));
+    public Plugin(TagRecord record) {
+        setId(record.get(Tag.CMD));
+        name = record.get(Tag.NAME);
+        type = record.get(Tag.TYPE);
+        icon = record.get(Tag.ICON);
+        weight = Util.parseDecimalIntOrZero(record.get(Tag.WEIGHT));
     }
 
     public static final Creator<Plugin> CREATOR = new Creator<Plugin>() {
@@ -18,10 +18,10 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 /**
  * Represents a single item in a plugin.
@@ -96,14 +96,14 @@ public class PluginItem extends Item {
         this.audio = audio;
     }
 
-    public PluginItem(Map<String, String> record) {
-        setId(record.get("id"));
-        name = record.containsKey("name") ? record.get("name") : record.get("title");
-        description = record.get("description");
-        type = record.get("type");
-        image = record.get("image");
-        hasitems = (Util.parseDecimalIntOrZero(record.get("hasitems")) != 0);
-        audio = (Util.parseDecimalIntOrZero(record.get("isaudio")) != 0);
+    public PluginItem(TagRecord record) {
+        setId(record.get(Tag.ID));
+        name = record.has(Tag.NAME) ? record.get(Tag.NAME) : record.get(Tag.TITLE);
+        description = record.get(Tag.DESCRIPTION);
+        type = record.get(Tag.TYPE);
+        image = record.get(Tag.IMAGE);
+        hasitems = (Util.parseDecimalIntOrZero(record.get(Tag.HASITEMS)) != 0);
+        audio = (Util.parseDecimalIntOrZero(record.get(Tag.ISAUDIO)) != 0);
     }
 
     public static final Creator<PluginItem> CREATOR = new Creator<PluginItem>() {
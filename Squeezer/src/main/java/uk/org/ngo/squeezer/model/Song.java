@@ -30,6 +30,8 @@ import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.download.DownloadFilenameStructure;
 import uk.org.ngo.squeezer.download.DownloadPathStructure;
 import uk.org.ngo.squeezer.framework.ArtworkItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 public class Song extends ArtworkItem {
     private static final String TAG = "Song";
@@ -156,32 +158,36 @@ public class Song extends ArtworkItem {
     }
 
     public Song(Map<String, String> record) {
+        this(TagRecord.fromMap(record));
+    }
+
+    public Song(TagRecord record) {
         if (getId() == null) {
-            setId(record.get("track_id"));
+            setId(record.get(Tag.TRACK_ID));
         }
         if (getId() == null) {
-            setId(record.get("id"));
+            setId(record.get(Tag.ID));
         }
 
-        mName = record.containsKey("track") ? Strings.nullToEmpty(record.get("track"))
-                : Strings.nullToEmpty(record.get("title"));
-
-        mArtist = Strings.nullToEmpty(record.get("artist"));
-        mAlbumName = Strings.nullToEmpty(record.get("album"));
-        mCompilation = Util.parseDecimalIntOrZero(record.get("compilation")) == 1;
-        mDuration = Util.parseDecimalIntOrZero(record.get("duration"));
-        mYear = Util.parseDecimalIntOrZero(record.get("year"));
-        mArtistId = Strings.nullToEmpty(record.get("artist_id"));
-        mAlbumId = Strings.nullToEmpty(record.get("album_id"));
-        mRemote = Util.parseDecimalIntOrZero(record.get("remote")) != 0;
-        mTrackNum = Util.parseDecimalInt(record.get("tracknum"), 1);
-
-        mArtworkUrl = Uri.parse(Strings.nullToEmpty(record.get("artwork_url")));
-        mUrl = Uri.parse(Strings.nullToEmpty(record.get("url")));
-        mDownloadUrl = Uri.parse(Strings.nullToEmpty(record.get("download_url")));
-        mButtons = Strings.nullToEmpty(record.get("buttons"));
-
-        String artworkTrackId = record.get("artwork_track_id");
+        mName = record.has(Tag.TRACK) ? Strings.nullToEmpty(record.get(Tag.TRACK))
+                : Strings.nullToEmpty(record.get(Tag.TITLE));
+
+        mArtist = Strings.nullToEmpty(record.get(Tag.ARTIST));
+        mAlbumName = Strings.nullToEmpty(record.get(Tag.ALBUM));
+        mCompilation = Util.parseDecimalIntOrZero(record.get(Tag.COMPILATION)) == 1;
+        mDuration = Util.parseDecimalIntOrZero(record.get(Tag.DURATION));
+        mYear = Util.parseDecimalIntOrZero(record.get(Tag.YEAR));
+        mArtistId = Strings.nullToEmpty(record.get(Tag.ARTIST_ID));
+        mAlbumId = Strings.nullToEmpty(record.get(Tag.ALBUM_ID));
+        mRemote = Util.parseDecimalIntOrZero(record.get(Tag.REMOTE)) != 0;
+        mTrackNum = Util.parseDecimalInt(record.get(Tag.TRACKNUM), 1);
+
+        mArtworkUrl = Uri.parse(Strings.nullToEmpty(record.get(Tag.ARTWORK_URL)));
+        mUrl = Uri.parse(Strings.nullToEmpty(record.get(Tag.URL)));
+        mDownloadUrl = Uri.parse(Strings.nullToEmpty(record.get(Tag.DOWNLOAD_URL)));
+        mButtons = Strings.nullToEmpty(record.get(Tag.BUTTONS));
+
+        String artworkTrackId = record.get(Tag.ARTWORK_TRACK_ID);
 
         Album album = new Album(mAlbumId, mAlbumName);
         album.setArtist(mCompilation ? "Various" : mArtist);
@@ -18,9 +18,9 @@ package uk.org.ngo.squeezer.model;
 
 import android.os.Parcel;
 
-import java.util.Map;
-
 import uk.org.ngo.squeezer.framework.PlaylistItem;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 
 public class Year extends PlaylistItem {
@@ -35,8 +35,8 @@ public class Year extends PlaylistItem {
         return "year";
     }
 
-    public Year(Map<String, String> record) {
-        setId(record.get("year"));
+    public Year(TagRecord record) {
+        setId(record.get(Tag.YEAR));
     }
 
     public static final Creator<Year> CREATOR = new Creator<Year>() {
@@ -5,10 +5,10 @@ import android.support.v4.app.Fragment.InstantiationException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import uk.org.ngo.squeezer.util.Reflection;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 /**
  * Base class that constructs a list of model objects based on CLI results from
@@ -45,10 +45,10 @@ abstract class BaseListHandler<T extends Item> implements ListHandler<T> {
     }
 
     @Override
-    public void add(Map<String, String> record) {
+    public void add(TagRecord record) {
         if (constructor == null) {
             try {
-                constructor = dataType.getDeclaredConstructor(Map.class);
+                constructor = dataType.getDeclaredConstructor(TagRecord.class);
             } catch (Exception e) {
                 throw new InstantiationException(
                         "Unable to create constructor for " + dataType.getName(), e);
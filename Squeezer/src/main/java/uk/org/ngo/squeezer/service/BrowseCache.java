@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the responses to library browse requests, so moving back and forth through the
+ * artist, album, genre and year lists doesn't ask the server for the same pages again.
+ * <p>
+ * Responses are kept as the raw response line, without the correlation id, keyed by the request
+ * line with its parameters in a fixed order (see {@link #key(String)}). The least recently used
+ * responses are dropped when the cache grows beyond its size limit.
+ * <p>
+ * The server's library only changes when it rescans, so the whole cache is cleared when a rescan
+ * is reported.
+ */
+class BrowseCache {
+
+    /** Rough size of the map entry and array headers of each cached response. */
+    static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    /** Number of fixed tokens (command, start, count) at the start of a request. */
+    private static final int FIXED_TOKENS = 3;
+
+    private final int mMaxBytes;
+
+    private final LinkedHashMap<String, byte[]> mResponses =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private int mBytes;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    private int mEvictionCount;
+
+    private int mInvalidationCount;
+
+    /**
+     * @param maxBytes The most memory the cached responses may use.
+     */
+    BrowseCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Normalize a request, so requests for the same page with the parameters in a different
+     * order share a cache entry.
+     *
+     * @param request The request line, without a correlation id, e.g.
+     *     "artists 0 20 tags:s genre_id:3".
+     * @return The cache key for the request.
+     */
+    static String key(String request) {
+        String[] tokens = request.split(" ");
+        if (tokens.length <= FIXED_TOKENS + 1) {
+            return request;
+        }
+        Arrays.sort(tokens, FIXED_TOKENS, tokens.length);
+
+        StringBuilder sb = new StringBuilder(request.length());
+        for (String token : tokens) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(token);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The cached response to the request with the given key, or null.
+     */
+    synchronized byte[] get(String key) {
+        byte[] response = mResponses.get(key);
+        if (response != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return response;
+    }
+
+    /**
+     * Cache a response, dropping the least recently used responses to make room for it.
+     * Responses larger than a quarter of the cache are not cached.
+     */
+    synchronized void put(String key, byte[] response) {
+        int size = size(key, response);
+        if (size > mMaxBytes / 4) {
+            return;
+        }
+
+        byte[] previous = mResponses.put(key, response);
+        if (previous != null) {
+            mBytes -= size(key, previous);
+        }
+        mBytes += size;
+
+        Iterator<Map.Entry<String, byte[]>> it = mResponses.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, byte[]> eldest = it.next();
+            mBytes -= size(eldest.getKey(), eldest.getValue());
+            it.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /** Drop all the responses, e.g. after the server rescanned its library. */
+    synchronized void invalidate() {
+        if (!mResponses.isEmpty()) {
+            mInvalidationCount++;
+        }
+        mResponses.clear();
+        mBytes = 0;
+    }
+
+    /** Drop all the responses and forget the statistics, e.g. when connecting to a new server. */
+    synchronized void reset() {
+        mResponses.clear();
+        mBytes = 0;
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+        mInvalidationCount = 0;
+    }
+
+    /** @return The estimated memory used by the cached responses. */
+    synchronized int getBytes() {
+        return mBytes;
+    }
+
+    synchronized int getEntryCount() {
+        return mResponses.size();
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** @return The fraction of lookups that were answered from the cache. */
+    synchronized double getHitRate() {
+        int lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0 : (double) mHitCount / lookups;
+    }
+
+    private static int size(String key, byte[] response) {
+        return ENTRY_OVERHEAD_BYTES + 2 * key.length() + response.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BrowseCache{entries=" + mResponses.size() + ", bytes=" + mBytes
+                + ", maxBytes=" + mMaxBytes + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", hitRate=" + String.format("%.2f", getHitRate())
+                + ", evictions=" + mEvictionCount + ", invalidations=" + mInvalidationCount + "}";
+    }
+}
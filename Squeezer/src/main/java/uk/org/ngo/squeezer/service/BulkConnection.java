@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.Util;
+
+/**
+ * A second connection to the CLI port of the server, which carries the requests for pages of the
+ * library, such as a full list of songs.
+ * <p>
+ * On a single connection a response of several megabytes holds up everything sent after it,
+ * including the status of the players and the replies to transport commands. With the library
+ * pages on their own connection the control connection stays responsive while they arrive.
+ * <p>
+ * The connection is made after the handshake of the control connection, and logs in with the
+ * same credentials. Until it has logged in, or while it's being made again after it was lost,
+ * {@link #getCommandWriter()} returns null and the requests go on the control connection.
+ * Responses are routed by {@link CliClient} exactly like those of the control connection.
+ */
+class BulkConnection {
+
+    private static final String TAG = "BulkConnection";
+
+    /** Initial size of the receive buffer. Grown if a single line does not fit. */
+    private static final int RECEIVE_BUFFER_SIZE = 8 * 1024;
+
+    /** The most batches of received lines waiting to be routed. */
+    private static final int RECEIVED_BATCHES = 4;
+
+    private final CliClient cli;
+
+    /** Routes the received lines, on the thread that routes those of the control connection. */
+    @NonNull private final ExecutorService executor;
+
+    /** Makes the connection, so routing the lines of the control connection doesn't wait. */
+    private final ScheduledExecutorService connectExecutor = new ScheduledThreadPoolExecutor(1);
+
+    /** Batches of lines read from the socket, routed on the executor. */
+    private final LineBatchPool batches;
+
+    /** Make the connection again after about 1s, 2s, 4s... up to a minute, a few times. */
+    private final ReconnectBackoff backoff = new ReconnectBackoff(1000, 60 * 1000, 6,
+            new Random());
+
+    /**
+     * Incremented whenever a connection is opened or closed. A listening thread or an attempt to
+     * connect whose generation is no longer current stops quietly.
+     */
+    private int generation;
+
+    /** The number of the attempt to make the connection again, or -1 if it isn't lost. */
+    private int reconnectAttempt = -1;
+
+    private String host;
+
+    private int port;
+
+    private String userName;
+
+    private String password;
+
+    private Socket socket;
+
+    /** Writes the commands of the current connection, including the login. */
+    private CommandWriter writer;
+
+    /** The writer of the current connection once it has logged in, otherwise null. */
+    private volatile CommandWriter readyWriter;
+
+    /** Number of times the connection was lost. */
+    private int lostCount;
+
+    BulkConnection(CliClient cli, @NonNull ExecutorService executor) {
+        this.cli = cli;
+        this.executor = executor;
+        batches = new LineBatchPool(RECEIVED_BATCHES, new LineFramer.LineSink() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                BulkConnection.this.cli.onLineReceived(buffer, offset, length);
+            }
+        }, cli.mLinesHandled, RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * @return The writer for requests on this connection, or null if it isn't open and logged
+     *     in, in which case requests should be sent on the control connection.
+     */
+    @Nullable
+    CommandWriter getCommandWriter() {
+        return readyWriter;
+    }
+
+    /** Start making the connection, closing any earlier one. */
+    void open(String host, int port, String userName, String password) {
+        final int connectGeneration;
+        synchronized (this) {
+            closeConnection();
+            this.host = host;
+            this.port = port;
+            this.userName = userName;
+            this.password = password;
+            reconnectAttempt = -1;
+            connectGeneration = generation;
+        }
+        connectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect(connectGeneration);
+            }
+        });
+    }
+
+    /** Close the connection, and stop making it again. */
+    synchronized void close() {
+        closeConnection();
+        reconnectAttempt = -1;
+    }
+
+    private void closeConnection() {
+        generation++;
+        readyWriter = null;
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        closeQuietly(socket);
+        socket = null;
+    }
+
+    private void connect(int connectGeneration) {
+        String connectHost;
+        int connectPort;
+        String login;
+        synchronized (this) {
+            if (generation != connectGeneration) {
+                return;
+            }
+            connectHost = host;
+            connectPort = port;
+            login = "login " + Util.encode(userName) + " " + Util.encode(password);
+        }
+
+        Socket newSocket = null;
+        try {
+            Log.d(TAG, "Connecting to: " + connectHost + ":" + connectPort);
+            newSocket = SocketChannel.open().socket();
+            newSocket.connect(new InetSocketAddress(connectHost, connectPort),
+                    4000 /* ms timeout */);
+            CommandWriter newWriter = new CommandWriter(newSocket.getOutputStream(),
+                    ConnectionState.COMMAND_BATCH_WINDOW_MS, cli.mBatchListener);
+            synchronized (this) {
+                if (generation != connectGeneration) {
+                    newWriter.close();
+                    closeQuietly(newSocket);
+                    return;
+                }
+                socket = newSocket;
+                writer = newWriter;
+            }
+            newWriter.start();
+            new ListeningThread(newSocket, connectGeneration).start();
+            newWriter.send(CommandWriter.PRIORITY_INTERACTIVE, login);
+            newWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Connecting failed: " + e);
+            closeQuietly(newSocket);
+            onConnectionLost(connectGeneration);
+        }
+    }
+
+    /** Called on the listening thread when the server has replied to the login. */
+    private synchronized void onLoggedIn(int loginGeneration) {
+        if (generation == loginGeneration) {
+            Log.i(TAG, "Logged in");
+            reconnectAttempt = -1;
+            readyWriter = writer;
+        }
+    }
+
+    /**
+     * Called when the connection of the generation was lost, or could not be made. The requests
+     * that were sent on it go on the control connection, and the connection is made again later,
+     * unless it has failed too often.
+     */
+    private void onConnectionLost(int lostGeneration) {
+        final int connectGeneration;
+        final int attempt;
+        long delay;
+        synchronized (this) {
+            if (generation != lostGeneration) {
+                return;
+            }
+            closeConnection();
+            lostCount++;
+            attempt = reconnectAttempt + 1;
+            delay = backoff.delayMillis(attempt);
+            reconnectAttempt = (delay < 0 ? -1 : attempt);
+            connectGeneration = generation;
+        }
+
+        cli.onBulkConnectionLost();
+        if (delay < 0) {
+            Log.w(TAG, "Giving up after " + attempt + " attempts, using the control connection");
+            return;
+        }
+        Log.i(TAG, "Reconnecting in " + delay + "ms, attempt " + (attempt + 1) + " of "
+                + backoff.getMaxAttempts());
+        connectExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect(connectGeneration);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BulkConnection{ready=" + (readyWriter != null) + ", lost=" + lostCount
+                + ", generation=" + generation + "}";
+    }
+
+    private class ListeningThread extends Thread implements LineFramer.LineSink {
+
+        private final Socket socket;
+
+        private final int generationNumber;
+
+        /** True once the reply to the login has been received. */
+        private boolean loggedIn;
+
+        /** Lines from the current socket read, waiting to be handed to the executor. */
+        private LineBatch mBatch;
+
+        private ListeningThread(Socket socket, int generationNumber) {
+            super("BulkConnection");
+            this.socket = socket;
+            this.generationNumber = generationNumber;
+        }
+
+        @Override
+        public void run() {
+            SocketChannel channel = socket.getChannel();
+            LineFramer framer = new LineFramer(RECEIVE_BUFFER_SIZE);
+            try {
+                mBatch = batches.take();
+            } catch (InterruptedException e) {
+                Log.v(TAG, "Listening thread interrupted");
+                return;
+            }
+            while (true) {
+                boolean open;
+                try {
+                    open = framer.read(channel, this);
+                } catch (IOException e) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Read failed: " + e);
+                    }
+                    open = false;
+                }
+                if (!open) {
+                    batches.discard(mBatch);
+                    // Does nothing if the connection was closed on purpose.
+                    onConnectionLost(generationNumber);
+                    return;
+                }
+
+                if (mBatch.count() > 0) {
+                    executor.execute(mBatch);
+                    try {
+                        mBatch = batches.take();
+                    } catch (InterruptedException e) {
+                        Log.v(TAG, "Listening thread interrupted");
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called on this thread for each line framed from the socket. The reply to the login is
+         * dropped, as it's of no interest to the client. The server closes the connection if the
+         * login fails.
+         */
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            SessionRecorder recorder = cli.connectionState.getRecorder();
+            if (recorder != null) {
+                recorder.onReceived(buffer, offset, length);
+            }
+
+            if (!loggedIn && ConnectionState.startsWith(buffer, offset, length,
+                    ConnectionState.LOGIN_PREFIX)) {
+                loggedIn = true;
+                onLoggedIn(generationNumber);
+                return;
+            }
+            mBatch.onLine(buffer, offset, length);
+        }
+    }
+}
@@ -16,36 +16,38 @@
 
 package uk.org.ngo.squeezer.service;
 
-import android.net.Uri;
-import android.os.Looper;
-import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
-import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 
-import java.io.PrintWriter;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.BuildConfig;
 import uk.org.ngo.squeezer.R;
 import uk.org.ngo.squeezer.Squeezer;
 import uk.org.ngo.squeezer.Util;
 import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
 import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
 import uk.org.ngo.squeezer.model.Alarm;
 import uk.org.ngo.squeezer.model.AlarmPlaylist;
@@ -62,6 +64,7 @@ import uk.org.ngo.squeezer.model.Song;
 import uk.org.ngo.squeezer.model.Year;
 import uk.org.ngo.squeezer.service.event.ConnectionChanged;
 import uk.org.ngo.squeezer.service.event.HandshakeComplete;
+import uk.org.ngo.squeezer.service.event.LibraryChanged;
 import uk.org.ngo.squeezer.service.event.MusicChanged;
 import uk.org.ngo.squeezer.service.event.PlayStatusChanged;
 import uk.org.ngo.squeezer.service.event.PlayerPrefReceived;
@@ -77,6 +80,12 @@ import uk.org.ngo.squeezer.service.event.RepeatStatusChanged;
 import uk.org.ngo.squeezer.service.event.ShuffleStatusChanged;
 import uk.org.ngo.squeezer.service.event.SongTimeChanged;
 
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_GLOBAL;
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC;
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_PLAYER_SPECIFIC;
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_PREFIXED;
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC;
+
 class CliClient implements IClient {
 
     private static final String TAG = "CliClient";
@@ -91,11 +100,14 @@ class CliClient implements IClient {
      */
     private static final Joiner mNewlineJoiner = Joiner.on("\n").skipNulls();
 
+    /** Cursor over the line being routed. Only used on the executor thread. */
+    private final TokenCursor mTokens = new TokenCursor();
+
     /** Map Player IDs to the {@link uk.org.ngo.squeezer.model.Player} with that ID. */
-    private final Map<String, Player> mPlayers = new HashMap<String, Player>();
+    private final Map<String, Player> mPlayers = new ConcurrentHashMap<String, Player>();
 
-    /** The prefix for URLs for downloads and cover art. */
-    private String mUrlPrefix;
+    /** Makes the URLs for downloads and cover art absolute. */
+    private final ServerUrls mServerUrls = new ServerUrls();
 
     /** Shared event bus for status changes. */
     @NonNull private final EventBus mEventBus;
@@ -104,115 +116,54 @@ class CliClient implements IClient {
     @NonNull
     private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
 
-    /** The types of command handler. */
-    @IntDef(flag=true, value={
-            HANDLER_LIST_GLOBAL, HANDLER_LIST_PREFIXED, HANDLER_LIST_PLAYER_SPECIFIC,
-            HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC, HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC
-    })
-    @Retention(RetentionPolicy.SOURCE)
-    public @interface HandlerListType {}
-    public static final int HANDLER_LIST_GLOBAL = 1;
-    public static final int HANDLER_LIST_PREFIXED = 1 << 1;
-    public static final int HANDLER_LIST_PLAYER_SPECIFIC = 1 << 2;
-    public static final int HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC = 1 << 3;
-    public static final int HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC = 1 << 4;
-
-    /**
-     * Represents a command that can be sent to the server using the extended query format.
-     * <p>
-     * Extended queries have the following structure:
-     * <p>
-     * <code>[&lt;playerid>] &lt;command> &lt;start> &lt;itemsPerResponse> &lt;tagged-params> ...</code>
-     * <ul>
-     *     <li><code>&lt;playerid></code> - unique player identifier</li>
-     *     <li><code>&lt;command></code> - command to send</li>
-     *     <li><code>&lt;start></code> - 0-based index of the first item to return</li>
-     *     <li><code>&lt;itemsPerResponse></code> - number of items to return per chunk</li>
-     *     <li><code>&lt;tagged-params></code> - one or more <code>tag:value</code> pairs</li>
-     * </ul>
-     */
-    static class ExtendedQueryFormatCmd {
-        private static final int PLAYER_SPECIFIC_HANDLER_LISTS =
-                HANDLER_LIST_PLAYER_SPECIFIC | HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC | HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC;
-
-        private static final int PREFIXED_HANDLER_LISTS =
-                HANDLER_LIST_PREFIXED | HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC;
-
-        @HandlerListType
-        final int handlerList;
-
-        /** True if this is a player-specific command (i.e., the command should send a player ID). */
-        final private boolean playerSpecific;
-
+    /** The player command that sets the volume. */
+    static final String PARAMETER_VOLUME = "mixer volume";
 
-        final private boolean prefixed;
+    /** The player command that sets the playback position. */
+    static final String PARAMETER_TIME = "time";
 
-        final String cmd;
-
-        final private Set<String> taggedParameters;
-
-        final private SqueezeParserInfo[] parserInfos;
+    /** Minimum time between sending two values for the same player parameter. */
+    private static final long DEBOUNCE_INTERVAL_MS = 100;
 
-        /**
-         * A command sent to the server.
-         *
-         * @param handlerList The command's type.
-         * @param cmd The command to send.
-         * @param taggedParameters Tagged parameters to send
-         * @param parserInfos ?
-         */
-        public ExtendedQueryFormatCmd(@HandlerListType int handlerList, String cmd,
-                                      Set<String> taggedParameters, SqueezeParserInfo... parserInfos) {
-            this.handlerList = handlerList;
-            playerSpecific = (PLAYER_SPECIFIC_HANDLER_LISTS & handlerList) != 0;
-            prefixed = (PREFIXED_HANDLER_LISTS & handlerList) != 0;
-            this.cmd = cmd;
-            this.taggedParameters = taggedParameters;
-            this.parserInfos = parserInfos;
-        }
-
-        /**
-         * A global command to the server where items in the response have a delimiter other than "id:".
-         *
-         * @param cmd The command to send to the server.
-         * @param taggedParameters The keys for any tagged parameters to send.
-         * @param itemDelimiter The identifier of the tagged parameter that marks the start of
-         *    a new block of information.
-         * @param handler The handler used to construct new model objects from the response.
-         */
-        public ExtendedQueryFormatCmd(String cmd, Set<String> taggedParameters,
-                                      ListHandler<? extends Item> handler, String... columns) {
-            this(HANDLER_LIST_GLOBAL, cmd, taggedParameters, new SqueezeParserInfo(handler, columns));
-        }
-
-        public ExtendedQueryFormatCmd(String cmd, Set<String> taggedParameters,
-                                      String itemDelimiter, ListHandler<? extends Item> handler) {
-            this(HANDLER_LIST_GLOBAL, cmd, taggedParameters, new SqueezeParserInfo(itemDelimiter, handler));
-        }
-
-        /**
-         * A command to the server where items in the response are delimited by id: tags.
-         *
-         * @param cmd The command to send to the server.
-         * @param taggedParameters The keys for any tagged parameters to send.
-         * @param handler The handler used to construct new model objects from the response.
-         */
-        public ExtendedQueryFormatCmd(String cmd, Set<String> taggedParameters,
-                ListHandler<? extends Item> handler) {
-            this(HANDLER_LIST_GLOBAL, cmd, taggedParameters, new SqueezeParserInfo(handler));
-        }
+    /**
+     * Executor for sending interactive commands, so they don't wait for responses being handled
+     * on {@link #mExecutor}.
+     */
+    @NonNull
+    private final ScheduledThreadPoolExecutor mInteractiveExecutor = new ScheduledThreadPoolExecutor(1);
 
-        public String toString() {
-            return "{ cmd:'" + cmd + "', list:" + handlerList + ", player specific:" + playerSpecific + ", prefixed:" + prefixed + " }";
+    /** Coalesces volume and position changes, e.g. while a slider is dragged. */
+    private final CommandDebouncer mDebouncer = new CommandDebouncer(mInteractiveExecutor,
+            DEBOUNCE_INTERVAL_MS, new CommandDebouncer.Sender() {
+        @Override
+        public void send(String playerId, String parameter, int value, boolean relative) {
+            sendCommands(CommandWriter.PRIORITY_INTERACTIVE, Util.encode(playerId) + " "
+                    + parameter + " " + (relative && value > 0 ? "%2B" : "") + value);
         }
+    });
 
-    }
+    /** Extrapolates the positions of players between the status updates from the server. */
+    private final PlaybackClock mPlaybackClock = new PlaybackClock(Ticker.systemTicker());
 
     final ExtendedQueryFormatCmd[] extQueryFormatCmds = initializeExtQueryFormatCmds();
 
     final Map<String, ExtendedQueryFormatCmd> extQueryFormatCmdMap
             = initializeExtQueryFormatCmdMap();
 
+    /**
+     * The commands that parse the lists, with their own handlers, for each thread that handles
+     * received lines, i.e. each lane of {@link #mStreams}. The handlers are reused for every
+     * response, so each lane has its own, and lists in different lanes, e.g. the status of two
+     * players, are parsed at the same time. In the same order as {@link #extQueryFormatCmds}.
+     */
+    private final ThreadLocal<ExtendedQueryFormatCmd[]> mLaneCmds
+            = new ThreadLocal<ExtendedQueryFormatCmd[]>() {
+        @Override
+        protected ExtendedQueryFormatCmd[] initialValue() {
+            return initializeExtQueryFormatCmds();
+        }
+    };
+
     private ExtendedQueryFormatCmd[] initializeExtQueryFormatCmds() {
         List<ExtendedQueryFormatCmd> list = new ArrayList<ExtendedQueryFormatCmd>();
 
@@ -362,8 +313,44 @@ class CliClient implements IClient {
 
     private final int pageSize = Squeezer.getContext().getResources().getInteger(R.integer.PageSize);
 
+    /** Smallest number of items to request in one round trip. */
+    private static final int MIN_CHUNK_SIZE = 5;
+
+    /** Largest number of items to request in one round trip. */
+    private static final int MAX_CHUNK_SIZE = 500;
+
+    /** Sizes the requests for lists from the measured round trip time and size of items. */
+    private final AdaptivePageSizer mPageSizer
+            = new AdaptivePageSizer(pageSize, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+
+    /** The library browse commands whose responses are cached. */
+    private static final Set<String> BROWSE_CACHE_COMMANDS = new HashSet<String>(Arrays.asList(
+            "artists", "albums", "genres", "years", "songs", "musicfolder", "search"));
+
+    /** Most memory used by the browse cache: 1MB, less on devices with a small heap. */
+    private static final int BROWSE_CACHE_BYTES
+            = (int) Math.min(1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+
+    /** Responses to library browse requests, until the server rescans. */
+    private final BrowseCache mBrowseCache = new BrowseCache(BROWSE_CACHE_BYTES);
+
+    /** Writes the logs of the protocol classes to the Android log. */
+    private static final ProtocolLog.Logger ANDROID_LOGGER = new ProtocolLog.Logger() {
+        @Override
+        public boolean isLoggable(int priority) {
+            return BuildConfig.DEBUG || priority >= ProtocolLog.INFO;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, @Nullable Throwable tr) {
+            Log.println(priority, tag,
+                    tr == null ? message : message + '\n' + Log.getStackTraceString(tr));
+        }
+    };
+
     CliClient(@NonNull EventBus eventBus) {
         mEventBus = eventBus;
+        ProtocolLog.setLogger(ANDROID_LOGGER);
     }
 
     void initialize() {
@@ -372,101 +359,806 @@ class CliClient implements IClient {
 
     // Call through to connectionState implementation for the moment.
     void disconnect(boolean loginFailed) {
+        if (BuildConfig.DEBUG) {
+            for (int priority : new int[]{CommandWriter.PRIORITY_INTERACTIVE,
+                    CommandWriter.PRIORITY_BROWSE, CommandWriter.PRIORITY_BACKGROUND}) {
+                Log.d(TAG, "Command queue: " + getCommandQueueStats(priority));
+            }
+            Log.d(TAG, "Page sizes: " + mPageSizer);
+            Log.d(TAG, "Identical requests joined: " + getJoinedRequestCount()
+                    + ", round trips saved: " + getSavedRoundTripCount());
+            Log.d(TAG, "Requests cancelled: " + getCancelledRequestCount());
+            Log.d(TAG, "Browse cache: " + mBrowseCache);
+            Log.d(TAG, "Library index: " + mLibraryIndex);
+            Log.d(TAG, "Received batches: " + mReceivedBatches);
+            Log.d(TAG, "Received lines: " + mStreams);
+            Log.d(TAG, "Player positions: " + mPlaybackClock);
+            Log.d(TAG, "Connection health: " + mProbe);
+            Log.d(TAG, "Bulk connection: " + mBulk);
+        }
+        stopProbing();
+        mBulk.close();
         connectionState.disconnect(mEventBus, loginFailed);
+        mStreams.shutdown();
+        mPlayers.clear();
+        mDebouncer.clear();
+        mPageSizer.reset();
+        mBrowseCache.reset();
+        mRecordRequests.clear();
+        closeLibraryIndex();
+        synchronized (mUnansweredRequests) {
+            mUnansweredRequests.clear();
+        }
+        pendingRequests.clear();
+    }
+
+    /**
+     * Called when the connection was lost, and is about to be made again. The state of the
+     * connection is reset, except for the requests waiting for replies, which are sent again
+     * when the handshake with the server has completed.
+     */
+    void onConnectionLost() {
+        stopProbing();
+        mBulk.close();
+        // Cleared so the players are posted when they're fetched again, and their
+        // subscriptions are restored.
         mPlayers.clear();
+        mDebouncer.clear();
+        mRecordRequests.clear();
+        closeLibraryIndex();
+    }
+
+    /**
+     * Called when the bulk connection was lost, while the control connection is up. The requests
+     * that were sent on it are sent again.
+     */
+    void onBulkConnectionLost() {
+        int resent = resendPendingRequests();
+        Log.i(TAG, "Bulk connection lost, requests sent again: " + resent);
+    }
+
+    /**
+     * Send the requests waiting for replies again, with their correlation ids, after the
+     * connection they were sent on was lost. Requests answered on the device, and requests sent
+     * on a connection that is still open, are left alone.
+     *
+     * @return The number of requests sent again.
+     */
+    private int resendPendingRequests() {
+        CommandWriter writer = connectionState.getCommandWriter();
+        CommandWriter bulkWriter = mBulk.getCommandWriter();
+        int resent = 0;
+        for (Map.Entry<Integer, PendingRequest> entry : pendingRequests.entrySet()) {
+            PendingRequest request = entry.getValue();
+            String line = request.line;
+            if (line != null && !request.fromCache && request.writer != writer
+                    && request.writer != bulkWriter) {
+                request.sentAt = System.nanoTime();
+                request.writer = sendListCommand(request.priority,
+                        line + " correlationid:" + entry.getKey(), request.cacheKey != null);
+                resent++;
+            }
+        }
+        for (Map.Entry<Integer, RecordRequest> entry : mRecordRequests.entrySet()) {
+            RecordRequest request = entry.getValue();
+            if (request.writer != writer && request.writer != bulkWriter) {
+                request.writer = sendListCommand(CommandWriter.PRIORITY_BACKGROUND,
+                        request.line + " correlationid:" + entry.getKey(), true);
+                resent++;
+            }
+        }
+        flushCommands();
+        return resent;
+    }
+
+    /**
+     * Send a request for a list. Requests for the library go on the bulk connection, if it's
+     * open, so their responses don't hold up the control connection.
+     *
+     * @param priority One of the {@link CommandWriter} priorities.
+     * @param command The request, with its correlation id.
+     * @param library True if the request is for the library, rather than a player.
+     * @return The writer the request was sent on, or null if not connected.
+     */
+    @Nullable
+    private CommandWriter sendListCommand(int priority, String command, boolean library) {
+        CommandWriter writer = (library ? mBulk.getCommandWriter() : null);
+        if (writer == null) {
+            writer = connectionState.getCommandWriter();
+            sendCommands(priority, command);
+        } else {
+            if (BuildConfig.DEBUG) {
+                Log.v(TAG, "SEND (bulk): " + command);
+            }
+            writer.send(priority, command);
+        }
+        return writer;
+    }
+
+    /** @return True if the connection was lost, and is being made again. */
+    boolean isReconnecting() {
+        return connectionState.isReconnecting();
     }
 
     // All requests are tagged with a correlation id, which can be used when
     // asynchronous responses are received.
     private int _correlationid = 0;
 
+    private synchronized int nextCorrelationId() {
+        return _correlationid++;
+    }
+
 
     /**
      * Send the supplied commands to the SqueezeboxServer.
      * <p>
      * <b>All</b> data to the server goes through this method
      * <p>
-     * <b>Note</b> don't call this from the main (UI) thread. If you are unsure if you are on the
-     * main thread, then use {@link #sendCommand(String...)} instead.
+     * The commands are queued for the connection's {@link CommandWriter}, which writes commands
+     * sent close together as one batch. This never blocks on the network, so it can be called
+     * from any thread.
      *
      * @param commands List of commands to send
      */
-    synchronized void sendCommandImmediately(String... commands) {
+    void sendCommand(String... commands) {
+        sendCommands(CommandWriter.PRIORITY_BROWSE, commands);
+    }
+
+    /**
+     * Send the supplied commands to the SqueezeboxServer, with the given priority.
+     *
+     * @param priority One of the {@link CommandWriter} priorities.
+     * @param commands List of commands to send
+     */
+    private void sendCommands(int priority, String... commands) {
         if (commands.length == 0) {
             return;
         }
-        PrintWriter writer = connectionState.getSocketWriter();
+        CommandWriter writer = connectionState.getCommandWriter();
         if (writer == null) {
             return;
         }
 
-        String formattedCommands = mNewlineJoiner.join(commands);
-        Log.v(TAG, "SEND: " + formattedCommands);
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "SEND: " + mNewlineJoiner.join(commands));
+        }
+        writer.send(priority, commands);
+    }
+
+    /**
+     * Write any queued commands now, instead of waiting for other commands to join them. Call
+     * this at the end of a burst of commands.
+     */
+    void flushCommands() {
+        CommandWriter writer = connectionState.getCommandWriter();
+        if (writer != null) {
+            writer.flush();
+        }
+        CommandWriter bulkWriter = mBulk.getCommandWriter();
+        if (bulkWriter != null) {
+            bulkWriter.flush();
+        }
+    }
+
+    /**
+     * @param priority One of the {@link CommandWriter} priorities.
+     * @return The statistics of the priority's queue, or null if not connected.
+     */
+    @Nullable
+    CommandWriter.QueueStats getCommandQueueStats(int priority) {
+        CommandWriter writer = connectionState.getCommandWriter();
+        return writer == null ? null : writer.getStats(priority);
+    }
+
+    /**
+     * Send the specified command for the specified player to the SqueezeboxServer
+     * <p>
+     * Transport commands (see {@link #isUrgent(String)}) are interactive, and are written straight
+     * away ahead of any queued paging traffic. Other commands may wait briefly to be batched with
+     * other commands.
+     *
+     * @param command The command to send
+     */
+    public void sendPlayerCommand(final Player player, final String command) {
+        sendCommands(isUrgent(command) ? CommandWriter.PRIORITY_INTERACTIVE
+                : CommandWriter.PRIORITY_BROWSE, Util.encode(player.getId()) + " " + command);
+    }
+
+    /**
+     * Set a player parameter, such as {@link #PARAMETER_VOLUME}, to a new value.
+     * <p>
+     * Values set in quick succession are coalesced: only the latest value is sent, and values
+     * for the same player and parameter are sent at most every {@link #DEBOUNCE_INTERVAL_MS}.
+     */
+    void setPlayerValue(Player player, String parameter, int value) {
+        mDebouncer.set(player.getId(), parameter, value);
+    }
+
+    /**
+     * Change the volume of a player by a relative amount. Like
+     * {@link #setPlayerValue(Player, String, int)} the changes are coalesced: the changes made
+     * while one is waiting to be sent are added up, and sent as one relative change, which the
+     * server applies to the player's current volume.
+     */
+    void adjustPlayerVolume(Player player, int delta) {
+        mDebouncer.adjust(player.getId(), PARAMETER_VOLUME, delta);
+    }
+
+    /** Commands which control playback, where the user is waiting for the result. */
+    private static final String[] URGENT_COMMANDS = {
+            "play", "pause", "stop", "button", "playlist index", "time", "mixer", "power"
+    };
+
+    /**
+     * @return True if the player command (without the player ID) controls playback, and should be
+     *     written without waiting for other commands to batch it with.
+     */
+    static boolean isUrgent(String command) {
+        for (String urgentCommand : URGENT_COMMANDS) {
+            if (command.startsWith(urgentCommand) && (command.length() == urgentCommand.length()
+                    || command.charAt(urgentCommand.length()) == ' ')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records each batch of commands written to the server for crash reports, and in the
+     * recording of the session, if there is one.
+     */
+    final CommandWriter.BatchListener mBatchListener = new CommandWriter.BatchListener() {
+        @Override
+        public void onBatchWritten(List<String> commands) {
+            SessionRecorder recorder = connectionState.getRecorder();
+            if (recorder != null) {
+                for (String command : commands) {
+                    recorder.onSent(command);
+                }
+            }
+
+            if (!Util.supportCrashlytics()) {
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (String command : commands) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                // Make sure that username/password do not make it to Crashlytics.
+                sb.append(command.startsWith("login ") ? "login [username] [password]" : command);
+            }
+            Util.crashlyticsSetString("lastCommands", sb.toString());
+        }
+    };
+
+    /**
+     * Called on the executor after the lines from one read of the socket have been routed, to
+     * hand them to the threads that handle them.
+     */
+    final Runnable mLinesHandled = new Runnable() {
+        @Override
+        public void run() {
+            mStreams.flush();
+        }
+    };
+
+    /**
+     * The most batches of received lines waiting to be routed, each holding the lines of one
+     * read of the socket. When they are all waiting the socket isn't read.
+     */
+    private static final int RECEIVED_BATCHES = 4;
+
+    /** Initial size of the buffer of a batch of received lines. */
+    private static final int RECEIVED_BATCH_SIZE = 8 * 1024;
+
+    /** Batches of lines read from the socket, routed on the executor. */
+    final LineBatchPool mReceivedBatches = new LineBatchPool(RECEIVED_BATCHES,
+            new LineFramer.LineSink() {
+                @Override
+                public void onLine(byte[] buffer, int offset, int length) {
+                    onLineReceived(buffer, offset, length);
+                }
+            }, mLinesHandled, RECEIVED_BATCH_SIZE);
+
+    /** Number of threads handling received lines. */
+    private static final int STREAM_LANES
+            = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** The stream of the global commands that are not lists, e.g. the handshake. */
+    private static final int STREAM_SERVER = "server".hashCode();
+
+    /** Cursor over the line being handled, for each lane of {@link #mStreams}. */
+    private final TokenCursor[] mLaneTokens = new TokenCursor[STREAM_LANES];
+
+    /**
+     * Handles received lines, so the status of one player doesn't wait for a long list or
+     * another player's lines to be handled. See {@link #onLineReceived(byte[], int, int)} for
+     * how lines are split in to streams.
+     */
+    private final StreamDispatcher mStreams = new StreamDispatcher(STREAM_LANES,
+            new StreamDispatcher.LaneSink() {
+        @Override
+        public void onLine(int lane, byte[] buffer, int offset, int length) {
+            TokenCursor tokens = mLaneTokens[lane];
+            if (tokens == null) {
+                tokens = mLaneTokens[lane] = new TokenCursor();
+            }
+            tokens.reset(buffer, offset, length);
+            CmdHandler handler = mDispatcher.find(tokens);
+            if (handler != null) {
+                handler.handle(tokens);
+            }
+        }
+
+        /**
+         * Commands sent while handling the lines, such as requests for the next page of a
+         * list, are written together.
+         */
+        @Override
+        public void onLinesHandled(int lane) {
+            flushCommands();
+        }
+    });
+
+    /** @return The clock that extrapolates the positions of players. */
+    PlaybackClock getPlaybackClock() {
+        return mPlaybackClock;
+    }
+
+    /**
+     * The command that probes the connection. It's cheap for the server to answer, and its
+     * reply has the correlation id of the probe.
+     */
+    private static final String PROBE_COMMAND = "serverstatus 0 0";
+
+    /** Time between probes of the connection, in milliseconds. */
+    private volatile long mProbeIntervalMillis = 10 * 1000;
+
+    /**
+     * Measures the round trip times of the connection, and notices when it has stalled. A probe
+     * unanswered for 20s, while nothing else arrives, is longer than the server takes for
+     * anything but the largest requests.
+     */
+    final ConnectionProbe mProbe = new ConnectionProbe(Ticker.systemTicker(),
+            TimeUnit.SECONDS.toNanos(20));
+
+    /** The second connection, which carries the requests for the library. */
+    private final BulkConnection mBulk = new BulkConnection(this, mExecutor);
+
+    /** Sends the probes, or null if the connection isn't being probed. */
+    private ScheduledFuture<?> mProbeTask;
+
+    private final Object mProbeTaskLock = new Object();
+
+    private final Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            probe();
+        }
+    };
+
+    /**
+     * Set how often the connection is probed, and how long a probe may wait for its reply before
+     * the connection is taken to have stalled. Takes effect on the next connection.
+     */
+    void setProbeTimes(long intervalMillis, long stallMillis) {
+        mProbeIntervalMillis = intervalMillis;
+        mProbe.setStallNanos(TimeUnit.MILLISECONDS.toNanos(stallMillis));
+    }
+
+    /** Start probing a new connection, after the handshake. */
+    private void startProbing() {
+        synchronized (mProbeTaskLock) {
+            stopProbing();
+            mProbe.reset();
+            mProbeTask = mExecutor.scheduleWithFixedDelay(mProbeRunnable, mProbeIntervalMillis,
+                    mProbeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopProbing() {
+        synchronized (mProbeTaskLock) {
+            if (mProbeTask != null) {
+                mProbeTask.cancel(false);
+                mProbeTask = null;
+            }
+        }
+    }
+
+    /**
+     * Send a probe, unless an earlier probe shows that the connection has stalled, in which case
+     * the connection is made again.
+     */
+    private void probe() {
+        if (mProbe.isStalled()) {
+            Log.w(TAG, "Connection stalled, reconnecting: " + mProbe);
+            mProbe.onStall();
+            stopProbing();
+            if (!connectionState.reconnect(mEventBus, mExecutor, this)) {
+                disconnect(false);
+            }
+            return;
+        }
+        int correlationId = nextCorrelationId();
+        mProbe.onProbeSent(correlationId);
+        sendCommands(CommandWriter.PRIORITY_INTERACTIVE,
+                PROBE_COMMAND + " correlationid:" + correlationId);
+        flushCommands();
+    }
+
+    /**
+     * Record the reply to a probe, if the line is one.
+     *
+     * @return True if the line is the reply to a probe.
+     */
+    private boolean onProbeReply(TokenCursor tokens) {
+        tokens.moveTo(1);
+        while (tokens.next()) {
+            if (tokens.tag() == Tag.CORRELATIONID) {
+                return mProbe.onProbeReply(tokens.valueAsInt(-1));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The round trip times of the current connection, and the number of connections that
+     *     stalled.
+     */
+    ConnectionHealth getConnectionHealth() {
+        return mProbe.getHealth();
+    }
+
+    /** @return The dispatcher that hands received lines to the threads that handle them. */
+    StreamDispatcher getStreamDispatcher() {
+        return mStreams;
+    }
+
+    /**
+     * Keeps track of asynchronous request waiting for a reply
+     * <p>
+     * When a request is made, the callback is put this list, along with a
+     * unique correlation id.
+     * <p>
+     * When the reply comes the callback is called, and the request is removed from this list.
+     * <p>
+     * When the client hosting callbacks goes away, all requests with callbacks hosted by it, is
+     * removed from this list.
+     * <p>
+     * If a reply with with matching entry is this list comes in, it is discarded.
+     */
+    private final Map<Integer, PendingRequest> pendingRequests
+            = new ConcurrentHashMap<Integer, PendingRequest>();
+
+    /**
+     * Receives list responses as tokens, without turning the items in to model objects, e.g. to
+     * store them.
+     */
+    interface RecordSink {
+        /**
+         * Called on the thread that handles responses, with the response.
+         *
+         * @param tokens The response, only valid for the duration of the call.
+         * @param start The position of the first item in the response.
+         * @param from Index of the first token after the start and count of the response.
+         */
+        void onRecords(TokenCursor tokens, int start, int from);
+    }
+
+    /** A request for a list response as tokens. */
+    private static class RecordRequest {
+        final RecordSink sink;
+
+        /** The request, without its correlation id. */
+        final String line;
+
+        /** The writer the request was last sent on, or null if it wasn't sent. */
+        volatile CommandWriter writer;
+
+        RecordRequest(RecordSink sink, String line) {
+            this.sink = sink;
+            this.line = line;
+        }
+    }
+
+    /** Requests for list responses as tokens, by correlation id. */
+    private final Map<Integer, RecordRequest> mRecordRequests
+            = new ConcurrentHashMap<Integer, RecordRequest>();
+
+    /**
+     * Requests which have been sent but not answered yet, keyed by the request without its
+     * correlation id. A request that is identical to one of these is not sent, its callback is
+     * added to the outstanding request instead.
+     */
+    private final Map<String, PendingRequest> mUnansweredRequests = new HashMap<String, PendingRequest>();
+
+    /** Number of requests that were added to an identical outstanding request. */
+    private long mJoinedRequestCount;
+
+    /** Number of round trips saved by adding requests to identical outstanding requests. */
+    private long mSavedRoundTripCount;
+
+    /** Number of requests that were cancelled before they were answered. */
+    private final AtomicLong mCancelledRequestCount = new AtomicLong();
+
+    /**
+     * A request waiting for a reply. The replies are passed to all the callbacks waiting for the
+     * request.
+     */
+    private static class PendingRequest implements IServiceItemListCallback {
+        /** The callbacks waiting for this request, which may be shared with other requests. */
+        final List<IServiceItemListCallback> callbacks;
+
+        /**
+         * The request without its correlation id, if identical requests may be added to this
+         * one, otherwise null.
+         */
+        final String key;
+
+        /** The fetch the request is a page of, or null if it isn't part of a windowed fetch. */
+        final WindowedFetch fetch;
+
+        /** The command, e.g. "songs". */
+        final String cmd;
+
+        /** The most items to request in one round trip. */
+        final int chunkSize;
+
+        /**
+         * Index after the last item wanted, e.g. the end of the page the user is looking at,
+         * or {@link Integer#MAX_VALUE} for a full list.
+         */
+        final int end;
+
+        /** When the latest request for the items was sent, from {@link System#nanoTime()}. */
+        volatile long sentAt = System.nanoTime();
+
+        /** The browse cache key of the latest request, or null if it isn't cached. */
+        volatile String cacheKey;
+
+        /** True if the latest request is answered from the browse cache. */
+        volatile boolean fromCache;
+
+        /** True once a response from the server has arrived. */
+        volatile boolean answered;
+
+        /** The search this is a preview of, from the library index, or null. */
+        volatile PendingRequest previewOf;
+
+        /**
+         * The latest request sent to the server, without its correlation id, or null if it
+         * hasn't been sent. It's sent again if the connection is lost before it's answered.
+         */
+        volatile String line;
+
+        /** The {@link CommandWriter} priority the latest request was sent with. */
+        volatile int priority;
+
+        /**
+         * The writer of the connection the latest request was sent on, or null if it wasn't
+         * sent. The request is sent again when that connection is lost.
+         */
+        volatile CommandWriter writer;
+
+        PendingRequest(IServiceItemListCallback callback, String key, String cmd, int chunkSize,
+                int end) {
+            this(new CopyOnWriteArrayList<IServiceItemListCallback>(), key, null, cmd, chunkSize,
+                    end);
+            callbacks.add(callback);
+        }
+
+        PendingRequest(List<IServiceItemListCallback> callbacks, String key, WindowedFetch fetch,
+                String cmd, int chunkSize, int end) {
+            this.callbacks = callbacks;
+            this.key = key;
+            this.fetch = fetch;
+            this.cmd = cmd;
+            this.chunkSize = chunkSize;
+            this.end = end;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onItemsReceived(int count, int start, Map parameters, List items,
+                Class dataType) {
+            for (IServiceItemListCallback callback : callbacks) {
+                callback.onItemsReceived(count, start, parameters, items, dataType);
+            }
+        }
+
+        @Override
+        public Object getClient() {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return callbacks.toString();
+        }
+    }
+
+    /** Maximum number of page requests in flight when fetching a full list. */
+    private volatile int mFullListWindow
+            = Squeezer.getContext().getResources().getInteger(R.integer.FullListWindow);
+
+    /**
+     * Set how many page requests may be in flight at once when fetching a full list. With a
+     * window of 1 each page is requested after the previous page has arrived.
+     */
+    void setFullListWindow(int window) {
+        mFullListWindow = Math.max(1, window);
+    }
+
+    /** The library index of the connected server, or null. */
+    private volatile LibraryIndex mLibraryIndex;
+
+    /** Guards opening and closing {@link #mLibraryIndex}. */
+    private final Object mLibraryIndexLock = new Object();
+
+    private volatile boolean mLibraryIndexEnabled;
+
+    /**
+     * Set whether to keep an index of the server's library on the device, and answer browse
+     * requests from it. While connected, the index is opened and synchronized with the server,
+     * or closed, straight away.
+     */
+    void setLibraryIndexEnabled(boolean enabled) {
+        if (mLibraryIndexEnabled == enabled) {
+            return;
+        }
+        mLibraryIndexEnabled = enabled;
+        if (!enabled) {
+            closeLibraryIndex();
+        } else if (connectionState.isHandshakeComplete()) {
+            openLibraryIndex();
+        }
+    }
+
+    /** Open the index of the connected server, if it's enabled, and check it's up to date. */
+    private void openLibraryIndex() {
+        synchronized (mLibraryIndexLock) {
+            if (!mLibraryIndexEnabled || mLibraryIndex != null) {
+                return;
+            }
+            mLibraryIndex = new LibraryIndex(this, mEventBus, Squeezer.getContext(),
+                    getCurrentHost() + ":" + getHttpPort());
+        }
+        // The server's last scan time tells whether the index is up to date.
+        sendCommand("serverstatus 0 0");
+    }
+
+    private void closeLibraryIndex() {
+        synchronized (mLibraryIndexLock) {
+            LibraryIndex index = mLibraryIndex;
+            if (index != null) {
+                index.close();
+                mLibraryIndex = null;
+            }
+        }
+    }
+
+    private volatile boolean mBulkConnectionEnabled = true;
+
+    /**
+     * Set whether to fetch pages of the library on a second connection to the server, so
+     * they don't hold up the status of the players and the replies to commands. While
+     * connected, the second connection is made, or closed and its requests sent again on the
+     * control connection, straight away.
+     */
+    void setBulkConnectionEnabled(boolean enabled) {
+        if (mBulkConnectionEnabled == enabled) {
+            return;
+        }
+        mBulkConnectionEnabled = enabled;
+        if (!connectionState.isHandshakeComplete()) {
+            return;
+        }
+        if (enabled) {
+            openBulkConnection();
+        } else {
+            mBulk.close();
+            int resent = resendPendingRequests();
+            Log.i(TAG, "Bulk connection closed, requests sent again: " + resent);
+        }
+    }
+
+    private void openBulkConnection() {
+        // Requests over the Comet interface don't wait behind each other.
+        if (mBulkConnectionEnabled && !connectionState.isCometTransport()) {
+            mBulk.open(getCurrentHost(), connectionState.getCliPort(),
+                    connectionState.getUserName(), connectionState.getPassword());
+        }
+    }
+
+    /**
+     * Set whether to reach the server through the Comet interface of its web server instead of
+     * the CLI, in which case the host and port to connect to are those of the web server. Takes
+     * effect on the next connection.
+     */
+    void setCometTransport(boolean comet) {
+        connectionState.setCometTransport(comet);
+    }
+
+    /**
+     * Set where to record the sessions with the server, for replaying later, or null to not
+     * record them. Takes effect on the next connection.
+     */
+    void setRecordingDirectory(File directory) {
+        connectionState.setRecordingDirectory(directory);
+    }
+
+    /**
+     * Request a list, and pass the response to the sink as tokens. The request is sent in the
+     * background, after any interactive or browse requests.
+     *
+     * @param request The request, without the correlation id.
+     */
+    void requestRecords(String request, RecordSink sink) {
+        int correlationId = nextCorrelationId();
+        RecordRequest recordRequest = new RecordRequest(sink, request);
+        mRecordRequests.put(correlationId, recordRequest);
+        recordRequest.writer = sendListCommand(CommandWriter.PRIORITY_BACKGROUND,
+                request + " correlationid:" + correlationId, true);
+    }
 
-        // Make sure that username/password do not make it to Crashlytics.
-        if (commands[0].startsWith("login ")) {
-            Util.crashlyticsSetString("lastCommands", "login [username] [password]");
-        } else {
-            Util.crashlyticsSetString("lastCommands", formattedCommands);
+    public void cancelClientRequests(Object client) {
+        for (Map.Entry<Integer, PendingRequest> entry : pendingRequests.entrySet()) {
+            PendingRequest request = entry.getValue();
+            for (IServiceItemListCallback callback : request.callbacks) {
+                if (callback.getClient() == client) {
+                    Log.i(TAG, "cancel request: [" + entry.getKey() + ";" + callback + "]");
+                    request.callbacks.remove(callback);
+                }
+            }
+            if (request.callbacks.isEmpty() && pendingRequests.remove(entry.getKey()) != null) {
+                // The response is dropped when it arrives.
+                mCancelledRequestCount.incrementAndGet();
+                forgetUnanswered(request);
+            }
         }
+    }
 
-        writer.println(formattedCommands);
-        writer.flush();
+    /**
+     * @return The number of requests that were cancelled before they were answered, e.g.
+     *     searches for a term that has since been changed.
+     */
+    long getCancelledRequestCount() {
+        return mCancelledRequestCount.get();
     }
 
     /**
-     * Send the supplied commands to the SqueezeboxServer.
-     * <p>
-     * This method takes care to avoid performing network operations on the main thread. Use {@link
-     * #sendCommandImmediately(String...)} if you are sure you are not on the main thread (eg if
-     * called from the listening thread).
-     *
-     * @param commands List of commands to send
+     * Stop adding identical requests to the request. Called when the first reply arrives, as
+     * later requests would miss the items in that reply.
      */
-    void sendCommand(final String... commands) {
-        if (Looper.getMainLooper() != Looper.myLooper()) {
-            sendCommandImmediately(commands);
-        } else {
-            mExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    sendCommandImmediately(commands);
+    private void forgetUnanswered(PendingRequest request) {
+        if (request.key != null) {
+            synchronized (mUnansweredRequests) {
+                if (mUnansweredRequests.get(request.key) == request) {
+                    mUnansweredRequests.remove(request.key);
                 }
-            });
+            }
         }
     }
 
     /**
-     * Send the specified command for the specified player to the SqueezeboxServer
-     *
-     * @param command The command to send
+     * @return The number of requests that were not sent, because an identical request was
+     *     already waiting for a reply.
      */
-    public void sendPlayerCommand(final Player player, final String command) {
-        sendCommand(Util.encode(player.getId()) + " " + command);
+    long getJoinedRequestCount() {
+        synchronized (mUnansweredRequests) {
+            return mJoinedRequestCount;
+        }
     }
 
     /**
-     * Keeps track of asynchronous request waiting for a reply
-     * <p>
-     * When a request is made, the callback is put this list, along with a
-     * unique correlation id.
-     * <p>
-     * When the reply comes the callback is called, and the request is removed from this list.
-     * <p>
-     * When the client hosting callbacks goes away, all requests with callbacks hosted by it, is
-     * removed from this list.
-     * <p>
-     * If a reply with with matching entry is this list comes in, it is discarded.
+     * @return The number of round trips that were saved by sharing the replies to identical
+     *     requests. Each reply shared with n extra callbacks saves n round trips.
      */
-    private final Map<Integer, IServiceItemListCallback> pendingRequests
-            = new ConcurrentHashMap<Integer, IServiceItemListCallback>();
-
-    public void cancelClientRequests(Object client) {
-        for (Map.Entry<Integer, IServiceItemListCallback> entry : pendingRequests.entrySet()) {
-            if (entry.getValue().getClient() == client) {
-                Log.i(TAG, "cancel request: [" + entry.getKey() + ";" + entry.getValue() +"]");
-                pendingRequests.remove(entry.getKey());
-            }
+    long getSavedRoundTripCount() {
+        synchronized (mUnansweredRequests) {
+            return mSavedRoundTripCount;
         }
     }
 
@@ -475,18 +1167,34 @@ class CliClient implements IClient {
      * <p>
      * Items are returned to the caller via the specified callback.
      * <p>
-     * See {@link #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for details.
+     * See {@link #parseSqueezerList(ExtendedQueryFormatCmd, TokenCursor)} for details.
      *
      * @param playerId Id of the current player or null
      * @param cmd Identifies the type of items
      * @param start First item to return
      * @param pageSize No of items to return
      * @param parameters Item specific parameters for the request
-     * @see #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)
+     * @see #parseSqueezerList(ExtendedQueryFormatCmd, TokenCursor)
      */
     private void internalRequestItems(String playerId, String cmd, int start, int pageSize, List<String> parameters, IServiceItemListCallback callback) {
-        pendingRequests.put(_correlationid, callback);
-        final StringBuilder sb = new StringBuilder(cmd + " " + start + " " + pageSize);
+        internalRequestItems(playerId, cmd, start, pageSize, pageSize, start + pageSize, parameters, callback);
+    }
+
+    /**
+     * Send an asynchronous request to the SqueezeboxServer for the specified items, fetching
+     * more items when the reply arrives until the end is reached.
+     *
+     * @param playerId Id of the current player or null
+     * @param cmd Identifies the type of items
+     * @param start First item to return
+     * @param count No of items to request now
+     * @param chunkSize No of items to request in each of the following requests
+     * @param end Index after the last item to return
+     * @param parameters Item specific parameters for the request
+     * @see #parseSqueezerList(ExtendedQueryFormatCmd, TokenCursor)
+     */
+    private void internalRequestItems(String playerId, String cmd, int start, int count, int chunkSize, int end, List<String> parameters, IServiceItemListCallback callback) {
+        final StringBuilder sb = new StringBuilder(cmd + " " + start + " " + count);
         if (playerId != null) {
             sb.insert(0, Util.encode(playerId) + " ");
         }
@@ -495,16 +1203,117 @@ class CliClient implements IClient {
                 sb.append(" ").append(Util.encode(parameter));
             }
         }
-        sb.append(" correlationid:");
-        sb.append(_correlationid++);
-        sendCommand(sb.toString());
+
+        // Identical requests (e.g. when an activity is recreated) share the replies.
+        String key = sb.toString();
+        int correlationId;
+        synchronized (mUnansweredRequests) {
+            PendingRequest unanswered = mUnansweredRequests.get(key);
+            if (unanswered != null && unanswered.end == end && unanswered.chunkSize == chunkSize) {
+                unanswered.callbacks.add(callback);
+                mJoinedRequestCount++;
+                return;
+            }
+            correlationId = nextCorrelationId();
+            PendingRequest request = new PendingRequest(callback, key, cmd, chunkSize, end);
+            mUnansweredRequests.put(key, request);
+            pendingRequests.put(correlationId, request);
+        }
+
+        sendListRequest(CommandWriter.PRIORITY_BROWSE, pendingRequests.get(correlationId),
+                key, correlationId, playerId == null && BROWSE_CACHE_COMMANDS.contains(cmd));
+    }
+
+    /**
+     * Send a list request, or answer it from the browse cache if the response is there.
+     *
+     * @param priority One of the {@link CommandWriter} priorities.
+     * @param request The request waiting for the response.
+     * @param line The request, without its correlation id.
+     * @param correlationId The correlation id of the request.
+     * @param cacheable True if the response may be cached.
+     */
+    private void sendListRequest(int priority, PendingRequest request, String line,
+            int correlationId, boolean cacheable) {
+        byte[] cached = null;
+        if (request != null) {
+            request.cacheKey = (cacheable ? BrowseCache.key(line) : null);
+            cached = (cacheable ? mBrowseCache.get(request.cacheKey) : null);
+            request.fromCache = (cached != null);
+            request.sentAt = System.nanoTime();
+        }
+
+        if (cached != null) {
+            replayResponse(cached, correlationId);
+            return;
+        }
+
+        LibraryIndex index = mLibraryIndex;
+        if (cacheable && request != null && index != null && index.answer(line, correlationId)) {
+            request.fromCache = true;
+            return;
+        }
+
+        if (cacheable && request != null && index != null && line.contains(" search%3A")) {
+            previewSearch(index, request, line);
+        }
+
+        if (request != null) {
+            request.priority = priority;
+            request.line = line;
+        }
+        CommandWriter writer = sendListCommand(priority, line + " correlationid:" + correlationId,
+                cacheable);
+        if (request != null) {
+            request.writer = writer;
+        }
+    }
+
+    /**
+     * Show the results of a search from the library index while the server searches. The
+     * preview has its own correlation id and shares the callbacks of the request, so the server's
+     * results replace it when they arrive. A preview that arrives after the server's results is
+     * dropped.
+     */
+    private void previewSearch(LibraryIndex index, PendingRequest request, String line) {
+        int correlationId = nextCorrelationId();
+        // No more pages are fetched for a preview.
+        PendingRequest preview = new PendingRequest(request.callbacks, null, null, request.cmd,
+                request.chunkSize, 0);
+        preview.fromCache = true;
+        preview.previewOf = request;
+        pendingRequests.put(correlationId, preview);
+        if (!index.preview(line, correlationId)) {
+            pendingRequests.remove(correlationId);
+        }
+    }
+
+    /**
+     * Handle a response that didn't come from the server as if it had just arrived, after the
+     * line being handled.
+     *
+     * @param response The response, without a correlation id.
+     * @param correlationId The correlation id of the request the response is for.
+     */
+    void replayResponse(byte[] response, int correlationId) {
+        byte[] suffix = (" correlationid%3A" + correlationId).getBytes();
+        final byte[] line = new byte[response.length + suffix.length];
+        System.arraycopy(response, 0, line, 0, response.length);
+        System.arraycopy(suffix, 0, line, response.length, suffix.length);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onLineReceived(line, 0, line.length);
+                mStreams.flush();
+            }
+        });
     }
 
     /**
      * Send an asynchronous request to the SqueezeboxServer for the specified items.
      * <p>
-     * Items are requested in chunks of <code>R.integer.PageSize</code>, and returned
-     * to the caller via the specified callback.
+     * Items are requested in chunks sized by {@link AdaptivePageSizer} for the command, and
+     * returned to the caller via the specified callback.
      * <p>
      * If start is zero, this will order one item, to quickly learn the number of items
      * from the server. When the server response with this item it is transferred to the
@@ -516,13 +1325,16 @@ class CliClient implements IClient {
      * <p>
      * Otherwise request a page of items starting from start.
      * <p>
-     * See {@link #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for details.
+     * A page is at least <code>R.integer.PageSize</code> items (the page size of the item
+     * lists), fetched in as many chunks as needed, and at most one chunk.
+     * <p>
+     * See {@link #parseSqueezerList(ExtendedQueryFormatCmd, TokenCursor)} for details.
      *
      * @param playerId Id of the current player or null
      * @param cmd Identifies the type of items
      * @param start First item to return
      * @param parameters Item specific parameters for the request
-     * @see #parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)
+     * @see #parseSqueezerList(ExtendedQueryFormatCmd, TokenCursor)
      */
     private void internalRequestItems(String playerId, String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
         boolean full_list = (start < 0);
@@ -533,7 +1345,13 @@ class CliClient implements IClient {
             parameters.add("full_list:1");
         }
 
-        internalRequestItems(playerId, cmd, (full_list ? 0 : start), (start == 0 ? 1 : pageSize), parameters, callback);
+        int chunkSize = mPageSizer.pageSize(cmd);
+        if (full_list) {
+            internalRequestItems(playerId, cmd, 0, chunkSize, chunkSize, Integer.MAX_VALUE, parameters, callback);
+        } else {
+            int end = start + Math.max(pageSize, chunkSize);
+            internalRequestItems(playerId, cmd, start, (start == 0 ? 1 : chunkSize), chunkSize, end, parameters, callback);
+        }
     }
 
     void requestItems(Player player, String cmd, int start, List<String> parameters, IServiceItemListCallback callback) {
@@ -563,54 +1381,6 @@ class CliClient implements IClient {
         requestItems(player, cmd, start, parameters, callback);
     }
 
-    /**
-     * Data for {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)}
-     *
-     * @author kaa
-     */
-    private static class SqueezeParserInfo {
-
-        private final Set<String> columns;
-
-        private final String count_id;
-
-        private final ListHandler<? extends Item> handler;
-
-        /**
-         * @param countId The label for the tag which contains the total number of results, normally
-         * "count".
-         * @param handler Callback to receive the parsed data.
-         * @param columns If one column is specified, it is the item delimiter as defined for each
-         *                extended query format command in the SqueezeServer CLI documentation.
-         *                Multiple columns is supported to workaround of a bug in recent server
-         *                versions.
-         */
-        public SqueezeParserInfo(String countId, ListHandler<? extends Item> handler, String... columns) {
-            count_id = countId;
-            this.columns = new HashSet<String>(Arrays.asList(columns));
-            this.handler = handler;
-        }
-
-        public SqueezeParserInfo(String itemDelimiter, ListHandler<? extends Item> handler) {
-            this("count", handler, itemDelimiter);
-        }
-
-        public SqueezeParserInfo(ListHandler<? extends Item> handler, String... columns) {
-            this("count", handler, columns);
-        }
-
-        public SqueezeParserInfo(ListHandler<? extends Item> handler) {
-            this("id", handler);
-        }
-
-        public boolean isComplete(Map<String, String> record) {
-            for (String column : columns) {
-                if (!record.containsKey(column)) return false;
-            }
-            return true;
-        }
-    }
-
     /**
      * Generic method to parse replies for queries in extended query format
      * <p>
@@ -624,94 +1394,91 @@ class CliClient implements IClient {
      * data.
      *
      * @param cmd Describes of the CLI command
-     * @param tokens List of tokens with value or key:value.
+     * @param tokens Cursor over the tokens of the response, with value or key:value.
      */
-    void parseSqueezerList(ExtendedQueryFormatCmd cmd, List<String> tokens) {
-        Log.v(TAG, "Parsing list, cmd: " +cmd + ", tokens: " + tokens);
-
-        final int ofs = mSpaceSplitPattern.split(cmd.cmd).length + (cmd.playerSpecific ? 1 : 0) + (cmd.prefixed ? 1 : 0);
-        int actionsCount = 0;
-        final String playerid = (cmd.playerSpecific ? tokens.get(0) + " " : "");
-        final String prefix = (cmd.prefixed ? tokens.get(cmd.playerSpecific ? 1 : 0) + " " : "");
-        final int start = Util.parseDecimalIntOrZero(tokens.get(ofs));
-        final int itemsPerResponse = Util.parseDecimalIntOrZero(tokens.get(ofs + 1));
-
-        int correlationId = 0;
-        boolean rescan = false;
-        boolean full_list = false;
-        final Map<String, String> taggedParameters = new HashMap<String, String>();
-        final Map<String, String> parameters = new HashMap<String, String>();
-        final Set<String> countIdSet = new HashSet<String>();
-        final Map<String, SqueezeParserInfo> itemDelimeterMap = new HashMap<String, SqueezeParserInfo>();
-        final Map<String, Integer> counts = new HashMap<String, Integer>();
-        final Map<String, String> record = new HashMap<String, String>();
-
-        for (SqueezeParserInfo parserInfo : cmd.parserInfos) {
-            parserInfo.handler.clear();
-            countIdSet.add(parserInfo.count_id);
-            for (String column : parserInfo.columns) itemDelimeterMap.put(column, parserInfo);
-        }
-
-        SqueezeParserInfo parserInfo = null;
-        for (int idx = ofs + 2; idx < tokens.size(); idx++) {
-            String token = tokens.get(idx);
-            int colonPos = token.indexOf("%3A");
-            if (colonPos == -1) {
-                Log.e(TAG, "Expected colon in list token. '" + token + "'");
-                return;
-            }
-            String key = Util.decode(token.substring(0, colonPos));
-            String value = Util.decode(token.substring(colonPos + 3));
-            Log.v(TAG, "key=" + key + ", value: " + value);
-
-            if ("rescan".equals(key)) {
-                rescan = (Util.parseDecimalIntOrZero(value) == 1);
-            } else if ("full_list".equals(key)) {
-                full_list = (Util.parseDecimalIntOrZero(value) == 1);
-                taggedParameters.put(key, token);
-            } else if ("correlationid".equals(key)) {
-                correlationId = Util.parseDecimalIntOrZero(value);
-                taggedParameters.put(key, token);
-            } else if ("actions".equals(key)) {
-                // Apparently squeezer returns some commands which are
-                // included in the count of the current request
-                actionsCount++;
+    void parseSqueezerList(ExtendedQueryFormatCmd cmd, TokenCursor tokens) {
+        parseList(laneCmd(cmd), tokens);
+    }
+
+    /**
+     * @return The calling thread's copy of a command of {@link #extQueryFormatCmds}, with
+     *     handlers that no other thread uses.
+     */
+    private ExtendedQueryFormatCmd laneCmd(ExtendedQueryFormatCmd cmd) {
+        ExtendedQueryFormatCmd[] laneCmds = mLaneCmds.get();
+        for (int i = 0; i < extQueryFormatCmds.length; i++) {
+            if (extQueryFormatCmds[i] == cmd) {
+                return laneCmds[i];
             }
-            if (countIdSet.contains(key)) {
-                counts.put(key, Util.parseDecimalIntOrZero(value));
-            } else {
-                SqueezeParserInfo newParserInfo = itemDelimeterMap.get(key);
-                if (newParserInfo != null && parserInfo != null && parserInfo.isComplete(record)) {
-                    parserInfo.handler.add(record);
-                    Log.v(TAG, "record=" + record);
-                    record.clear();
-                }
-                if (newParserInfo != null) parserInfo = newParserInfo;
-                if (parserInfo != null) {
-                    record.put(key, value);
-                } else if (cmd.taggedParameters.contains(key)) {
-                    taggedParameters.put(key, token);
-                } else {
-                    parameters.put(key, value);
+        }
+        throw new IllegalArgumentException("Unknown command: " + cmd);
+    }
+
+    private void parseList(ExtendedQueryFormatCmd cmd, TokenCursor tokens) {
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "Parsing list, cmd: " + cmd + ", tokens: " + tokens);
+        }
+
+        final int ofs = cmd.startIndex();
+        if (!mRecordRequests.isEmpty()) {
+            RecordRequest recordRequest = null;
+            tokens.moveTo(ofs + 2);
+            while (recordRequest == null && tokens.next()) {
+                if (tokens.tag() == Tag.CORRELATIONID) {
+                    recordRequest = mRecordRequests.remove(tokens.valueAsInt(-1));
                 }
             }
+            if (recordRequest != null) {
+                recordRequest.sink.onRecords(tokens, tokens.intAt(ofs, 0), ofs + 2);
+                return;
+            }
         }
 
-        if (parserInfo != null && !record.isEmpty()) {
-            parserInfo.handler.add(record);
-            Log.v(TAG, "record=" + record);
+        final ListResponse response = cmd.parse(tokens);
+        if (response == null) {
+            return;
         }
+        final int start = response.start;
+        final int actionsCount = response.actionsCount;
+        final int correlationId = response.correlationId;
+        final Map<String, String> parameters = response.parameters;
 
         // Process the lists for all the registered handlers
-        int end = start + itemsPerResponse;
+        int end = start + response.itemsPerResponse;
         int max = 0;
-        IServiceItemListCallback callback = pendingRequests.get(correlationId);
-        for (SqueezeParserInfo parser : cmd.parserInfos) {
-            Integer count = counts.get(parser.count_id);
+        PendingRequest request = pendingRequests.get(correlationId);
+        if (request != null && request.previewOf != null && request.previewOf.answered) {
+            // The server's results arrived first, don't replace them with the preview.
+            pendingRequests.remove(correlationId);
+            request = null;
+        }
+        IServiceItemListCallback callback = request;
+        if (request != null) {
+            if (!request.fromCache) {
+                request.answered = true;
+            }
+            forgetUnanswered(request);
+            synchronized (mUnansweredRequests) {
+                mSavedRoundTripCount += Math.max(0, request.callbacks.size() - 1);
+            }
+        }
+        WindowedFetch fetch = (request != null ? request.fetch : null);
+        List<WindowedFetch.Delivery> deliveries = (fetch != null
+                ? new ArrayList<WindowedFetch.Delivery>(cmd.parserInfos.length) : null);
+        int items = 0;
+        for (int i = 0; i < cmd.parserInfos.length; i++) {
+            ListHandler<? extends Item> handler = itemHandler(cmd.parserInfos[i]);
+            items += handler.getItems().size();
+            Integer count = response.counts[i];
             int countValue = (count == null ? 0 : count);
             if (count != null || start == 0) {
-                if (callback != null) {
-                    callback.onItemsReceived(countValue - actionsCount, start, parameters, parser.handler.getItems(), parser.handler.getDataType());
+                if (fetch != null) {
+                    // The page may have to wait for the pages before it, so keep a copy.
+                    deliveries.add(new WindowedFetch.Delivery(countValue - actionsCount, start,
+                            parameters, new ArrayList<Item>(handler.getItems()),
+                            handler.getDataType()));
+                } else if (callback != null) {
+                    callback.onItemsReceived(countValue - actionsCount, start, parameters, handler.getItems(), handler.getDataType());
                 }
                 if (countValue > max) {
                     max = countValue;
@@ -719,28 +1486,108 @@ class CliClient implements IClient {
             }
         }
 
+        if (response.rescan) {
+            // The library is changing, so the cached responses may be wrong.
+            invalidateBrowseCache();
+            LibraryIndex index = mLibraryIndex;
+            if (index != null) {
+                index.onRescan();
+            }
+        } else if (request != null && !request.fromCache && request.cacheKey != null) {
+            mBrowseCache.put(request.cacheKey, tokens.copyWithout(response.correlationIndex));
+        }
+        if (request != null && !request.fromCache) {
+            mPageSizer.onResponse(request.cmd, items, tokens.length(),
+                    System.nanoTime() - request.sentAt);
+        }
+
+        if (fetch != null) {
+            pendingRequests.remove(correlationId);
+            fetch.onPageReceived(start, deliveries);
+            return;
+        }
+
         // If the client is still around check if we need to order more items,
         // otherwise were done, so remove the callback
         if (callback != null) {
-            if ((full_list || end % pageSize != 0) && end < max) {
-                int count = (end + pageSize > max ? max - end : full_list ? pageSize : pageSize - itemsPerResponse);
-                StringBuilder cmdline = new StringBuilder();
-                cmdline.append(playerid);
-                cmdline.append(prefix);
-                cmdline.append(cmd.cmd);
-                cmdline.append(" ");
-                cmdline.append(end);
-                cmdline.append(" ");
-                cmdline.append(count);
-                for (String parameter : taggedParameters.values()) {
-                    cmdline.append(" ").append(parameter);
-                }
-                sendCommandImmediately(cmdline.toString());
+            if (response.fullList && mFullListWindow > 1 && end < max) {
+                // Now the size of the list is known, fetch the rest of it with several pages
+                // in flight.
+                pendingRequests.remove(correlationId);
+                new WindowedFetch(callback, end, max, request.chunkSize, mFullListWindow,
+                        new FullListPageRequester(request, response.command(),
+                                response.pagingParameters())).fill();
+            } else if (end < Math.min(request.end, max)) {
+                int count = Math.min(request.chunkSize, Math.min(request.end, max) - end);
+                // The rest of a full list is fetched in the background, the rest of a page is
+                // what the user is looking at.
+                sendListRequest(response.fullList ? CommandWriter.PRIORITY_BACKGROUND
+                        : CommandWriter.PRIORITY_BROWSE, request,
+                        response.pageCommand(end, count), correlationId,
+                        request.cacheKey != null);
             } else
                 pendingRequests.remove(correlationId);
         }
     }
 
+    /**
+     * @return The handler of a list, which makes the app's model items. Every handler in
+     *     {@link #extQueryFormatCmds} is a {@link BaseListHandler}.
+     */
+    @SuppressWarnings("unchecked")
+    private static ListHandler<? extends Item> itemHandler(SqueezeParserInfo parserInfo) {
+        return (ListHandler<? extends Item>) parserInfo.handler;
+    }
+
+    /**
+     * Drop the cached browse responses, as the server's library has changed, and tell the
+     * activities, so they can drop theirs.
+     */
+    private void invalidateBrowseCache() {
+        mBrowseCache.invalidate();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Browse cache invalidated: " + mBrowseCache);
+        }
+        mEventBus.post(new LibraryChanged());
+    }
+
+    /** Requests the pages of a full list fetch. */
+    private class FullListPageRequester implements WindowedFetch.PageRequester {
+        /** The request for the first page. */
+        private final PendingRequest request;
+
+        /** The command, with the player ID and prefix if there are any. */
+        private final String command;
+
+        /** The tagged parameters of the request, without the correlation id. */
+        private final Collection<String> taggedParameters;
+
+        FullListPageRequester(PendingRequest request, String command,
+                Collection<String> taggedParameters) {
+            this.request = request;
+            this.command = command;
+            this.taggedParameters = taggedParameters;
+        }
+
+        @Override
+        public void requestPage(WindowedFetch fetch, int start, int count) {
+            int correlationId = nextCorrelationId();
+            // The pages share the callbacks of the first request, so cancelling a callback
+            // cancels all the pages.
+            PendingRequest page = new PendingRequest(request.callbacks, null, fetch, request.cmd,
+                    count, start + count);
+            pendingRequests.put(correlationId, page);
+
+            StringBuilder cmdline = new StringBuilder(command);
+            cmdline.append(" ").append(start).append(" ").append(count);
+            for (String parameter : taggedParameters) {
+                cmdline.append(" ").append(parameter);
+            }
+            sendListRequest(CommandWriter.PRIORITY_BACKGROUND, page, cmdline.toString(),
+                    correlationId, request.cacheKey != null);
+        }
+    }
+
     private class GenreListHandler extends BaseListHandler<Genre> {}
 
     private class ArtistListHandler extends BaseListHandler<Artist> {}
@@ -750,8 +1597,8 @@ class CliClient implements IClient {
      */
     private class AlbumListHandler extends BaseListHandler<Album> {
         @Override
-        public void add(Map<String, String> record) {
-            addArtworkUrlTag(record);
+        public void add(TagRecord record) {
+            mServerUrls.addArtworkUrlTag(record);
             super.add(record);
         }
     }
@@ -761,8 +1608,8 @@ class CliClient implements IClient {
      */
     private class MusicFolderListHandler extends BaseListHandler<MusicFolderItem> {
         @Override
-        public void add(Map<String, String> record) {
-            addDownloadUrlTag(record);
+        public void add(TagRecord record) {
+            mServerUrls.addDownloadUrlTag(record);
             super.add(record);
         }
     }
@@ -772,96 +1619,29 @@ class CliClient implements IClient {
      */
     private class SongListHandler extends BaseListHandler<Song> {
         @Override
-        public void add(Map<String, String> record) {
-            addArtworkUrlTag(record);
-            addDownloadUrlTag(record);
+        public void add(TagRecord record) {
+            mServerUrls.addArtworkUrlTag(record);
+            mServerUrls.addDownloadUrlTag(record);
             super.add(record);
         }
     }
 
     private class PluginListHandler extends BaseListHandler<Plugin> {
         @Override
-        public void add(Map<String, String> record) {
-            fixImageTag("icon", record);
+        public void add(TagRecord record) {
+            mServerUrls.fixImageTag(Tag.ICON, record);
             super.add(record);
         }
     }
 
     private class PluginItemListHandler extends BaseListHandler<PluginItem> {
         @Override
-        public void add(Map<String, String> record) {
-            fixImageTag("image", record);
+        public void add(TagRecord record) {
+            mServerUrls.fixImageTag(Tag.IMAGE, record);
             super.add(record);
         }
     }
 
-    /**
-     * Adds a <code>artwork_url</code> entry for the item passed in.
-     * <p>
-     * If an <code>artwork_url</code> entry already exists and is absolute it is preserved.
-     * If it exists but is relative it is canonicalised.  Otherwise it is synthesised from
-     * the <code>artwork_track_id</code> tag (if it exists) otherwise the item's <code>id</code>.
-     *
-     * @param record The record to modify.
-     */
-    private void addArtworkUrlTag(Map<String, String> record) {
-        String artworkUrl = record.get("artwork_url");
-
-        // Nothing to do if the artwork_url tag already exists and is absolute.
-        if (artworkUrl != null && artworkUrl.startsWith("http")) {
-            return;
-        }
-
-        // If artworkUrl is non-null it must be relative. Canonicalise it and return.
-        if (artworkUrl != null) {
-            record.put("artwork_url", mUrlPrefix + "/" + artworkUrl);
-            return;
-        }
-
-        // Need to generate an artwork_url value.
-
-        // Prefer using the artwork_track_id entry to generate the URL
-        String artworkTrackId = record.get("artwork_track_id");
-
-        if (artworkTrackId != null) {
-            record.put("artwork_url", mUrlPrefix + "/music/" + artworkTrackId + "/cover.jpg");
-            return;
-        }
-
-        // If coverart exists but artwork_track_id is missing then use the item's ID.
-        if ("1".equals(record.get("coverart"))) {
-            record.put("artwork_url", mUrlPrefix + "/music/" + record.get("id") + "/cover.jpg");
-            return;
-        }
-    }
-
-    /**
-     * Adds a <code>download_url</code> entry for the item passed in.
-     *
-     * @param record The record to modify.
-     */
-    private void addDownloadUrlTag(Map<String, String> record) {
-        record.put("download_url", mUrlPrefix + "/music/" + record.get("id") + "/download");
-    }
-
-    /**
-     * Make sure the icon/image tag is an absolute URL.
-     *
-     * @param record The record to modify.
-     */
-    private void fixImageTag(String imageTag, Map<String, String> record) {
-        String image = record.get(imageTag);
-        if (image == null) {
-            return;
-        }
-
-        if (Uri.parse(image).isAbsolute()) {
-            return;
-        }
-
-        record.put(imageTag, mUrlPrefix + (image.startsWith("/") ? image : "/" + image));
-    }
-
     // Shims around ConnectionState methods.
 
     void startConnect(final SqueezeService service, String hostPort, final String userName,
@@ -871,65 +1651,126 @@ class CliClient implements IClient {
     }
 
     private interface CmdHandler {
-        void handle(List<String> tokens);
+        /**
+         * @param tokens Cursor over the tokens of the line that was received. Only valid for
+         *     the duration of the call.
+         */
+        void handle(TokenCursor tokens);
     }
 
-    private final Map<String, CmdHandler> globalHandlers = initializeGlobalHandlers();
-
-    private final Map<String, CmdHandler> prefixedHandlers = initializePrefixedHandlers();
-
     /**
-     * Command handlers that are specific to a given player. The first token passed to any
-     * handler is always the player ID.
+     * Finds the handler of a received line. Global commands are matched on the first token.
+     * Prefixed, global player specific and player specific commands are matched on the second
+     * token, in that order; the first token passed to player specific handlers is always the
+     * player ID. Prefixed player specific commands are matched on the third token.
      */
-    private final Map<String, CmdHandler> playerSpecificHandlers
-            = initializePlayerSpecificHandlers();
-
-    private final Map<String, CmdHandler> globalPlayerSpecificHandlers
-            = initializeGlobalPlayerSpecificHandlers();
+    private final CommandDispatcher<CmdHandler> mDispatcher;
+
+    /** The streams of the global commands, by command. */
+    private final CommandDispatcher<Integer> mGlobalStreams;
+
+    {
+        Map<String, CmdHandler> globalHandlers = initializeGlobalHandlers();
+        mDispatcher = new CommandDispatcher.Builder<CmdHandler>()
+                .add(0, globalHandlers)
+                .add(1, initializePrefixedHandlers())
+                .add(1, initializeGlobalPlayerSpecificHandlers())
+                .add(1, initializePlayerSpecificHandlers())
+                .add(2, initializePrefixedPlayerSpecificHandlers())
+                .build();
+        mGlobalStreams = new CommandDispatcher.Builder<Integer>()
+                .add(0, initializeGlobalStreams(globalHandlers.keySet()))
+                .build();
+    }
 
-    private final Map<String, CmdHandler> prefixedPlayerSpecificHandlers
-            = initializePrefixedPlayerSpecificHandlers();
+    /**
+     * The responses of each global list command, e.g. <code>songs</code>, are a stream of their
+     * own, so paging through a long list doesn't hold up the others. The players are part of
+     * the handshake, and are in the server stream with the rest of the global commands.
+     */
+    private Map<String, Integer> initializeGlobalStreams(Set<String> commands) {
+        Map<String, Integer> streams = new HashMap<String, Integer>();
+        for (String command : commands) {
+            ExtendedQueryFormatCmd cmd = extQueryFormatCmdMap.get(command);
+            boolean list = (cmd != null && cmd.handlerList == HANDLER_LIST_GLOBAL
+                    && !"players".equals(command));
+            streams.put(command, list ? command.hashCode() : STREAM_SERVER);
+        }
+        return streams;
+    }
 
     private Map<String, CmdHandler> initializeGlobalHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HANDLER_LIST_GLOBAL) {
+        for (final ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
+            if (cmd.handlerList == HANDLER_LIST_GLOBAL) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(TokenCursor tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
             }
         }
+        handlers.put("rescan", new CmdHandler() {
+            @Override
+            public void handle(TokenCursor tokens) {
+                // "rescan done" when a rescan has finished, "rescan 1" while one is running.
+                if (tokens.is(1, "done") || tokens.is(1, "1")) {
+                    invalidateBrowseCache();
+                    LibraryIndex index = mLibraryIndex;
+                    if (index != null) {
+                        index.onRescan();
+                        if (tokens.is(1, "done")) {
+                            // Synchronize the index with the new scan.
+                            sendCommand("serverstatus 0 0");
+                        }
+                    }
+                }
+            }
+        });
+        handlers.put("serverstatus", new CmdHandler() {
+            @Override
+            public void handle(TokenCursor tokens) {
+                LibraryIndex index = mLibraryIndex;
+                if (index == null) {
+                    return;
+                }
+                tokens.moveTo(1);
+                while (tokens.next()) {
+                    if (tokens.hasValue() && "lastscan".equals(tokens.key())) {
+                        index.onServerStatus(tokens.value());
+                        return;
+                    }
+                }
+            }
+        });
         handlers.put("playlists", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
-                if ("delete".equals(tokens.get(1))) {
+            public void handle(TokenCursor tokens) {
+                if (tokens.is(1, "delete")) {
                     ;
-                } else if ("edit".equals(tokens.get(1))) {
+                } else if (tokens.is(1, "edit")) {
                     ;
-                } else if ("new".equals(tokens.get(1))) {
+                } else if (tokens.is(1, "new")) {
                     HashMap<String, String> tokenMap = parseTokens(tokens);
                     if (tokenMap.get("overwritten_playlist_id") != null) {
                         mEventBus.post(new PlaylistCreateFailed(Squeezer.getContext().getString(R.string.PLAYLIST_EXISTS_MESSAGE,
                                 tokenMap.get("name"))));
                     }
-                } else if ("rename".equals(tokens.get(1))) {
+                } else if (tokens.is(1, "rename")) {
                     HashMap<String, String> tokenMap = parseTokens(tokens);
                     if (tokenMap.get("dry_run") != null) {
                         if (tokenMap.get("overwritten_playlist_id") != null) {
                             mEventBus.post(new PlaylistRenameFailed(Squeezer.getContext().getString(R.string.PLAYLIST_EXISTS_MESSAGE,
                                     tokenMap.get("newname"))));
                         } else {
-                            sendCommandImmediately(
+                            sendCommand(
                                     "playlists rename playlist_id:" + tokenMap.get("playlist_id")
                                             + " newname:" + Util.encode(tokenMap.get("newname")));
                         }
                     }
-                } else if ("tracks".equals(tokens.get(1))) {
+                } else if (tokens.is(1, "tracks")) {
                     parseSqueezerList(extQueryFormatCmdMap.get("playlists tracks"), tokens);
                 } else {
                     parseSqueezerList(extQueryFormatCmdMap.get("playlists"), tokens);
@@ -938,57 +1779,55 @@ class CliClient implements IClient {
         });
         handlers.put("alarm", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
-                if ("playlists".equals(tokens.get(1))) {
+            public void handle(TokenCursor tokens) {
+                if (tokens.is(1, "playlists")) {
                     parseSqueezerList(extQueryFormatCmdMap.get("alarm playlists"), tokens);
                 }
             }
         });
         handlers.put("login", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.i(TAG, "Authenticated: " + tokens);
                 onAuthenticated();
             }
         });
         handlers.put("pref", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.i(TAG, "Preference received: " + tokens);
-                if ("httpport".equals(tokens.get(1)) && tokens.size() >= 3) {
-                    connectionState.setHttpPort(Integer.parseInt(tokens.get(2)));
+                if (tokens.is(1, "httpport") && tokens.size() >= 3) {
+                    connectionState.setHttpPort(Integer.parseInt(tokens.raw(2)));
                 }
-                if ("jivealbumsort".equals(tokens.get(1)) && tokens.size() >= 3) {
-                    connectionState.setPreferedAlbumSort(tokens.get(2));
+                if (tokens.is(1, "jivealbumsort") && tokens.size() >= 3) {
+                    connectionState.setPreferedAlbumSort(tokens.raw(2));
                 }
-                if ("mediadirs".equals(tokens.get(1)) && tokens.size() >= 3) {
-                    connectionState.setMediaDirs(Util.decode(tokens.get(2)));
+                if (tokens.is(1, "mediadirs") && tokens.size() >= 3) {
+                    connectionState.setMediaDirs(tokens.decode(2));
                 }
             }
         });
         handlers.put("can", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.i(TAG, "Capability received: " + tokens);
-                if ("favorites".equals(tokens.get(1)) && tokens.size() >= 4) {
-                    connectionState.setCanFavorites(Util.parseDecimalIntOrZero(tokens.get(3)) == 1);
+                if (tokens.is(1, "favorites") && tokens.size() >= 4) {
+                    connectionState.setCanFavorites(tokens.intAt(3, 0) == 1);
                 }
-                if ("musicfolder".equals(tokens.get(1)) && tokens.size() >= 3) {
-                    connectionState
-                            .setCanMusicfolder(Util.parseDecimalIntOrZero(tokens.get(2)) == 1);
+                if (tokens.is(1, "musicfolder") && tokens.size() >= 3) {
+                    connectionState.setCanMusicfolder(tokens.intAt(2, 0) == 1);
                 }
-                if ("myapps".equals(tokens.get(1)) && tokens.size() >= 4) {
-                    connectionState.setCanMyApps(Util.parseDecimalIntOrZero(tokens.get(3)) == 1);
+                if (tokens.is(1, "myapps") && tokens.size() >= 4) {
+                    connectionState.setCanMyApps(tokens.intAt(3, 0) == 1);
                 }
-                if ("randomplay".equals(tokens.get(1)) && tokens.size() >= 3) {
-                    connectionState
-                            .setCanRandomplay(Util.parseDecimalIntOrZero(tokens.get(2)) == 1);
+                if (tokens.is(1, "randomplay") && tokens.size() >= 3) {
+                    connectionState.setCanRandomplay(tokens.intAt(2, 0) == 1);
                 }
             }
         });
         handlers.put("getstring", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 int maxOrdinal = 0;
                 Map<String, String> tokenMap = parseTokens(tokens);
                 for (Map.Entry<String, String> entry : tokenMap.entrySet()) {
@@ -1003,7 +1842,7 @@ class CliClient implements IClient {
 
                 // Fetch the next strings until the list is completely translated
                 if (maxOrdinal < ServerString.values().length - 1) {
-                    sendCommandImmediately(
+                    sendCommand(
                             "getstring " + ServerString.values()[maxOrdinal + 1].name());
                 }
             }
@@ -1016,17 +1855,28 @@ class CliClient implements IClient {
              * post a {@link HandshakeComplete} event.
              */
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.i(TAG, "Version received: " + tokens);
-                mUrlPrefix = "http://" + getCurrentHost() + ":" + getHttpPort();
-                String version = tokens.get(1);
+                mServerUrls.setServer(getCurrentHost(), getHttpPort());
+                String version = tokens.raw(1);
                 connectionState.setServerVersion(version);
                 Util.crashlyticsSetString("server_version", version);
 
+                // Before the handshake is posted, so pages ordered by activities in response
+                // join the requests that are sent again.
+                if (connectionState.setHandshakeComplete()) {
+                    int resent = resendPendingRequests();
+                    Log.i(TAG, "Reconnected, requests sent again: " + resent);
+                }
+                startProbing();
+                openBulkConnection();
+
                 mEventBus.postSticky(new HandshakeComplete(
                         connectionState.canFavorites(), connectionState.canMusicfolder(),
                         connectionState.canMusicfolder(), connectionState.canRandomplay(),
                         version));
+
+                openLibraryIndex();
             }
         });
 
@@ -1036,11 +1886,11 @@ class CliClient implements IClient {
     private Map<String, CmdHandler> initializePrefixedHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HANDLER_LIST_PREFIXED) {
+        for (final ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
+            if (cmd.handlerList == HANDLER_LIST_PREFIXED) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(TokenCursor tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1060,11 +1910,11 @@ class CliClient implements IClient {
     private Map<String, CmdHandler> initializePlayerSpecificHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HANDLER_LIST_PLAYER_SPECIFIC) {
+        for (final ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
+            if (cmd.handlerList == HANDLER_LIST_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(TokenCursor tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1072,16 +1922,16 @@ class CliClient implements IClient {
         }
         handlers.put("play", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.v(TAG, "play registered");
-                updatePlayStatus(Util.decode(tokens.get(0)), PlayerState.PLAY_STATE_PLAY);
+                updatePlayStatus(tokens.decode(0), PlayerState.PLAY_STATE_PLAY);
             }
         });
         handlers.put("stop", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.v(TAG, "stop registered");
-                updatePlayStatus(Util.decode(tokens.get(0)), PlayerState.PLAY_STATE_STOP);
+                updatePlayStatus(tokens.decode(0), PlayerState.PLAY_STATE_STOP);
             }
         });
         handlers.put("pause", new CmdHandler() {
@@ -1090,31 +1940,30 @@ class CliClient implements IClient {
              * @param tokens
              */
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.v(TAG, "pause registered: " + tokens);
-                updatePlayStatus(Util.decode(tokens.get(0)), parsePause(tokens.size() >= 3 ? tokens.get(2) : null));
+                updatePlayStatus(tokens.decode(0), parsePause(tokens.size() >= 3 ? tokens.raw(2) : null));
             }
         });
         handlers.put("playlist", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 parsePlaylistNotification(tokens);
             }
         });
         handlers.put("playerpref", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.i(TAG, "Player preference received: " + tokens);
                 if (tokens.size() == 4) {
-                    Player player = mPlayers.get(Util.decode(tokens.get(0)));
+                    Player player = mPlayers.get(tokens.decode(0));
                     if (player == null) {
                         return;
                     }
 
-                    String pref = Util.decode(tokens.get(2));
+                    String pref = tokens.decode(2);
                     if (Player.Pref.VALID_PLAYER_PREFS.contains(pref)) {
-                        mEventBus.post(new PlayerPrefReceived(player, pref,
-                                Util.decode(tokens.get(3))));
+                        mEventBus.post(new PlayerPrefReceived(player, pref, tokens.decode(3)));
                     }
                 }
             }
@@ -1126,11 +1975,11 @@ class CliClient implements IClient {
     private Map<String, CmdHandler> initializeGlobalPlayerSpecificHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
+        for (final ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
             if (cmd.handlerList == HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(TokenCursor tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1140,7 +1989,7 @@ class CliClient implements IClient {
         // &lt;playerid> client &lt;new|disconnect|reconnect>
         handlers.put("client", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.i(TAG, "client received: " + tokens);
                 // Something has happened to the player list, we just fetch the full list again.
                 //
@@ -1155,9 +2004,9 @@ class CliClient implements IClient {
         });
         handlers.put("status", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
-                if (tokens.size() >= 3 && "-".equals(tokens.get(2))) {
-                    Player player = mPlayers.get(Util.decode(tokens.get(0)));
+            public void handle(TokenCursor tokens) {
+                if (tokens.size() >= 3 && tokens.is(2, "-")) {
+                    Player player = mPlayers.get(tokens.decode(0));
 
                     // XXX: Can we ever see a status for a player we don't know about?
                     // XXX: Maybe the better thing to do is to add it.
@@ -1166,34 +2015,31 @@ class CliClient implements IClient {
 
                     PlayerState playerState = player.getPlayerState();
 
-                    HashMap<String, String> tokenMap = parseTokens(tokens);
-                    addArtworkUrlTag(tokenMap);
-                    addDownloadUrlTag(tokenMap);
-
                     boolean unknownRepeatStatus = playerState.getRepeatStatus() == null;
                     boolean unknownShuffleStatus = playerState.getShuffleStatus() == null;
 
-                    boolean changedPower = playerState.setPoweredOn(Util.parseDecimalIntOrZero(tokenMap.get("power")) == 1);
-                    boolean changedShuffleStatus = playerState.setShuffleStatus(tokenMap.get("playlist shuffle"));
-                    boolean changedRepeatStatus = playerState.setRepeatStatus(tokenMap.get("playlist repeat"));
-                    boolean changedCurrentPlaylistTracksNum = playerState.setCurrentPlaylistTracksNum(Util.parseDecimalIntOrZero(tokenMap.get("playlist_tracks")));
-                    boolean changedCurrentPlaylistIndex = playerState.setCurrentPlaylistIndex(Util.parseDecimalIntOrZero(tokenMap.get("playlist_cur_index")));
-                    boolean changedCurrentPlaylist = playerState.setCurrentPlaylist(tokenMap.get("playlist_name"));
-                    boolean changedSleep = playerState.setSleep(Util.parseDecimalIntOrZero(tokenMap.get("will_sleep_in")));
-                    boolean changedSleepDuration = playerState.setSleepDuration(Util.parseDecimalIntOrZero(tokenMap.get("sleep")));
-                    boolean changedSong = playerState.setCurrentSong(new Song(tokenMap));
-                    boolean changedSongDuration = playerState.setCurrentSongDuration(Util.parseDecimalIntOrZero(tokenMap.get("duration")));
-                    boolean changedSongTime = playerState.setCurrentTimeSecond(Util.parseDecimalIntOrZero(tokenMap.get("time")));
-                    boolean changedVolume = playerState.setCurrentVolume(Util.parseDecimalIntOrZero(tokenMap.get("mixer volume")));
-                    boolean changedSyncMaster = playerState.setSyncMaster(tokenMap.get("sync_master"));
-                    boolean changedSyncSlaves = playerState.setSyncSlaves(Splitter.on(",").omitEmptyStrings().splitToList(Strings.nullToEmpty(tokenMap.get("sync_slaves"))));
-                    boolean changedSubscription = playerState.setSubscriptionType(tokenMap.get("subscribe"));
-
-                    player.setPlayerState(playerState);
-
-                    // Kept as its own method because other methods call it, unlike the explicit
-                    // calls to the callbacks below.
-                    updatePlayStatus(player.getId(), tokenMap.get("mode"));
+                    // Compared in place, a status that only moves the position allocates nothing.
+                    int changes = PlayerStatusDiff.apply(tokens, playerState, player.getId(),
+                            mDebouncer, mPlaybackClock);
+                    boolean changedSong = false;
+                    if ((changes & PlayerStatusDiff.SONG) != 0) {
+                        TagRecord record = parseRecord(tokens);
+                        mServerUrls.addArtworkUrlTag(record);
+                        mServerUrls.addDownloadUrlTag(record);
+                        changedSong = playerState.setCurrentSong(new Song(record));
+                    }
+                    boolean changedPower = (changes & PlayerStatusDiff.POWER) != 0;
+                    boolean changedShuffleStatus = (changes & PlayerStatusDiff.SHUFFLE) != 0;
+                    boolean changedRepeatStatus = (changes & PlayerStatusDiff.REPEAT) != 0;
+                    boolean changedSleep = (changes & PlayerStatusDiff.SLEEP) != 0;
+                    boolean changedSongDuration = (changes & PlayerStatusDiff.SONG_DURATION) != 0;
+                    boolean changedSongTime = (changes & PlayerStatusDiff.SONG_TIME) != 0;
+                    boolean changedVolume = (changes & PlayerStatusDiff.VOLUME) != 0;
+                    boolean changedSync = (changes & PlayerStatusDiff.SYNC) != 0;
+
+                    if ((changes & PlayerStatusDiff.PLAY_STATUS) != 0) {
+                        mEventBus.post(new PlayStatusChanged(playerState.getPlayStatus(), player));
+                    }
 
                     // XXX: Handled by onEvent(PlayStatusChanged) in the service.
                     //updatePlayerSubscription(player, calculateSubscriptionTypeFor(player));
@@ -1211,8 +2057,8 @@ class CliClient implements IClient {
                     // Quick and dirty fix -- only call onPlayerStateReceived for changes to the
                     // player state (ignore changes to Song, SongDuration, SongTime).
 
-                    if (changedPower || changedSleep || changedSleepDuration || changedVolume
-                            || changedSong || changedSyncMaster || changedSyncSlaves) {
+                    if (changedPower || changedSleep || changedVolume || changedSong
+                            || changedSync) {
                         mEventBus.post(new PlayerStateChanged(player, playerState));
                     }
 
@@ -1254,22 +2100,22 @@ class CliClient implements IClient {
         });
         handlers.put("prefset", new CmdHandler() {
             @Override
-            public void handle(List<String> tokens) {
+            public void handle(TokenCursor tokens) {
                 Log.v(TAG, "Prefset received: " + tokens);
-                if (tokens.size() == 5 && tokens.get(2).equals("server")) {
-                    String playerId = Util.decode(tokens.get(0));
+                if (tokens.size() == 5 && tokens.is(2, "server")) {
+                    String playerId = tokens.decode(0);
                     Player player = mPlayers.get(playerId);
                     if (player == null) {
                         return;
                     }
 
-                    if (tokens.get(3).equals("volume")) {
-                        updatePlayerVolume(playerId, Util.parseDecimalIntOrZero(tokens.get(4)));
+                    if (tokens.is(3, "volume")) {
+                        updatePlayerVolume(playerId, tokens.intAt(4, 0));
                     }
 
-                    @Player.Pref.Name String pref = tokens.get(3);
+                    @Player.Pref.Name String pref = tokens.raw(3);
                     if (Player.Pref.VALID_PLAYER_PREFS.contains(pref)) {
-                        mEventBus.post(new PlayerPrefReceived(player, pref, Util.decode(tokens.get(4))));
+                        mEventBus.post(new PlayerPrefReceived(player, pref, tokens.decode(4)));
                     }
                 }
             }
@@ -1281,11 +2127,11 @@ class CliClient implements IClient {
     private Map<String, CmdHandler> initializePrefixedPlayerSpecificHandlers() {
         Map<String, CmdHandler> handlers = new HashMap<String, CmdHandler>();
 
-        for (final CliClient.ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
-            if (cmd.handlerList == CliClient.HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC) {
+        for (final ExtendedQueryFormatCmd cmd : extQueryFormatCmds) {
+            if (cmd.handlerList == HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC) {
                 handlers.put(cmd.cmd, new CmdHandler() {
                     @Override
-                    public void handle(List<String> tokens) {
+                    public void handle(TokenCursor tokens) {
                         parseSqueezerList(cmd, tokens);
                     }
                 });
@@ -1295,86 +2141,63 @@ class CliClient implements IClient {
         return handlers;
     }
 
-    void onLineReceived(String serverLine) {
-        Log.v(TAG, "RECV: " + serverLine);
+    /**
+     * Handle a line received from the server.
+     * <p>
+     * The line is given as a range of bytes, which is only valid for the duration of the call.
+     *
+     * @param buffer Buffer holding the line.
+     * @param offset Offset of the start of the line in buffer.
+     * @param length Length of the line, excluding the line terminator.
+     */
+    void onLineReceived(byte[] buffer, int offset, int length) {
+        if (BuildConfig.DEBUG) {
+            Log.v(TAG, "RECV: " + TokenCursor.ascii(buffer, offset, length));
+        }
+        TokenCursor tokens = mTokens.reset(buffer, offset, length);
 
         // Make sure that username/password do not make it to Crashlytics.
-        if (serverLine.startsWith("login ")) {
-            Util.crashlyticsSetString("lastReceivedLine", "login [username] [password]");
-        } else {
-            Util.crashlyticsSetString("lastReceivedLine", serverLine);
+        if (Util.supportCrashlytics()) {
+            if (tokens.is(0, "login")) {
+                Util.crashlyticsSetString("lastReceivedLine", "login [username] [password]");
+            } else {
+                Util.crashlyticsSetString("lastReceivedLine",
+                        TokenCursor.ascii(buffer, offset, length));
+            }
         }
 
-        List<String> tokens = Arrays.asList(mSpaceSplitPattern.split(serverLine));
-        if (tokens.size() < 2) {
+        if (tokens.size() < 2 || mDispatcher.find(tokens) == null) {
             return;
         }
 
-        CmdHandler handler;
-        if ((handler = globalHandlers.get(tokens.get(0))) != null) {
-            handler.handle(tokens);
-            return;
-        }
-        if ((handler = prefixedHandlers.get(tokens.get(1))) != null) {
-            handler.handle(tokens);
-            return;
-        }
-        if ((handler = globalPlayerSpecificHandlers.get(tokens.get(1))) != null) {
-            handler.handle(tokens);
+        // Probes are timed as soon as their replies arrive, not when they're handled.
+        if (tokens.is(0, "serverstatus") && onProbeReply(tokens)) {
             return;
         }
 
-        // Player-specific commands
-        if ((handler = playerSpecificHandlers.get(tokens.get(1))) != null) {
-            handler.handle(tokens);
-            return;
-        }
-        if (tokens.size() > 2
-                && (handler = prefixedPlayerSpecificHandlers.get(tokens.get(2))) != null) {
-            handler.handle(tokens);
-        }
+        // Global commands are in the stream of the command, all the other lines are in the
+        // stream of their first token, i.e. of their player. The responses to a request are
+        // therefore handled in order, as are the lines of each player.
+        Integer stream = mGlobalStreams.find(tokens);
+        mStreams.dispatch(stream != null ? stream : tokens.rawHash(0), buffer, offset, length);
     }
 
-    private HashMap<String, String> parseTokens(List<String> tokens) {
-        HashMap<String, String> tokenMap = new HashMap<String, String>();
-        String[] kv;
-        for (String token : tokens) {
-            kv = parseToken(token);
-            if (kv.length == 0)
-                continue;
-
-            tokenMap.put(kv[0], kv[1]);
-        }
-        return tokenMap;
+    /**
+     * Decode all the tokens in a line.
+     *
+     * @return Map from each token's key to its value. Tokens without a value map to null.
+     */
+    private HashMap<String, String> parseTokens(TokenCursor tokens) {
+        return tokens.decodeMap();
     }
 
     /**
-     * Parse a token in to a key-value pair.  The value is optional.
-     * <p>
-     * The token is assumed to be URL encoded, with the key and value separated by ':' (encoded
-     * as '%3A').
+     * Decode all the tokens in a line in to a record.
      *
-     * @param token The string to decode.
-     * @return An array -- empty if token is null or empty, otherwise with two elements. The first
-     * is the key, the second, which may be null, is the value. The elements are decoded.
+     * @return Record of each token's key and value. Tokens without a value are recorded as null.
      */
-    private String[] parseToken(@Nullable String token) {
-        String key, value;
-
-        if (token == null || token.length() == 0) {
-            return new String[]{};
-        }
-
-        int colonPos = token.indexOf("%3A");
-        if (colonPos == -1) {
-            key = Util.decode(token);
-            value = null;
-        } else {
-            key = Util.decode(token.substring(0, colonPos));
-            value = Util.decode(token.substring(colonPos + 3));
-        }
-
-        return new String[]{key, value};
+    static TagRecord parseRecord(TokenCursor tokens) {
+        return tokens.decodeRecord();
     }
 
     private @PlayerState.PlayState String parsePause(String explicitPause) {
@@ -1391,14 +2214,13 @@ class CliClient implements IClient {
         return PlayerState.PLAY_STATE_PAUSE;
     }
 
-    private void parsePlaylistNotification(List<String> tokens) {
+    private void parsePlaylistNotification(TokenCursor tokens) {
         Log.v(TAG, "Playlist notification received: " + tokens);
-        String notification = tokens.get(2);
-        if ("newsong".equals(notification)) {
-            sendCommand(tokens.get(0), "status - 1 tags:" + SqueezeService.SONGTAGS);
-        } else if ("addtracks".equals(notification)) {
+        if (tokens.is(2, "newsong")) {
+            sendCommand(tokens.raw(0), "status - 1 tags:" + SqueezeService.SONGTAGS);
+        } else if (tokens.is(2, "addtracks")) {
             mEventBus.postSticky(new PlaylistTracksAdded());
-        } else if ("delete".equals(notification)) {
+        } else if (tokens.is(2, "delete")) {
             mEventBus.postSticky(new PlaylistTracksDeleted());
         }
 
@@ -1413,6 +2235,10 @@ class CliClient implements IClient {
         if (player == null) {
             return;
         }
+        if (mDebouncer.isStale(playerId, PARAMETER_VOLUME, newVolume)) {
+            // Echo of a volume that has since been changed again.
+            return;
+        }
         player.getPlayerState().setCurrentVolume(newVolume);
         mEventBus.post(new PlayerVolume(newVolume, player));
     }
@@ -1433,7 +2259,7 @@ class CliClient implements IClient {
 
         PlayerState playerState = player.getPlayerState();
 
-        if (playerState.setPlayStatus(playStatus)) {
+        if (mPlaybackClock.setPlayStatus(playerState, playStatus)) {
             mEventBus.post(new PlayStatusChanged(playStatus, player));
         }
     }
@@ -1450,7 +2276,7 @@ class CliClient implements IClient {
      */
     private void onAuthenticated() {
         fetchPlayers();
-        sendCommandImmediately(
+        sendCommand(
                 "listen 1", // subscribe to all server notifications
                 "can musicfolder ?", // learn music folder browsing support
                 "can randomplay ?", // learn random play function functionality
@@ -1465,6 +2291,7 @@ class CliClient implements IClient {
                 // "handshake is complete" logic elsewhere.
                 "version ?"
         );
+        flushCommands();
     }
 
     /**
@@ -1489,8 +2316,9 @@ class CliClient implements IClient {
                         return;
                     }
 
-                    mPlayers.clear();
+                    // Not clear(), the player handlers may be looking up players.
                     mPlayers.putAll(players);
+                    mPlayers.keySet().retainAll(players.keySet());
 
                     // XXX: postSticky?
                     mEventBus.postSticky(new PlayersChanged(mPlayers));
@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import uk.org.ngo.squeezer.BuildConfig;
+import uk.org.ngo.squeezer.Util;
+import uk.org.ngo.squeezer.model.Player;
+
+/**
+ * Talks to the server through the Comet (Bayeux) interface of its web server, instead of the CLI.
+ * <p>
+ * Commands are queued by the {@link CommandWriter} of the client, like commands for the CLI, and
+ * each batch of commands is sent in one HTTP request, as one <code>/slim/request</code> message
+ * per command. Commands with a <code>subscribe:</code> parameter become
+ * <code>/slim/subscribe</code> messages instead, and the server delivers their results when they
+ * change, in the response to a long poll (<code>/meta/connect</code>) that is always waiting.
+ * <p>
+ * The results are parsed as they are read, and rendered as the CLI would render them, see
+ * {@link CometParser}, so {@link CliClient} handles them exactly like lines from the CLI. The
+ * server doesn't send notifications such as <code>listen</code> does, so these commands are
+ * dropped; the subscriptions to the status of the players and the server carry the same changes.
+ */
+class CometClient implements IClient, CommandWriter.BatchWriter {
+
+    private static final String TAG = "CometClient";
+
+    /**
+     * The keys that start the items of the lists of the server, in order of preference. The
+     * first three are only in the lists they delimit. Then "id" delimits most lists, whose items
+     * may also have the keys that delimit the lists of a search, or of years.
+     */
+    private static final String[] ITEM_DELIMITERS = {
+            "playlist index", "playerindex", "category", "id", "genre_id", "album_id",
+            "contributor_id", "track_id", "year"
+    };
+
+    /** Player IDs, which are MAC addresses, or the IP addresses of players without one. */
+    private static final Pattern PLAYER_ID
+            = Pattern.compile("([0-9a-fA-F]{2}:){5}[0-9a-fA-F]{2}|\\d{1,3}(\\.\\d{1,3}){3}");
+
+    private static final int CONNECT_TIMEOUT_MS = 4000;
+
+    /** How long to wait for the response to a batch of requests. */
+    private static final int REQUEST_TIMEOUT_MS = 60 * 1000;
+
+    /** How long to wait for a long poll. The server answers it within a minute. */
+    private static final int LONG_POLL_TIMEOUT_MS = 90 * 1000;
+
+    /** Thrown when the server rejects the user name and password. */
+    static class LoginFailedException extends IOException {
+        LoginFailedException() {
+            super("Login failed");
+        }
+    }
+
+    /** Told when the connection to the server is lost. */
+    interface ConnectionListener {
+        /** Called once, on the thread that noticed, unless the client was closed. */
+        void onConnectionLost(IOException e);
+    }
+
+    private final URL url;
+
+    private final CliClient cli;
+
+    /** Routes the received lines. */
+    @NonNull private final ExecutorService executor;
+
+    private final CommandWriter writer;
+
+    private volatile String clientId;
+
+    private volatile ConnectionListener listener;
+
+    private volatile boolean closed;
+
+    private final AtomicBoolean lost = new AtomicBoolean();
+
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    /**
+     * The commands waiting for results, and the subscriptions, by the channel their results are
+     * delivered on. Each command is kept as its URL encoded tokens, with a null for each
+     * <code>?</code>, so the results can be rendered in to it.
+     */
+    private final Map<String, String[]> commands = new ConcurrentHashMap<String, String[]>();
+
+    /** The channels of the subscriptions, by player ID and command. */
+    private final Map<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+
+    /** Reads the responses to requests, on the writer thread. */
+    private final ResponseReader requestReader = new ResponseReader();
+
+    /** The long poll in progress, so it can be aborted when the client is closed. */
+    private volatile HttpURLConnection longPoll;
+
+    /**
+     * @param host The host of the server.
+     * @param httpPort The port of the server's web interface.
+     * @param executor Routes the received lines.
+     * @param cli Handles the received lines.
+     * @param windowMillis How long a command may wait for others to join its request.
+     */
+    CometClient(String host, int httpPort, @NonNull ExecutorService executor, CliClient cli,
+            long windowMillis) throws IOException {
+        url = new URL("http", host, httpPort, "/cometd");
+        this.executor = executor;
+        this.cli = cli;
+        writer = new CommandWriter(this, windowMillis, cli.mBatchListener);
+    }
+
+    /** @return The writer that commands for the server are queued on. */
+    CommandWriter getCommandWriter() {
+        return writer;
+    }
+
+    /**
+     * Send the specified command for the specified player to the server.
+     *
+     * @param command The command to send
+     */
+    @Override
+    public void sendPlayerCommand(Player player, String command) {
+        writer.send(CliClient.isUrgent(command) ? CommandWriter.PRIORITY_INTERACTIVE
+                : CommandWriter.PRIORITY_BROWSE, Util.encode(player.getId()) + " " + command);
+    }
+
+    /**
+     * Shake hands with the server. Authentication, if the server requires it, is by the default
+     * {@link java.net.Authenticator}.
+     *
+     * @throws LoginFailedException If the server rejected the user name and password.
+     * @throws IOException If the server could not be reached, or refused the handshake.
+     */
+    void handshake() throws IOException {
+        ResponseReader reader = new ResponseReader();
+        post("[{\"channel\":\"/meta/handshake\",\"version\":\"1.0\","
+                + "\"supportedConnectionTypes\":[\"long-polling\"]}]", REQUEST_TIMEOUT_MS, reader);
+        if (clientId == null) {
+            throw new IOException("Handshake refused");
+        }
+        Log.i(TAG, "Handshake complete, client id: " + clientId);
+    }
+
+    /**
+     * Start writing commands, and polling for the results of subscriptions.
+     *
+     * @param listener Told if the connection is lost.
+     */
+    void start(ConnectionListener listener) {
+        this.listener = listener;
+        writer.start();
+        new LongPollThread().start();
+    }
+
+    /** Stop writing commands and polling, without telling the listener. */
+    void close() {
+        closed = true;
+        writer.close();
+        HttpURLConnection connection = longPoll;
+        if (connection != null) {
+            connection.disconnect();
+        }
+        commands.clear();
+        subscriptions.clear();
+    }
+
+    /**
+     * Route a line as if it had been received from the server. The line isn't recorded in the
+     * session, as the server didn't send it.
+     */
+    void deliver(String line) {
+        requestReader.deliver(line);
+    }
+
+    /**
+     * Send a batch of commands in one request, and route the results in the response.
+     */
+    @Override
+    public void writeBatch(List<String> batch) throws IOException {
+        StringBuilder body = new StringBuilder("[");
+        for (String command : batch) {
+            appendMessage(body, command);
+        }
+        if (body.length() == 1) {
+            return;
+        }
+        body.setCharAt(body.length() - 1, ']');
+        try {
+            post(body.toString(), REQUEST_TIMEOUT_MS, requestReader);
+        } catch (IOException e) {
+            onConnectionLost(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Append the message for a command to a request, followed by a comma, unless the command
+     * has no equivalent.
+     */
+    private void appendMessage(StringBuilder body, String command) {
+        String[] tokens = command.split(" ");
+        String[] decoded = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            decoded[i] = Util.decode(tokens[i]);
+        }
+        if ("listen".equals(decoded[0]) || "login".equals(decoded[0])
+                || "exit".equals(decoded[0])) {
+            if (BuildConfig.DEBUG) {
+                Log.v(TAG, "Not sent: " + decoded[0]);
+            }
+            return;
+        }
+
+        int first = (PLAYER_ID.matcher(decoded[0]).matches() ? 1 : 0);
+        String playerId = (first == 1 ? decoded[0] : "");
+        String subscribe = null;
+        for (int i = first; i < decoded.length; i++) {
+            if (decoded[i].startsWith("subscribe:")) {
+                subscribe = decoded[i].substring("subscribe:".length());
+            }
+        }
+
+        String id = String.valueOf(nextMessageId.incrementAndGet());
+        String subscriptionKey = playerId + " " + decoded[first];
+        String previous = (subscribe != null ? subscriptions.remove(subscriptionKey) : null);
+        if (previous != null) {
+            commands.remove(previous);
+            body.append("{\"channel\":\"/slim/unsubscribe\",\"clientId\":\"").append(clientId)
+                    .append("\",\"data\":{\"unsubscribe\":");
+            appendString(body, previous);
+            body.append("}},");
+        }
+        if ("-".equals(subscribe)) {
+            return;
+        }
+
+        String kind = (subscribe != null ? "subscribe" : "request");
+        String channel = "/" + clientId + "/slim/" + kind + "/" + id;
+        String[] rendered = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            rendered[i] = ("?".equals(decoded[i]) ? null : Util.encode(decoded[i]));
+        }
+        commands.put(channel, rendered);
+        if (subscribe != null) {
+            subscriptions.put(subscriptionKey, channel);
+        }
+
+        body.append("{\"channel\":\"/slim/").append(kind).append("\",\"clientId\":\"")
+                .append(clientId).append("\",\"id\":").append(id)
+                .append(",\"data\":{\"response\":");
+        appendString(body, channel);
+        body.append(",\"request\":[");
+        appendString(body, playerId);
+        body.append(",[");
+        for (int i = first; i < decoded.length; i++) {
+            if (i > first) {
+                body.append(',');
+            }
+            appendString(body, decoded[i]);
+        }
+        body.append("]]}},");
+    }
+
+    private static void appendString(StringBuilder body, String string) {
+        body.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                body.append('\\').append(c);
+            } else if (c < 0x20) {
+                body.append(String.format("\\u%04x", (int) c));
+            } else {
+                body.append(c);
+            }
+        }
+        body.append('"');
+    }
+
+    /**
+     * Post a request, and read the messages of the response.
+     *
+     * @throws LoginFailedException If the server rejected the user name and password.
+     */
+    private void post(String body, int timeoutMillis, ResponseReader reader)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        boolean isLongPoll = (reader != requestReader && clientId != null);
+        if (isLongPoll) {
+            longPoll = connection;
+        }
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            byte[] bytes = body.getBytes("UTF-8");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            OutputStream out = connection.getOutputStream();
+            out.write(bytes);
+            out.close();
+
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                throw new LoginFailedException();
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP status " + status);
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                reader.read(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        } finally {
+            if (isLongPoll) {
+                longPoll = null;
+            }
+        }
+    }
+
+    private void onConnectionLost(IOException e) {
+        if (!closed && !lost.getAndSet(true)) {
+            Log.w(TAG, "Connection lost: " + e);
+            ConnectionListener connectionListener = listener;
+            if (connectionListener != null) {
+                connectionListener.onConnectionLost(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the messages of responses, and hands the results to the client as lines. Used by one
+     * thread at a time.
+     */
+    private class ResponseReader implements CometParser.MessageHandler {
+        private final CometParser parser = new CometParser(ITEM_DELIMITERS);
+
+        /** The lines of the response being read. */
+        private LineBatch batch;
+
+        /** The line being rendered. */
+        private byte[] line = new byte[1024];
+
+        private int lineLength;
+
+        /** True if a long poll failed, and the client must shake hands again. */
+        private boolean connectFailed;
+
+        void read(InputStreamReader in) throws IOException {
+            try {
+                batch = cli.mReceivedBatches.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            try {
+                parser.parse(in, this);
+            } catch (IOException e) {
+                cli.mReceivedBatches.discard(batch);
+                batch = null;
+                throw e;
+            }
+            cli.mProbe.onReceived();
+            if (batch.count() > 0) {
+                executor.execute(batch);
+            } else {
+                cli.mReceivedBatches.discard(batch);
+            }
+            batch = null;
+        }
+
+        void deliver(String text) {
+            try {
+                LineBatch lines = cli.mReceivedBatches.take();
+                byte[] bytes = text.getBytes();
+                lines.onLine(bytes, 0, bytes.length);
+                executor.execute(lines);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted delivering: " + text);
+            }
+        }
+
+        @Override
+        public void onMessage(CometParser.Message message) {
+            String channel = message.channel;
+            if (channel == null) {
+                return;
+            }
+            if (channel.startsWith("/meta/") || channel.startsWith("/slim/")) {
+                if ("/meta/handshake".equals(channel) && message.successful) {
+                    clientId = message.clientId;
+                } else if ("/meta/connect".equals(channel) && !message.successful) {
+                    connectFailed = true;
+                }
+                if (!message.successful) {
+                    Log.w(TAG, "Unsuccessful: " + message.channel + ": " + message.error);
+                }
+                return;
+            }
+
+            String[] command = (channel.contains("/slim/request/") ? commands.remove(channel)
+                    : commands.get(channel));
+            if (command == null || !message.hasData) {
+                return;
+            }
+            render(command, message);
+            SessionRecorder recorder = cli.connectionState.getRecorder();
+            if (recorder != null) {
+                recorder.onReceived(line, 0, lineLength);
+            }
+            batch.onLine(line, 0, lineLength);
+        }
+
+        /** Render a result in to {@link #line}, as the CLI would render it. */
+        private void render(String[] command, CometParser.Message message) {
+            lineLength = 0;
+            int positional = 0;
+            for (int i = 0; i < command.length; i++) {
+                if (i > 0) {
+                    append(' ');
+                }
+                String token = command[i];
+                if (token == null) {
+                    token = (positional < message.positional.size()
+                            ? message.positional.get(positional++) : "%3F");
+                }
+                for (int j = 0; j < token.length(); j++) {
+                    append(token.charAt(j));
+                }
+            }
+            ensureCapacity(lineLength + message.tagsLength);
+            System.arraycopy(message.tags, 0, line, lineLength, message.tagsLength);
+            lineLength += message.tagsLength;
+        }
+
+        private void append(char c) {
+            ensureCapacity(lineLength + 1);
+            line[lineLength++] = (byte) c;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > line.length) {
+                byte[] bigger = new byte[Math.max(line.length * 2, capacity)];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+        }
+    }
+
+    /**
+     * Keeps a long poll waiting at the server, so it can deliver the results of subscriptions as
+     * soon as they change.
+     */
+    private class LongPollThread extends Thread {
+        private final ResponseReader reader = new ResponseReader();
+
+        private LongPollThread() {
+            super("CometLongPoll");
+        }
+
+        @Override
+        public void run() {
+            String connect = "{\"channel\":\"/meta/connect\",\"clientId\":\"" + clientId
+                    + "\",\"connectionType\":\"long-polling\"}";
+            // The results for this client are delivered on channels under its id.
+            String body = "[" + connect + ",{\"channel\":\"/meta/subscribe\",\"clientId\":\""
+                    + clientId + "\",\"subscription\":\"/" + clientId + "/**\"}]";
+            while (!closed) {
+                try {
+                    post(body, LONG_POLL_TIMEOUT_MS, reader);
+                } catch (IOException e) {
+                    onConnectionLost(e);
+                    return;
+                }
+                if (reader.connectFailed) {
+                    onConnectionLost(new IOException("Long poll refused"));
+                    return;
+                }
+                body = "[" + connect + "]";
+            }
+        }
+    }
+}
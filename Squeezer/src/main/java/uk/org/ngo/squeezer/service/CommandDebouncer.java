@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces player commands that set a value, such as the volume or the playback position, so
+ * that dragging a slider doesn't send a command for every UI event.
+ * <p>
+ * Values are kept per player and per parameter. Only the latest value is kept, and a value is
+ * sent at most once every interval: the first value is sent straight away, later values wait
+ * until the interval since the previous send has passed, and any values set in the meantime
+ * replace the one waiting to be sent. Relative changes made with
+ * {@link #adjust(String, String, int)} are added up instead, and sent as one relative change, so
+ * the server applies them to its own value, which may have been changed by someone else.
+ * <p>
+ * The server echoes each change (e.g. <code>prefset server volume</code>), and those echoes can
+ * arrive while newer values are still waiting to be sent, which would make the UI jump back.
+ * {@link #isStale(String, String, int)} recognises these echoes so they can be ignored.
+ */
+class CommandDebouncer {
+
+    /** Sends a value to the server. */
+    interface Sender {
+        /**
+         * Called on the executor thread.
+         *
+         * @param playerId ID of the player.
+         * @param parameter The command that sets the parameter, e.g. "mixer volume".
+         * @param value The value to send.
+         * @param relative True if value is a change to the current value, rather than the new
+         *     value.
+         */
+        void send(String playerId, String parameter, int value, boolean relative);
+    }
+
+    /** How long to wait for the server to echo a value that was sent. */
+    static final long ECHO_TIMEOUT_MS = 2000;
+
+    private final ScheduledExecutorService mExecutor;
+
+    private final long mIntervalMillis;
+
+    private final Sender mSender;
+
+    /**
+     * The entries by player ID and then parameter, so looking one up doesn't create a key. Guards
+     * all the fields of the entries, as well as the maps.
+     */
+    private final Map<String, Map<String, Entry>> mEntries
+            = new HashMap<String, Map<String, Entry>>();
+
+    private long mRequestCount;
+
+    private long mSendCount;
+
+    /** The state of one parameter of one player. */
+    private static class Entry {
+        final String playerId;
+        final String parameter;
+
+        /** The latest value that was set, or the sum of the changes if {@link #relative}. */
+        int target;
+
+        /** True if {@link #target} is a change to the server's value. */
+        boolean relative;
+
+        /** True if {@link #target} has not been sent yet. */
+        boolean pending;
+
+        /** True if a send has been scheduled. */
+        boolean scheduled;
+
+        /** The last value sent. */
+        int sent;
+
+        /** When the last value was sent. */
+        long sentAt;
+
+        /** True if the server has not yet echoed {@link #sent}. */
+        boolean awaitingEcho;
+
+        Entry(String playerId, String parameter) {
+            this.playerId = playerId;
+            this.parameter = parameter;
+        }
+    }
+
+    /**
+     * @param executor Executor to send the values on.
+     * @param intervalMillis Minimum time between two sends of the same parameter for the same
+     *     player.
+     * @param sender Sends the values.
+     */
+    CommandDebouncer(ScheduledExecutorService executor, long intervalMillis, Sender sender) {
+        mExecutor = executor;
+        mIntervalMillis = intervalMillis;
+        mSender = sender;
+    }
+
+    /**
+     * Set a new value, replacing any value for the same player and parameter that hasn't been
+     * sent yet.
+     */
+    void set(String playerId, String parameter, int value) {
+        synchronized (mEntries) {
+            mRequestCount++;
+            Entry entry = entry(playerId, parameter);
+            entry.target = value;
+            entry.relative = false;
+            schedule(entry);
+        }
+    }
+
+    /**
+     * Change a value by a relative amount. If a value is waiting to be sent the change is added
+     * to it, otherwise the changes are added up until they are sent, and sent as one relative
+     * change that the server applies to its current value.
+     */
+    void adjust(String playerId, String parameter, int delta) {
+        synchronized (mEntries) {
+            mRequestCount++;
+            Entry entry = entry(playerId, parameter);
+            if (!entry.pending) {
+                entry.target = 0;
+                entry.relative = true;
+            }
+            entry.target += delta;
+            schedule(entry);
+        }
+    }
+
+    /** Mark the entry's value as waiting to be sent, and make sure a send is scheduled. */
+    private void schedule(Entry entry) {
+        entry.pending = true;
+        if (!entry.scheduled) {
+            entry.scheduled = true;
+            long delay = Math.max(0, entry.sentAt + mIntervalMillis - System.currentTimeMillis());
+            mExecutor.schedule(sendTask(entry), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Check a value reported by the server against the values that have been set.
+     * <p>
+     * A value is stale if there's a newer value waiting to be sent, or if it's not the last value
+     * sent and the server hasn't echoed that yet. A value that matches the last value sent is the
+     * echo, and is never stale. The result of a relative change isn't known until the server
+     * reports it, so once it's sent any value is accepted.
+     *
+     * @return True if the reported value is out of date, and should be ignored.
+     */
+    boolean isStale(String playerId, String parameter, int value) {
+        synchronized (mEntries) {
+            Entry entry = find(playerId, parameter);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.pending) {
+                return true;
+            }
+            if (!awaitingEcho(entry)) {
+                return false;
+            }
+            if (value == entry.sent) {
+                entry.awaitingEcho = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** Forget all values, e.g. after disconnecting. Values waiting to be sent are dropped. */
+    void clear() {
+        synchronized (mEntries) {
+            for (Map<String, Entry> entries : mEntries.values()) {
+                for (Entry entry : entries.values()) {
+                    entry.pending = false;
+                }
+            }
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * @return The number of values that have been set.
+     */
+    long getRequestCount() {
+        synchronized (mEntries) {
+            return mRequestCount;
+        }
+    }
+
+    /**
+     * @return The number of values that have been sent.
+     */
+    long getSendCount() {
+        synchronized (mEntries) {
+            return mSendCount;
+        }
+    }
+
+    private boolean awaitingEcho(Entry entry) {
+        if (entry.awaitingEcho && System.currentTimeMillis() - entry.sentAt > ECHO_TIMEOUT_MS) {
+            // The echo was lost, or the server changed the value before echoing it.
+            entry.awaitingEcho = false;
+        }
+        return entry.awaitingEcho;
+    }
+
+    private Entry find(String playerId, String parameter) {
+        Map<String, Entry> entries = mEntries.get(playerId);
+        return (entries != null) ? entries.get(parameter) : null;
+    }
+
+    private Entry entry(String playerId, String parameter) {
+        Map<String, Entry> entries = mEntries.get(playerId);
+        if (entries == null) {
+            entries = new HashMap<String, Entry>();
+            mEntries.put(playerId, entries);
+        }
+        Entry entry = entries.get(parameter);
+        if (entry == null) {
+            entry = new Entry(playerId, parameter);
+            entries.put(parameter, entry);
+        }
+        return entry;
+    }
+
+    private Runnable sendTask(final Entry entry) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                int value;
+                boolean relative;
+                synchronized (mEntries) {
+                    entry.scheduled = false;
+                    if (!entry.pending) {
+                        return;
+                    }
+                    value = entry.target;
+                    relative = entry.relative;
+                    entry.pending = false;
+                    if (relative && value == 0) {
+                        // The changes cancelled each other out.
+                        return;
+                    }
+                    entry.sent = value;
+                    entry.sentAt = System.currentTimeMillis();
+                    entry.awaitingEcho = !relative;
+                    mSendCount++;
+                }
+                mSender.send(entry.playerId, entry.parameter, value, relative);
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+/**
+ * The health of the connection to the server, as measured by the probes the client sends while
+ * it's connected. Round trip times are for the current connection, the stall count is for all
+ * the connections the service has made.
+ */
+public class ConnectionHealth {
+    private final long probeCount;
+
+    private final long rttCount;
+
+    private final long p50Micros;
+
+    private final long p95Micros;
+
+    private final long p99Micros;
+
+    private final long maxMicros;
+
+    private final long stallCount;
+
+    ConnectionHealth(long probeCount, long stallCount, RttHistogram rtts) {
+        this.probeCount = probeCount;
+        this.stallCount = stallCount;
+        synchronized (rtts) {
+            rttCount = rtts.getCount();
+            p50Micros = rtts.percentileMicros(50);
+            p95Micros = rtts.percentileMicros(95);
+            p99Micros = rtts.percentileMicros(99);
+            maxMicros = rtts.getMaxMicros();
+        }
+    }
+
+    /** @return The number of probes sent on the current connection. */
+    public long getProbeCount() {
+        return probeCount;
+    }
+
+    /** @return The number of round trip times measured on the current connection. */
+    public long getRttCount() {
+        return rttCount;
+    }
+
+    /** @return The median round trip time, in microseconds, or 0 if none were measured. */
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    /** @return The 95th percentile round trip time, in microseconds. */
+    public long getP95Micros() {
+        return p95Micros;
+    }
+
+    /** @return The 99th percentile round trip time, in microseconds. */
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    /** @return The longest round trip time, in microseconds. */
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    /**
+     * @return The number of times a connection stalled, i.e. a probe wasn't answered and nothing
+     *     else was received, and was made again.
+     */
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionHealth{probes=" + probeCount + ", rtts=" + rttCount + ", p50="
+                + p50Micros + "us, p95=" + p95Micros + "us, p99=" + p99Micros + "us, max="
+                + maxMicros + "us, stalls=" + stallCount + "}";
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Ticker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the probes sent to the server to measure the health of the connection.
+ * <p>
+ * A probe is a cheap command with a correlation id, sent now and then. The time until its reply
+ * arrives is recorded in a histogram of round trip times. A connection can stop delivering
+ * anything without being closed, e.g. when the phone roams between access points and the socket
+ * is left half-open, which TCP may not notice for minutes. So if a probe isn't answered within
+ * the stall timeout, and nothing else has been received since it was sent, the connection is
+ * taken to have stalled.
+ */
+class ConnectionProbe {
+
+    /** Probes waiting for replies beyond this are forgotten, the oldest first. */
+    private static final int MAX_OUTSTANDING = 8;
+
+    private final Ticker ticker;
+
+    private volatile long stallNanos;
+
+    /** When the probes waiting for replies were sent, by correlation id, oldest first. */
+    private final Map<Integer, Long> outstanding = new LinkedHashMap<Integer, Long>();
+
+    private final RttHistogram rtts = new RttHistogram();
+
+    /** Number of probes sent on the current connection. */
+    private long probeCount;
+
+    /** Number of connections that stalled. */
+    private long stallCount;
+
+    /** When anything was last received from the server. */
+    private volatile long receivedAt;
+
+    /**
+     * @param ticker The clock round trips are timed with, usually {@link Ticker#systemTicker()}.
+     * @param stallNanos How long an unanswered probe may wait, while nothing else is received,
+     *     before the connection is taken to have stalled.
+     */
+    ConnectionProbe(Ticker ticker, long stallNanos) {
+        this.ticker = ticker;
+        this.stallNanos = stallNanos;
+        receivedAt = ticker.read();
+    }
+
+    void setStallNanos(long stallNanos) {
+        this.stallNanos = stallNanos;
+    }
+
+    /** Start measuring a new connection. */
+    synchronized void reset() {
+        outstanding.clear();
+        rtts.reset();
+        probeCount = 0;
+        receivedAt = ticker.read();
+    }
+
+    /** Called when anything has been received from the server. */
+    void onReceived() {
+        receivedAt = ticker.read();
+    }
+
+    /** Record that a probe with the correlation id is being sent. */
+    synchronized void onProbeSent(int correlationId) {
+        if (outstanding.size() >= MAX_OUTSTANDING) {
+            Iterator<Integer> oldest = outstanding.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        outstanding.put(correlationId, ticker.read());
+        probeCount++;
+    }
+
+    /**
+     * Record the reply to a probe.
+     *
+     * @return True if the correlation id is that of a probe waiting for a reply.
+     */
+    synchronized boolean onProbeReply(int correlationId) {
+        Long sentAt = outstanding.remove(correlationId);
+        if (sentAt == null) {
+            return false;
+        }
+        rtts.record(ticker.read() - sentAt);
+        return true;
+    }
+
+    /**
+     * @return True if a probe waiting for a reply was sent longer than the stall timeout ago, and
+     *     nothing has been received since.
+     */
+    synchronized boolean isStalled() {
+        long received = receivedAt;
+        for (long sentAt : outstanding.values()) {
+            if (received - sentAt <= 0) {
+                // The oldest probe sent after anything was received.
+                return ticker.read() - sentAt > stallNanos;
+            }
+        }
+        return false;
+    }
+
+    /** Record that the connection stalled, and is being made again. */
+    synchronized void onStall() {
+        stallCount++;
+        outstanding.clear();
+    }
+
+    /** @return The health of the connection, as measured so far. */
+    synchronized ConnectionHealth getHealth() {
+        return new ConnectionHealth(probeCount, stallCount, rtts);
+    }
+
+    @Override
+    public String toString() {
+        return getHealth().toString();
+    }
+}
@@ -20,10 +20,8 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.Authenticator;
@@ -31,7 +29,10 @@ import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.Executor;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -56,7 +57,7 @@ public class ConnectionState {
 
     // Connection state machine
     @IntDef({DISCONNECTED, CONNECTION_STARTED, CONNECTION_FAILED, CONNECTION_COMPLETED,
-            LOGIN_STARTED, LOGIN_FAILED, LOGIN_COMPLETED})
+            LOGIN_STARTED, LOGIN_FAILED, LOGIN_COMPLETED, RECONNECTING})
     @Retention(RetentionPolicy.SOURCE)
     public @interface ConnectionStates {}
     /** Ordinarily disconnected from the server. */
@@ -73,6 +74,8 @@ public class ConnectionState {
     public static final int LOGIN_FAILED = 5;
     /** The login process completed, the handshake can start. */
     public static final int LOGIN_COMPLETED = 6;
+    /** The connection was lost after the handshake, and is being made again. */
+    public static final int RECONNECTING = 7;
 
     @ConnectionStates
     private volatile int mConnectionState = DISCONNECTED;
@@ -93,7 +96,26 @@ public class ConnectionState {
 
     private final AtomicReference<Socket> socketRef = new AtomicReference<Socket>();
 
-    private final AtomicReference<PrintWriter> socketWriter = new AtomicReference<PrintWriter>();
+    /**
+     * How long a command waits for other commands to be written with it, unless it is urgent or
+     * the commands are flushed.
+     */
+    static final long COMMAND_BATCH_WINDOW_MS = 10;
+
+    private final AtomicReference<CommandWriter> commandWriter = new AtomicReference<CommandWriter>();
+
+    /** The client of the Comet interface, if the server is reached through it. */
+    private final AtomicReference<CometClient> cometClient = new AtomicReference<CometClient>();
+
+    /** True to reach the server through its Comet interface instead of the CLI. */
+    private volatile boolean mCometTransport;
+
+    /** Where to record the sessions with the server, or null to not record them. */
+    private volatile File mRecordingDirectory;
+
+    /** Records the session, across attempts to reconnect, until the client disconnects. */
+    private final AtomicReference<SessionRecorder> recorder
+            = new AtomicReference<SessionRecorder>();
 
     // Where we connected (or are connecting) to:
     private final AtomicReference<String> currentHost = new AtomicReference<String>();
@@ -108,18 +130,30 @@ public class ConnectionState {
 
     private final AtomicReference<String[]> mediaDirs = new AtomicReference<String[]>();
 
+    /** Reconnect after about 1s, 2s, 4s... up to a minute, for a few minutes. */
+    private final ReconnectBackoff mReconnectBackoff
+            = new ReconnectBackoff(1000, 60 * 1000, 9, new Random());
+
+    /** True if the handshake of the current connection has completed. */
+    private boolean mHandshakeComplete;
+
+    /**
+     * The number of the attempt to reconnect in progress, counting from 0, or -1 if the client
+     * isn't reconnecting.
+     */
+    private int mReconnectAttempt = -1;
+
     void disconnect(EventBus eventBus, boolean loginFailed) {
         Log.v(TAG, "disconnect" + (loginFailed ? ": authentication failure" : ""));
-        currentConnectionGeneration.incrementAndGet();
-        Socket socket = socketRef.get();
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-            }
+        synchronized (this) {
+            closeConnection();
+            mHandshakeComplete = false;
+            mReconnectAttempt = -1;
+        }
+        SessionRecorder sessionRecorder = recorder.getAndSet(null);
+        if (sessionRecorder != null) {
+            sessionRecorder.close();
         }
-        socketRef.set(null);
-        socketWriter.set(null);
 
         if (loginFailed) {
             setConnectionState(eventBus, LOGIN_FAILED);
@@ -130,6 +164,112 @@ public class ConnectionState {
         mediaDirs.set(null);
     }
 
+    /**
+     * Close the socket and the command writer. The listening thread of the socket stops without
+     * reporting the disconnection, as it's no longer the current connection generation.
+     */
+    private void closeConnection() {
+        currentConnectionGeneration.incrementAndGet();
+        closeQuietly(socketRef.get());
+        socketRef.set(null);
+        CommandWriter writer = commandWriter.getAndSet(null);
+        if (writer != null) {
+            writer.close();
+        }
+        CometClient comet = cometClient.getAndSet(null);
+        if (comet != null) {
+            comet.close();
+        }
+    }
+
+    /**
+     * Record that the handshake with the server has completed.
+     *
+     * @return True if the connection was made again after it was lost.
+     */
+    synchronized boolean setHandshakeComplete() {
+        mHandshakeComplete = true;
+        boolean reconnected = (mReconnectAttempt != -1);
+        mReconnectAttempt = -1;
+        return reconnected;
+    }
+
+    /** @return True if the handshake of the current connection has completed. */
+    synchronized boolean isHandshakeComplete() {
+        return mHandshakeComplete;
+    }
+
+    /**
+     * Schedule an attempt to connect to the server again, after the connection was lost.
+     * <p>
+     * Only connections which had completed the handshake are made again, or connections which
+     * were themselves attempts to reconnect. Any other connection lost during the login is taken
+     * to be an authentication failure, see {@link #onCliPortConnectionEstablished}, and so is a
+     * connection the server closes during the login of an attempt to reconnect.
+     *
+     * @return True if an attempt was scheduled. False if the client should disconnect, because
+     *     the connection was new, or the attempts to reconnect have failed.
+     */
+    boolean reconnect(@NonNull final EventBus eventBus,
+                      @NonNull final ScheduledExecutorService executor, final CliClient cli) {
+        final int attempt;
+        final int generation;
+        long delay;
+        synchronized (this) {
+            if (mHandshakeComplete) {
+                attempt = 0;
+            } else if (mReconnectAttempt != -1) {
+                attempt = mReconnectAttempt + 1;
+            } else {
+                return false;
+            }
+            delay = mReconnectBackoff.delayMillis(attempt);
+            if (delay < 0) {
+                Log.w(TAG, "Giving up reconnecting after " + attempt + " attempts");
+                return false;
+            }
+            closeConnection();
+            mHandshakeComplete = false;
+            mReconnectAttempt = attempt;
+            generation = currentConnectionGeneration.get();
+        }
+
+        Log.i(TAG, "Reconnecting in " + delay + "ms, attempt " + (attempt + 1) + " of "
+                + mReconnectBackoff.getMaxAttempts());
+        setConnectionState(eventBus, RECONNECTING);
+        cli.onConnectionLost();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (currentConnectionGeneration.get() != generation) {
+                    // Disconnected, or connected to a server, in the meantime.
+                    return;
+                }
+                try {
+                    connect(eventBus, executor, cli, currentHost.get(), cliPort.get(),
+                            userName.get(), password.get(), generation);
+                } catch (CometClient.LoginFailedException e) {
+                    Log.w(TAG, "Reconnect failed: " + e);
+                    cli.disconnect(true);
+                } catch (IOException e) {
+                    Log.w(TAG, "Reconnect failed: " + e);
+                    if (currentConnectionGeneration.get() == generation
+                            && !reconnect(eventBus, executor, cli)) {
+                        cli.disconnect(false);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * @return True if the connection was lost, and attempts to make it again are in progress.
+     */
+    synchronized boolean isReconnecting() {
+        return mReconnectAttempt != -1;
+    }
+
     /**
      * Sets a new connection state, and posts a sticky
      * {@link uk.org.ngo.squeezer.service.event.ConnectionChanged} event with the new state.
@@ -144,8 +284,8 @@ public class ConnectionState {
         eventBus.postSticky(new ConnectionChanged(mConnectionState));
     }
 
-    PrintWriter getSocketWriter() {
-        return socketWriter.get();
+    CommandWriter getCommandWriter() {
+        return commandWriter.get();
     }
 
     void setHttpPort(Integer port) {
@@ -227,23 +367,28 @@ public class ConnectionState {
 
     /**
      * @return True if the socket connection to the server has started, but not yet
-     *     completed (successfully or unsuccessfully).
+     *     completed (successfully or unsuccessfully), or it's being made again after it was
+     *     lost.
      */
     boolean isConnectInProgress() {
-        return mConnectionState == CONNECTION_STARTED;
+        return mConnectionState == CONNECTION_STARTED || mConnectionState == RECONNECTING;
     }
 
-    void startListeningThread(@NonNull EventBus eventBus, @NonNull Executor executor, CliClient cli) {
+    void startListeningThread(@NonNull EventBus eventBus,
+                              @NonNull ScheduledExecutorService executor, CliClient cli) {
         Thread listeningThread = new ListeningThread(eventBus, executor, cli, socketRef.get(),
                 currentConnectionGeneration.incrementAndGet());
         listeningThread.start();
     }
 
-    private class ListeningThread extends Thread {
+    private class ListeningThread extends Thread implements LineFramer.LineSink {
+
+        /** Initial size of the receive buffer. Grown if a single line does not fit. */
+        private static final int RECEIVE_BUFFER_SIZE = 8 * 1024;
 
         @NonNull private final EventBus mEventBus;
 
-        @NonNull private final Executor mExecutor;
+        @NonNull private final ScheduledExecutorService mExecutor;
 
         private final Socket socket;
 
@@ -251,7 +396,12 @@ public class ConnectionState {
 
         private final int generationNumber;
 
-        private ListeningThread(@NonNull EventBus eventBus, @NonNull Executor executor, CliClient cli, Socket socket, int generationNumber) {
+        /** Lines from the current socket read, waiting to be handed to the executor. */
+        private LineBatch mBatch;
+
+        private ListeningThread(@NonNull EventBus eventBus,
+                                @NonNull ScheduledExecutorService executor, CliClient cli,
+                                Socket socket, int generationNumber) {
             mEventBus = eventBus;
             mExecutor = executor;
             this.cli = cli;
@@ -263,56 +413,98 @@ public class ConnectionState {
         public void run() {
             Log.d(TAG, "Listening thread started");
 
-            BufferedReader in;
+            SocketChannel channel = socket.getChannel();
+            LineFramer framer = new LineFramer(RECEIVE_BUFFER_SIZE);
+            // The batches are bounded, so when the executor falls behind this thread waits
+            // for it instead of reading the socket.
+            LineBatchPool batches = cli.mReceivedBatches;
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            } catch (IOException e) {
-                Log.v(TAG, "IOException while creating BufferedReader: " + e);
-                cli.disconnect(false);
+                mBatch = batches.take();
+            } catch (InterruptedException e) {
+                Log.v(TAG, "Listening thread interrupted");
                 return;
             }
             IOException exception = null;
             while (true) {
-                String line;
+                boolean open;
                 try {
-                    line = in.readLine();
+                    open = framer.read(channel, this);
                 } catch (IOException e) {
-                    line = null;
+                    open = false;
                     exception = e;
                 }
-                if (line == null) {
+                if (!open) {
+                    batches.discard(mBatch);
                     // Socket disconnected.  This is expected
                     // if we're not the main connection generation anymore,
                     // else we should notify about it.
                     if (currentConnectionGeneration.get() == generationNumber) {
                         Log.v(TAG, "Server disconnected; exception=" + exception);
-                        cli.disconnect(exception == null);
+                        if (exception == null && mConnectionState == LOGIN_STARTED) {
+                            // The login was rejected, don't try it again, even if this was
+                            // an attempt to reconnect.
+                            cli.disconnect(true);
+                        } else if (!reconnect(mEventBus, mExecutor, cli)) {
+                            cli.disconnect(exception == null);
+                        }
                     } else {
                         // Who cares.
                         Log.v(TAG, "Old generation connection disconnected, as expected.");
                     }
                     return;
                 }
-                final String inputLine = line;
-
-                // If a login attempt was in progress and this is a line that does not start
-                // with "login " then the login must have been successful (otherwise the
-                // server would have disconnected), so update the connection state accordingly.
-                if (mConnectionState == LOGIN_STARTED && !inputLine.startsWith("login ")) {
-                    setConnectionState(mEventBus, LOGIN_COMPLETED);
-                }
-                mExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        cli.onLineReceived(inputLine);
+                cli.mProbe.onReceived();
+
+                if (mBatch.count() > 0) {
+                    mExecutor.execute(mBatch);
+                    try {
+                        mBatch = batches.take();
+                    } catch (InterruptedException e) {
+                        Log.v(TAG, "Listening thread interrupted");
+                        return;
                     }
-                });
+                }
             }
         }
+
+        /**
+         * Called on this thread for each line framed from the socket. The line is queued
+         * in the current batch, to be handed to the executor once the read has been framed.
+         */
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            SessionRecorder recorder = getRecorder();
+            if (recorder != null) {
+                recorder.onReceived(buffer, offset, length);
+            }
+
+            // If a login attempt was in progress and this is a line that does not start
+            // with "login " then the login must have been successful (otherwise the
+            // server would have disconnected), so update the connection state accordingly.
+            if (mConnectionState == LOGIN_STARTED && !startsWith(buffer, offset, length, LOGIN_PREFIX)) {
+                setConnectionState(mEventBus, LOGIN_COMPLETED);
+            }
+            mBatch.onLine(buffer, offset, length);
+        }
+    }
+
+    /** The bytes of the prefix of the server's response to a login attempt. */
+    static final byte[] LOGIN_PREFIX = {'l', 'o', 'g', 'i', 'n', ' '};
+
+    static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     void startConnect(final SqueezeService service, @NonNull final EventBus eventBus,
-                      @NonNull final Executor executor,
+                      @NonNull final ScheduledExecutorService executor,
                       final CliClient cli, String hostPort, final String userName,
                       final String password) {
         Log.v(TAG, "startConnect");
@@ -342,24 +534,20 @@ public class ConnectionState {
             public void run() {
                 Log.d(TAG, "Ensuring service is disconnected");
                 service.disconnect();
-                Socket socket = new Socket();
                 try {
-                    Log.d(TAG, "Connecting to: " + cleanHostPort);
                     setConnectionState(eventBus, CONNECTION_STARTED);
-                    socket.connect(new InetSocketAddress(host, port),
-                            4000 /* ms timeout */);
-                    socketRef.set(socket);
-                    Log.d(TAG, "Connected to: " + cleanHostPort);
-                    socketWriter.set(new PrintWriter(socket.getOutputStream(), true));
-                    setConnectionState(eventBus, CONNECTION_COMPLETED);
-                    startListeningThread(eventBus, executor, cli);
-                    onCliPortConnectionEstablished(eventBus, cli, userName, password);
+                    // Before connecting, as the Comet interface authenticates with it.
                     Authenticator.setDefault(new Authenticator() {
                         @Override
                         public PasswordAuthentication getPasswordAuthentication() {
                             return new PasswordAuthentication(userName, password.toCharArray());
                         }
                     });
+                    connect(eventBus, executor, cli, host, port, userName, password,
+                            currentConnectionGeneration.get());
+                } catch (CometClient.LoginFailedException e) {
+                    Log.e(TAG, "Login failed connecting to: " + cleanHostPort);
+                    cli.disconnect(true);
                 } catch (SocketTimeoutException e) {
                     Log.e(TAG, "Socket timeout connecting to: " + cleanHostPort);
                     setConnectionState(eventBus, CONNECTION_FAILED);
@@ -372,6 +560,154 @@ public class ConnectionState {
         });
     }
 
+    /**
+     * Connect to the server, through the CLI or the Comet interface, and log in.
+     *
+     * @param port The CLI port, or the port of the web interface for the Comet interface.
+     * @param generation The connection generation the connection is made for.
+     * @throws IOException If the connection could not be made.
+     */
+    private void connect(@NonNull EventBus eventBus, @NonNull ScheduledExecutorService executor,
+                         CliClient cli, String host, int port, String userName, String password,
+                         int generation) throws IOException {
+        File recordingDirectory = mRecordingDirectory;
+        if (recordingDirectory != null && recorder.get() == null) {
+            try {
+                recorder.set(SessionRecorder.create(recordingDirectory));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot record the session: " + e);
+            }
+        }
+        if (mCometTransport) {
+            openCometConnection(eventBus, executor, cli, host, port, userName, generation);
+        } else {
+            openConnection(eventBus, executor, cli, host, port, generation);
+            onCliPortConnectionEstablished(eventBus, cli, userName, password);
+        }
+    }
+
+    /**
+     * Shake hands with the Comet interface of the server, and start writing commands to it and
+     * polling it. There is no login as on the CLI; the web server authenticates each request.
+     * So the client carries on as it does after a login, a line in the form of the CLI's reply
+     * to a login is routed once the handshake has succeeded.
+     *
+     * @param port The port of the web interface.
+     * @param generation The connection generation the connection is made for.
+     * @throws CometClient.LoginFailedException If the user name and password were rejected.
+     * @throws IOException If the handshake failed.
+     */
+    private void openCometConnection(@NonNull final EventBus eventBus,
+                                     @NonNull final ScheduledExecutorService executor,
+                                     final CliClient cli, String host, int port,
+                                     String userName, int generation) throws IOException {
+        Log.d(TAG, "Connecting to the Comet interface at: " + host + ":" + port);
+        CometClient comet = new CometClient(host, port, executor, cli, COMMAND_BATCH_WINDOW_MS);
+        comet.handshake();
+        synchronized (this) {
+            if (currentConnectionGeneration.get() != generation) {
+                comet.close();
+                throw new IOException("Disconnected while connecting");
+            }
+            cometClient.set(comet);
+            commandWriter.set(comet.getCommandWriter());
+        }
+        setHttpPort(port);
+        setConnectionState(eventBus, CONNECTION_COMPLETED);
+        setConnectionState(eventBus, LOGIN_STARTED);
+
+        // As for a listening thread, the connection is only reported lost if it's current.
+        final int listeningGeneration = currentConnectionGeneration.incrementAndGet();
+        comet.start(new CometClient.ConnectionListener() {
+            @Override
+            public void onConnectionLost(IOException e) {
+                if (currentConnectionGeneration.get() == listeningGeneration) {
+                    Log.v(TAG, "Comet connection lost: " + e);
+                    if (!reconnect(eventBus, executor, cli)) {
+                        cli.disconnect(false);
+                    }
+                }
+            }
+        });
+        setConnectionState(eventBus, LOGIN_COMPLETED);
+        comet.deliver("login " + Util.encode(userName) + " ******");
+    }
+
+    /**
+     * Set whether to reach the server through its Comet interface instead of the CLI. Takes
+     * effect on the next connection.
+     */
+    void setCometTransport(boolean comet) {
+        mCometTransport = comet;
+    }
+
+    boolean isCometTransport() {
+        return mCometTransport;
+    }
+
+    /**
+     * Set where to record the sessions with the server, see {@link SessionRecorder}. Takes effect
+     * on the next connection.
+     *
+     * @param directory The directory for the recordings, or null to not record the sessions.
+     */
+    void setRecordingDirectory(File directory) {
+        mRecordingDirectory = directory;
+    }
+
+    /** @return The recorder of the current session, or null if it isn't being recorded. */
+    SessionRecorder getRecorder() {
+        return recorder.get();
+    }
+
+    /**
+     * Open the socket to the server, and start writing commands to it and listening to it.
+     *
+     * @param generation The connection generation the connection is made for. If the generation
+     *     changes while the socket connects, e.g. because the client disconnected, the socket is
+     *     closed.
+     * @throws IOException If the socket could not be connected.
+     */
+    private void openConnection(@NonNull EventBus eventBus,
+                                @NonNull ScheduledExecutorService executor, CliClient cli,
+                                String host, int port, int generation) throws IOException {
+        String hostPort = host + ":" + port;
+        Socket socket = null;
+        try {
+            Log.d(TAG, "Connecting to: " + hostPort);
+            // Open the socket through a channel, so the listening thread can read
+            // it in to a reusable buffer.
+            socket = SocketChannel.open().socket();
+            socket.connect(new InetSocketAddress(host, port),
+                    4000 /* ms timeout */);
+            synchronized (this) {
+                if (currentConnectionGeneration.get() != generation) {
+                    throw new IOException("Disconnected while connecting");
+                }
+                socketRef.set(socket);
+            }
+            Log.d(TAG, "Connected to: " + hostPort);
+            CommandWriter writer = new CommandWriter(socket.getOutputStream(),
+                    COMMAND_BATCH_WINDOW_MS, cli.mBatchListener);
+            commandWriter.set(writer);
+            writer.start();
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        setConnectionState(eventBus, CONNECTION_COMPLETED);
+        startListeningThread(eventBus, executor, cli);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
     /**
      * Authenticate on the SqueezeServer.
      * <p>
@@ -391,7 +727,8 @@ public class ConnectionState {
      */
     void onCliPortConnectionEstablished(final EventBus eventBus, final CliClient cli, final String userName, final String password) {
         setConnectionState(eventBus, ConnectionState.LOGIN_STARTED);
-        cli.sendCommandImmediately("login " + Util.encode(userName) + " " + Util.encode(password));
+        cli.sendCommand("login " + Util.encode(userName) + " " + Util.encode(password));
+        cli.flushCommands();
     }
 
 
@@ -411,4 +748,8 @@ public class ConnectionState {
         return currentHost.get();
     }
 
+    Integer getCliPort() {
+        return cliPort.get();
+    }
+
 }
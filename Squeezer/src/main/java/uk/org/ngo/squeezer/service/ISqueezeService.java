@@ -52,6 +52,12 @@ public interface ISqueezeService {
     boolean isConnected();
     boolean isConnectInProgress();
 
+    /**
+     * @return The round trip times measured on the connection to the server, and how often
+     *     connections have stalled, for diagnostics.
+     */
+    @NonNull ConnectionHealth getConnectionHealth();
+
     // For the SettingsActivity to notify the Service that a setting changed.
     void preferenceChanged(String key);
 
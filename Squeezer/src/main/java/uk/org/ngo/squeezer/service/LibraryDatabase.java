@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encapsulates the library index database of a server.
+ * <p>
+ * Each server has its own database. The items of all the indexed lists are in one table, with
+ * the item's tokens from the server and the columns used to filter and sort them. Each
+ * synchronization has a generation number; items are marked with the generation that last saw
+ * them, so items the server no longer has can be deleted at the end of a synchronization
+ * without first deleting everything.
+ * <p>
+ * The words of the items' names are kept in a separate table, sorted, so searches for the
+ * items with a word starting with some text are a range lookup.
+ */
+public class LibraryDatabase {
+
+    private static final String NAME_PREFIX = "library_";
+
+    private static final int VERSION = 2;
+
+    static final String TABLE_ITEM = "item";
+
+    static final String COLUMN_LIST = "list";
+
+    static final String COLUMN_ID = "id";
+
+    static final String COLUMN_POSITION = "position";
+
+    private static final String COLUMN_ARTIST_ID = "artist_id";
+
+    private static final String COLUMN_ALBUM_ID = "album_id";
+
+    private static final String COLUMN_GENRE_ID = "genre_id";
+
+    private static final String COLUMN_YEAR = "year";
+
+    private static final String COLUMN_DISC = "disc";
+
+    private static final String COLUMN_TRACKNUM = "tracknum";
+
+    private static final String COLUMN_RECORD = "record";
+
+    private static final String COLUMN_GENERATION = "generation";
+
+    static final String TABLE_WORD = "word";
+
+    static final String COLUMN_WORD = "word";
+
+    private static final String TABLE_META = "meta";
+
+    private static final String COLUMN_KEY = "key";
+
+    private static final String COLUMN_VALUE = "value";
+
+    /** Meta data key of the server's last scan time, when the index was last completed. */
+    static final String META_LASTSCAN = "lastscan";
+
+    /** Meta data key of the generation of the last synchronization. */
+    static final String META_GENERATION = "generation";
+
+    private final SQLiteDatabase db;
+
+    /**
+     * @param context The context.
+     * @param server Identifies the server, e.g. its host and port.
+     */
+    LibraryDatabase(Context context, String server) {
+        db = OpenHelper.getInstance(context, databaseName(server)).getWritableDatabase();
+    }
+
+    /**
+     * @return The name of the database of the server.
+     */
+    @NonNull
+    public static String databaseName(String server) {
+        return NAME_PREFIX + server.replaceAll("[^A-Za-z0-9]", "_");
+    }
+
+    /**
+     * Close the database of the server and delete it.
+     */
+    public static void delete(Context context, String server) {
+        OpenHelper.clear(context, databaseName(server));
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+
+        private static final Object mInstanceLock = new Object();
+        private static final Map<String, OpenHelper> mInstances = new HashMap<String, OpenHelper>();
+
+        private OpenHelper(Context context, String name) {
+            // calls the super constructor, requesting the default cursor
+            // factory.
+            super(context, name, null, VERSION);
+        }
+
+        public static OpenHelper getInstance(Context context, String name) {
+            synchronized (mInstanceLock) {
+                OpenHelper instance = mInstances.get(name);
+                if (instance == null) {
+                    instance = new OpenHelper(context, name);
+                    mInstances.put(name, instance);
+                }
+                return instance;
+            }
+        }
+
+        /**
+         * Close the database helper instance and delete the database.
+         */
+        public static void clear(Context context, String name) {
+            synchronized (mInstanceLock) {
+                OpenHelper instance = mInstances.remove(name);
+                if (instance != null) {
+                    instance.close();
+                }
+                context.deleteDatabase(name);
+            }
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + TABLE_ITEM + "(" +
+                    COLUMN_LIST + " TEXT NOT NULL, " +
+                    COLUMN_ID + " TEXT NOT NULL, " +
+                    COLUMN_POSITION + " INTEGER, " +
+                    COLUMN_ARTIST_ID + " TEXT, " +
+                    COLUMN_ALBUM_ID + " TEXT, " +
+                    COLUMN_GENRE_ID + " TEXT, " +
+                    COLUMN_YEAR + " TEXT, " +
+                    COLUMN_DISC + " INTEGER, " +
+                    COLUMN_TRACKNUM + " INTEGER, " +
+                    COLUMN_RECORD + " TEXT, " +
+                    COLUMN_GENERATION + " INTEGER, " +
+                    "UNIQUE (" + COLUMN_LIST + ", " + COLUMN_ID + "))");
+            sqLiteDatabase.execSQL("CREATE INDEX item_position ON " + TABLE_ITEM + "(" +
+                    COLUMN_LIST + ", " + COLUMN_POSITION + ")");
+            for (String column : new String[]{COLUMN_ARTIST_ID, COLUMN_ALBUM_ID, COLUMN_GENRE_ID,
+                    COLUMN_YEAR}) {
+                sqLiteDatabase.execSQL("CREATE INDEX item_" + column + " ON " + TABLE_ITEM + "(" +
+                        COLUMN_LIST + ", " + column + ")");
+            }
+            sqLiteDatabase.execSQL("CREATE TABLE " + TABLE_WORD + "(" +
+                    COLUMN_LIST + " TEXT NOT NULL, " +
+                    COLUMN_WORD + " TEXT NOT NULL, " +
+                    COLUMN_ID + " TEXT NOT NULL)");
+            sqLiteDatabase.execSQL("CREATE INDEX word_word ON " + TABLE_WORD + "(" +
+                    COLUMN_LIST + ", " + COLUMN_WORD + ")");
+            sqLiteDatabase.execSQL("CREATE INDEX word_id ON " + TABLE_WORD + "(" +
+                    COLUMN_LIST + ", " + COLUMN_ID + ")");
+            sqLiteDatabase.execSQL("CREATE TABLE " + TABLE_META + "(" +
+                    COLUMN_KEY + " TEXT PRIMARY KEY, " +
+                    COLUMN_VALUE + " TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_ITEM);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_WORD);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_META);
+            // The index is a copy of the server's library, so upgrades just create a new
+            // database, which is filled by the next synchronization.
+            onCreate(sqLiteDatabase);
+        }
+    }
+
+    /**
+     * @return The meta data value of the key, or null.
+     */
+    @Nullable
+    String getMeta(String key) {
+        Cursor cursor = db.query(TABLE_META, new String[]{COLUMN_VALUE}, COLUMN_KEY + "=?",
+                new String[]{key}, null, null, null);
+        try {
+            return cursor.moveToNext() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Set a meta data value. A null value removes the key.
+     */
+    void setMeta(String key, @Nullable String value) {
+        if (value == null) {
+            db.delete(TABLE_META, COLUMN_KEY + "=?", new String[]{key});
+        } else {
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(COLUMN_KEY, key);
+            contentValues.put(COLUMN_VALUE, value);
+            db.replace(TABLE_META, null, contentValues);
+        }
+    }
+
+    /**
+     * Store items received during a synchronization. Items that haven't changed are only marked
+     * with the generation. The words of the names of new or changed items are indexed.
+     *
+     * @param list The list of the items, e.g. "songs".
+     * @param records The items.
+     * @param generation The generation of the synchronization.
+     * @return The number of items that were new or changed.
+     */
+    int write(String list, List<LibraryRecord> records, int generation) {
+        int written = 0;
+        ContentValues unchanged = new ContentValues();
+        unchanged.put(COLUMN_GENERATION, generation);
+
+        db.beginTransaction();
+        SQLiteStatement insertWord = db.compileStatement("INSERT INTO " + TABLE_WORD + "("
+                + COLUMN_LIST + ", " + COLUMN_WORD + ", " + COLUMN_ID + ") VALUES (?, ?, ?)");
+        try {
+            for (LibraryRecord record : records) {
+                String tokens = TokenCursor.ascii(record.tokens, 0, record.tokens.length);
+                unchanged.put(COLUMN_POSITION, record.position);
+                if (db.update(TABLE_ITEM, unchanged,
+                        COLUMN_LIST + "=? AND " + COLUMN_ID + "=? AND " + COLUMN_RECORD + "=?",
+                        new String[]{list, record.id, tokens}) > 0) {
+                    continue;
+                }
+
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(COLUMN_LIST, list);
+                contentValues.put(COLUMN_ID, record.id);
+                contentValues.put(COLUMN_POSITION, record.position);
+                contentValues.put(COLUMN_ARTIST_ID, record.artistId);
+                contentValues.put(COLUMN_ALBUM_ID, record.albumId);
+                contentValues.put(COLUMN_GENRE_ID, record.genreId);
+                contentValues.put(COLUMN_YEAR, String.valueOf(record.year));
+                contentValues.put(COLUMN_DISC, record.disc);
+                contentValues.put(COLUMN_TRACKNUM, record.tracknum);
+                contentValues.put(COLUMN_RECORD, tokens);
+                contentValues.put(COLUMN_GENERATION, generation);
+                db.replace(TABLE_ITEM, null, contentValues);
+
+                db.delete(TABLE_WORD, COLUMN_LIST + "=? AND " + COLUMN_ID + "=?",
+                        new String[]{list, record.id});
+                if (record.name != null) {
+                    for (String word : LibraryRecord.words(record.name)) {
+                        insertWord.bindString(1, list);
+                        insertWord.bindString(2, word);
+                        insertWord.bindString(3, record.id);
+                        insertWord.executeInsert();
+                    }
+                }
+                written++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insertWord.close();
+            db.endTransaction();
+        }
+        return written;
+    }
+
+    /**
+     * Delete the items of the list that were not seen by a synchronization.
+     *
+     * @return The number of items deleted.
+     */
+    int sweep(String list, int generation) {
+        db.delete(TABLE_WORD, COLUMN_LIST + "=? AND " + COLUMN_ID + " IN (SELECT " + COLUMN_ID
+                + " FROM " + TABLE_ITEM + " WHERE " + COLUMN_LIST + "=? AND " + COLUMN_GENERATION
+                + "<?)", new String[]{list, list, String.valueOf(generation)});
+        return db.delete(TABLE_ITEM, COLUMN_LIST + "=? AND " + COLUMN_GENERATION + "<?",
+                new String[]{list, String.valueOf(generation)});
+    }
+
+    /**
+     * @return The number of items selected by the query.
+     */
+    int count(LibraryQuery query) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_ITEM + " WHERE "
+                + query.where(), query.whereArgs());
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The tokens of the items in the page of the query.
+     */
+    List<String> records(LibraryQuery query) {
+        List<String> records = new ArrayList<String>(query.count);
+        Cursor cursor = db.query(TABLE_ITEM, new String[]{COLUMN_RECORD}, query.where(),
+                query.whereArgs(), null, null, query.orderBy(), query.start + "," + query.count);
+        try {
+            while (cursor.moveToNext()) {
+                records.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return records;
+    }
+}
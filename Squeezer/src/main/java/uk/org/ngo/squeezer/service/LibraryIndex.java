@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.greenrobot.event.EventBus;
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.service.event.LibrarySynced;
+
+/**
+ * A copy of a server's genres, years, artists, albums and songs in a {@link LibraryDatabase}, so
+ * browsing them doesn't need round trips to the server.
+ * <p>
+ * When connected, the server's last scan time is compared with the time the index was built
+ * from. If the server has rescanned since, the lists are fetched again in large pages in the
+ * background, and the items in the index are updated where they changed (see {@link
+ * LibraryDatabase#write(String, List, int)}). Until that is done, and while the server is
+ * rescanning, requests go to the server.
+ * <p>
+ * Requests the index can answer (see {@link LibraryQuery}) are answered with a response made
+ * from the stored items, which is handled by the same list handlers as a server response.
+ * Searches are previewed from the index (see {@link #preview(String, int)}) while the server
+ * searches.
+ */
+class LibraryIndex {
+    private static final String TAG = "LibraryIndex";
+
+    /** Number of items to fetch in each request when synchronizing. */
+    static final int SYNC_PAGE_SIZE = 500;
+
+    /** The lists in the index, in the order they are synchronized. */
+    private static final IndexedList[] LISTS = {
+            new IndexedList("genres", Tag.ID, Tag.GENRE, ""),
+            new IndexedList("years", Tag.YEAR, -1, ""),
+            new IndexedList("artists", Tag.ID, Tag.ARTIST, ""),
+            new IndexedList("albums", Tag.ID, Tag.ALBUM, "alyjS", "sort:album"),
+            new IndexedList("songs", Tag.ID, Tag.TITLE, SqueezeService.SONGTAGS + "ip",
+                    "sort:title"),
+    };
+
+    /** A list that is kept in the index. */
+    private static class IndexedList {
+        /** The command that fetches the list. */
+        final String cmd;
+
+        /** The {@link Tag} that starts each item. */
+        final int delimiterTag;
+
+        /** The {@link Tag} of the name the items are searched by, or -1. */
+        final int nameTag;
+
+        /** The tags to ask for. Requests for other tags are sent to the server. */
+        final String tags;
+
+        /** The request parameters, except the start and count. */
+        final String parameters;
+
+        IndexedList(String cmd, int delimiterTag, int nameTag, String tags,
+                String... parameters) {
+            this.cmd = cmd;
+            this.delimiterTag = delimiterTag;
+            this.nameTag = nameTag;
+            this.tags = tags;
+            StringBuilder sb = new StringBuilder();
+            if (tags.length() > 0) {
+                sb.append(" tags:").append(tags);
+            }
+            for (String parameter : parameters) {
+                sb.append(' ').append(parameter);
+            }
+            this.parameters = sb.toString();
+        }
+    }
+
+    /**
+     * @return The tags stored for the items of the command, or null if the command's items are
+     *     not indexed.
+     */
+    @Nullable
+    static String syncTags(String cmd) {
+        for (IndexedList list : LISTS) {
+            if (list.cmd.equals(cmd)) {
+                return list.tags;
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private final CliClient mClient;
+
+    @NonNull
+    private final EventBus mEventBus;
+
+    @NonNull
+    private final Context mContext;
+
+    /** Identifies the server. */
+    @NonNull
+    private final String mServer;
+
+    /** Database work is done in order on this thread. */
+    private final ExecutorService mDbExecutor = Executors.newSingleThreadExecutor();
+
+    /** Only used on {@link #mDbExecutor}. */
+    private LibraryDatabase mDatabase;
+
+    /** True if the index matches the server's library. */
+    private volatile boolean mReady;
+
+    /** The synchronization in progress, or null. */
+    private volatile Sync mSync;
+
+    private volatile int mQueryCount;
+
+    private volatile int mPreviewCount;
+
+    LibraryIndex(@NonNull CliClient client, @NonNull EventBus eventBus, @NonNull Context context,
+            @NonNull String server) {
+        mClient = client;
+        mEventBus = eventBus;
+        mContext = context;
+        mServer = server;
+    }
+
+    /** Only call on {@link #mDbExecutor}. */
+    private LibraryDatabase database() {
+        if (mDatabase == null) {
+            mDatabase = new LibraryDatabase(mContext, mServer);
+        }
+        return mDatabase;
+    }
+
+    /**
+     * Called with the server's last scan time. Makes the index available if it was built from
+     * the same scan, otherwise synchronizes it.
+     */
+    void onServerStatus(final String lastscan) {
+        if (mDbExecutor.isShutdown()) {
+            return;
+        }
+        mDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (lastscan.equals(database().getMeta(LibraryDatabase.META_LASTSCAN))) {
+                        Log.i(TAG, "Library index is up to date");
+                        mReady = true;
+                    } else if (mSync == null || !lastscan.equals(mSync.lastscan)) {
+                        startSync(lastscan);
+                    }
+                } catch (SQLException e) {
+                    Log.e(TAG, "Can't open the library index", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when the server is rescanning. The index is not used until it has been
+     * synchronized with the new scan.
+     */
+    void onRescan() {
+        mReady = false;
+        mSync = null;
+    }
+
+    /** Stop using the index, e.g. when disconnecting. */
+    void close() {
+        onRescan();
+        mDbExecutor.shutdown();
+    }
+
+    boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Answer a request from the index, if it can.
+     *
+     * @param request The request without its correlation id.
+     * @param correlationId The correlation id of the request.
+     * @return True if the request will be answered from the index.
+     */
+    boolean answer(final String request, final int correlationId) {
+        final LibraryQuery query = query(request, false);
+        if (query == null) {
+            return false;
+        }
+
+        mQueryCount++;
+        mDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String response;
+                try {
+                    response = respond(query);
+                } catch (SQLException e) {
+                    Log.e(TAG, "Library index query failed: " + query, e);
+                    mClient.sendCommand(request + " correlationid:" + correlationId);
+                    return;
+                }
+                mClient.replayResponse(response.getBytes(), correlationId);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Answer a search from the index, if it can, while the server searches. The server's
+     * results replace the preview when they arrive.
+     *
+     * @param request The search request without its correlation id.
+     * @param correlationId The correlation id for the preview, which is not the id the request
+     *     is sent to the server with.
+     * @return True if a preview will be answered from the index.
+     */
+    boolean preview(String request, final int correlationId) {
+        final LibraryQuery query = query(request, true);
+        if (query == null) {
+            return false;
+        }
+
+        mPreviewCount++;
+        mDbExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String response;
+                try {
+                    response = respond(query);
+                } catch (SQLException e) {
+                    // The server answers the search anyway.
+                    Log.e(TAG, "Library index search failed: " + query, e);
+                    return;
+                }
+                mClient.replayResponse(response.getBytes(), correlationId);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return The query for the request, or null if the index isn't ready or can't answer it.
+     */
+    @Nullable
+    private LibraryQuery query(String request, boolean allowSearch) {
+        if (!mReady) {
+            return null;
+        }
+        String tags = syncTags(request.substring(0, Math.max(0, request.indexOf(' '))));
+        return (tags != null ? LibraryQuery.parse(request, tags, allowSearch) : null);
+    }
+
+    /**
+     * @return A response to the query, as the server would send it but without the correlation
+     *     id.
+     */
+    private String respond(LibraryQuery query) {
+        int total = database().count(query);
+        StringBuilder sb = query.responsePrefix();
+        for (String record : database().records(query)) {
+            sb.append(' ').append(record);
+        }
+        sb.append(" count%3A").append(total);
+        return sb.toString();
+    }
+
+    /** Start fetching all the lists. Only call on {@link #mDbExecutor}. */
+    private void startSync(String lastscan) {
+        String generation = database().getMeta(LibraryDatabase.META_GENERATION);
+        Sync sync = new Sync(lastscan,
+                (generation == null ? 0 : Integer.parseInt(generation)) + 1);
+        Log.i(TAG, "Synchronizing library index, generation " + sync.generation);
+        mReady = false;
+        mSync = sync;
+        sync.requestPage(0, 0);
+    }
+
+    /**
+     * A synchronization of the index. Each list is fetched in turn, the next page being
+     * requested while the previous one is written to the database.
+     */
+    private class Sync implements CliClient.RecordSink {
+        final String lastscan;
+
+        final int generation;
+
+        private final long startNanos = System.nanoTime();
+
+        private volatile int mListIndex;
+
+        private int mItems;
+
+        private long mBytes;
+
+        /** Only used on {@link #mDbExecutor}. */
+        private int mWritten;
+
+        /** Only used on {@link #mDbExecutor}. */
+        private int mRemoved;
+
+        Sync(String lastscan, int generation) {
+            this.lastscan = lastscan;
+            this.generation = generation;
+        }
+
+        void requestPage(int listIndex, int start) {
+            IndexedList list = LISTS[listIndex];
+            mListIndex = listIndex;
+            mClient.requestRecords(list.cmd + " " + start + " " + SYNC_PAGE_SIZE
+                    + list.parameters, this);
+        }
+
+        @Override
+        public void onRecords(TokenCursor tokens, int start, int from) {
+            if (mSync != this) {
+                return;
+            }
+            final IndexedList list = LISTS[mListIndex];
+            final List<LibraryRecord> records = new ArrayList<LibraryRecord>();
+            int count = LibraryRecord.split(tokens, from, list.delimiterTag, list.nameTag,
+                    start, records);
+            mItems += records.size();
+            mBytes += tokens.length();
+
+            int next = start + records.size();
+            final boolean last = (records.isEmpty() || next >= count);
+            if (!last) {
+                requestPage(mListIndex, next);
+            }
+
+            final int listIndex = mListIndex;
+            mDbExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSync != Sync.this) {
+                        return;
+                    }
+                    try {
+                        mWritten += database().write(list.cmd, records, generation);
+                        if (last) {
+                            mRemoved += database().sweep(list.cmd, generation);
+                            if (listIndex + 1 < LISTS.length) {
+                                requestPage(listIndex + 1, 0);
+                            } else {
+                                finish();
+                            }
+                        }
+                    } catch (SQLException e) {
+                        Log.e(TAG, "Can't write the library index", e);
+                        mSync = null;
+                    }
+                }
+            });
+        }
+
+        /** Only call on {@link #mDbExecutor}. */
+        private void finish() {
+            database().setMeta(LibraryDatabase.META_GENERATION, String.valueOf(generation));
+            database().setMeta(LibraryDatabase.META_LASTSCAN, lastscan);
+            mSync = null;
+            mReady = true;
+
+            LibrarySynced event = new LibrarySynced(mItems, mBytes,
+                    (System.nanoTime() - startNanos) / 1000000, mWritten, mRemoved);
+            Log.i(TAG, "Library index synchronized: " + event);
+            mEventBus.post(event);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryIndex{server=" + mServer + ", ready=" + mReady + ", syncing="
+                + (mSync != null) + ", queries=" + mQueryCount + ", previews=" + mPreviewCount
+                + "}";
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list request that can be answered from the library index, translated to SQL.
+ * <p>
+ * Only requests the index can answer exactly as the server would are accepted: only the
+ * filters on the album or year of an item, the sort orders the index keeps, and no tags that
+ * weren't asked for when the index was synchronized.
+ * <p>
+ * Searches are only accepted when asked for. The index finds the items with a word in their
+ * name starting with each word of the search term, the server finds the items whose name
+ * contains the term, so the results are a preview of the server's.
+ */
+class LibraryQuery {
+
+    /** The command, e.g. "albums". */
+    final String list;
+
+    final int start;
+
+    final int count;
+
+    /** The tagged parameters of the request, as sent, to echo in the response. */
+    final List<String> parameters = new ArrayList<String>();
+
+    /** The tags stored in the index for the items of the list. */
+    private final String syncTags;
+
+    /** True if searches are accepted. */
+    private final boolean allowSearch;
+
+    private String sort;
+
+    private final List<String> conditions = new ArrayList<String>();
+
+    private final List<String> arguments = new ArrayList<String>();
+
+    private LibraryQuery(String list, int start, int count, String syncTags,
+            boolean allowSearch) {
+        this.list = list;
+        this.start = start;
+        this.count = count;
+        this.syncTags = syncTags;
+        this.allowSearch = allowSearch;
+        conditions.add(LibraryDatabase.COLUMN_LIST + "=?");
+        arguments.add(list);
+    }
+
+    /**
+     * @param request The request, without the correlation id, e.g.
+     *     "albums 0 20 tags%3Aalyj sort%3Aalbum artist_id%3A4".
+     * @param syncTags The tags stored in the index for the items of the list.
+     * @return The query for the request, or null if the index can't answer it.
+     */
+    @Nullable
+    static LibraryQuery parse(String request, String syncTags) {
+        return parse(request, syncTags, false);
+    }
+
+    /**
+     * @param request The request, without the correlation id.
+     * @param syncTags The tags stored in the index for the items of the list.
+     * @param allowSearch True to accept searches.
+     * @return The query for the request, or null if the index can't answer it.
+     */
+    @Nullable
+    static LibraryQuery parse(String request, String syncTags, boolean allowSearch) {
+        String[] tokens = request.split(" ");
+        if (tokens.length < 3) {
+            return null;
+        }
+
+        LibraryQuery query;
+        try {
+            query = new LibraryQuery(tokens[0], Integer.parseInt(tokens[1]),
+                    Integer.parseInt(tokens[2]), syncTags, allowSearch);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        for (int i = 3; i < tokens.length; i++) {
+            int separator = tokens[i].indexOf("%3A");
+            if (separator < 0) {
+                return null;
+            }
+            String key = tokens[i].substring(0, separator);
+            String value;
+            try {
+                value = URLDecoder.decode(tokens[i].substring(separator + 3), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+            if (!query.add(key, value)) {
+                return null;
+            }
+            query.parameters.add(tokens[i]);
+        }
+        return query;
+    }
+
+    /**
+     * Add a tagged parameter of the request to the query.
+     *
+     * @return False if the index can't answer requests with the parameter.
+     */
+    private boolean add(String key, String value) {
+        if ("full_list".equals(key)) {
+            return true;
+        }
+        if ("tags".equals(key)) {
+            for (int i = 0; i < value.length(); i++) {
+                if (syncTags.indexOf(value.charAt(i)) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if ("sort".equals(key)) {
+            sort = value;
+            return orderBy() != null;
+        }
+        if ("artist_id".equals(key) || "album_id".equals(key) || "genre_id".equals(key)
+                || "year".equals(key)) {
+            return addFilter(key, value);
+        }
+        if ("search".equals(key) && allowSearch) {
+            return addSearch(value);
+        }
+        return false;
+    }
+
+    /**
+     * Add a search. Each word of the term must start a word of the item's name, which is looked
+     * up as a range of the indexed words.
+     */
+    private boolean addSearch(String term) {
+        List<String> words = LibraryRecord.words(term);
+        if (words.isEmpty()) {
+            return false;
+        }
+        for (String word : words) {
+            conditions.add(LibraryDatabase.COLUMN_ID + " IN (SELECT " + LibraryDatabase.COLUMN_ID
+                    + " FROM " + LibraryDatabase.TABLE_WORD + " WHERE "
+                    + LibraryDatabase.COLUMN_LIST + "=? AND " + LibraryDatabase.COLUMN_WORD
+                    + ">=? AND " + LibraryDatabase.COLUMN_WORD + "<?)");
+            arguments.add(list);
+            arguments.add(word);
+            arguments.add(word + '\uffff');
+        }
+        return true;
+    }
+
+    /**
+     * Add a filter. Only the filters on columns an item has one value of are answered: the album
+     * and year of songs, and the year of albums.
+     * <p>
+     * The index only has the primary artist and the first genre of each song, but the server
+     * matches any contributor of a song, in any role, and each of its genres. Filters by artist
+     * or genre, and filters of a list through the songs it has in common with the filter, would
+     * miss items, so they are sent to the server.
+     */
+    private boolean addFilter(String column, String value) {
+        if ("songs".equals(list) && ("album_id".equals(column) || "year".equals(column))
+                || "albums".equals(list) && "year".equals(column)) {
+            conditions.add(column + "=?");
+            arguments.add(value);
+            return true;
+        }
+        return false;
+    }
+
+    /** @return The SQL condition selecting the items of the request. */
+    String where() {
+        StringBuilder sb = new StringBuilder();
+        for (String condition : conditions) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            sb.append(condition);
+        }
+        return sb.toString();
+    }
+
+    /** @return The arguments of {@link #where()}. */
+    String[] whereArgs() {
+        return arguments.toArray(new String[arguments.size()]);
+    }
+
+    /** @return The SQL order of the items, or null if the sort order isn't supported. */
+    @Nullable
+    String orderBy() {
+        if (sort == null || "songs".equals(list) && "title".equals(sort)
+                || "albums".equals(list) && "album".equals(sort)) {
+            return LibraryDatabase.COLUMN_POSITION;
+        }
+        if ("songs".equals(list) && "tracknum".equals(sort)) {
+            return "disc, tracknum, " + LibraryDatabase.COLUMN_POSITION;
+        }
+        if ("songs".equals(list) && "albumtrack".equals(sort)) {
+            return "(SELECT a." + LibraryDatabase.COLUMN_POSITION + " FROM "
+                    + LibraryDatabase.TABLE_ITEM + " a WHERE a." + LibraryDatabase.COLUMN_LIST
+                    + "='albums' AND a." + LibraryDatabase.COLUMN_ID + "=" + LibraryDatabase.TABLE_ITEM
+                    + ".album_id), disc, tracknum, "
+                    + LibraryDatabase.COLUMN_POSITION;
+        }
+        return null;
+    }
+
+    /**
+     * @return The start of the response to the request: the command, the start and count, and
+     *     the tagged parameters.
+     */
+    StringBuilder responsePrefix() {
+        StringBuilder sb = new StringBuilder(list).append(' ').append(start).append(' ')
+                .append(count);
+        for (String parameter : parameters) {
+            sb.append(' ').append(parameter);
+        }
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryQuery{" + list + " " + start + " " + count + " where " + where() + " "
+                + arguments + " order by " + orderBy() + "}";
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import uk.org.ngo.squeezer.framework.Tag;
+
+/**
+ * An item in the library index.
+ * <p>
+ * The item is kept as its tokens from the list response, so it can be handed to the same list
+ * handlers as a response from the server. The columns used to filter and sort the items are
+ * taken out of the tokens when the item is stored.
+ */
+class LibraryRecord {
+
+    /** Id of the item, or the year for years. */
+    String id;
+
+    /** Position of the item in the list, as sorted by the server. */
+    int position;
+
+    String artistId;
+
+    String albumId;
+
+    String genreId;
+
+    int year;
+
+    int disc;
+
+    int tracknum;
+
+    /** The name the item is searched by, e.g. the title of a song, or null. */
+    String name;
+
+    /** The item's tokens, as received. */
+    byte[] tokens;
+
+    /**
+     * Split the items of a list response in to records.
+     *
+     * @param tokens The response.
+     * @param from Index of the first token after the start and count of the response.
+     * @param delimiterTag The {@link Tag} that starts each item.
+     * @param nameTag The {@link Tag} of the name the items are searched by, or -1.
+     * @param start The position of the first item in the response.
+     * @param records Receives the items.
+     * @return The total number of items in the list, or -1 if the response has no count.
+     */
+    static int split(TokenCursor tokens, int from, int delimiterTag, int nameTag, int start,
+            List<LibraryRecord> records) {
+        int count = -1;
+        LibraryRecord record = null;
+        int recordStart = -1;
+
+        tokens.moveTo(from);
+        while (tokens.next()) {
+            int tag = tokens.tag();
+            if (tag == delimiterTag || tag == Tag.COUNT || tag == Tag.CORRELATIONID
+                    || tag == Tag.RESCAN) {
+                if (record != null) {
+                    record.tokens = tokens.copy(recordStart, tokens.index());
+                    records.add(record);
+                    record = null;
+                }
+                if (tag == Tag.COUNT) {
+                    count = tokens.valueAsInt(0);
+                }
+                if (tag == delimiterTag) {
+                    record = new LibraryRecord();
+                    record.id = tokens.value();
+                    record.position = start + records.size();
+                    recordStart = tokens.index();
+                }
+                if (tag != delimiterTag) {
+                    continue;
+                }
+            }
+            if (record != null) {
+                if (tag == nameTag) {
+                    record.name = tokens.value();
+                }
+                record.add(tokens, tag);
+            }
+        }
+        if (record != null) {
+            record.tokens = tokens.copy(recordStart, tokens.size());
+            records.add(record);
+        }
+        return count;
+    }
+
+    private void add(TokenCursor tokens, int tag) {
+        switch (tag) {
+            case Tag.ARTIST_ID:
+                artistId = tokens.value();
+                break;
+            case Tag.ALBUM_ID:
+                albumId = tokens.value();
+                break;
+            case Tag.GENRE_ID:
+                genreId = tokens.value();
+                break;
+            case Tag.YEAR:
+                year = tokens.valueAsInt(0);
+                break;
+            case Tag.TRACKNUM:
+                tracknum = tokens.valueAsInt(0);
+                break;
+            default:
+                if ("disc".equals(tokens.key())) {
+                    disc = tokens.valueAsInt(0);
+                }
+        }
+    }
+
+    /**
+     * Split a name or a search term in to the words it is searched by: lower case runs of
+     * letters and digits, without duplicates.
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        String lower = text.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            if (i < lower.length() && Character.isLetterOrDigit(lower.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                String word = lower.substring(start, i);
+                if (!words.contains(word)) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryRecord{id=" + id + ", position=" + position + ", tokens="
+                + TokenCursor.ascii(tokens, 0, tokens.length) + "}";
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.org.ngo.squeezer.model.PlayerState;
+
+/**
+ * Dead reckoning of the position of players in their songs.
+ * <p>
+ * The position reported by the server is remembered with the time it was received, and while the
+ * player plays the current position is extrapolated from it with a monotonic clock. That lets the
+ * service advance the position every second itself, instead of subscribing to a status from the
+ * server every second. The server only has to send a status when something changes, and now and
+ * then to correct the drift of the extrapolated position.
+ */
+class PlaybackClock {
+
+    /**
+     * Differences between the extrapolated and reported positions greater than this, in
+     * milliseconds, are taken to be a seek or a new song rather than drift.
+     */
+    private static final int MAX_DRIFT_MILLIS = 5000;
+
+    private final Ticker ticker;
+
+    /** Number of positions reported by the server. */
+    private final AtomicLong reportedCount = new AtomicLong();
+
+    /** Number of times the position was advanced to the next second without the server. */
+    private final AtomicLong extrapolatedCount = new AtomicLong();
+
+    /** Largest difference between an extrapolated and reported position, in milliseconds. */
+    private volatile int maxDriftMillis;
+
+    /**
+     * @param ticker The monotonic clock positions are extrapolated with, usually
+     *     {@link Ticker#systemTicker()}.
+     */
+    PlaybackClock(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * Record the position reported by the server, which the player is at now.
+     *
+     * @param state The state of the player, with the play status the player had before the
+     *     position was reported.
+     * @param millis The position, in milliseconds.
+     */
+    void setPosition(PlayerState state, int millis) {
+        reportedCount.incrementAndGet();
+        if (state.isPlaying()) {
+            int drift = Math.abs(positionMillis(state) - millis);
+            if (drift <= MAX_DRIFT_MILLIS && drift > maxDriftMillis) {
+                maxDriftMillis = drift;
+            }
+        }
+        state.setPosition(millis, ticker.read());
+    }
+
+    /**
+     * Move the player to a position the user asked for, before the server reports it.
+     *
+     * @param millis The position, in milliseconds.
+     */
+    void seek(PlayerState state, int millis) {
+        state.setPosition(millis, ticker.read());
+        state.setCurrentTimeSecond(millis / 1000);
+    }
+
+    /**
+     * Change the play status of the player, extrapolating the position from the new status from
+     * now on.
+     *
+     * @return True if the play status changed.
+     */
+    boolean setPlayStatus(PlayerState state, @NonNull @PlayerState.PlayState String playStatus) {
+        int millis = positionMillis(state);
+        if (!state.setPlayStatus(playStatus)) {
+            return false;
+        }
+        state.setPosition(millis, ticker.read());
+        return true;
+    }
+
+    /**
+     * @return The position of the player in its song now, in milliseconds. It only advances while
+     *     the player plays, and not beyond the duration of the song.
+     */
+    int positionMillis(PlayerState state) {
+        long millis = state.getPositionMillis();
+        if (state.isPlaying()) {
+            millis += (ticker.read() - state.getPositionNanos()) / 1000000;
+        }
+        long duration = state.getCurrentSongDuration() * 1000L;
+        if (duration > 0 && millis > duration) {
+            millis = duration;
+        }
+        return (int) millis;
+    }
+
+    /**
+     * @return The number of milliseconds until the position of the player reaches the next whole
+     *     second, if it is playing.
+     */
+    long millisToNextSecond(PlayerState state) {
+        return 1000 - positionMillis(state) % 1000;
+    }
+
+    /**
+     * Advance the current time of the player to its position now.
+     *
+     * @return True if the time, in whole seconds, changed.
+     */
+    boolean advance(PlayerState state) {
+        if (!state.setCurrentTimeSecond(positionMillis(state) / 1000)) {
+            return false;
+        }
+        extrapolatedCount.incrementAndGet();
+        return true;
+    }
+
+    /** @return The number of positions reported by the server. */
+    long getReportedCount() {
+        return reportedCount.get();
+    }
+
+    /** @return The number of times a position was advanced without the server. */
+    long getExtrapolatedCount() {
+        return extrapolatedCount.get();
+    }
+
+    /**
+     * @return The largest difference between an extrapolated position and the position the
+     *     server reported, in milliseconds.
+     */
+    int getMaxDriftMillis() {
+        return maxDriftMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackClock{reported=" + getReportedCount() + ", extrapolated="
+                + getExtrapolatedCount() + ", maxDriftMs=" + maxDriftMillis + "}";
+    }
+}
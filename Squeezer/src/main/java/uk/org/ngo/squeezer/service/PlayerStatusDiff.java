@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.model.PlayerState;
+import uk.org.ngo.squeezer.model.PlayerState.RepeatStatus;
+import uk.org.ngo.squeezer.model.PlayerState.ShuffleStatus;
+
+/**
+ * Applies a <code>&lt;playerid> status - 1 ...</code> line to the {@link PlayerState} of the
+ * player, comparing each field with the state in place.
+ * <p>
+ * Players subscribed in real time get a status every second, and usually only the playback
+ * position has changed. Numbers are parsed from the line, and strings are compared without
+ * decoding them, so a status that only moves the position allocates nothing. The fields of the
+ * current song are recognised by a hash of their raw tokens: a new song only has to be made when
+ * the hash differs from the hash of the fields the current song was made from.
+ */
+class PlayerStatusDiff {
+
+    /** The player was switched on or off. */
+    static final int POWER = 1;
+
+    static final int SHUFFLE = 1 << 1;
+
+    static final int REPEAT = 1 << 2;
+
+    /** The playlist name, length or current index changed. */
+    static final int PLAYLIST = 1 << 3;
+
+    /** The sleep time or the time left until sleep changed. */
+    static final int SLEEP = 1 << 4;
+
+    /**
+     * The fields of the song differ from those the current song was made from. A new song must
+     * be made from the line, the hash of its fields has already been recorded in the state.
+     */
+    static final int SONG = 1 << 5;
+
+    static final int SONG_DURATION = 1 << 6;
+
+    static final int SONG_TIME = 1 << 7;
+
+    static final int VOLUME = 1 << 8;
+
+    /** The sync master or sync slaves changed. */
+    static final int SYNC = 1 << 9;
+
+    /** The play status (play, pause or stop) changed. */
+    static final int PLAY_STATUS = 1 << 10;
+
+    private static final int FIELD_POWER = 0;
+    private static final int FIELD_SHUFFLE = 1;
+    private static final int FIELD_REPEAT = 2;
+    private static final int FIELD_PLAYLIST_TRACKS = 3;
+    private static final int FIELD_PLAYLIST_INDEX = 4;
+    private static final int FIELD_PLAYLIST_NAME = 5;
+    private static final int FIELD_SLEEP = 6;
+    private static final int FIELD_SLEEP_DURATION = 7;
+    private static final int FIELD_DURATION = 8;
+    private static final int FIELD_TIME = 9;
+    private static final int FIELD_VOLUME = 10;
+    private static final int FIELD_SYNC_MASTER = 11;
+    private static final int FIELD_SYNC_SLAVES = 12;
+    private static final int FIELD_SUBSCRIBE = 13;
+    private static final int FIELD_MODE = 14;
+
+    /** The status fields, by key. */
+    private static final Map<String, Integer> FIELDS = new HashMap<String, Integer>();
+
+    static {
+        FIELDS.put("power", FIELD_POWER);
+        FIELDS.put("playlist shuffle", FIELD_SHUFFLE);
+        FIELDS.put("playlist repeat", FIELD_REPEAT);
+        FIELDS.put("playlist_tracks", FIELD_PLAYLIST_TRACKS);
+        FIELDS.put("playlist_cur_index", FIELD_PLAYLIST_INDEX);
+        FIELDS.put("playlist_name", FIELD_PLAYLIST_NAME);
+        FIELDS.put("will_sleep_in", FIELD_SLEEP);
+        FIELDS.put("sleep", FIELD_SLEEP_DURATION);
+        FIELDS.put("duration", FIELD_DURATION);
+        FIELDS.put("time", FIELD_TIME);
+        FIELDS.put("mixer volume", FIELD_VOLUME);
+        FIELDS.put("sync_master", FIELD_SYNC_MASTER);
+        FIELDS.put("sync_slaves", FIELD_SYNC_SLAVES);
+        FIELDS.put("subscribe", FIELD_SUBSCRIBE);
+        FIELDS.put("mode", FIELD_MODE);
+    }
+
+    private PlayerStatusDiff() {
+    }
+
+    /**
+     * @return True if the tag is one of the fields the song is made from, rather than a field
+     *     that changes while the song plays or a field of the response.
+     */
+    private static boolean isSongTag(int tag) {
+        return tag != -1 && tag != Tag.TIME && tag != Tag.PLAYLIST_INDEX
+                && tag != Tag.PLAYLIST_TRACKS && tag != Tag.CORRELATIONID && tag != Tag.COUNT;
+    }
+
+    /**
+     * Apply the fields of a status line to the state of its player. Fields that are missing from
+     * the line are reset, as if they had been received empty.
+     *
+     * @param tokens Cursor over the status line.
+     * @param state The state of the player the status is for.
+     * @param playerId ID of the player.
+     * @param debouncer Recognises positions and volumes older than a change the user has made,
+     *     which are ignored.
+     * @param clock Remembers the position, from which it is extrapolated until the next status.
+     * @return What changed, a combination of the flags of this class.
+     */
+    static int apply(TokenCursor tokens, PlayerState state, String playerId,
+                     CommandDebouncer debouncer, PlaybackClock clock) {
+        int power = 0;
+        int shuffle = -1;
+        int repeat = -1;
+        int playlistTracks = 0;
+        int playlistIndex = 0;
+        int sleep = 0;
+        int sleepDuration = 0;
+        int duration = 0;
+        int timeMillis = 0;
+        int volume = 0;
+
+        // Strings are compared after the pass, at the index of their token.
+        int playlistName = -1;
+        int syncMaster = -1;
+        int syncSlaves = -1;
+        int subscribe = -1;
+        int mode = -1;
+
+        int songHash = 1;
+
+        tokens.moveTo(1);
+        while (tokens.next()) {
+            if (!tokens.hasValue()) {
+                continue;
+            }
+            if (isSongTag(tokens.tag())) {
+                songHash = 31 * songHash + tokens.rawHash(tokens.index());
+            }
+            Integer field = FIELDS.get(tokens.key());
+            if (field == null) {
+                continue;
+            }
+            switch (field) {
+                case FIELD_POWER:
+                    power = tokens.valueAsInt(0);
+                    break;
+                case FIELD_SHUFFLE:
+                    shuffle = tokens.valueAsInt(0);
+                    break;
+                case FIELD_REPEAT:
+                    repeat = tokens.valueAsInt(0);
+                    break;
+                case FIELD_PLAYLIST_TRACKS:
+                    playlistTracks = tokens.valueAsInt(0);
+                    break;
+                case FIELD_PLAYLIST_INDEX:
+                    playlistIndex = tokens.valueAsInt(0);
+                    break;
+                case FIELD_PLAYLIST_NAME:
+                    playlistName = tokens.index();
+                    break;
+                case FIELD_SLEEP:
+                    sleep = tokens.valueAsInt(0);
+                    break;
+                case FIELD_SLEEP_DURATION:
+                    sleepDuration = tokens.valueAsInt(0);
+                    break;
+                case FIELD_DURATION:
+                    duration = tokens.valueAsInt(0);
+                    break;
+                case FIELD_TIME:
+                    timeMillis = tokens.valueAsMillis(0);
+                    break;
+                case FIELD_VOLUME:
+                    volume = tokens.valueAsInt(0);
+                    break;
+                case FIELD_SYNC_MASTER:
+                    syncMaster = tokens.index();
+                    break;
+                case FIELD_SYNC_SLAVES:
+                    syncSlaves = tokens.index();
+                    break;
+                case FIELD_SUBSCRIBE:
+                    subscribe = tokens.index();
+                    break;
+                case FIELD_MODE:
+                    mode = tokens.index();
+                    break;
+            }
+        }
+
+        int changes = 0;
+        if (state.setPoweredOn(power == 1)) {
+            changes |= POWER;
+        }
+        if (state.setShuffleStatus(shuffle == -1 ? null : ShuffleStatus.valueOf(shuffle))) {
+            changes |= SHUFFLE;
+        }
+        if (state.setRepeatStatus(repeat == -1 ? null : RepeatStatus.valueOf(repeat))) {
+            changes |= REPEAT;
+        }
+        if (state.setCurrentPlaylistTracksNum(playlistTracks)
+                | state.setCurrentPlaylistIndex(playlistIndex)
+                | (!isValue(tokens, playlistName, state.getCurrentPlaylist())
+                        && state.setCurrentPlaylist(value(tokens, playlistName)))) {
+            changes |= PLAYLIST;
+        }
+        if (state.setSleep(sleep) | state.setSleepDuration(sleepDuration)) {
+            changes |= SLEEP;
+        }
+        if (state.getCurrentSong() == null || songHash != state.getCurrentSongHash()) {
+            state.setCurrentSongHash(songHash);
+            changes |= SONG;
+        }
+        if (state.setCurrentSongDuration(duration)) {
+            changes |= SONG_DURATION;
+        }
+        int time = timeMillis / 1000;
+        if (!debouncer.isStale(playerId, CliClient.PARAMETER_TIME, time)) {
+            // Before the play status changes, so drift is measured against the old status.
+            clock.setPosition(state, timeMillis);
+            if (state.setCurrentTimeSecond(time)) {
+                changes |= SONG_TIME;
+            }
+        }
+        if (!debouncer.isStale(playerId, CliClient.PARAMETER_VOLUME, volume)
+                && state.setCurrentVolume(volume)) {
+            changes |= VOLUME;
+        }
+        if (syncMaster == -1 ? state.setSyncMaster(null)
+                : !isValue(tokens, syncMaster, state.getSyncMaster())
+                        && state.setSyncMaster(value(tokens, syncMaster))) {
+            changes |= SYNC;
+        }
+        if (syncSlaves == -1 ? !state.getSyncSlaves().isEmpty()
+                && state.setSyncSlaves(Collections.<String>emptyList())
+                : !isSyncSlaves(tokens, syncSlaves, state)
+                        && state.setSyncSlaves(Splitter.on(",").omitEmptyStrings()
+                                .splitToList(Strings.nullToEmpty(value(tokens, syncSlaves))))) {
+            changes |= SYNC;
+        }
+        if (!isValue(tokens, subscribe, state.getSubscriptionType())) {
+            state.setSubscriptionType(value(tokens, subscribe));
+        }
+        String playStatus = (mode != -1 ? playStatus(tokens, mode) : null);
+        if (playStatus != null && clock.setPlayStatus(state, playStatus)) {
+            changes |= PLAY_STATUS;
+        }
+        return changes;
+    }
+
+    /**
+     * @return True if the token at index has the value, or if there's no token and the value is
+     *     what a missing token is taken to be.
+     */
+    private static boolean isValue(TokenCursor tokens, int index, String value) {
+        if (index == -1) {
+            return false;
+        }
+        tokens.moveTo(index);
+        tokens.next();
+        return tokens.valueIs(value);
+    }
+
+    /** @return The decoded value of the token at index, or null if there is no token. */
+    private static String value(TokenCursor tokens, int index) {
+        if (index == -1) {
+            return null;
+        }
+        tokens.moveTo(index);
+        tokens.next();
+        return tokens.value();
+    }
+
+    private static boolean isSyncSlaves(TokenCursor tokens, int index, PlayerState state) {
+        tokens.moveTo(index);
+        tokens.next();
+        return tokens.valueIsList(state.getSyncSlaves(), ',');
+    }
+
+    /**
+     * @return The play status in the mode token at index, or null if the mode isn't a known
+     *     status.
+     */
+    @Nullable
+    @PlayerState.PlayState
+    private static String playStatus(TokenCursor tokens, int index) {
+        tokens.moveTo(index);
+        tokens.next();
+        if (tokens.valueIs(PlayerState.PLAY_STATE_PLAY)) {
+            return PlayerState.PLAY_STATE_PLAY;
+        }
+        if (tokens.valueIs(PlayerState.PLAY_STATE_PAUSE)) {
+            return PlayerState.PLAY_STATE_PAUSE;
+        }
+        if (tokens.valueIs(PlayerState.PLAY_STATE_STOP)) {
+            return PlayerState.PLAY_STATE_STOP;
+        }
+        return null;
+    }
+}
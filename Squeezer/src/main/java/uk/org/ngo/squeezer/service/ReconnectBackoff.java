@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Random;
+
+/**
+ * The delays between attempts to reconnect to the server after the connection was lost.
+ * <p>
+ * The delay doubles with each attempt, up to a maximum, so a server that is restarting is
+ * reconnected to quickly, and one that has gone away isn't tried too often. Half of each delay
+ * is random, so clients that lost their connections at the same time, e.g. when the server
+ * restarted, don't all reconnect at the same time.
+ */
+class ReconnectBackoff {
+
+    /** The delay before the first attempt, in milliseconds. */
+    private final long baseMillis;
+
+    /** The longest delay, in milliseconds. */
+    private final long maxMillis;
+
+    /** The number of attempts before giving up. */
+    private final int maxAttempts;
+
+    private final Random random;
+
+    /**
+     * @param baseMillis The delay before the first attempt, in milliseconds.
+     * @param maxMillis The longest delay, in milliseconds.
+     * @param maxAttempts The number of attempts before giving up.
+     * @param random Source of the random part of the delays.
+     */
+    ReconnectBackoff(long baseMillis, long maxMillis, int maxAttempts, Random random) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    /**
+     * @param attempt The attempt, counting from 0.
+     * @return The number of milliseconds to wait before the attempt, or -1 if there should be no
+     *     more attempts.
+     */
+    long delayMillis(int attempt) {
+        if (attempt < 0 || attempt >= maxAttempts) {
+            return -1;
+        }
+        long delay = maxMillis;
+        if (attempt < 31 && baseMillis << attempt < maxMillis) {
+            delay = baseMillis << attempt;
+        }
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * (half + 1));
+    }
+
+    /** @return The number of attempts before giving up. */
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+/**
+ * A histogram of round trip times, from which percentiles can be read.
+ * <p>
+ * Times are counted in microseconds, in buckets whose width grows with the time: below 4 each
+ * microsecond has a bucket, and each power of two above that is split in to 4 buckets. So
+ * percentiles are within 25% of the times recorded, in a fixed amount of memory, from
+ * microseconds to minutes.
+ */
+class RttHistogram {
+
+    /** Number of buckets each power of two is split in to, as a power of two. */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Times from 2^27 microseconds, over 2 minutes, are counted in the last bucket. */
+    private static final int MAX_EXPONENT = 26;
+
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count;
+
+    private long maxMicros;
+
+    /**
+     * @return The index of the bucket that counts the time.
+     */
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (shift + 1) + subBucket;
+    }
+
+    /**
+     * @return The greatest time counted in the bucket, in microseconds.
+     */
+    static long bucketMaxMicros(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    /** Count a round trip time, in nanoseconds. */
+    synchronized void record(long nanos) {
+        long micros = nanos / 1000;
+        counts[bucket(micros)]++;
+        count++;
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    /**
+     * @param percentile The percentile, e.g. 99.
+     * @return The time within which the percentile of the round trips completed, in
+     *     microseconds, or 0 if no times have been recorded.
+     */
+    synchronized long percentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketMaxMicros(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    /** @return The number of times recorded. */
+    synchronized long getCount() {
+        return count;
+    }
+
+    /** @return The longest time recorded, in microseconds. */
+    synchronized long getMaxMicros() {
+        return maxMicros;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        maxMicros = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RttHistogram{count=" + count + ", p50=" + percentileMicros(50) + "us, p95="
+                + percentileMicros(95) + "us, p99=" + percentileMicros(99) + "us, max="
+                + maxMicros + "us}";
+    }
+}
@@ -62,7 +62,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
@@ -149,6 +151,14 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     @NonNull
     private final Handler mMainThreadHandler = new Handler();
 
+    /**
+     * Advances the position of the active player when it reaches the next second, while it plays
+     * and there are subscribers for {@link SongTimeChanged}. Null if not scheduled.
+     */
+    private ScheduledFuture<?> mPositionTick;
+
+    private final Object mPositionTickLock = new Object();
+
     /** True if the handshake with the server has completed, otherwise false. */
     private volatile boolean mHandshakeComplete = false;
 
@@ -301,6 +311,12 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         final SharedPreferences preferences = getSharedPreferences(Preferences.NAME, MODE_PRIVATE);
         scrobblingEnabled = preferences.getBoolean(Preferences.KEY_SCROBBLE_ENABLED, false);
         mFadeInSecs = preferences.getInt(Preferences.KEY_FADE_IN_SECS, 0);
+        cli.setFullListWindow(preferences.getInt(Preferences.KEY_FULL_LIST_WINDOW,
+                getResources().getInteger(R.integer.FullListWindow)));
+        cli.setLibraryIndexEnabled(preferences.getBoolean(Preferences.KEY_LIBRARY_INDEX, false));
+        cli.setBulkConnectionEnabled(preferences.getBoolean(Preferences.KEY_BULK_CONNECTION, true));
+        cli.setRecordingDirectory(preferences.getBoolean(Preferences.KEY_RECORD_SESSIONS, false)
+                ? new File(getFilesDir(), "sessions") : null);
         //noinspection ResourceType
         mNotificationType = preferences.getString(Preferences.KEY_NOTIFICATION_TYPE,
                 Preferences.NOTIFICATION_TYPE_PLAYING);
@@ -345,6 +361,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
     }
 
     void disconnect(boolean isServerDisconnect) {
+        cancelPositionTick();
         cli.disconnect(isServerDisconnect && !mHandshakeComplete);
     }
 
@@ -400,6 +417,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         if (event.player.equals(mActivePlayer.get())) {
             updateWifiLock(event.player.getPlayerState().isPlaying());
             updateOngoingNotification();
+            updatePositionTick();
         }
 
         updatePlayerSubscription(event.player, calculateSubscriptionTypeFor(event.player));
@@ -459,6 +477,51 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
         for (Player player : mPlayers.values()) {
             updatePlayerSubscription(player, calculateSubscriptionTypeFor(player));
         }
+        cli.flushCommands();
+        updatePositionTick();
+    }
+
+    private final Runnable mPositionTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updatePositionTick();
+        }
+    };
+
+    /**
+     * Start or stop advancing the position of the active player locally, instead of receiving it
+     * from the server every second.
+     * <p>
+     * While the player plays and there are subscribers for {@link SongTimeChanged}, the position
+     * is advanced to now, and the next tick is scheduled for when it reaches the next second, so
+     * the ticks follow corrections from the server.
+     */
+    private void updatePositionTick() {
+        synchronized (mPositionTickLock) {
+            cancelPositionTick();
+            Player player = mActivePlayer.get();
+            if (player == null || !player.getPlayerState().isPlaying()
+                    || !mEventBus.hasSubscriberForEvent(SongTimeChanged.class)) {
+                return;
+            }
+            PlaybackClock clock = cli.getPlaybackClock();
+            PlayerState playerState = player.getPlayerState();
+            if (clock.advance(playerState)) {
+                mEventBus.post(new SongTimeChanged(player, playerState.getCurrentTimeSecond(),
+                        playerState.getCurrentSongDuration()));
+            }
+            mPositionTick = mExecutor.schedule(mPositionTickRunnable,
+                    clock.millisToNextSecond(playerState), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelPositionTick() {
+        synchronized (mPositionTickLock) {
+            if (mPositionTick != null) {
+                mPositionTick.cancel(false);
+                mPositionTick = null;
+            }
+        }
     }
 
     /**
@@ -470,19 +533,18 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
         if (mEventBus.hasSubscriberForEvent(PlayerStateChanged.class) ||
                 (mEventBus.hasSubscriberForEvent(SongTimeChanged.class) && player.equals(activePlayer))) {
-            if (player.equals(activePlayer)) {
-                // If it's the active player then get second-to-second updates.
+            if (player.getPlayerState().getSleep() > 0) {
+                // If the player has a sleep duration set we need real_time updates, as
+                // on_change events are not fired as the will_sleep_in timer counts down, and
+                // the service doesn't extrapolate it.
                 return PlayerState.NOTIFY_REAL_TIME;
+            } else if (player.equals(activePlayer)) {
+                // If it's the active player then the service advances its position every second,
+                // and only needs updates on change and now and then to correct the drift.
+                return PlayerState.NOTIFY_DRIFT_CORRECTION;
             } else {
-                // For other players get updates only when the player status changes...
-                // ... unless the player has a sleep duration set. In that case we need
-                // real_time updates, as on_change events are not fired as the will_sleep_in
-                // timer counts down.
-                if (player.getPlayerState().getSleep() > 0) {
-                    return PlayerState.NOTIFY_REAL_TIME;
-                } else {
-                    return PlayerState.NOTIFY_ON_CHANGE;
-                }
+                // For other players get updates only when the player status changes.
+                return PlayerState.NOTIFY_ON_CHANGE;
             }
         } else {
             // Disable subscription for this player's status updates.
@@ -776,7 +838,7 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
     /* Start an asynchronous fetch of the squeezeservers localized strings */
     private void strings() {
-        cli.sendCommandImmediately("getstring " + ServerString.values()[0].name());
+        cli.sendCommand("getstring " + ServerString.values()[0].name());
     }
 
     /** A download request will be passed to the download manager for each song called back to this */
@@ -1042,20 +1104,23 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
 
         @Override
         public void adjustVolumeTo(Player player, int newVolume) {
-            cli.sendPlayerCommand(player, "mixer volume " + Math.min(100, Math.max(0, newVolume)));
+            cli.setPlayerValue(player, CliClient.PARAMETER_VOLUME,
+                    Math.min(100, Math.max(0, newVolume)));
         }
 
         @Override
         public void adjustVolumeTo(int newVolume) {
-            sendActivePlayerCommand("mixer volume " + Math.min(100, Math.max(0, newVolume)));
+            Player player = mActivePlayer.get();
+            if (player != null) {
+                adjustVolumeTo(player, newVolume);
+            }
         }
 
         @Override
         public void adjustVolumeBy(int delta) {
-            if (delta > 0) {
-                sendActivePlayerCommand("mixer volume %2B" + delta);
-            } else if (delta < 0) {
-                sendActivePlayerCommand("mixer volume " + delta);
+            Player player = mActivePlayer.get();
+            if (player != null && delta != 0) {
+                cli.adjustPlayerVolume(player, delta);
             }
         }
 
@@ -1069,16 +1134,27 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
             return cli.isConnectInProgress();
         }
 
+        @NonNull
+        @Override
+        public ConnectionHealth getConnectionHealth() {
+            return cli.getConnectionHealth();
+        }
+
         @Override
         public void startConnect(String hostPort, String userName, String password) {
             mUsername = userName;
             mPassword = password;
+            // The Comet interface is used if it's set for the server being connected to.
+            Preferences preferences = new Preferences(SqueezeService.this);
+            Preferences.ServerAddress serverAddress = preferences.getServerAddress();
+            cli.setCometTransport(hostPort.equals(serverAddress.address)
+                    && preferences.isCometTransport(serverAddress));
             cli.startConnect(SqueezeService.this, hostPort, userName, password);
         }
 
         @Override
         public void disconnect() {
-            if (!isConnected()) {
+            if (!isConnected() && !cli.isReconnecting()) {
                 return;
             }
             SqueezeService.this.disconnect();
@@ -1469,7 +1545,14 @@ public class SqueezeService extends Service implements ServiceCallbackList.Servi
                 return false;
             }
 
-            sendActivePlayerCommand("time " + seconds);
+            Player player = mActivePlayer.get();
+            if (player == null) {
+                return false;
+            }
+            cli.setPlayerValue(player, CliClient.PARAMETER_TIME, seconds);
+            // Positions older than the seek are ignored, so extrapolate from where it will be.
+            cli.getPlaybackClock().seek(player.getPlayerState(), seconds * 1000);
+            updatePositionTick();
 
             return true;
         }
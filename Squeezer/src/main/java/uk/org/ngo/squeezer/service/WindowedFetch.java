@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+
+/**
+ * Fetches the rest of a full list with several page requests in flight at once.
+ * <p>
+ * Once the response to the first page has given the number of items, the remaining pages are
+ * requested through a {@link PageRequester}, each with its own correlation id, keeping up to
+ * <code>window</code> requests outstanding. Pages may be handled out of order (e.g. when the
+ * server is slow to answer one request); they are kept until the pages before them have arrived,
+ * so the callback always receives the pages in order.
+ * <p>
+ * A fetch is only used on the thread that handles responses, so it is not thread safe.
+ */
+class WindowedFetch {
+
+    /** Sends the request for one page. */
+    interface PageRequester {
+        /**
+         * Request a page of the list. The response must be passed to
+         * {@link #onPageReceived(int, List)}.
+         *
+         * @param fetch The fetch the page belongs to.
+         * @param start Index of the first item of the page.
+         * @param count Number of items in the page.
+         */
+        void requestPage(WindowedFetch fetch, int start, int count);
+    }
+
+    /** The arguments of one call to the callback. */
+    static class Delivery {
+        final int count;
+        final int start;
+        final Map<String, String> parameters;
+        final List items;
+        final Class dataType;
+
+        /**
+         * @param items The items, which must not be changed after this is created.
+         */
+        Delivery(int count, int start, Map<String, String> parameters, List items,
+                Class dataType) {
+            this.count = count;
+            this.start = start;
+            this.parameters = parameters;
+            this.items = items;
+            this.dataType = dataType;
+        }
+
+        @SuppressWarnings("unchecked")
+        void deliverTo(IServiceItemListCallback callback) {
+            callback.onItemsReceived(count, start, parameters, items, dataType);
+        }
+    }
+
+    private final IServiceItemListCallback mCallback;
+
+    private final int mTotal;
+
+    private final int mPageSize;
+
+    private final int mWindow;
+
+    private final PageRequester mRequester;
+
+    /** Start of the next page to request. */
+    private int mNextRequest;
+
+    /** Start of the next page to give to the callback. */
+    private int mNextDelivery;
+
+    /** Number of pages requested but not yet received. */
+    private int mInFlight;
+
+    /** Pages that arrived before the pages in front of them, keyed by their start. */
+    private final Map<Integer, List<Delivery>> mWaiting = new HashMap<Integer, List<Delivery>>();
+
+    /** The most pages that were waiting at once. */
+    private int mMaxWaiting;
+
+    /**
+     * @param callback Receives the pages.
+     * @param start Index of the first item still to fetch.
+     * @param total Number of items in the list.
+     * @param pageSize Number of items to request in each page.
+     * @param window Maximum number of page requests in flight.
+     * @param requester Sends the page requests.
+     */
+    WindowedFetch(IServiceItemListCallback callback, int start, int total, int pageSize,
+            int window, PageRequester requester) {
+        mCallback = callback;
+        mTotal = total;
+        mPageSize = pageSize;
+        mWindow = Math.max(1, window);
+        mRequester = requester;
+        mNextRequest = start;
+        mNextDelivery = start;
+    }
+
+    IServiceItemListCallback getCallback() {
+        return mCallback;
+    }
+
+    /**
+     * Request pages until the window is full or every page has been requested.
+     */
+    void fill() {
+        while (mInFlight < mWindow && mNextRequest < mTotal) {
+            int start = mNextRequest;
+            int count = pageLength(start);
+            mNextRequest += count;
+            mInFlight++;
+            mRequester.requestPage(this, start, count);
+        }
+    }
+
+    /**
+     * Handle the response to a page request. The page, and any waiting pages that follow it, are
+     * given to the callback if all the pages before it have been given, and more pages are
+     * requested.
+     *
+     * @param start The start of the page.
+     * @param deliveries The calls to make to the callback for the page.
+     */
+    void onPageReceived(int start, List<Delivery> deliveries) {
+        mInFlight--;
+        if (start != mNextDelivery) {
+            mWaiting.put(start, deliveries);
+            mMaxWaiting = Math.max(mMaxWaiting, mWaiting.size());
+        } else {
+            deliver(deliveries);
+            mNextDelivery += pageLength(start);
+            List<Delivery> next;
+            while ((next = mWaiting.remove(mNextDelivery)) != null) {
+                deliver(next);
+                mNextDelivery += pageLength(mNextDelivery);
+            }
+        }
+        fill();
+    }
+
+    /**
+     * @return True if every page has been given to the callback.
+     */
+    boolean isComplete() {
+        return mNextDelivery >= mTotal;
+    }
+
+    /**
+     * @return The most pages that had to wait for earlier pages at once.
+     */
+    int getMaxWaiting() {
+        return mMaxWaiting;
+    }
+
+    private int pageLength(int start) {
+        return Math.min(mPageSize, mTotal - start);
+    }
+
+    private void deliver(List<Delivery> deliveries) {
+        for (Delivery delivery : deliveries) {
+            delivery.deliverTo(mCallback);
+        }
+    }
+}
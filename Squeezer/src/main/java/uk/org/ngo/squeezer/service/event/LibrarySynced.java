@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service.event;
+
+/** Event sent when the library index has been synchronized with the server. */
+public class LibrarySynced {
+    /** The number of items fetched from the server. */
+    public final int items;
+
+    /** The number of bytes fetched from the server. */
+    public final long bytes;
+
+    /** How long the synchronization took. */
+    public final long elapsedMillis;
+
+    /** The number of items that were new or had changed. */
+    public final int written;
+
+    /** The number of items that the server no longer has. */
+    public final int removed;
+
+    public LibrarySynced(int items, long bytes, long elapsedMillis, int written, int removed) {
+        this.items = items;
+        this.bytes = bytes;
+        this.elapsedMillis = elapsedMillis;
+        this.written = written;
+        this.removed = removed;
+    }
+
+    /** @return The number of items synchronized per second. */
+    public long itemsPerSecond() {
+        return elapsedMillis == 0 ? 0 : items * 1000L / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "LibrarySynced{items=" + items + ", bytes=" + bytes + ", elapsed="
+                + elapsedMillis + "ms (" + itemsPerSecond() + " items/s), written=" + written
+                + ", removed=" + removed + "}";
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SearchPipelineTest extends TestCase {
+
+    private static final List<String> ITEMS = Arrays.asList("a", "b");
+
+    private SearchPipeline pipeline;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pipeline = new SearchPipeline(2);
+    }
+
+    public void testSetTerm() {
+        assertTrue(pipeline.setTerm("beat"));
+        assertFalse("Same term", pipeline.setTerm("beat"));
+        assertFalse("Surrounding white space is ignored", pipeline.setTerm(" beat "));
+        assertEquals("beat", pipeline.getTerm());
+        assertTrue(pipeline.setTerm("beatl"));
+        assertEquals(2, pipeline.getSearchCount());
+    }
+
+    public void testStaleResultsAreDropped() {
+        pipeline.setTerm("b");
+        pipeline.setTerm("be");
+
+        assertFalse(pipeline.onItemsReceived("b", 10, 0, ITEMS, String.class));
+        assertTrue(pipeline.onItemsReceived("be", 2, 0, ITEMS, String.class));
+        assertEquals(1, pipeline.getStaleCount());
+        assertEquals("The search for 'b' was replaced before its results arrived", 1,
+                pipeline.getCancelledCount());
+    }
+
+    public void testFirstResultLatency() {
+        assertEquals(-1, pipeline.getAverageFirstResultMillis());
+
+        pipeline.setTerm("be");
+        pipeline.onItemsReceived("be", 2, 0, ITEMS, String.class);
+        pipeline.onItemsReceived("be", 2, 0, ITEMS, Integer.class);
+        pipeline.setTerm("bea");
+
+        assertTrue(pipeline.getAverageFirstResultMillis() >= 0);
+        assertEquals("A search that got results is not cancelled when the term changes", 0,
+                pipeline.getCancelledCount());
+    }
+
+    public void testCachedResults() {
+        pipeline.setTerm("be");
+        pipeline.onItemsReceived("be", 2, 0, ITEMS, String.class);
+        assertNull("Not all kinds of results have arrived", pipeline.cached("be"));
+
+        pipeline.onItemsReceived("be", 40, 20, ITEMS, Integer.class);
+        assertNull("Only the first page is cached", pipeline.cached("be"));
+
+        pipeline.onItemsReceived("be", 40, 0, ITEMS, Integer.class);
+        pipeline.setTerm("bea");
+
+        List<SearchPipeline.Delivery> cached = pipeline.cached("be");
+        assertNotNull(cached);
+        assertEquals(2, cached.size());
+        assertEquals(40, cached.get(1).count);
+        assertEquals(Integer.class, cached.get(1).dataType);
+        assertEquals(ITEMS, cached.get(1).items);
+        assertEquals(1, pipeline.getCacheHitCount());
+
+        pipeline.clearCache();
+        assertNull(pipeline.cached("be"));
+    }
+
+    public void testSearchingAgainReplacesCachedResults() {
+        pipeline.setTerm("be");
+        pipeline.onItemsReceived("be", 2, 0, ITEMS, String.class);
+        pipeline.onItemsReceived("be", 2, 0, ITEMS, Integer.class);
+
+        // Each time the term is searched for again its results are shown from the cache, and
+        // the same pages are received again.
+        for (int i = 0; i < 3; i++) {
+            pipeline.setTerm("bea");
+            pipeline.setTerm("be");
+            assertEquals(2, pipeline.cached("be").size());
+            pipeline.onItemsReceived("be", 3 + i, 0, ITEMS, String.class);
+            pipeline.onItemsReceived("be", 2, 0, ITEMS, Integer.class);
+        }
+
+        List<SearchPipeline.Delivery> cached = pipeline.cached("be");
+        assertEquals(2, cached.size());
+        assertEquals("The latest page is kept", 5, cached.get(0).count);
+    }
+
+    public void testCacheIsBounded() {
+        for (int i = 0; i < 20; i++) {
+            String term = "term" + i;
+            pipeline.setTerm(term);
+            pipeline.onItemsReceived(term, 2, 0, ITEMS, String.class);
+            pipeline.onItemsReceived(term, 2, 0, ITEMS, Integer.class);
+        }
+
+        assertNull(pipeline.cached("term0"));
+        assertNotNull(pipeline.cached("term19"));
+    }
+}
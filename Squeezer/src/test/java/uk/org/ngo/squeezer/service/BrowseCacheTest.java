@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+public class BrowseCacheTest extends TestCase {
+
+    private static byte[] response(int length) {
+        return new byte[length];
+    }
+
+    public void testKeyIgnoresParameterOrder() {
+        assertEquals(BrowseCache.key("albums 0 20 tags%3Ajl genre_id%3A3"),
+                BrowseCache.key("albums 0 20 genre_id%3A3 tags%3Ajl"));
+        assertFalse(BrowseCache.key("albums 0 20 tags%3Ajl").equals(
+                BrowseCache.key("albums 20 20 tags%3Ajl")));
+        assertEquals("artists 0 1", BrowseCache.key("artists 0 1"));
+    }
+
+    public void testHitsAndMisses() {
+        BrowseCache cache = new BrowseCache(100000);
+        assertNull(cache.get("artists 0 1"));
+
+        byte[] response = response(100);
+        cache.put("artists 0 1", response);
+        assertSame(response, cache.get("artists 0 1"));
+        assertSame(response, cache.get("artists 0 1"));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+    }
+
+    public void testFootprint() {
+        BrowseCache cache = new BrowseCache(100000);
+        cache.put("artists 0 1", response(100));
+        cache.put("genres 0 1", response(50));
+        int expected = 2 * BrowseCache.ENTRY_OVERHEAD_BYTES + 2 * ("artists 0 1".length()
+                + "genres 0 1".length()) + 150;
+        assertEquals(expected, cache.getBytes());
+
+        cache.put("artists 0 1", response(10));
+        assertEquals("Replacing an entry", expected - 90, cache.getBytes());
+    }
+
+    public void testLeastRecentlyUsedAreEvicted() {
+        BrowseCache cache = new BrowseCache(4000);
+        cache.put("a", response(900));
+        cache.put("b", response(900));
+        cache.put("c", response(900));
+        cache.get("a");
+        cache.put("d", response(900));
+        cache.put("e", response(900));
+
+        assertTrue(cache.getBytes() <= 4000);
+        assertNotNull("Recently used", cache.get("a"));
+        assertNull("Least recently used", cache.get("b"));
+        assertNotNull(cache.get("e"));
+    }
+
+    public void testLargeResponsesAreNotCached() {
+        BrowseCache cache = new BrowseCache(4000);
+        cache.put("a", response(2000));
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    public void testInvalidate() {
+        BrowseCache cache = new BrowseCache(100000);
+        cache.put("a", response(10));
+        cache.get("a");
+        cache.invalidate();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getBytes());
+        assertEquals("Statistics are kept", 1, cache.getHitCount());
+    }
+}
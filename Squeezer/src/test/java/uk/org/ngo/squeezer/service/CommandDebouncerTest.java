@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+public class CommandDebouncerTest extends TestCase {
+
+    private static final String PLAYER = "00:04:20:17:7d:2e";
+
+    private static final String OTHER_PLAYER = "00:04:20:17:7d:2f";
+
+    private final List<String> sent = new ArrayList<String>();
+
+    private final CommandDebouncer.Sender sender = new CommandDebouncer.Sender() {
+        @Override
+        public void send(String playerId, String parameter, int value, boolean relative) {
+            synchronized (sent) {
+                sent.add(playerId + " " + parameter + " " + (relative && value > 0 ? "+" : "")
+                        + value);
+                sent.notifyAll();
+            }
+        }
+    };
+
+    private ScheduledThreadPoolExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /** Wait until at least count values have been sent. */
+    private boolean awaitSent(int count, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (sent) {
+            while (sent.size() < count && System.currentTimeMillis() < end) {
+                sent.wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return sent.size() >= count;
+        }
+    }
+
+    public void testFirstValueIsSentStraightAway() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 10000, sender);
+
+        debouncer.set(PLAYER, "mixer volume", 40);
+
+        assertTrue(awaitSent(1, 1000));
+        assertEquals(PLAYER + " mixer volume 40", sent.get(0));
+    }
+
+    public void testDragSendsBoundedNumberOfValues() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 100, sender);
+
+        // 50 UI events over 500ms.
+        long start = System.currentTimeMillis();
+        for (int volume = 1; volume <= 50; volume++) {
+            debouncer.set(PLAYER, "mixer volume", volume);
+            Thread.sleep(10);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Thread.sleep(300);
+
+        synchronized (sent) {
+            assertTrue("Sent " + sent.size() + " values in " + elapsed + "ms",
+                    sent.size() <= elapsed / 100 + 2);
+            assertEquals("The last value wins", PLAYER + " mixer volume 50",
+                    sent.get(sent.size() - 1));
+        }
+        assertEquals(50, debouncer.getRequestCount());
+        assertEquals(sent.size(), debouncer.getSendCount());
+    }
+
+    public void testParametersAndPlayersAreIndependent() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 10000, sender);
+
+        debouncer.set(PLAYER, "mixer volume", 40);
+        debouncer.set(PLAYER, "time", 120);
+        debouncer.set(OTHER_PLAYER, "mixer volume", 60);
+
+        assertTrue(awaitSent(3, 1000));
+        assertTrue(sent.contains(PLAYER + " mixer volume 40"));
+        assertTrue(sent.contains(PLAYER + " time 120"));
+        assertTrue(sent.contains(OTHER_PLAYER + " mixer volume 60"));
+    }
+
+    public void testAdjustmentsAreAddedUp() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 200, sender);
+
+        debouncer.adjust(PLAYER, "mixer volume", 5);
+        assertTrue(awaitSent(1, 1000));
+        assertEquals(PLAYER + " mixer volume +5", sent.get(0));
+
+        debouncer.adjust(PLAYER, "mixer volume", 5);
+        debouncer.adjust(PLAYER, "mixer volume", 5);
+        debouncer.adjust(PLAYER, "mixer volume", -12);
+        assertTrue(awaitSent(2, 1000));
+        assertEquals(PLAYER + " mixer volume -2", sent.get(1));
+
+        // The result of a relative change is whatever the server reports.
+        assertFalse(debouncer.isStale(PLAYER, "mixer volume", 73));
+        assertEquals(4, debouncer.getRequestCount());
+        assertEquals(2, debouncer.getSendCount());
+    }
+
+    public void testAdjustmentsThatCancelOutAreNotSent() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 200, sender);
+
+        debouncer.adjust(PLAYER, "mixer volume", 5);
+        assertTrue(awaitSent(1, 1000));
+        debouncer.adjust(PLAYER, "mixer volume", 5);
+        debouncer.adjust(PLAYER, "mixer volume", -5);
+
+        assertFalse(awaitSent(2, 400));
+    }
+
+    public void testAdjustmentIsAddedToPendingValue() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 200, sender);
+
+        debouncer.set(PLAYER, "mixer volume", 30);
+        assertTrue(awaitSent(1, 1000));
+        debouncer.set(PLAYER, "mixer volume", 40);
+        debouncer.adjust(PLAYER, "mixer volume", 5);
+
+        assertTrue(awaitSent(2, 1000));
+        assertEquals(PLAYER + " mixer volume 45", sent.get(1));
+    }
+
+    public void testEchoes() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 200, sender);
+
+        assertFalse("Nothing has been set", debouncer.isStale(PLAYER, "mixer volume", 10));
+
+        debouncer.set(PLAYER, "mixer volume", 20);
+        assertTrue(awaitSent(1, 1000));
+        debouncer.set(PLAYER, "mixer volume", 30);
+
+        assertTrue("30 is waiting to be sent", debouncer.isStale(PLAYER, "mixer volume", 20));
+
+        assertTrue(awaitSent(2, 1000));
+        assertTrue("Echo of the previous value", debouncer.isStale(PLAYER, "mixer volume", 20));
+        assertFalse("Echo of the last value", debouncer.isStale(PLAYER, "mixer volume", 30));
+        assertFalse("Changed by someone else", debouncer.isStale(PLAYER, "mixer volume", 50));
+    }
+
+    public void testClearDropsPendingValues() throws InterruptedException {
+        CommandDebouncer debouncer = new CommandDebouncer(executor, 200, sender);
+
+        debouncer.set(PLAYER, "mixer volume", 20);
+        assertTrue(awaitSent(1, 1000));
+        debouncer.set(PLAYER, "mixer volume", 30);
+        debouncer.clear();
+
+        assertFalse(awaitSent(2, 400));
+        assertFalse(debouncer.isStale(PLAYER, "mixer volume", 20));
+    }
+}
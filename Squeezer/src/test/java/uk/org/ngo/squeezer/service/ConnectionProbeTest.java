@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+public class ConnectionProbeTest extends TestCase {
+
+    private static final long STALL_NANOS = 20 * 1000000000L;
+
+    private long nanos = 1000000000L;
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos;
+        }
+    };
+
+    private final ConnectionProbe probe = new ConnectionProbe(ticker, STALL_NANOS);
+
+    private void sleep(int millis) {
+        nanos += millis * 1000000L;
+    }
+
+    public void testRoundTripTimes() {
+        probe.onProbeSent(1);
+        sleep(5);
+        assertTrue(probe.onProbeReply(1));
+        probe.onProbeSent(2);
+        sleep(50);
+        assertTrue(probe.onProbeReply(2));
+        assertFalse("Answered already", probe.onProbeReply(2));
+        assertFalse("Not a probe", probe.onProbeReply(3));
+
+        ConnectionHealth health = probe.getHealth();
+        assertEquals(2, health.getProbeCount());
+        assertEquals(2, health.getRttCount());
+        assertEquals(50000, health.getMaxMicros());
+        assertEquals(50000, health.getP99Micros());
+        assertTrue(health.getP50Micros() >= 5000 && health.getP50Micros() < 6250);
+    }
+
+    public void testStallsWhenNothingArrives() {
+        probe.onProbeSent(1);
+        sleep(20000);
+        assertFalse(probe.isStalled());
+        sleep(1);
+        assertTrue(probe.isStalled());
+
+        probe.onStall();
+        assertFalse(probe.isStalled());
+        assertEquals(1, probe.getHealth().getStallCount());
+    }
+
+    public void testSlowReplyIsNotAStallWhileLinesArrive() {
+        probe.onProbeSent(1);
+        sleep(10000);
+        probe.onReceived();
+        sleep(20000);
+        assertFalse(probe.isStalled());
+
+        // The next probe is unanswered, and nothing else arrives.
+        probe.onProbeSent(2);
+        sleep(20001);
+        assertTrue(probe.isStalled());
+    }
+
+    public void testForgetsOldProbes() {
+        for (int i = 0; i < 20; i++) {
+            probe.onProbeSent(i);
+        }
+        assertFalse(probe.onProbeReply(0));
+        assertTrue(probe.onProbeReply(19));
+        assertEquals(20, probe.getHealth().getProbeCount());
+    }
+
+    public void testResetStartsANewConnection() {
+        probe.onProbeSent(1);
+        sleep(30000);
+        assertTrue(probe.isStalled());
+        probe.onStall();
+
+        probe.reset();
+        assertEquals(0, probe.getHealth().getProbeCount());
+        assertEquals(0, probe.getHealth().getRttCount());
+        assertEquals("Stalls are counted across connections", 1,
+                probe.getHealth().getStallCount());
+    }
+}
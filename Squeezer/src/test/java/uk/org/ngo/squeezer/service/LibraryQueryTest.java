@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class LibraryQueryTest extends TestCase {
+
+    private static final String ALBUM_TAGS = "alyjS";
+
+    private static final String SONG_TAGS = "aCdejJKlstxyuip";
+
+    public void testAlbums() {
+        LibraryQuery query = LibraryQuery.parse(
+                "albums 20 10 tags%3Aalyj sort%3Aalbum full_list%3A1", ALBUM_TAGS);
+
+        assertNotNull(query);
+        assertEquals("albums", query.list);
+        assertEquals(20, query.start);
+        assertEquals(10, query.count);
+        assertEquals("list=?", query.where());
+        assertEquals(Arrays.asList("albums"), Arrays.asList(query.whereArgs()));
+        assertEquals("position", query.orderBy());
+        assertEquals("albums 20 10 tags%3Aalyj sort%3Aalbum full_list%3A1",
+                query.responsePrefix().toString());
+    }
+
+    /**
+     * The index only has the primary artist and the first genre of each song, the server
+     * matches all of them.
+     */
+    public void testArtistAndGenreFiltersAreSentToTheServer() {
+        assertNull(LibraryQuery.parse("albums 0 10 tags%3Aalyj sort%3Aalbum artist_id%3A4",
+                ALBUM_TAGS));
+        assertNull(LibraryQuery.parse("albums 0 10 genre_id%3A3", ALBUM_TAGS));
+        assertNull(LibraryQuery.parse("artists 0 10 genre_id%3A3", ""));
+        assertNull(LibraryQuery.parse("artists 0 10 album_id%3A7", ""));
+        assertNull(LibraryQuery.parse("genres 0 10 artist_id%3A4", ""));
+        assertNull(LibraryQuery.parse("songs 0 10 tags%3AaCdejJKlstxyu artist_id%3A4",
+                SONG_TAGS));
+        assertNull(LibraryQuery.parse("songs 0 10 tags%3AaCdejJKlstxyu genre_id%3A3",
+                SONG_TAGS));
+    }
+
+    public void testSongsOfAlbum() {
+        LibraryQuery query = LibraryQuery.parse(
+                "songs 0 1 tags%3AaCdejJKlstxyu sort%3Atracknum album_id%3A7", SONG_TAGS);
+
+        assertNotNull(query);
+        assertEquals("list=? AND album_id=?", query.where());
+        assertEquals("disc, tracknum, position", query.orderBy());
+    }
+
+    public void testAlbumsByYear() {
+        LibraryQuery query = LibraryQuery.parse("albums 0 1 year%3A1999", ALBUM_TAGS);
+
+        assertNotNull(query);
+        assertEquals("list=? AND year=?", query.where());
+    }
+
+    public void testUnsupportedRequests() {
+        assertNull("Search", LibraryQuery.parse("artists 0 20 search%3Afoo", ""));
+        assertNull("Tags that aren't indexed",
+                LibraryQuery.parse("albums 0 20 tags%3Aalyjw", ALBUM_TAGS));
+        assertNull("Sort order", LibraryQuery.parse("albums 0 20 sort%3Anew", ALBUM_TAGS));
+        assertNull("Filter", LibraryQuery.parse("songs 0 20 folder_id%3A3", SONG_TAGS));
+        assertNull("Filtering a list by its own id",
+                LibraryQuery.parse("artists 0 20 artist_id%3A3", ""));
+        assertNull("Years can't be filtered", LibraryQuery.parse("years 0 20 genre_id%3A3", ""));
+        assertNull(LibraryQuery.parse("artists 0", ""));
+    }
+
+    public void testSearch() {
+        LibraryQuery query = LibraryQuery.parse(
+                "songs 0 50 tags%3AaCdejJKlstxyu sort%3Atitle search%3ABack%20in", SONG_TAGS,
+                true);
+
+        assertNotNull(query);
+        assertEquals("list=? AND id IN (SELECT id FROM word WHERE list=? AND word>=? AND word<?)"
+                + " AND id IN (SELECT id FROM word WHERE list=? AND word>=? AND word<?)",
+                query.where());
+        assertEquals(Arrays.asList("songs", "songs", "back", "back\uffff", "songs", "in",
+                "in\uffff"), Arrays.asList(query.whereArgs()));
+        assertEquals("position", query.orderBy());
+        assertEquals("songs 0 50 tags%3AaCdejJKlstxyu sort%3Atitle search%3ABack%20in",
+                query.responsePrefix().toString());
+
+        assertNull("Nothing to search for",
+                LibraryQuery.parse("artists 0 20 search%3A%20-", "", true));
+        assertNull("Album sort orders still apply",
+                LibraryQuery.parse("albums 0 20 sort%3Anew search%3Afoo", ALBUM_TAGS, true));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.org.ngo.squeezer.framework.Tag;
+
+public class LibraryRecordTest extends TestCase {
+
+    private static final String SONGS = "songs 500 2 tags%3AaCdejJKlstxyuip sort%3Atitle"
+            + " correlationid%3A7"
+            + " id%3A11 title%3AOne artist_id%3A3 album_id%3A5 genre_id%3A2 year%3A1999"
+            + " tracknum%3A4 disc%3A2"
+            + " id%3A12 title%3ATwo%20Words artist_id%3A4"
+            + " count%3A1234";
+
+    private static TokenCursor cursor(String line) {
+        byte[] bytes = line.getBytes();
+        return new TokenCursor().reset(bytes, 0, bytes.length);
+    }
+
+    public void testSplit() {
+        List<LibraryRecord> records = new ArrayList<LibraryRecord>();
+        int count = LibraryRecord.split(cursor(SONGS), 3, Tag.ID, Tag.TITLE, 500,
+                records);
+
+        assertEquals(1234, count);
+        assertEquals(2, records.size());
+
+        LibraryRecord first = records.get(0);
+        assertEquals("11", first.id);
+        assertEquals(500, first.position);
+        assertEquals("3", first.artistId);
+        assertEquals("5", first.albumId);
+        assertEquals("2", first.genreId);
+        assertEquals(1999, first.year);
+        assertEquals(4, first.tracknum);
+        assertEquals(2, first.disc);
+        assertEquals("One", first.name);
+        assertEquals("id%3A11 title%3AOne artist_id%3A3 album_id%3A5 genre_id%3A2 year%3A1999"
+                + " tracknum%3A4 disc%3A2", new String(first.tokens));
+
+        LibraryRecord second = records.get(1);
+        assertEquals("12", second.id);
+        assertEquals(501, second.position);
+        assertEquals("4", second.artistId);
+        assertNull(second.albumId);
+        assertEquals("Two Words", second.name);
+        assertEquals("Count is not part of the item",
+                "id%3A12 title%3ATwo%20Words artist_id%3A4", new String(second.tokens));
+    }
+
+    public void testSplitYears() {
+        List<LibraryRecord> records = new ArrayList<LibraryRecord>();
+        int count = LibraryRecord.split(cursor("years 0 3 year%3A2001 year%3A1999 year%3A0"
+                + " count%3A3"), 3, Tag.YEAR, -1, 0, records);
+
+        assertEquals(3, count);
+        assertEquals(3, records.size());
+        assertEquals("1999", records.get(1).id);
+        assertEquals(1999, records.get(1).year);
+        assertEquals("year%3A0", new String(records.get(2).tokens));
+        assertNull(records.get(2).name);
+    }
+
+    public void testEmptyResponse() {
+        List<LibraryRecord> records = new ArrayList<LibraryRecord>();
+        int count = LibraryRecord.split(cursor("artists 0 500 count%3A0"), 3, Tag.ID,
+                Tag.ARTIST, 0, records);
+
+        assertEquals(0, count);
+        assertTrue(records.isEmpty());
+    }
+
+    public void testWords() {
+        assertEquals(Arrays.asList("ac", "dc", "back", "in", "black"),
+                LibraryRecord.words("AC/DC - Back In Black"));
+        assertEquals(Arrays.asList("love", "me", "do"), LibraryRecord.words("Love me, love me DO"));
+        assertEquals(Arrays.asList("björk", "99"), LibraryRecord.words(" Björk (99) "));
+        assertTrue(LibraryRecord.words(" - ").isEmpty());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import uk.org.ngo.squeezer.model.PlayerState;
+
+public class PlaybackClockTest extends TestCase {
+
+    private long nanos = 1000000000L;
+
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos;
+        }
+    };
+
+    private final PlaybackClock clock = new PlaybackClock(ticker);
+
+    private final PlayerState state = new PlayerState();
+
+    private void sleep(int millis) {
+        nanos += millis * 1000000L;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        state.setCurrentSongDuration(245);
+    }
+
+    public void testAdvancesWhilePlaying() {
+        clock.setPosition(state, 31500);
+        state.setCurrentTimeSecond(31);
+        clock.setPlayStatus(state, PlayerState.PLAY_STATE_PLAY);
+        assertEquals(31500, clock.positionMillis(state));
+        assertEquals(500, clock.millisToNextSecond(state));
+
+        sleep(499);
+        assertFalse(clock.advance(state));
+        sleep(1);
+        assertTrue(clock.advance(state));
+        assertEquals(32, state.getCurrentTimeSecond());
+        assertEquals(1000, clock.millisToNextSecond(state));
+        assertEquals(1, clock.getExtrapolatedCount());
+    }
+
+    public void testStopsAtTheEndOfTheSong() {
+        clock.setPosition(state, 244000);
+        clock.setPlayStatus(state, PlayerState.PLAY_STATE_PLAY);
+        sleep(10000);
+        assertEquals(245000, clock.positionMillis(state));
+    }
+
+    public void testPauseKeepsThePosition() {
+        clock.setPosition(state, 10000);
+        clock.setPlayStatus(state, PlayerState.PLAY_STATE_PLAY);
+        sleep(2500);
+        assertTrue(clock.setPlayStatus(state, PlayerState.PLAY_STATE_PAUSE));
+        sleep(60000);
+        assertEquals(12500, clock.positionMillis(state));
+
+        assertTrue(clock.setPlayStatus(state, PlayerState.PLAY_STATE_PLAY));
+        sleep(1000);
+        assertEquals(13500, clock.positionMillis(state));
+    }
+
+    public void testCorrectionsMeasureDrift() {
+        clock.setPosition(state, 10000);
+        clock.setPlayStatus(state, PlayerState.PLAY_STATE_PLAY);
+        sleep(30000);
+        clock.setPosition(state, 39750);
+        assertEquals(250, clock.getMaxDriftMillis());
+        assertEquals(39750, clock.positionMillis(state));
+
+        // A new song, not drift.
+        sleep(30000);
+        clock.setPosition(state, 0);
+        assertEquals(250, clock.getMaxDriftMillis());
+        assertEquals(3, clock.getReportedCount());
+    }
+
+    public void testSeek() {
+        clock.setPosition(state, 10000);
+        clock.setPlayStatus(state, PlayerState.PLAY_STATE_PLAY);
+        sleep(5000);
+        clock.seek(state, 120000);
+        assertEquals(120, state.getCurrentTimeSecond());
+        sleep(1000);
+        assertEquals(121000, clock.positionMillis(state));
+        assertEquals(1, clock.getReportedCount());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ReconnectBackoffTest extends TestCase {
+
+    /** A random source that always returns the same value. */
+    private static Random fixed(final double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    public void testDoublesUpToTheMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, 10, fixed(0.999999));
+        assertEquals(1000, backoff.delayMillis(0));
+        assertEquals(2000, backoff.delayMillis(1));
+        assertEquals(4000, backoff.delayMillis(2));
+        assertEquals(32000, backoff.delayMillis(5));
+        assertEquals(60000, backoff.delayMillis(6));
+        assertEquals(60000, backoff.delayMillis(9));
+    }
+
+    public void testHalfOfTheDelayIsRandom() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, 10, fixed(0));
+        assertEquals(500, backoff.delayMillis(0));
+        assertEquals(16000, backoff.delayMillis(5));
+        assertEquals(30000, backoff.delayMillis(9));
+
+        backoff = new ReconnectBackoff(1000, 60000, 10, new Random(42));
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long cap = Math.min(60000, 1000L << attempt);
+            long delay = backoff.delayMillis(attempt);
+            assertTrue(delay >= cap / 2);
+            assertTrue(delay <= cap);
+        }
+    }
+
+    public void testGivesUp() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, 3, new Random());
+        assertTrue(backoff.delayMillis(2) > 0);
+        assertEquals(-1, backoff.delayMillis(3));
+        assertEquals(-1, backoff.delayMillis(-1));
+    }
+
+    public void testLargeAttemptsDoNotOverflow() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, Integer.MAX_VALUE,
+                fixed(0));
+        assertEquals(30000, backoff.delayMillis(40));
+        assertEquals(30000, backoff.delayMillis(100));
+    }
+}
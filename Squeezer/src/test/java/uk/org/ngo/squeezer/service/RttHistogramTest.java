@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+public class RttHistogramTest extends TestCase {
+
+    private final RttHistogram histogram = new RttHistogram();
+
+    private void recordMicros(long micros) {
+        histogram.record(micros * 1000);
+    }
+
+    public void testBucketsCoverTheirTimes() {
+        for (long micros = 0; micros < 1000000; micros += 1 + micros / 7) {
+            int bucket = RttHistogram.bucket(micros);
+            assertTrue(micros + "us", micros <= RttHistogram.bucketMaxMicros(bucket));
+            if (bucket > 0) {
+                assertTrue(micros + "us", micros > RttHistogram.bucketMaxMicros(bucket - 1));
+            }
+        }
+        assertEquals(RttHistogram.bucket(1L << 40), RttHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    public void testEmpty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentileMicros(50));
+        assertEquals(0, histogram.percentileMicros(99));
+    }
+
+    public void testPercentiles() {
+        // 1ms to 100ms.
+        for (int i = 1; i <= 100; i++) {
+            recordMicros(i * 1000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100000, histogram.getMaxMicros());
+        assertWithin(50000, histogram.percentileMicros(50));
+        assertWithin(95000, histogram.percentileMicros(95));
+        assertWithin(99000, histogram.percentileMicros(99));
+        assertEquals(100000, histogram.percentileMicros(100));
+    }
+
+    public void testOutlier() {
+        for (int i = 0; i < 99; i++) {
+            recordMicros(2000);
+        }
+        recordMicros(3000000);
+        assertWithin(2000, histogram.percentileMicros(50));
+        assertWithin(2000, histogram.percentileMicros(99));
+        assertEquals(3000000, histogram.percentileMicros(99.5));
+    }
+
+    public void testReset() {
+        recordMicros(5000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        recordMicros(7);
+        assertEquals(7, histogram.percentileMicros(50));
+    }
+
+    /** Percentiles are the greatest time in their bucket, at most 25% above the time. */
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + "us for " + expected + "us",
+                actual >= expected && actual <= expected * 5 / 4);
+    }
+}
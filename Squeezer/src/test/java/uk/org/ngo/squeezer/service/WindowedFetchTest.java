@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.itemlist.IServiceItemListCallback;
+
+public class WindowedFetchTest extends TestCase {
+
+    /** Records the starts of the pages it receives. */
+    private static class RecordingCallback implements IServiceItemListCallback {
+        final List<Integer> starts = new ArrayList<Integer>();
+
+        @Override
+        public void onItemsReceived(int count, int start, Map parameters, List items,
+                Class dataType) {
+            starts.add(start);
+        }
+
+        @Override
+        public Object getClient() {
+            return this;
+        }
+    }
+
+    /** Records the page requests, so the test can answer them in any order. */
+    private static class RecordingRequester implements WindowedFetch.PageRequester {
+        final List<int[]> requests = new ArrayList<int[]>();
+
+        int maxOutstanding;
+
+        int outstanding;
+
+        @Override
+        public void requestPage(WindowedFetch fetch, int start, int count) {
+            requests.add(new int[]{start, count});
+            outstanding++;
+            maxOutstanding = Math.max(maxOutstanding, outstanding);
+        }
+
+        /** Answer the request at index. */
+        void answer(WindowedFetch fetch, int index) {
+            int[] request = requests.get(index);
+            outstanding--;
+            fetch.onPageReceived(request[0], Collections.singletonList(
+                    new WindowedFetch.Delivery(0, request[0], null, null, null)));
+        }
+    }
+
+    private final RecordingCallback callback = new RecordingCallback();
+
+    private final RecordingRequester requester = new RecordingRequester();
+
+    public void testFillsWindow() {
+        WindowedFetch fetch = new WindowedFetch(callback, 20, 1000, 100, 4, requester);
+        fetch.fill();
+
+        assertEquals(4, requester.requests.size());
+        assertEquals(20, requester.requests.get(0)[0]);
+        assertEquals(100, requester.requests.get(0)[1]);
+        assertEquals(320, requester.requests.get(3)[0]);
+    }
+
+    public void testInOrderResponses() {
+        WindowedFetch fetch = new WindowedFetch(callback, 20, 1000, 100, 4, requester);
+        fetch.fill();
+
+        for (int i = 0; !fetch.isComplete(); i++) {
+            requester.answer(fetch, i);
+        }
+
+        assertEquals(Arrays.asList(20, 120, 220, 320, 420, 520, 620, 720, 820, 920),
+                callback.starts);
+        assertEquals("Last page is short", 80, requester.requests.get(9)[1]);
+        assertEquals(4, requester.maxOutstanding);
+        assertEquals(0, fetch.getMaxWaiting());
+    }
+
+    public void testOutOfOrderResponsesAreReassembled() {
+        WindowedFetch fetch = new WindowedFetch(callback, 0, 500, 100, 3, requester);
+        fetch.fill();
+
+        requester.answer(fetch, 2);
+        requester.answer(fetch, 1);
+        assertTrue("Nothing is delivered before the first page", callback.starts.isEmpty());
+        assertEquals("Answers keep the window full", 5, requester.requests.size());
+
+        requester.answer(fetch, 0);
+        assertEquals(Arrays.asList(0, 100, 200), callback.starts);
+
+        requester.answer(fetch, 4);
+        requester.answer(fetch, 3);
+        assertEquals(Arrays.asList(0, 100, 200, 300, 400), callback.starts);
+        assertTrue(fetch.isComplete());
+        assertEquals(2, fetch.getMaxWaiting());
+        assertEquals(5, requester.requests.size());
+    }
+
+    public void testWindowOfOneIsSequential() {
+        WindowedFetch fetch = new WindowedFetch(callback, 0, 250, 100, 1, requester);
+        fetch.fill();
+        assertEquals(1, requester.requests.size());
+
+        requester.answer(fetch, 0);
+        assertEquals(2, requester.requests.size());
+        requester.answer(fetch, 1);
+        requester.answer(fetch, 2);
+
+        assertEquals(Arrays.asList(0, 100, 200), callback.starts);
+        assertEquals(1, requester.maxOutstanding);
+    }
+}
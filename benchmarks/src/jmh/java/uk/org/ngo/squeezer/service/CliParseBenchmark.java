@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the stages a line received from the server goes through on the client, for each of the
+ * {@link Fixtures}, one line per operation:
+ * <ul>
+ *     <li>{@link #receive(Blackhole)}: framing the line read from the socket and finding its
+ *     handler, as <code>CliClient.onLineReceived()</code> does.</li>
+ *     <li>{@link #parseRecords()}: parsing the line in to records, as
+ *     <code>CliClient.parseSqueezerList()</code> does before it hands them to the list
+ *     handlers.</li>
+ *     <li>{@link #parseTokens()}: decoding every token of the line, as
+ *     <code>CliClient.parseTokens()</code> does for status lines.</li>
+ * </ul>
+ * The app's list handlers aren't measured: making the items from the records, in
+ * <code>BaseListHandler.add()</code> and the constructors of the models, needs Android, so the
+ * records are dropped here. The cost of a list response on the client is the cost of
+ * {@link #parseRecords()} plus that of making its items.
+ * <p>
+ * Run with the GC profiler, <code>-prof gc</code>, the <code>gc.alloc.rate.norm</code> results
+ * are the bytes allocated per line.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CliParseBenchmark {
+
+    @Param({Fixtures.STATUS, Fixtures.SONGS, Fixtures.SEARCH, Fixtures.ITEMS})
+    String fixture;
+
+    /** The line of the fixture, with the line terminator. */
+    private byte[] bytes;
+
+    private final TokenCursor tokens = new TokenCursor();
+
+    private final ArrayChannel channel = new ArrayChannel();
+
+    private final LineFramer framer = new LineFramer(8 * 1024);
+
+    private final CommandDispatcher<String> dispatcher = Fixtures.dispatcher();
+
+    /** Parses the line, and drops the records. */
+    private ExtendedQueryFormatCmd cmd;
+
+    private Blackhole blackhole;
+
+    private final LineFramer.LineSink router = new LineFramer.LineSink() {
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            TokenCursor tokens = CliParseBenchmark.this.tokens.reset(buffer, offset, length);
+            blackhole.consume(dispatcher.find(tokens));
+            blackhole.consume(tokens.rawHash(0));
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        bytes = (Fixtures.line(fixture) + "\n").getBytes("UTF-8");
+        channel.bytes = bytes;
+        cmd = Fixtures.cmd(fixture);
+        if (parseRecords() == null) {
+            throw new IllegalStateException("Malformed fixture: " + fixture);
+        }
+    }
+
+    @Benchmark
+    public void receive(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        channel.position = 0;
+        while (framer.read(channel, router)) {
+        }
+    }
+
+    @Benchmark
+    public ListResponse parseRecords() {
+        return cmd.parse(tokens.reset(bytes, 0, bytes.length - 1));
+    }
+
+    @Benchmark
+    public HashMap<String, String> parseTokens() {
+        return tokens.reset(bytes, 0, bytes.length - 1).decodeMap();
+    }
+
+    /** Reads the same bytes every time its position is reset, without allocating. */
+    private static class ArrayChannel implements ReadableByteChannel {
+        byte[] bytes;
+
+        int position;
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == bytes.length) {
+                return -1;
+            }
+            int length = Math.min(dst.remaining(), bytes.length - position);
+            dst.put(bytes, position, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
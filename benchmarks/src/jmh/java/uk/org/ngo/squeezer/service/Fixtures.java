@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * Lines received from a server, as the client asks for them, and the commands that parse them,
+ * as in the table of <code>CliClient</code>.
+ * <p>
+ * The lines are generated, so their size can be varied, with the tags the client asks for and
+ * values like those of a real library.
+ */
+final class Fixtures {
+
+    /** The player the player specific lines are for. */
+    static final String PLAYER_ID = "00%3A04%3A20%3A12%3Ab3%3A17";
+
+    /** The tags the client asks for with songs, see <code>SqueezeService.SONGTAGS</code>. */
+    static final String SONGTAGS = "aCdejJKlstxyu";
+
+    /** The fixtures. */
+    static final String STATUS = "status";
+    static final String SONGS = "songs";
+    static final String SEARCH = "search";
+    static final String ITEMS = "items";
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return The line of a fixture, without the line terminator.
+     */
+    static String line(String fixture) {
+        if (STATUS.equals(fixture)) {
+            return status();
+        } else if (SONGS.equals(fixture)) {
+            return songs(0, 500, 20000);
+        } else if (SEARCH.equals(fixture)) {
+            return search(5, 20, 10, 50);
+        } else if (ITEMS.equals(fixture)) {
+            return items(100);
+        }
+        throw new IllegalArgumentException("Unknown fixture: " + fixture);
+    }
+
+    /** Drops the records it's given, the parse is all that's measured. */
+    private static class DropListHandler implements ListHandler<TagRecord> {
+        private final List<TagRecord> items = Collections.emptyList();
+
+        @Override
+        public Class<TagRecord> getDataType() {
+            return TagRecord.class;
+        }
+
+        @Override
+        public List<TagRecord> getItems() {
+            return items;
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void add(TagRecord record) {
+        }
+    }
+
+    /**
+     * @return The command that parses the line of a fixture, as in the table of
+     *     <code>CliClient</code>, with handlers that drop the records.
+     */
+    static ExtendedQueryFormatCmd cmd(String fixture) {
+        if (STATUS.equals(fixture)) {
+            return new ExtendedQueryFormatCmd(ExtendedQueryFormatCmd.HANDLER_LIST_PLAYER_SPECIFIC,
+                    "status",
+                    new HashSet<String>(Arrays.asList("tags", "charset", "subscribe")),
+                    new SqueezeParserInfo("playlist_tracks", new DropListHandler(),
+                            "playlist index"));
+        } else if (SONGS.equals(fixture)) {
+            return new ExtendedQueryFormatCmd("songs",
+                    new HashSet<String>(Arrays.asList("genre_id", "artist_id", "album_id", "year",
+                            "search", "tags", "sort", "charset")),
+                    new DropListHandler());
+        } else if (SEARCH.equals(fixture)) {
+            return new ExtendedQueryFormatCmd(ExtendedQueryFormatCmd.HANDLER_LIST_GLOBAL,
+                    "search",
+                    new HashSet<String>(Arrays.asList("term", "charset")),
+                    new SqueezeParserInfo("genres_count", new DropListHandler(), "genre_id"),
+                    new SqueezeParserInfo("albums_count", new DropListHandler(), "album_id"),
+                    new SqueezeParserInfo("contributors_count", new DropListHandler(),
+                            "contributor_id"),
+                    new SqueezeParserInfo("tracks_count", new DropListHandler(), "track_id"));
+        } else if (ITEMS.equals(fixture)) {
+            return new ExtendedQueryFormatCmd(
+                    ExtendedQueryFormatCmd.HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC, "items",
+                    new HashSet<String>(Arrays.asList("item_id", "search", "want_url",
+                            "charset")),
+                    new SqueezeParserInfo(new DropListHandler()));
+        }
+        throw new IllegalArgumentException("Unknown fixture: " + fixture);
+    }
+
+    /**
+     * @return A dispatcher that finds the lines of the fixtures at the positions the client
+     *     looks for them, among the client's other commands.
+     */
+    static CommandDispatcher<String> dispatcher() {
+        return new CommandDispatcher.Builder<String>()
+                .add(0, handlers("songs", "search", "artists", "albums", "genres", "years",
+                        "musicfolder", "playlists", "radios", "apps", "players", "rescan",
+                        "serverstatus", "alarm", "login", "pref", "can", "getstring", "version"))
+                .add(1, handlers("client", "status", "prefset", "play", "stop", "pause",
+                        "playlist", "playerpref", "time", "mixer", "power", "button", "sync"))
+                .add(2, handlers("items", "alarms"))
+                .build();
+    }
+
+    private static Map<String, String> handlers(String... commands) {
+        Map<String, String> handlers = new HashMap<String, String>();
+        for (String command : commands) {
+            handlers.put(command, command);
+        }
+        return handlers;
+    }
+
+    /** @return The status of a playing player, with the current song, as subscribed to. */
+    static String status() {
+        StringBuilder sb = new StringBuilder(PLAYER_ID)
+                .append(" status - 1 tags%3A").append(SONGTAGS).append(" subscribe%3A600")
+                .append(" player_name%3AKitchen player_connected%3A1")
+                .append(" player_ip%3A10.0.0.23%3A41337")
+                .append(" power%3A1 signalstrength%3A0 mode%3Aplay time%3A12.5 rate%3A1")
+                .append(" duration%3A245.2 can_seek%3A1 mixer%20volume%3A40")
+                .append(" playlist%20repeat%3A0 playlist%20shuffle%3A0 playlist%20mode%3Aoff")
+                .append(" seq_no%3A12 playlist_cur_index%3A3 playlist_timestamp%3A1508227190.5")
+                .append(" playlist_tracks%3A12 playlist%20index%3A3");
+        song(sb, 1003);
+        return sb.toString();
+    }
+
+    /** @return A page of the songs command. */
+    static String songs(int start, int itemsPerResponse, int count) {
+        StringBuilder sb = new StringBuilder("songs ").append(start).append(' ')
+                .append(itemsPerResponse).append(" tags%3A").append(SONGTAGS)
+                .append(" correlationid%3A7 count%3A").append(count);
+        for (int i = start; i < Math.min(count, start + itemsPerResponse); i++) {
+            song(sb, i);
+        }
+        return sb.toString();
+    }
+
+    /** @return The results of a search, with the given number of each of the four groups. */
+    static String search(int genres, int albums, int contributors, int tracks) {
+        StringBuilder sb = new StringBuilder("search 0 ")
+                .append(Math.max(Math.max(genres, albums), Math.max(contributors, tracks)))
+                .append(" term%3Alove correlationid%3A12 count%3A")
+                .append(genres + albums + contributors + tracks);
+        sb.append(" genres_count%3A").append(genres);
+        for (int i = 0; i < genres; i++) {
+            sb.append(" genre_id%3A").append(i).append(" genre%3ALove%20Songs%20").append(i);
+        }
+        sb.append(" albums_count%3A").append(albums);
+        for (int i = 0; i < albums; i++) {
+            sb.append(" album_id%3A").append(200 + i).append(" album%3ALove%20Album%20")
+                    .append(i);
+        }
+        sb.append(" contributors_count%3A").append(contributors);
+        for (int i = 0; i < contributors; i++) {
+            sb.append(" contributor_id%3A").append(300 + i)
+                    .append(" contributor%3AThe%20Lovers%20").append(i);
+        }
+        sb.append(" tracks_count%3A").append(tracks);
+        for (int i = 0; i < tracks; i++) {
+            sb.append(" track_id%3A").append(400 + i).append(" track%3ALove%20Song%20")
+                    .append(i);
+        }
+        return sb.toString();
+    }
+
+    /** @return A menu of a plugin, e.g. of radio stations, as the items command returns it. */
+    static String items(int count) {
+        StringBuilder sb = new StringBuilder(PLAYER_ID)
+                .append(" radiotime items 0 ").append(count)
+                .append(" item_id%3A1c2d3e4f.2 want_url%3A1 correlationid%3A9")
+                .append(" title%3ALocal%20Radio count%3A").append(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(" id%3A1c2d3e4f.2.").append(i)
+                    .append(" name%3AStation%20").append(i).append("%20(Rock%2C%20Pop)")
+                    .append(" type%3Aaudio")
+                    .append(" image%3A%2Fimageproxy%2Fhttp%253A%252F%252Fcdn-radiotime-logos.")
+                    .append("tunein.com%252Fs").append(10000 + i).append("q.png%2Fimage.png")
+                    .append(" isaudio%3A1 hasitems%3A0");
+        }
+        return sb.toString();
+    }
+
+    /** Append the tokens of a song, with the tags in {@link #SONGTAGS}. */
+    private static void song(StringBuilder sb, int id) {
+        int artist = id % 97;
+        int album = id % 1009;
+        sb.append(" id%3A").append(id)
+                .append(" title%3ASong%20Number%20").append(id)
+                .append(" artist%3AThe%20Artist%20").append(artist)
+                .append(" compilation%3A0 duration%3A").append(120 + id % 300).append(".2")
+                .append(" album_id%3A").append(album)
+                .append(" coverart%3A1 artwork_track_id%3A").append(id)
+                .append(" album%3AAn%20Album%20").append(album)
+                .append(" artist_id%3A").append(artist)
+                .append(" tracknum%3A").append(1 + id % 12)
+                .append(" remote%3A0 year%3A").append(1960 + id % 57)
+                .append(" url%3Afile%3A%2F%2F%2Fmusic%2FThe%2520Artist%2520").append(artist)
+                .append("%2F").append(id).append(".flac");
+    }
+}
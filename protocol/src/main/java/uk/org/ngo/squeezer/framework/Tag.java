@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Symbol table of the tag keys the client knows about in extended query format responses.
+ * <p>
+ * Each known key has a fixed slot number, which is used to store and look up the key's value in
+ * a {@link TagRecord} without hashing strings. Keys which aren't in the table can still be stored
+ * in a record, but are slower to access.
+ */
+public final class Tag {
+
+    // Item identifiers and delimiters, from the ExtendedQueryFormatCmd definitions.
+    public static final int ID = 0;
+    public static final int PLAYERINDEX = 1;
+    public static final int PLAYLIST_INDEX = 2;
+    public static final int CATEGORY = 3;
+    public static final int CMD = 4;
+    public static final int GENRE_ID = 5;
+    public static final int ALBUM_ID = 6;
+    public static final int CONTRIBUTOR_ID = 7;
+    public static final int TRACK_ID = 8;
+    public static final int PLAYLIST_ID = 9;
+
+    // Song and album tags, see SqueezeService.SONGTAGS and ALBUMTAGS.
+    public static final int TITLE = 10;
+    public static final int TRACK = 11;
+    public static final int ARTIST = 12;
+    public static final int COMPILATION = 13;
+    public static final int DURATION = 14;
+    public static final int COVERART = 15;
+    public static final int ARTWORK_TRACK_ID = 16;
+    public static final int ARTWORK_URL = 17;
+    public static final int ALBUM = 18;
+    public static final int ARTIST_ID = 19;
+    public static final int TRACKNUM = 20;
+    public static final int REMOTE = 21;
+    public static final int YEAR = 22;
+    public static final int URL = 23;
+    public static final int BUTTONS = 24;
+
+    // Tags of other item types.
+    public static final int CONTRIBUTOR = 25;
+    public static final int GENRE = 26;
+    public static final int PLAYLIST = 27;
+    public static final int FILENAME = 28;
+    public static final int TYPE = 29;
+    public static final int NAME = 30;
+    public static final int ICON = 31;
+    public static final int WEIGHT = 32;
+    public static final int DESCRIPTION = 33;
+    public static final int IMAGE = 34;
+    public static final int HASITEMS = 35;
+    public static final int ISAUDIO = 36;
+    public static final int TIME = 37;
+    public static final int DOW = 38;
+    public static final int ENABLED = 39;
+    public static final int REPEAT = 40;
+    public static final int SINGLETON = 41;
+    public static final int PLAYERID = 42;
+    public static final int IP = 43;
+    public static final int MODEL = 44;
+    public static final int CANPOWEROFF = 45;
+    public static final int CONNECTED = 46;
+
+    // Tags added by the client.
+    public static final int DOWNLOAD_URL = 47;
+
+    // Counts and list control tags.
+    public static final int COUNT = 48;
+    public static final int GENRES_COUNT = 49;
+    public static final int ALBUMS_COUNT = 50;
+    public static final int CONTRIBUTORS_COUNT = 51;
+    public static final int TRACKS_COUNT = 52;
+    public static final int PLAYLIST_TRACKS = 53;
+    public static final int RESCAN = 54;
+    public static final int FULL_LIST = 55;
+    public static final int CORRELATIONID = 56;
+    public static final int ACTIONS = 57;
+
+    /** The number of known tags. */
+    public static final int TAG_COUNT = 58;
+
+    /** Names of the tags, indexed by slot. */
+    private static final String[] NAMES = {
+            "id", "playerindex", "playlist index", "category", "cmd", "genre_id", "album_id",
+            "contributor_id", "track_id", "playlist_id", "title", "track", "artist", "compilation",
+            "duration", "coverart", "artwork_track_id", "artwork_url", "album", "artist_id",
+            "tracknum", "remote", "year", "url", "buttons", "contributor", "genre", "playlist",
+            "filename", "type", "name", "icon", "weight", "description", "image", "hasitems",
+            "isaudio", "time", "dow", "enabled", "repeat", "singleton", "playerid", "ip", "model",
+            "canpoweroff", "connected", "download_url", "count", "genres_count", "albums_count",
+            "contributors_count", "tracks_count", "playlist_tracks", "rescan", "full_list",
+            "correlationid", "actions"
+    };
+
+    private static final Map<String, Integer> SLOTS = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            SLOTS.put(NAMES[i], i);
+        }
+    }
+
+    private Tag() {
+    }
+
+    /**
+     * @return The slot of the tag with the given (decoded) name, or -1 if it is not a known tag.
+     */
+    public static int slotOf(String name) {
+        Integer slot = SLOTS.get(name);
+        return (slot != null) ? slot : -1;
+    }
+
+    /**
+     * @return The name of the tag in the given slot.
+     */
+    public static String nameOf(int slot) {
+        return NAMES[slot];
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The tags of a single item received from the server.
+ * <p>
+ * Values of the tags in the {@link Tag} table are stored in an array indexed by the tag's slot.
+ * Any other tags are kept in a map. A record is reused for each item in a response, so model
+ * objects must copy what they need from it in their constructor.
+ */
+public class TagRecord {
+
+    private final String[] values = new String[Tag.TAG_COUNT];
+
+    /** Tags which are not in the {@link Tag} table. Created when first needed. */
+    private Map<String, String> extras;
+
+    /** Number of slots in {@link #values} which have a value. */
+    private int slotCount;
+
+    /**
+     * @return A new record with the entries of the given map.
+     */
+    public static TagRecord fromMap(Map<String, String> map) {
+        TagRecord record = new TagRecord();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            record.put(entry.getKey(), entry.getValue());
+        }
+        return record;
+    }
+
+    /**
+     * @return The value of the tag in the given slot, or null if it was not received.
+     */
+    public String get(int tag) {
+        return values[tag];
+    }
+
+    /**
+     * @return True if a value was received for the tag in the given slot.
+     */
+    public boolean has(int tag) {
+        return values[tag] != null;
+    }
+
+    /**
+     * @return The value of the tag with the given name, or null if it was not received.
+     */
+    public String get(String name) {
+        int tag = Tag.slotOf(name);
+        if (tag != -1) {
+            return values[tag];
+        }
+        return (extras != null) ? extras.get(name) : null;
+    }
+
+    public void put(int tag, String value) {
+        if (values[tag] == null && value != null) {
+            slotCount++;
+        } else if (values[tag] != null && value == null) {
+            slotCount--;
+        }
+        values[tag] = value;
+    }
+
+    public void put(String name, String value) {
+        int tag = Tag.slotOf(name);
+        if (tag != -1) {
+            put(tag, value);
+        } else {
+            if (extras == null) {
+                extras = new HashMap<String, String>();
+            }
+            extras.put(name, value);
+        }
+    }
+
+    /**
+     * Replace the entries of this record with those of another, e.g. to keep a copy of a
+     * record that's reused.
+     */
+    public void copyFrom(TagRecord other) {
+        System.arraycopy(other.values, 0, values, 0, values.length);
+        slotCount = other.slotCount;
+        if (other.extras != null && !other.extras.isEmpty()) {
+            if (extras == null) {
+                extras = new HashMap<String, String>();
+            }
+            extras.clear();
+            extras.putAll(other.extras);
+        } else if (extras != null) {
+            extras.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        return slotCount == 0 && (extras == null || extras.isEmpty());
+    }
+
+    public void clear() {
+        if (slotCount > 0) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+            slotCount = 0;
+        }
+        if (extras != null) {
+            extras.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(Tag.nameOf(i)).append('=').append(values[i]);
+            }
+        }
+        if (extras != null) {
+            for (Map.Entry<String, String> entry : extras.entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(entry.getKey()).append('=').append(entry.getValue());
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses how many items to request from the server in one round trip, for each command.
+ * <p>
+ * The time taken by each list response is split in to the round trip time, which is estimated
+ * from small responses, and the time to send and produce the rest of the response, which is
+ * estimated per byte from large responses. Together with the average size of an item for each
+ * command this gives the time each item adds to a response.
+ * <p>
+ * A page is then sized so the time spent on its items is about the same as the round trip time,
+ * so at least half of each round trip is spent moving items. On a fast network with a low round
+ * trip time this gives large pages, on a slow network small ones. The time spent on the items is
+ * also limited to {@link #TRANSFER_BUDGET_MS}, so the first page of a list is still shown quickly
+ * on a link with high latency and low bandwidth.
+ * <p>
+ * Until there are measurements the default page size is used.
+ */
+class AdaptivePageSizer {
+
+    /** Responses up to this size are mostly round trip time. */
+    static final int SMALL_RESPONSE_BYTES = 1024;
+
+    /** Responses at least this size are used to measure the time per byte. */
+    static final int LARGE_RESPONSE_BYTES = 4096;
+
+    /** The most time the items of one page should take. */
+    static final int TRANSFER_BUDGET_MS = 250;
+
+    /** Weight of a new measurement in the moving averages. */
+    private static final double WEIGHT = 0.25;
+
+    private final int mDefaultPageSize;
+
+    private final int mMinPageSize;
+
+    private final int mMaxPageSize;
+
+    /** Estimated round trip time, or 0 until there is a measurement. */
+    private double mRttMillis;
+
+    /** Estimated time per byte of a response, or -1 until there is a measurement. */
+    private double mMillisPerByte = -1;
+
+    /** Average bytes per item of each command. */
+    private final Map<String, Double> mBytesPerItem = new HashMap<String, Double>();
+
+    /**
+     * @param defaultPageSize Page size to use until there are measurements.
+     * @param minPageSize Smallest page size to use.
+     * @param maxPageSize Largest page size to use.
+     */
+    AdaptivePageSizer(int defaultPageSize, int minPageSize, int maxPageSize) {
+        mDefaultPageSize = defaultPageSize;
+        mMinPageSize = minPageSize;
+        mMaxPageSize = maxPageSize;
+    }
+
+    /**
+     * @param cmd The command, e.g. "songs".
+     * @return The number of items to request in one round trip.
+     */
+    synchronized int pageSize(String cmd) {
+        Double bytesPerItem = mBytesPerItem.get(cmd);
+        if (bytesPerItem == null || mRttMillis == 0 || mMillisPerByte < 0) {
+            return mDefaultPageSize;
+        }
+
+        double itemMillis = bytesPerItem * mMillisPerByte;
+        if (itemMillis <= 0) {
+            return mMaxPageSize;
+        }
+        double pageSize = Math.min(mRttMillis, TRANSFER_BUDGET_MS) / itemMillis;
+        return (int) Math.max(mMinPageSize, Math.min(mMaxPageSize, pageSize));
+    }
+
+    /**
+     * Record the measurements of a list response.
+     *
+     * @param cmd The command, e.g. "songs".
+     * @param items The number of items in the response.
+     * @param bytes The length of the response.
+     * @param elapsedNanos The time from sending the request to receiving the response.
+     */
+    synchronized void onResponse(String cmd, int items, int bytes, long elapsedNanos) {
+        double elapsedMillis = elapsedNanos / 1000000.0;
+
+        if (bytes <= SMALL_RESPONSE_BYTES) {
+            mRttMillis = average(mRttMillis, elapsedMillis, mRttMillis == 0);
+        } else if (bytes >= LARGE_RESPONSE_BYTES && mRttMillis > 0) {
+            double millisPerByte = Math.max(0, elapsedMillis - mRttMillis) / bytes;
+            mMillisPerByte = average(mMillisPerByte, millisPerByte, mMillisPerByte < 0);
+        }
+
+        if (items > 0) {
+            Double bytesPerItem = mBytesPerItem.get(cmd);
+            mBytesPerItem.put(cmd, average(bytesPerItem == null ? 0 : bytesPerItem,
+                    (double) bytes / items, bytesPerItem == null));
+        }
+    }
+
+    /** Forget the measurements, e.g. after connecting to a different server. */
+    synchronized void reset() {
+        mRttMillis = 0;
+        mMillisPerByte = -1;
+        mBytesPerItem.clear();
+    }
+
+    private static double average(double average, double sample, boolean first) {
+        return first ? sample : average + WEIGHT * (sample - average);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptivePageSizer{rtt=" + String.format("%.1f", mRttMillis)
+                + "ms, millisPerByte=" + String.format("%.5f", mMillisPerByte)
+                + ", bytesPerItem=" + mBytesPerItem + "}";
+    }
+}
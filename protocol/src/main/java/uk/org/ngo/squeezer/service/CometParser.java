@@ -0,0 +1,564 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the messages of a Bayeux (Comet) response from the server as they are read, without
+ * building a tree of the JSON, and renders the data of each message the way the CLI renders the
+ * result of a command.
+ * <p>
+ * The CLI renders a result as the command, with the <code>?</code> of a query replaced by the
+ * positional results (the keys starting with <code>_</code>), followed by the other results as
+ * URL encoded <code>key:value</code> tagged parameters. The items of a list (the arrays with keys
+ * ending in <code>_loop</code>) are flattened in to the tagged parameters, item after item. The
+ * parser renders the tagged parameters of the data in to {@link Message#tags}, and leaves the
+ * positional results in {@link Message#positional}, so the caller can put them in to the command
+ * it sent.
+ * <p>
+ * The keys of a JSON object have no order, but the CLI starts each item with the tag that
+ * delimits the items. So the parser is given the keys that delimit items, in order of preference,
+ * and renders the first of them that an item has at the start of the item.
+ */
+class CometParser {
+
+    /** Called for each message of a response. */
+    interface MessageHandler {
+        /**
+         * @param message The message, only valid for the duration of the call.
+         */
+        void onMessage(Message message);
+    }
+
+    /** A message of a response, reused for each message. */
+    static class Message {
+        /** The channel of the message, or null. */
+        String channel;
+
+        /** The id of the message, or null. */
+        String id;
+
+        /** The client id of a handshake, or null. */
+        String clientId;
+
+        /** The success of a meta message, true if the message doesn't say. */
+        boolean successful;
+
+        /** The error of an unsuccessful meta message, or null. */
+        String error;
+
+        /** True if the message has an object as its data. */
+        boolean hasData;
+
+        /**
+         * The tagged parameters of the data, rendered as the CLI renders them, each preceded by a
+         * space, in the first {@link #tagsLength} bytes.
+         */
+        byte[] tags = new byte[1024];
+
+        int tagsLength;
+
+        /** The positional results of the data, URL encoded, in order. */
+        final List<String> positional = new ArrayList<String>();
+
+        void reset() {
+            channel = null;
+            id = null;
+            clientId = null;
+            successful = true;
+            error = null;
+            hasData = false;
+            tagsLength = 0;
+            positional.clear();
+        }
+
+        @Override
+        public String toString() {
+            return "Message{channel=" + channel + ", id=" + id + ", successful=" + successful
+                    + ", positional=" + positional + ", tags="
+                    + TokenCursor.ascii(tags, 0, tagsLength) + "}";
+        }
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String[] itemDelimiters;
+
+    private final Message message = new Message();
+
+    /** Characters read and not yet parsed, from {@link #position} to {@link #limit}. */
+    private final char[] chars = new char[8 * 1024];
+
+    private int position;
+
+    private int limit;
+
+    private Reader reader;
+
+    /** The key or string being read. */
+    private final StringBuilder string = new StringBuilder();
+
+    /** The tags of the item being rendered, before they are moved to the message. */
+    private byte[] item = new byte[256];
+
+    private int itemLength;
+
+    /**
+     * @param itemDelimiters The keys that start an item of a list, in order of preference.
+     */
+    CometParser(String... itemDelimiters) {
+        this.itemDelimiters = itemDelimiters;
+    }
+
+    /**
+     * Parse a response, which is either an array of messages or a single message.
+     *
+     * @throws IOException If reading fails, or the response isn't valid.
+     */
+    void parse(Reader reader, MessageHandler handler) throws IOException {
+        this.reader = reader;
+        position = limit = 0;
+        try {
+            char c = nextNonSpace();
+            if (c == '[') {
+                if (peekNonSpace() == ']') {
+                    next();
+                    return;
+                }
+                do {
+                    expect(nextNonSpace(), '{');
+                    parseMessage(handler);
+                    c = nextNonSpace();
+                } while (c == ',');
+                expect(c, ']');
+            } else {
+                expect(c, '{');
+                parseMessage(handler);
+            }
+        } finally {
+            this.reader = null;
+        }
+    }
+
+    /** Parse a message, after its opening brace. */
+    private void parseMessage(MessageHandler handler) throws IOException {
+        message.reset();
+        if (peekNonSpace() != '}') {
+            do {
+                readKey();
+                if (keyIs("channel")) {
+                    message.channel = readScalar();
+                } else if (keyIs("id")) {
+                    message.id = readScalar();
+                } else if (keyIs("clientId")) {
+                    message.clientId = readScalar();
+                } else if (keyIs("successful")) {
+                    message.successful = !"false".equals(readScalar());
+                } else if (keyIs("error")) {
+                    message.error = readScalar();
+                } else if (keyIs("data") && peekNonSpace() == '{') {
+                    next();
+                    message.hasData = true;
+                    renderData();
+                } else {
+                    skipValue();
+                }
+            } while (nextNonSpace() == ',');
+            position--;
+        }
+        expect(nextNonSpace(), '}');
+        handler.onMessage(message);
+    }
+
+    /** Render the data of a message, after its opening brace. */
+    private void renderData() throws IOException {
+        if (peekNonSpace() == '}') {
+            next();
+            return;
+        }
+        do {
+            readKey();
+            char c = peekNonSpace();
+            if (string.length() > 0 && string.charAt(0) == '_') {
+                if (c == '{' || c == '[') {
+                    skipValue();
+                } else {
+                    itemLength = 0;
+                    renderScalar();
+                    message.positional.add(TokenCursor.ascii(item, 0, itemLength));
+                }
+            } else if (c == '[' && keyEndsWith("_loop")) {
+                next();
+                renderLoop();
+            } else if (c == '{' || c == '[') {
+                skipValue();
+            } else {
+                itemLength = 0;
+                renderTag();
+                appendToMessage(0, itemLength);
+            }
+        } while (nextNonSpace() == ',');
+        position--;
+        expect(nextNonSpace(), '}');
+    }
+
+    /** Render the items of a list, after its opening bracket. */
+    private void renderLoop() throws IOException {
+        if (peekNonSpace() == ']') {
+            next();
+            return;
+        }
+        do {
+            if (peekNonSpace() == '{') {
+                next();
+                renderItem();
+            } else {
+                skipValue();
+            }
+        } while (nextNonSpace() == ',');
+        position--;
+        expect(nextNonSpace(), ']');
+    }
+
+    /** Render an item of a list, after its opening brace, starting with its delimiter. */
+    private void renderItem() throws IOException {
+        itemLength = 0;
+        int delimiterRank = itemDelimiters.length;
+        int delimiterStart = 0;
+        int delimiterEnd = 0;
+        if (peekNonSpace() != '}') {
+            do {
+                readKey();
+                char c = peekNonSpace();
+                if (c == '{' || c == '[') {
+                    skipValue();
+                    continue;
+                }
+                int rank = delimiterRank(delimiterRank);
+                int start = itemLength;
+                renderTag();
+                if (rank < delimiterRank) {
+                    delimiterRank = rank;
+                    delimiterStart = start;
+                    delimiterEnd = itemLength;
+                }
+            } while (nextNonSpace() == ',');
+            position--;
+        }
+        expect(nextNonSpace(), '}');
+
+        appendToMessage(delimiterStart, delimiterEnd);
+        appendToMessage(0, delimiterStart);
+        appendToMessage(delimiterEnd, itemLength);
+    }
+
+    /**
+     * @return The rank of the key that was read among the item delimiters, if it's better than
+     *     the given rank, otherwise the given rank.
+     */
+    private int delimiterRank(int betterThan) {
+        for (int i = 0; i < betterThan; i++) {
+            if (keyIs(itemDelimiters[i])) {
+                return i;
+            }
+        }
+        return betterThan;
+    }
+
+    /** Render the key that was read, and the scalar value that follows, as a tag of the item. */
+    private void renderTag() throws IOException {
+        appendToItem(' ');
+        for (int i = 0; i < string.length(); i++) {
+            appendEncoded(string.charAt(i), i + 1 < string.length() ? string.charAt(i + 1) : 0);
+        }
+        appendToItem('%');
+        appendToItem('3');
+        appendToItem('A');
+        renderScalar();
+    }
+
+    /** Render a scalar value, URL encoded, in to the item. */
+    private void renderScalar() throws IOException {
+        char c = nextNonSpace();
+        if (c == '"') {
+            char high = 0;
+            int next;
+            while ((next = nextStringChar()) != -1) {
+                c = (char) next;
+                if (high != 0 && Character.isLowSurrogate(c)) {
+                    appendEncoded(high, c);
+                    high = 0;
+                    continue;
+                }
+                if (high != 0) {
+                    appendEncoded(high, (char) 0);
+                    high = 0;
+                }
+                if (Character.isHighSurrogate(c)) {
+                    high = c;
+                } else {
+                    appendEncoded(c, (char) 0);
+                }
+            }
+            if (high != 0) {
+                appendEncoded(high, (char) 0);
+            }
+        } else if (c == 't') {
+            expectWord("rue");
+            appendToItem('1');
+        } else if (c == 'f') {
+            expectWord("alse");
+            appendToItem('0');
+        } else if (c == 'n') {
+            expectWord("ull");
+        } else {
+            // A number, rendered as it is.
+            appendToItem(c);
+            while ((c = peek()) != ',' && c != '}' && c != ']' && !isSpace(c)) {
+                appendToItem(next());
+            }
+        }
+    }
+
+    /**
+     * Append a character to the item, URL encoded the way the server encodes it.
+     *
+     * @param c The character.
+     * @param low The character after it, used if the character is a high surrogate.
+     */
+    private void appendEncoded(char c, char low) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_') {
+            appendToItem(c);
+        } else if (c < 0x80) {
+            appendByte(c);
+        } else if (c < 0x800) {
+            appendByte(0xc0 | (c >> 6));
+            appendByte(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(low)) {
+            int codePoint = Character.toCodePoint(c, low);
+            appendByte(0xf0 | (codePoint >> 18));
+            appendByte(0x80 | ((codePoint >> 12) & 0x3f));
+            appendByte(0x80 | ((codePoint >> 6) & 0x3f));
+            appendByte(0x80 | (codePoint & 0x3f));
+        } else {
+            appendByte(0xe0 | (c >> 12));
+            appendByte(0x80 | ((c >> 6) & 0x3f));
+            appendByte(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void appendByte(int b) {
+        appendToItem('%');
+        appendToItem(HEX[(b >> 4) & 0xf]);
+        appendToItem(HEX[b & 0xf]);
+    }
+
+    private void appendToItem(char c) {
+        if (itemLength == item.length) {
+            byte[] bigger = new byte[item.length * 2];
+            System.arraycopy(item, 0, bigger, 0, itemLength);
+            item = bigger;
+        }
+        item[itemLength++] = (byte) c;
+    }
+
+    private void appendToMessage(int from, int to) {
+        int length = to - from;
+        if (message.tagsLength + length > message.tags.length) {
+            byte[] bigger = new byte[Math.max(message.tags.length * 2,
+                    message.tagsLength + length)];
+            System.arraycopy(message.tags, 0, bigger, 0, message.tagsLength);
+            message.tags = bigger;
+        }
+        System.arraycopy(item, from, message.tags, message.tagsLength, length);
+        message.tagsLength += length;
+    }
+
+    /** Read a key, and the colon after it, in to {@link #string}. */
+    private void readKey() throws IOException {
+        expect(nextNonSpace(), '"');
+        readString();
+        expect(nextNonSpace(), ':');
+    }
+
+    /** Read a string, after its opening quote, in to {@link #string}. */
+    private void readString() throws IOException {
+        string.setLength(0);
+        int c;
+        while ((c = nextStringChar()) != -1) {
+            string.append((char) c);
+        }
+    }
+
+    /**
+     * Read the next character of a string, decoding escapes.
+     *
+     * @return The character, or -1 for the closing quote.
+     */
+    private int nextStringChar() throws IOException {
+        char c = next();
+        if (c == '"') {
+            return -1;
+        }
+        if (c == '\\') {
+            c = next();
+            if (c == 'n') {
+                c = '\n';
+            } else if (c == 't') {
+                c = '\t';
+            } else if (c == 'r') {
+                c = '\r';
+            } else if (c == 'b') {
+                c = '\b';
+            } else if (c == 'f') {
+                c = '\f';
+            } else if (c == 'u') {
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    value = (value << 4) | Character.digit(next(), 16);
+                }
+                c = (char) value;
+            }
+        }
+        return c;
+    }
+
+    /** @return A scalar value as a string, or null for null. Arrays and objects are skipped. */
+    private String readScalar() throws IOException {
+        char c = peekNonSpace();
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        if (c == '"') {
+            next();
+            readString();
+            return string.toString();
+        }
+        StringBuilder value = new StringBuilder();
+        while ((c = peek()) != ',' && c != '}' && c != ']' && !isSpace(c)) {
+            value.append(next());
+        }
+        String scalar = value.toString();
+        return "null".equals(scalar) ? null : scalar;
+    }
+
+    /** Skip a value of any type. */
+    private void skipValue() throws IOException {
+        char c = nextNonSpace();
+        if (c == '"') {
+            while (nextStringChar() != -1) {
+                // Skip the string.
+            }
+        } else if (c == '{' || c == '[') {
+            char close = (c == '{' ? '}' : ']');
+            if (peekNonSpace() == close) {
+                next();
+                return;
+            }
+            do {
+                if (c == '{') {
+                    expect(nextNonSpace(), '"');
+                    readString();
+                    expect(nextNonSpace(), ':');
+                }
+                skipValue();
+            } while (nextNonSpace() == ',');
+            position--;
+            expect(nextNonSpace(), close);
+        } else {
+            while ((c = peek()) != ',' && c != '}' && c != ']' && !isSpace(c)) {
+                next();
+            }
+        }
+    }
+
+    private boolean keyIs(String key) {
+        return key.contentEquals(string);
+    }
+
+    private boolean keyEndsWith(String suffix) {
+        int offset = string.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (string.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expectWord(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            expect(next(), rest.charAt(i));
+        }
+    }
+
+    private static void expect(char c, char expected) throws IOException {
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' but found '" + c + "'");
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private char peek() throws IOException {
+        if (position == limit && !fill()) {
+            throw new IOException("Unexpected end of response");
+        }
+        return chars[position];
+    }
+
+    private char next() throws IOException {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    private char peekNonSpace() throws IOException {
+        char c;
+        while (isSpace(c = peek())) {
+            position++;
+        }
+        return c;
+    }
+
+    private char nextNonSpace() throws IOException {
+        char c = peekNonSpace();
+        position++;
+        return c;
+    }
+
+    private boolean fill() throws IOException {
+        int count = reader.read(chars, 0, chars.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+}
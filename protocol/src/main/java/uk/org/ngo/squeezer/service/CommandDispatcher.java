@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Finds the handler for a line received from the server, by the command in one of its first
+ * tokens, without creating strings for the tokens.
+ * <p>
+ * The handlers are added for a token position, e.g. position 0 for global commands such as
+ * <code>rescan</code>, position 1 for commands after a player ID. A line is matched against the
+ * positions in order, and the handlers added first take priority over later handlers for the
+ * same position and command.
+ * <p>
+ * The commands of each position are kept in a hash table of their raw (URL encoded) bytes, which
+ * is sized when built so no two commands share a slot if possible. Finding a command then takes
+ * one hash of the token and one comparison of its bytes.
+ *
+ * @param <H> The type of the handlers.
+ */
+class CommandDispatcher<H> {
+
+    /**
+     * The most slots to use for a position, as a multiple of the number of commands, when
+     * looking for a table without collisions.
+     */
+    private static final int MAX_LOAD_FACTOR_INVERSE = 32;
+
+    /** The commands of one token position. */
+    private static class Table {
+        final byte[][] keys;
+
+        final Object[] handlers;
+
+        final int mask;
+
+        /** Number of commands that are not in the slot of their hash. */
+        final int collisions;
+
+        Table(Map<String, ?> handlers) {
+            int size = 2;
+            while (size < handlers.size() * 2) {
+                size <<= 1;
+            }
+            while (size < handlers.size() * MAX_LOAD_FACTOR_INVERSE && countCollisions(handlers,
+                    size - 1) > 0) {
+                size <<= 1;
+            }
+
+            keys = new byte[size][];
+            this.handlers = new Object[size];
+            mask = size - 1;
+            int collisions = 0;
+            for (Map.Entry<String, ?> entry : handlers.entrySet()) {
+                byte[] key = bytes(entry.getKey());
+                int slot = TokenCursor.hash(key, 0, key.length) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                    collisions++;
+                }
+                keys[slot] = key;
+                this.handlers[slot] = entry.getValue();
+            }
+            this.collisions = collisions;
+        }
+
+        private static int countCollisions(Map<String, ?> handlers, int mask) {
+            boolean[] used = new boolean[mask + 1];
+            int collisions = 0;
+            for (String command : handlers.keySet()) {
+                byte[] key = bytes(command);
+                int slot = TokenCursor.hash(key, 0, key.length) & mask;
+                if (used[slot]) {
+                    collisions++;
+                }
+                used[slot] = true;
+            }
+            return collisions;
+        }
+
+        /** @return The raw bytes of a command, as {@link TokenCursor#raw(int)} would give. */
+        private static byte[] bytes(String command) {
+            byte[] bytes = new byte[command.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) command.charAt(i);
+            }
+            return bytes;
+        }
+
+        @Nullable
+        Object find(TokenCursor tokens, int index) {
+            int slot = tokens.rawHash(index) & mask;
+            byte[] key;
+            while ((key = keys[slot]) != null) {
+                if (tokens.rawEquals(index, key)) {
+                    return handlers[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    /** Collects the handlers to build a {@link CommandDispatcher} from. */
+    static class Builder<H> {
+        private final List<Map<String, H>> positions = new ArrayList<Map<String, H>>();
+
+        /**
+         * Add handlers for commands at a token position. Commands that already have a handler
+         * at the position keep it.
+         *
+         * @param position The index of the token with the command.
+         * @param handlers The handlers, by command.
+         * @return this builder.
+         */
+        Builder<H> add(int position, Map<String, ? extends H> handlers) {
+            while (positions.size() <= position) {
+                positions.add(new LinkedHashMap<String, H>());
+            }
+            Map<String, H> commands = positions.get(position);
+            for (Map.Entry<String, ? extends H> entry : handlers.entrySet()) {
+                if (!commands.containsKey(entry.getKey())) {
+                    commands.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return this;
+        }
+
+        CommandDispatcher<H> build() {
+            return new CommandDispatcher<H>(this);
+        }
+    }
+
+    private final Table[] tables;
+
+    private CommandDispatcher(Builder<H> builder) {
+        tables = new Table[builder.positions.size()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = new Table(builder.positions.get(i));
+        }
+    }
+
+    /**
+     * @return The handler of the first token position with a command that has a handler, or
+     *     null.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    H find(TokenCursor tokens) {
+        int positions = Math.min(tables.length, tokens.size());
+        for (int i = 0; i < positions; i++) {
+            Object handler = tables[i].find(tokens, i);
+            if (handler != null) {
+                return (H) handler;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CommandDispatcher{");
+        for (int i = 0; i < tables.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i).append(": slots=").append(tables[i].keys.length)
+                    .append(" collisions=").append(tables[i].collisions);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes commands to the server from a dedicated thread, coalescing commands that are sent close
+ * together in to a single write, and scheduling them by priority.
+ * <p>
+ * Commands are queued by {@link #send(int, String...)}, which never blocks on the network. Each
+ * command has one of three priorities:
+ * <ul>
+ *     <li>{@link #PRIORITY_INTERACTIVE} for commands the user is waiting for, such as pause. These
+ *     end the batch window, and are written ahead of anything else that is queued.</li>
+ *     <li>{@link #PRIORITY_BROWSE} for everything else in the foreground, such as fetching the
+ *     page the user is looking at.</li>
+ *     <li>{@link #PRIORITY_BACKGROUND} for paging traffic nobody is waiting for, such as the
+ *     remaining pages of a full list. These are written after everything else.</li>
+ * </ul>
+ * The writer thread waits until the oldest queued command has been waiting for the batch
+ * window, then writes everything that is queued, highest priority first, with one call to the
+ * output stream and one flush. An interactive command, or a call to {@link #flush()}, ends the
+ * window early. Commands with the same priority are written in the order they were sent.
+ * <p>
+ * The depth of each priority's queue, and how long its commands waited to be written, are
+ * available from {@link #getStats(int)}.
+ * <p>
+ * Instead of an output stream the batches can be given to a {@link BatchWriter}, e.g. to send
+ * each batch in one HTTP request.
+ */
+class CommandWriter {
+
+    static final int PRIORITY_INTERACTIVE = 0;
+
+    static final int PRIORITY_BROWSE = 1;
+
+    static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    private static final String[] PRIORITY_NAMES = {"interactive", "browse", "background"};
+
+    /** A snapshot of the statistics of one priority. */
+    static class QueueStats {
+        /** The priority, e.g. {@link #PRIORITY_BROWSE}. */
+        final int priority;
+
+        /** Number of commands currently queued. */
+        final int depth;
+
+        /** Number of commands written. */
+        final long written;
+
+        /** Total time the written commands waited, in milliseconds. */
+        final long totalWaitMillis;
+
+        /** Longest time a written command waited, in milliseconds. */
+        final long maxWaitMillis;
+
+        QueueStats(int priority, int depth, long written, long totalWaitMillis,
+                long maxWaitMillis) {
+            this.priority = priority;
+            this.depth = depth;
+            this.written = written;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        /**
+         * @return The average time a written command waited, in milliseconds.
+         */
+        double meanWaitMillis() {
+            return written == 0 ? 0 : (double) totalWaitMillis / written;
+        }
+
+        @Override
+        public String toString() {
+            return PRIORITY_NAMES[priority] + "{depth=" + depth + ", written=" + written
+                    + ", meanWait=" + String.format("%.1f", meanWaitMillis())
+                    + "ms, maxWait=" + maxWaitMillis + "ms}";
+        }
+    }
+
+    /** The queued commands of one priority, and its statistics. */
+    private static class CommandQueue {
+        final List<String> commands = new ArrayList<String>();
+
+        /** When each of the commands was queued. */
+        long[] queuedAt = new long[16];
+
+        long written;
+
+        long totalWaitMillis;
+
+        long maxWaitMillis;
+
+        void add(String command, long now) {
+            int size = commands.size();
+            if (size == queuedAt.length) {
+                long[] bigger = new long[size * 2];
+                System.arraycopy(queuedAt, 0, bigger, 0, size);
+                queuedAt = bigger;
+            }
+            queuedAt[size] = now;
+            commands.add(command);
+        }
+
+        /** Move the queued commands to the end of batch. */
+        void drainTo(List<String> batch, long now) {
+            int size = commands.size();
+            for (int i = 0; i < size; i++) {
+                long wait = now - queuedAt[i];
+                totalWaitMillis += wait;
+                if (wait > maxWaitMillis) {
+                    maxWaitMillis = wait;
+                }
+                batch.add(commands.get(i));
+            }
+            written += size;
+            commands.clear();
+        }
+    }
+
+    /** Told about each batch after it has been written. */
+    interface BatchListener {
+        /**
+         * Called on the writer thread after a batch has been written.
+         *
+         * @param commands The commands in the batch, in the order they were written. Only valid
+         *     for the duration of the call.
+         */
+        void onBatchWritten(List<String> commands);
+    }
+
+    /** Writes each batch of commands, in place of an output stream. */
+    interface BatchWriter {
+        /**
+         * Called on the writer thread to write a batch.
+         *
+         * @param commands The commands in the batch, in the order they should be written. Only
+         *     valid for the duration of the call.
+         * @throws IOException If the commands could not be written. The writer stops.
+         */
+        void writeBatch(List<String> commands) throws IOException;
+    }
+
+    private final OutputStream mOutputStream;
+
+    private final BatchWriter mBatchWriter;
+
+    private final long mWindowMillis;
+
+    private final BatchListener mListener;
+
+    private final Thread mThread;
+
+    /** Guards the fields below. */
+    private final Object mLock = new Object();
+
+    /** Commands waiting to be written, indexed by priority. */
+    private final CommandQueue[] mQueues = new CommandQueue[PRIORITY_COUNT];
+
+    /** Number of commands waiting to be written, in all the queues. */
+    private int mQueuedCount;
+
+    /** When the oldest queued command was queued. */
+    private long mQueuedAt;
+
+    /** True if the queued commands should be written without waiting for the window. */
+    private boolean mFlushRequested;
+
+    private boolean mClosed;
+
+    private long mCommandCount;
+
+    private long mBatchCount;
+
+    /** Commands being written. Only used by the writer thread. */
+    private final List<String> mWriting = new ArrayList<String>();
+
+    /** Encoded bytes of the batch being written. Only used by the writer thread. */
+    private byte[] mBytes = new byte[1024];
+
+    /**
+     * @param outputStream Where the commands are written.
+     * @param windowMillis How long a command may wait for others to join its batch.
+     * @param listener Told about each batch that is written, may be null.
+     */
+    CommandWriter(OutputStream outputStream, long windowMillis, BatchListener listener) {
+        this(outputStream, null, windowMillis, listener);
+    }
+
+    /**
+     * @param batchWriter Writes each batch of commands.
+     * @param windowMillis How long a command may wait for others to join its batch.
+     * @param listener Told about each batch that is written, may be null.
+     */
+    CommandWriter(BatchWriter batchWriter, long windowMillis, BatchListener listener) {
+        this(null, batchWriter, windowMillis, listener);
+    }
+
+    private CommandWriter(OutputStream outputStream, BatchWriter batchWriter, long windowMillis,
+            BatchListener listener) {
+        mOutputStream = outputStream;
+        mBatchWriter = batchWriter;
+        mWindowMillis = windowMillis;
+        mListener = listener;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new CommandQueue();
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "CommandWriter");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Queue commands to be written.
+     *
+     * @param priority One of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_BROWSE} or
+     *     {@link #PRIORITY_BACKGROUND}. Interactive commands (and anything already queued) are
+     *     written without waiting for the batch window.
+     * @param commands The commands, without line terminators.
+     */
+    void send(int priority, String... commands) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (mQueuedCount == 0) {
+                mQueuedAt = now;
+            }
+            CommandQueue queue = mQueues[priority];
+            for (String command : commands) {
+                queue.add(command, now);
+            }
+            mQueuedCount += commands.length;
+            if (priority == PRIORITY_INTERACTIVE) {
+                mFlushRequested = true;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Write the queued commands without waiting for the rest of the batch window. Use this at
+     * the end of a burst of commands.
+     */
+    void flush() {
+        synchronized (mLock) {
+            if (mQueuedCount > 0) {
+                mFlushRequested = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stop the writer thread. Commands that have not been written are discarded.
+     */
+    void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            for (CommandQueue queue : mQueues) {
+                queue.commands.clear();
+            }
+            mQueuedCount = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of commands written.
+     */
+    long getCommandCount() {
+        synchronized (mLock) {
+            return mCommandCount;
+        }
+    }
+
+    /**
+     * @return The number of writes the commands were coalesced in to.
+     */
+    long getBatchCount() {
+        synchronized (mLock) {
+            return mBatchCount;
+        }
+    }
+
+    /**
+     * @param priority One of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_BROWSE} or
+     *     {@link #PRIORITY_BACKGROUND}.
+     * @return The current statistics of the priority.
+     */
+    QueueStats getStats(int priority) {
+        synchronized (mLock) {
+            CommandQueue queue = mQueues[priority];
+            return new QueueStats(priority, queue.commands.size(), queue.written,
+                    queue.totalWaitMillis, queue.maxWaitMillis);
+        }
+    }
+
+    private void writeBatches() {
+        while (true) {
+            synchronized (mLock) {
+                try {
+                    while (!mClosed && !batchReady()) {
+                        if (mQueuedCount == 0) {
+                            mLock.wait();
+                        } else {
+                            mLock.wait(Math.max(1, mQueuedAt + mWindowMillis
+                                    - System.currentTimeMillis()));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    mClosed = true;
+                }
+                if (mClosed) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                for (CommandQueue queue : mQueues) {
+                    queue.drainTo(mWriting, now);
+                }
+                mQueuedCount = 0;
+                mFlushRequested = false;
+            }
+
+            try {
+                if (mBatchWriter != null) {
+                    mBatchWriter.writeBatch(mWriting);
+                } else {
+                    write(mWriting);
+                }
+            } catch (IOException e) {
+                // The listening thread sees the connection fail and disconnects.
+                close();
+                return;
+            }
+
+            synchronized (mLock) {
+                mCommandCount += mWriting.size();
+                mBatchCount++;
+            }
+            if (mListener != null) {
+                mListener.onBatchWritten(mWriting);
+            }
+            mWriting.clear();
+        }
+    }
+
+    private boolean batchReady() {
+        return mQueuedCount > 0 && (mFlushRequested
+                || System.currentTimeMillis() - mQueuedAt >= mWindowMillis);
+    }
+
+    private void write(List<String> commands) throws IOException {
+        int length = 0;
+        for (String command : commands) {
+            length = append(command, length);
+            length = append('\n', length);
+        }
+        mOutputStream.write(mBytes, 0, length);
+        mOutputStream.flush();
+    }
+
+    private int append(String command, int length) throws UnsupportedEncodingException {
+        // Commands are URL encoded, so are normally ASCII.
+        for (int i = 0; i < command.length(); i++) {
+            if (command.charAt(i) >= 0x80) {
+                byte[] bytes = command.getBytes("UTF-8");
+                ensureCapacity(length + bytes.length);
+                System.arraycopy(bytes, 0, mBytes, length, bytes.length);
+                return length + bytes.length;
+            }
+        }
+        ensureCapacity(length + command.length());
+        for (int i = 0; i < command.length(); i++) {
+            mBytes[length++] = (byte) command.charAt(i);
+        }
+        return length;
+    }
+
+    private int append(char c, int length) {
+        ensureCapacity(length + 1);
+        mBytes[length] = (byte) c;
+        return length + 1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBytes.length) {
+            byte[] bigger = new byte[Math.max(mBytes.length * 2, capacity)];
+            System.arraycopy(mBytes, 0, bigger, 0, mBytes.length);
+            mBytes = bigger;
+        }
+    }
+}
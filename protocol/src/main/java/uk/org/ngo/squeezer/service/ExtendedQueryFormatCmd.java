@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2011 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * Represents a command that can be sent to the server using the extended query format.
+ * <p>
+ * Extended queries have the following structure:
+ * <p>
+ * <code>[&lt;playerid>] &lt;command> &lt;start> &lt;itemsPerResponse> &lt;tagged-params> ...</code>
+ * <ul>
+ *     <li><code>&lt;playerid></code> - unique player identifier</li>
+ *     <li><code>&lt;command></code> - command to send</li>
+ *     <li><code>&lt;start></code> - 0-based index of the first item to return</li>
+ *     <li><code>&lt;itemsPerResponse></code> - number of items to return per chunk</li>
+ *     <li><code>&lt;tagged-params></code> - one or more <code>tag:value</code> pairs</li>
+ * </ul>
+ * The responses are parsed with {@link #parse(TokenCursor)}, which gives the items to the
+ * command's {@link ListHandler}s.
+ */
+class ExtendedQueryFormatCmd {
+    /** The types of command handler, see {@link #handlerList}. */
+    static final int HANDLER_LIST_GLOBAL = 1;
+    static final int HANDLER_LIST_PREFIXED = 1 << 1;
+    static final int HANDLER_LIST_PLAYER_SPECIFIC = 1 << 2;
+    static final int HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC = 1 << 3;
+    static final int HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC = 1 << 4;
+
+    private static final int PLAYER_SPECIFIC_HANDLER_LISTS =
+            HANDLER_LIST_PLAYER_SPECIFIC | HANDLER_LIST_GLOBAL_PLAYER_SPECIFIC | HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC;
+
+    private static final int PREFIXED_HANDLER_LISTS =
+            HANDLER_LIST_PREFIXED | HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC;
+
+    private static final String TAG = "ExtendedQueryFormatCmd";
+
+    /** {@link java.util.regex.Pattern} that splits strings on spaces. */
+    private static final Pattern mSpaceSplitPattern = Pattern.compile(" ");
+
+    /** The command's type, one of the <code>HANDLER_LIST_</code> constants. */
+    final int handlerList;
+
+    /** True if this is a player-specific command (i.e., the command should send a player ID). */
+    final boolean playerSpecific;
+
+    final boolean prefixed;
+
+    final String cmd;
+
+    /** The number of space separated words in {@link #cmd}. */
+    final private int cmdTokenCount;
+
+    final private Set<String> taggedParameters;
+
+    final SqueezeParserInfo[] parserInfos;
+
+    /** The parser for items delimited by each {@link Tag}, indexed by the tag's slot. */
+    final private SqueezeParserInfo[] itemDelimiters = new SqueezeParserInfo[Tag.TAG_COUNT];
+
+    /**
+     * A command sent to the server.
+     *
+     * @param handlerList The command's type.
+     * @param cmd The command to send.
+     * @param taggedParameters Tagged parameters to send
+     * @param parserInfos ?
+     */
+    public ExtendedQueryFormatCmd(int handlerList, String cmd,
+                                  Set<String> taggedParameters, SqueezeParserInfo... parserInfos) {
+        this.handlerList = handlerList;
+        playerSpecific = (PLAYER_SPECIFIC_HANDLER_LISTS & handlerList) != 0;
+        prefixed = (PREFIXED_HANDLER_LISTS & handlerList) != 0;
+        this.cmd = cmd;
+        cmdTokenCount = mSpaceSplitPattern.split(cmd).length;
+        this.taggedParameters = taggedParameters;
+        this.parserInfos = parserInfos;
+        for (SqueezeParserInfo parserInfo : parserInfos) {
+            for (int column : parserInfo.columns) {
+                itemDelimiters[column] = parserInfo;
+            }
+        }
+    }
+
+    /**
+     * A global command to the server where items in the response have a delimiter other than "id:".
+     *
+     * @param cmd The command to send to the server.
+     * @param taggedParameters The keys for any tagged parameters to send.
+     * @param itemDelimiter The identifier of the tagged parameter that marks the start of
+     *    a new block of information.
+     * @param handler The handler used to construct new model objects from the response.
+     */
+    public ExtendedQueryFormatCmd(String cmd, Set<String> taggedParameters,
+                                  ListHandler<?> handler, String... columns) {
+        this(HANDLER_LIST_GLOBAL, cmd, taggedParameters, new SqueezeParserInfo(handler, columns));
+    }
+
+    public ExtendedQueryFormatCmd(String cmd, Set<String> taggedParameters,
+                                  String itemDelimiter, ListHandler<?> handler) {
+        this(HANDLER_LIST_GLOBAL, cmd, taggedParameters, new SqueezeParserInfo(itemDelimiter, handler));
+    }
+
+    /**
+     * A command to the server where items in the response are delimited by id: tags.
+     *
+     * @param cmd The command to send to the server.
+     * @param taggedParameters The keys for any tagged parameters to send.
+     * @param handler The handler used to construct new model objects from the response.
+     */
+    public ExtendedQueryFormatCmd(String cmd, Set<String> taggedParameters,
+            ListHandler<?> handler) {
+        this(HANDLER_LIST_GLOBAL, cmd, taggedParameters, new SqueezeParserInfo(handler));
+    }
+
+    /**
+     * @return The index of the <code>&lt;start></code> token of a response, after the player id,
+     *     prefix and command. The tagged parameters start two tokens later.
+     */
+    int startIndex() {
+        return cmdTokenCount + (playerSpecific ? 1 : 0) + (prefixed ? 1 : 0);
+    }
+
+    /**
+     * Parse a response to this command. The items of the response are given to the handlers of
+     * the command, which are cleared first, and the rest is returned.
+     * <p>
+     * The handlers are reused for every response, so callers must not parse two responses to the
+     * same command at once, and must take the items from the handlers before the next response.
+     *
+     * @param tokens Cursor over the tokens of the response, with value or key:value.
+     * @return The parameters of the response, or null if it's malformed.
+     */
+    ListResponse parse(TokenCursor tokens) {
+        final int ofs = startIndex();
+        final ListResponse response = new ListResponse(this,
+                (playerSpecific ? tokens.raw(0) + " " : ""),
+                (prefixed ? tokens.raw(playerSpecific ? 1 : 0) + " " : ""),
+                tokens.intAt(ofs, 0), tokens.intAt(ofs + 1, 0));
+        final TagRecord record = new TagRecord();
+
+        for (SqueezeParserInfo parserInfo : parserInfos) {
+            parserInfo.handler.clear();
+        }
+
+        // Keys come from the cursor's cache and values are only decoded when they are stored,
+        // so walking a long response doesn't create strings for anything that isn't kept.
+        // Known keys are matched by their tag slot.
+        SqueezeParserInfo parserInfo = null;
+        tokens.moveTo(ofs + 2);
+        while (tokens.next()) {
+            if (!tokens.hasValue()) {
+                ProtocolLog.e(TAG, "Expected colon in list token. '" + tokens.raw() + "'");
+                return null;
+            }
+            int tag = tokens.tag();
+
+            if (tag == Tag.RESCAN) {
+                response.rescan = (tokens.valueAsInt(0) == 1);
+            } else if (tag == Tag.FULL_LIST) {
+                response.fullList = (tokens.valueAsInt(0) == 1);
+                response.taggedParameters.put(tokens.key(), tokens.raw());
+            } else if (tag == Tag.CORRELATIONID) {
+                response.correlationId = tokens.valueAsInt(0);
+                response.correlationIndex = tokens.index();
+                response.taggedParameters.put(tokens.key(), tokens.raw());
+            } else if (tag == Tag.ACTIONS) {
+                // Apparently squeezer returns some commands which are
+                // included in the count of the current request
+                response.actionsCount++;
+            }
+
+            boolean isCount = false;
+            for (int i = 0; i < parserInfos.length; i++) {
+                if (parserInfos[i].countTag == tag) {
+                    response.counts[i] = tokens.valueAsInt(0);
+                    isCount = true;
+                }
+            }
+            if (!isCount) {
+                SqueezeParserInfo newParserInfo = (tag != -1) ? itemDelimiters[tag] : null;
+                if (newParserInfo != null && parserInfo != null && parserInfo.isComplete(record)) {
+                    add(parserInfo, record);
+                    record.clear();
+                }
+                if (newParserInfo != null) parserInfo = newParserInfo;
+                if (parserInfo != null) {
+                    if (tag != -1) {
+                        record.put(tag, tokens.value());
+                    } else {
+                        record.put(tokens.key(), tokens.value());
+                    }
+                } else if (taggedParameters.contains(tokens.key())) {
+                    response.taggedParameters.put(tokens.key(), tokens.raw());
+                } else {
+                    response.parameters.put(tokens.key(), tokens.value());
+                }
+            }
+        }
+
+        if (parserInfo != null && !record.isEmpty()) {
+            add(parserInfo, record);
+        }
+        return response;
+    }
+
+    private static void add(SqueezeParserInfo parserInfo, TagRecord record) {
+        parserInfo.handler.add(record);
+        if (ProtocolLog.isLoggable(ProtocolLog.VERBOSE)) {
+            ProtocolLog.v(TAG, "record=" + record);
+        }
+    }
+
+    public String toString() {
+        return "{ cmd:'" + cmd + "', list:" + handlerList + ", player specific:" + playerSpecific + ", prefixed:" + prefixed + " }";
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Collects the lines framed from one socket read so they can be handed to another thread as a
+ * single unit.
+ * <p>
+ * The lines are copied back to back in to one byte array, however many lines the read
+ * contained. Once the batch has been run it is emptied and returned to its pool, so in the steady
+ * state receiving lines doesn't allocate.
+ */
+class LineBatch implements LineFramer.LineSink, Runnable {
+
+    /** Where the lines are delivered when the batch is run. */
+    private final LineFramer.LineSink target;
+
+    /** Run after all the lines have been delivered, may be null. */
+    private final Runnable onDelivered;
+
+    /** The pool this batch is returned to after it has been run. */
+    private final BlockingQueue<LineBatch> pool;
+
+    private byte[] data;
+
+    private int size;
+
+    /** End offset (exclusive) in {@link #data} of each line. */
+    private int[] ends;
+
+    private int count;
+
+    /**
+     * Get an empty batch from the pool, or create a new one if the pool is empty.
+     *
+     * @param target Where the lines are delivered when the batch is run.
+     * @param onDelivered Run after all the lines in the batch have been delivered, may be null.
+     * @param pool Pool of batches. If it has room the batch is returned to it after it has run.
+     * @param initialCapacity Initial size of the buffer for a new batch.
+     */
+    static LineBatch obtain(LineFramer.LineSink target, Runnable onDelivered,
+                            BlockingQueue<LineBatch> pool, int initialCapacity) {
+        LineBatch batch = pool.poll();
+        return (batch != null) ? batch
+                : new LineBatch(target, onDelivered, pool, initialCapacity);
+    }
+
+    private LineBatch(LineFramer.LineSink target, Runnable onDelivered,
+                      BlockingQueue<LineBatch> pool, int initialCapacity) {
+        this.target = target;
+        this.onDelivered = onDelivered;
+        this.pool = pool;
+        data = new byte[initialCapacity];
+        ends = new int[16];
+    }
+
+    @Override
+    public void onLine(byte[] buffer, int offset, int length) {
+        // Not Bytes/Ints.ensureCapacity(), their argument checks allocate on every call.
+        if (size + length > data.length) {
+            byte[] bigger = new byte[Math.max(data.length * 2, size + length)];
+            System.arraycopy(data, 0, bigger, 0, size);
+            data = bigger;
+        }
+        if (count == ends.length) {
+            int[] bigger = new int[ends.length * 2];
+            System.arraycopy(ends, 0, bigger, 0, count);
+            ends = bigger;
+        }
+        System.arraycopy(buffer, offset, data, size, length);
+        size += length;
+        ends[count++] = size;
+    }
+
+    /**
+     * @return The number of lines in this batch.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Pass each line in the batch to the target, in the order they were received, then empty
+     * the batch and return it to the pool.
+     */
+    @Override
+    public void run() {
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            target.onLine(data, start, ends[i] - start);
+            start = ends[i];
+        }
+        if (onDelivered != null) {
+            onDelivered.run();
+        }
+        size = 0;
+        count = 0;
+        pool.offer(this);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of {@link LineBatch}es, which bounds the lines waiting to be handled between
+ * two threads.
+ * <p>
+ * The thread filling the batches takes them from the pool, and a batch returns to the pool once
+ * it has been run. When all the batches are waiting to be run, {@link #take()} blocks until one
+ * has been, so a producer that gets ahead of its consumer is held up instead of queueing lines
+ * without limit. For the thread reading the socket that means the socket isn't read, and the
+ * server is held up by TCP flow control.
+ */
+class LineBatchPool {
+
+    private final LineFramer.LineSink target;
+
+    private final Runnable onDelivered;
+
+    private final int initialCapacity;
+
+    private final int capacity;
+
+    /** Batches which have been run, and can be reused. */
+    private final BlockingQueue<LineBatch> free;
+
+    /** Number of batches created, and not discarded. */
+    private final AtomicInteger created = new AtomicInteger();
+
+    /** Most batches that were taken and not yet run, at once. */
+    private volatile int maxInUse;
+
+    /** Number of times {@link #take()} had to wait for a batch. */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /** Total time spent waiting in {@link #take()}, in nanoseconds. */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param capacity The most batches that can be taken and not run, at once.
+     * @param target Where the lines are delivered when a batch is run.
+     * @param onDelivered Run after all the lines in a batch have been delivered, may be null.
+     * @param initialCapacity Initial size of the buffer for a new batch.
+     */
+    LineBatchPool(int capacity, LineFramer.LineSink target, Runnable onDelivered,
+                  int initialCapacity) {
+        this.capacity = capacity;
+        this.target = target;
+        this.onDelivered = onDelivered;
+        this.initialCapacity = initialCapacity;
+        free = new ArrayBlockingQueue<LineBatch>(capacity);
+    }
+
+    /**
+     * Get an empty batch, waiting for one to be run if they are all in use.
+     *
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    LineBatch take() throws InterruptedException {
+        LineBatch batch = free.poll();
+        if (batch == null) {
+            if (created.incrementAndGet() <= capacity) {
+                batch = LineBatch.obtain(target, onDelivered, free, initialCapacity);
+            } else {
+                created.decrementAndGet();
+                waitCount.incrementAndGet();
+                long start = System.nanoTime();
+                batch = free.take();
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        int inUse = getInUse();
+        if (inUse > maxInUse) {
+            maxInUse = inUse;
+        }
+        return batch;
+    }
+
+    /**
+     * Give up a batch that won't be run, e.g. because the connection it was filled from has
+     * closed, so a new batch can take its place.
+     */
+    void discard(LineBatch batch) {
+        created.decrementAndGet();
+    }
+
+    /** @return The most batches that can be in use at once. */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** @return The number of batches taken and not yet run. */
+    int getInUse() {
+        return Math.max(0, created.get() - free.size());
+    }
+
+    /** @return The most batches that were in use at once. */
+    int getMaxInUse() {
+        return maxInUse;
+    }
+
+    /** @return The number of times a batch had to be waited for. */
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /** @return The total time spent waiting for batches, in milliseconds. */
+    long getWaitMillis() {
+        return waitNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "LineBatchPool{inUse=" + getInUse() + "/" + capacity + ", maxInUse=" + maxInUse
+                + ", waits=" + getWaitCount() + ", waitMs=" + getWaitMillis() + "}";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes read from a channel in to newline terminated lines.
+ * <p>
+ * All reads go in to a single reusable {@link ByteBuffer}. Complete lines are handed to a
+ * {@link LineSink} as byte ranges in to that buffer, so no per-line objects are created. The
+ * range is only valid for the duration of the {@link LineSink#onLine(byte[], int, int)} call;
+ * sinks that need to keep the line must copy it.
+ * <p>
+ * Lines may be terminated by "\n" or "\r\n"; the terminator is not included in the range.
+ * If a single line does not fit in the buffer the buffer is grown.
+ */
+class LineFramer {
+
+    /** Receives the lines found by {@link LineFramer}. */
+    interface LineSink {
+        /**
+         * Called for each complete line.
+         *
+         * @param buffer Buffer holding the line.
+         * @param offset Offset of the first byte of the line in buffer.
+         * @param length Number of bytes in the line, excluding the line terminator.
+         */
+        void onLine(byte[] buffer, int offset, int length);
+    }
+
+    private ByteBuffer buffer;
+
+    /** Position in {@link #buffer} up to which the bytes have been searched for a newline. */
+    private int scanned;
+
+    LineFramer(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Read the next chunk of bytes from the channel, and pass any complete lines to the sink.
+     * <p>
+     * Blocks if the channel is in blocking mode and no data is available.
+     *
+     * @param channel Channel to read from.
+     * @param sink Receives complete lines.
+     * @return false if the end of stream has been reached, otherwise true.
+     * @throws IOException If reading from the channel fails.
+     */
+    boolean read(ReadableByteChannel channel, LineSink sink) throws IOException {
+        if (!buffer.hasRemaining()) {
+            grow();
+        }
+        if (channel.read(buffer) < 0) {
+            return false;
+        }
+        frame(sink);
+        return true;
+    }
+
+    /**
+     * @return The number of bytes received which are not yet part of a complete line.
+     */
+    int pending() {
+        return buffer.position();
+    }
+
+    /**
+     * @return The current capacity of the receive buffer.
+     */
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    private void frame(LineSink sink) {
+        byte[] array = buffer.array();
+        int end = buffer.position();
+        int lineStart = 0;
+
+        for (int i = scanned; i < end; i++) {
+            if (array[i] == '\n') {
+                int lineEnd = (i > lineStart && array[i - 1] == '\r') ? i - 1 : i;
+                sink.onLine(array, lineStart, lineEnd - lineStart);
+                lineStart = i + 1;
+            }
+        }
+
+        // Move the partial line (if any) to the front of the buffer.
+        if (lineStart > 0) {
+            System.arraycopy(array, lineStart, array, 0, end - lineStart);
+            buffer.position(end - lineStart);
+        }
+        scanned = buffer.position();
+    }
+
+    private void grow() {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+}
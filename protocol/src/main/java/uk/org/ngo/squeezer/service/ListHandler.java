@@ -17,17 +17,17 @@
 package uk.org.ngo.squeezer.service;
 
 import java.util.List;
-import java.util.Map;
 
-import uk.org.ngo.squeezer.framework.Item;
+import uk.org.ngo.squeezer.framework.TagRecord;
 
 /**
- * Implement this and give it to {@link CliClient#parseSqueezerList(CliClient.ExtendedQueryFormatCmd, List)} for each
- * extended query format command you wish to support. </p>
+ * Implement this and give it to an {@link ExtendedQueryFormatCmd} for each extended query format
+ * command you wish to support. The app's handlers make model items from the records, tests and
+ * benchmarks can use anything. </p>
  *
  * @author Kurt Aaholst
  */
-interface ListHandler<T extends Item> {
+interface ListHandler<T> {
     /**
      * @return The type of item this handler can handle
      */
@@ -46,7 +46,8 @@ interface ListHandler<T extends Item> {
     /**
      * Called for each item received in the current reply. Just store this internally.
      *
-     * @param record Item data from Squeezebox Server
+     * @param record Item data from Squeezebox Server. The record is reused for the next item, so
+     *     it must not be kept.
      */
-    void add(Map<String, String> record);
+    void add(TagRecord record);
 }
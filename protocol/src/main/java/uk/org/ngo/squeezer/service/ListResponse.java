@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What {@link ExtendedQueryFormatCmd#parse(TokenCursor)} found in a response besides the items:
+ * the position of the page, the counts of the lists, and the parameters needed to order the next
+ * page.
+ */
+class ListResponse {
+    final ExtendedQueryFormatCmd cmd;
+
+    /** The player id of the response followed by a space, or "" if it isn't player specific. */
+    final String playerId;
+
+    /** The prefix of the response followed by a space, or "" if it isn't prefixed. */
+    final String prefix;
+
+    /** Index of the first item of the page. */
+    final int start;
+
+    final int itemsPerResponse;
+
+    /** The counts of the lists, indexed as {@link ExtendedQueryFormatCmd#parserInfos}. */
+    final Integer[] counts;
+
+    /** Number of <code>actions</code>, which the server includes in the counts. */
+    int actionsCount;
+
+    /** True if the server is scanning the library. */
+    boolean rescan;
+
+    /** True if the client asked for the full list, and more pages are to be ordered. */
+    boolean fullList;
+
+    int correlationId;
+
+    /** Index of the <code>correlationid</code> token, or -1 if there isn't one. */
+    int correlationIndex = -1;
+
+    /** Raw tagged parameters to send again when the next page is ordered, by key. */
+    final Map<String, String> taggedParameters = new HashMap<String, String>();
+
+    /** Other parameters of the response, for the callbacks. */
+    final Map<String, String> parameters = new HashMap<String, String>();
+
+    ListResponse(ExtendedQueryFormatCmd cmd, String playerId, String prefix, int start,
+            int itemsPerResponse) {
+        this.cmd = cmd;
+        this.playerId = playerId;
+        this.prefix = prefix;
+        this.start = start;
+        this.itemsPerResponse = itemsPerResponse;
+        counts = new Integer[cmd.parserInfos.length];
+    }
+
+    /** @return The command line up to the start of the page, without a trailing space. */
+    String command() {
+        return playerId + prefix + cmd.cmd;
+    }
+
+    /**
+     * @return The tagged parameters to send with the next page. The correlation id is removed,
+     *     as each page has its own.
+     */
+    Collection<String> pagingParameters() {
+        taggedParameters.remove("correlationid");
+        return taggedParameters.values();
+    }
+
+    /**
+     * @return The command that orders a page of the list with the same parameters, without a
+     *     correlation id.
+     */
+    String pageCommand(int start, int count) {
+        StringBuilder cmdline = new StringBuilder();
+        cmdline.append(playerId);
+        cmdline.append(prefix);
+        cmdline.append(cmd.cmd);
+        cmdline.append(" ");
+        cmdline.append(start);
+        cmdline.append(" ");
+        cmdline.append(count);
+        for (String parameter : pagingParameters()) {
+            cmdline.append(" ").append(parameter);
+        }
+        return cmdline.toString();
+    }
+}
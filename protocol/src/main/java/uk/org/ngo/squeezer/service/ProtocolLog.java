@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import javax.annotation.Nullable;
+
+/**
+ * Logging for the protocol classes, which don't depend on Android so they can run on any JVM.
+ * <p>
+ * The app installs a {@link Logger} that writes to the Android log. Until then, e.g. in tests and
+ * benchmarks, warnings and errors are written to the standard error stream and the rest is
+ * dropped.
+ */
+final class ProtocolLog {
+    /** Priorities, with the values of the priorities of <code>android.util.Log</code>. */
+    static final int VERBOSE = 2;
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    /** Writes the messages. */
+    interface Logger {
+        /** @return True if messages of the priority are written. */
+        boolean isLoggable(int priority);
+
+        /**
+         * Write a message.
+         *
+         * @param priority One of the priorities, {@link #VERBOSE} to {@link #ERROR}.
+         * @param tag Identifies the source of the message.
+         * @param message The message.
+         * @param tr The exception that caused the message, or null.
+         */
+        void log(int priority, String tag, String message, @Nullable Throwable tr);
+    }
+
+    /** Writes warnings and errors to the standard error stream. */
+    static final Logger STDERR = new Logger() {
+        @Override
+        public boolean isLoggable(int priority) {
+            return priority >= WARN;
+        }
+
+        @Override
+        public void log(int priority, String tag, String message, @Nullable Throwable tr) {
+            System.err.println(tag + ": " + message);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+    };
+
+    private static volatile Logger sLogger = STDERR;
+
+    private ProtocolLog() {
+    }
+
+    /** Install the logger the protocol classes write to. */
+    static void setLogger(Logger logger) {
+        sLogger = logger;
+    }
+
+    /**
+     * @return True if messages of the priority are written. Check this before building verbose
+     *     and debug messages, as they are usually dropped.
+     */
+    static boolean isLoggable(int priority) {
+        return sLogger.isLoggable(priority);
+    }
+
+    static void v(String tag, String message) {
+        log(VERBOSE, tag, message, null);
+    }
+
+    static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    static void e(String tag, String message, Throwable tr) {
+        log(ERROR, tag, message, tr);
+    }
+
+    private static void log(int priority, String tag, String message, @Nullable Throwable tr) {
+        Logger logger = sLogger;
+        if (logger.isLoggable(priority)) {
+            logger.log(priority, tag, message, tr);
+        }
+    }
+}
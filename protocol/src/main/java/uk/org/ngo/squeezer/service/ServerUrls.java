@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * Makes the URLs of downloads, cover art and icons in the records of a list absolute, with the
+ * prefix of the server's web interface, which is known once the client has connected.
+ */
+class ServerUrls {
+
+    /** The prefix for URLs for downloads and cover art. */
+    private volatile String mUrlPrefix;
+
+    /**
+     * Set the server the URLs are on.
+     *
+     * @param host The host of the server.
+     * @param httpPort The port of the server's web interface.
+     */
+    void setServer(String host, int httpPort) {
+        mUrlPrefix = "http://" + host + ":" + httpPort;
+    }
+
+    /** @return The prefix of the URLs, e.g. "http://host:9000", or null before it's set. */
+    String getUrlPrefix() {
+        return mUrlPrefix;
+    }
+
+    /**
+     * Adds a <code>artwork_url</code> entry for the item passed in.
+     * <p>
+     * If an <code>artwork_url</code> entry already exists and is absolute it is preserved.
+     * If it exists but is relative it is canonicalised.  Otherwise it is synthesised from
+     * the <code>artwork_track_id</code> tag (if it exists) otherwise the item's <code>id</code>.
+     *
+     * @param record The record to modify.
+     */
+    void addArtworkUrlTag(TagRecord record) {
+        String artworkUrl = record.get(Tag.ARTWORK_URL);
+
+        // Nothing to do if the artwork_url tag already exists and is absolute.
+        if (artworkUrl != null && artworkUrl.startsWith("http")) {
+            return;
+        }
+
+        // If artworkUrl is non-null it must be relative. Canonicalise it and return.
+        if (artworkUrl != null) {
+            record.put(Tag.ARTWORK_URL, mUrlPrefix + "/" + artworkUrl);
+            return;
+        }
+
+        // Need to generate an artwork_url value.
+
+        // Prefer using the artwork_track_id entry to generate the URL
+        String artworkTrackId = record.get(Tag.ARTWORK_TRACK_ID);
+
+        if (artworkTrackId != null) {
+            record.put(Tag.ARTWORK_URL, mUrlPrefix + "/music/" + artworkTrackId + "/cover.jpg");
+            return;
+        }
+
+        // If coverart exists but artwork_track_id is missing then use the item's ID.
+        if ("1".equals(record.get(Tag.COVERART))) {
+            record.put(Tag.ARTWORK_URL, mUrlPrefix + "/music/" + record.get(Tag.ID) + "/cover.jpg");
+            return;
+        }
+    }
+
+    /**
+     * Adds a <code>download_url</code> entry for the item passed in.
+     *
+     * @param record The record to modify.
+     */
+    void addDownloadUrlTag(TagRecord record) {
+        record.put(Tag.DOWNLOAD_URL, mUrlPrefix + "/music/" + record.get(Tag.ID) + "/download");
+    }
+
+    /**
+     * Make sure the icon/image tag is an absolute URL.
+     *
+     * @param imageTag The slot of the tag to fix.
+     * @param record The record to modify.
+     */
+    void fixImageTag(int imageTag, TagRecord record) {
+        String image = record.get(imageTag);
+        if (image == null) {
+            return;
+        }
+
+        if (isAbsolute(image)) {
+            return;
+        }
+
+        record.put(imageTag, mUrlPrefix + (image.startsWith("/") ? image : "/" + image));
+    }
+
+    /**
+     * @return True if the URI has a scheme. As with <code>android.net.Uri.isAbsolute()</code>,
+     *     which this replaces, anything before the first colon is taken as the scheme.
+     */
+    static boolean isAbsolute(String uri) {
+        return uri.indexOf(':') != -1;
+    }
+}
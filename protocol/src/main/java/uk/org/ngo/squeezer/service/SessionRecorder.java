@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Ticker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the lines sent to and received from the server, so a session can be replayed later,
+ * e.g. to reproduce a performance problem, or as a test fixture.
+ * <p>
+ * The recording is text, one line per record, compressed with gzip:
+ * <pre>
+ * #squeezer-session 1 &lt;start time, ms since the epoch>
+ * &lt;ms since the previous record>&lt;'&gt;' if sent, '&lt;' if received> &lt;line>
+ * </pre>
+ * The lines are as they are on the CLI, URL encoded, so they have no spaces or newlines other
+ * than those of the protocol. The user name and password of logins are replaced by
+ * {@link #REDACTED}.
+ * <p>
+ * Commands are recorded from the thread that writes them, and received lines from the threads
+ * that read them from the connections, so only what the server sent is recorded, not the lines
+ * the client makes up itself, e.g. from cached responses. They are recorded in to a buffer which
+ * is compressed and written as it fills. Recording stops
+ * when {@link #MAX_LENGTH} bytes have been recorded, or if writing fails.
+ */
+class SessionRecorder {
+
+    private static final String TAG = "SessionRecorder";
+
+    /** The first line of a recording, followed by the version of the format and the time. */
+    static final String HEADER = "#squeezer-session";
+
+    static final int VERSION = 1;
+
+    /** Replaces the user name and password of logins. */
+    static final String REDACTED = "******";
+
+    static final char SENT = '>';
+
+    static final char RECEIVED = '<';
+
+    /** The most bytes of lines recorded, before compression. */
+    private static final long MAX_LENGTH = 64L * 1024 * 1024;
+
+    private static final byte[] LOGIN = ("login " + REDACTED + " " + REDACTED).getBytes();
+
+    private static final byte[] LOGIN_PREFIX = "login ".getBytes();
+
+    private final OutputStream out;
+
+    private final Ticker ticker;
+
+    /** When the last record was recorded, in nanoseconds of the ticker. */
+    private long lastNanos;
+
+    private long length;
+
+    private boolean closed;
+
+    /**
+     * Start a new recording in a directory.
+     *
+     * @param directory The directory, which is created if necessary.
+     * @return The recorder, writing to a file named for the time it started.
+     * @throws IOException If the file could not be created.
+     */
+    static SessionRecorder create(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, "session-" + System.currentTimeMillis() + ".cli.gz");
+        ProtocolLog.i(TAG, "Recording the session to: " + file);
+        return new SessionRecorder(new GZIPOutputStream(new FileOutputStream(file)),
+                Ticker.systemTicker(), System.currentTimeMillis());
+    }
+
+    /**
+     * @param out Receives the recording, uncompressed. Closed by {@link #close()}.
+     * @param ticker Times the records.
+     * @param startMillis The time the recording started, for the header.
+     */
+    SessionRecorder(OutputStream out, Ticker ticker, long startMillis) throws IOException {
+        this.out = new BufferedOutputStream(out, 16 * 1024);
+        this.ticker = ticker;
+        lastNanos = ticker.read();
+        this.out.write((HEADER + " " + VERSION + " " + startMillis + "\n").getBytes());
+    }
+
+    /** Record a command written to the server. */
+    synchronized void onSent(String line) {
+        if (closed) {
+            return;
+        }
+        try {
+            start(SENT);
+            if (line.startsWith("login ")) {
+                out.write(LOGIN);
+                length += LOGIN.length;
+            } else {
+                for (int i = 0; i < line.length(); i++) {
+                    out.write(line.charAt(i));
+                }
+                length += line.length();
+            }
+            end();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Record a line received from the server.
+     *
+     * @param buffer Buffer holding the line, only read for the duration of the call.
+     * @param offset Offset of the start of the line in buffer.
+     * @param length Length of the line, excluding the line terminator.
+     */
+    synchronized void onReceived(byte[] buffer, int offset, int length) {
+        if (closed) {
+            return;
+        }
+        try {
+            start(RECEIVED);
+            if (isLogin(buffer, offset, length)) {
+                out.write(LOGIN);
+                this.length += LOGIN.length;
+            } else {
+                out.write(buffer, offset, length);
+                this.length += length;
+            }
+            end();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static boolean isLogin(byte[] buffer, int offset, int length) {
+        if (length < LOGIN_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < LOGIN_PREFIX.length; i++) {
+            if (buffer[offset + i] != LOGIN_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void start(char direction) throws IOException {
+        long deltaMillis = TimeUnit.NANOSECONDS.toMillis(ticker.read() - lastNanos);
+        // By the whole milliseconds recorded, so the rounding errors don't add up.
+        lastNanos += TimeUnit.MILLISECONDS.toNanos(deltaMillis);
+        String delta = Long.toString(deltaMillis);
+        for (int i = 0; i < delta.length(); i++) {
+            out.write(delta.charAt(i));
+        }
+        out.write(direction);
+        out.write(' ');
+        length += delta.length() + 2;
+    }
+
+    private void end() throws IOException {
+        out.write('\n');
+        length++;
+        if (length >= MAX_LENGTH) {
+            ProtocolLog.w(TAG, "Recording stopped at " + length + " bytes");
+            close();
+        }
+    }
+
+    private void fail(IOException e) {
+        ProtocolLog.w(TAG, "Recording failed: " + e);
+        close();
+    }
+
+    /** Stop recording, and write the rest of the recording. */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            ProtocolLog.w(TAG, "Closing the recording failed: " + e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionRecorder{length=" + length + ", closed=" + closed + "}";
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2011 Kurt Aaholst <kaaholst@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package uk.org.ngo.squeezer.service;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * Data for {@link ExtendedQueryFormatCmd#parse(TokenCursor)}
+ *
+ * @author kaa
+ */
+class SqueezeParserInfo {
+
+    /** {@link Tag} slots of the item delimiters. */
+    final int[] columns;
+
+    /** {@link Tag} slot of the count of items. */
+    final int countTag;
+
+    final ListHandler<?> handler;
+
+    /**
+     * @param countId The label for the tag which contains the total number of results, normally
+     * "count".
+     * @param handler Callback to receive the parsed data.
+     * @param columns If one column is specified, it is the item delimiter as defined for each
+     *                extended query format command in the SqueezeServer CLI documentation.
+     *                Multiple columns is supported to workaround of a bug in recent server
+     *                versions.
+     */
+    public SqueezeParserInfo(String countId, ListHandler<?> handler, String... columns) {
+        countTag = slotOf(countId);
+        this.columns = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            this.columns[i] = slotOf(columns[i]);
+        }
+        this.handler = handler;
+    }
+
+    public SqueezeParserInfo(String itemDelimiter, ListHandler<?> handler) {
+        this("count", handler, itemDelimiter);
+    }
+
+    public SqueezeParserInfo(ListHandler<?> handler, String... columns) {
+        this("count", handler, columns);
+    }
+
+    public SqueezeParserInfo(ListHandler<?> handler) {
+        this("id", handler);
+    }
+
+    public boolean isComplete(TagRecord record) {
+        for (int column : columns) {
+            if (!record.has(column)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The slot of the named tag. Every tag used to parse a list must be in the
+     *     {@link Tag} table.
+     */
+    private static int slotOf(String name) {
+        int slot = Tag.slotOf(name);
+        if (slot == -1) {
+            throw new IllegalArgumentException("Not in the tag table: " + name);
+        }
+        return slot;
+    }
+}
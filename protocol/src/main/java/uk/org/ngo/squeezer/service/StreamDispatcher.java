@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands received lines to a small pool of threads, so independent streams of lines are handled
+ * concurrently while the lines of each stream are handled in the order they were received.
+ * <p>
+ * Each stream, e.g. the lines of one player or the pages of one list command, is identified by
+ * a hash. Streams are mapped to a fixed lane by their hash, and each lane is handled by its own
+ * thread, so a long list being parsed only holds up the streams that share its lane.
+ * <p>
+ * Lines are queued with {@link #dispatch(int, byte[], int, int)} and handed to the lanes by
+ * {@link #flush()}, both called on the same thread. The lines of a lane are copied in to a
+ * bounded {@link LineBatchPool}, so in the steady state dispatching doesn't allocate, and a lane
+ * that falls behind holds up the dispatching thread instead of queueing lines without limit.
+ * <p>
+ * The threads of the lanes are started when lines are first handed to them, and stopped by
+ * {@link #shutdown()}, e.g. when the client disconnects.
+ */
+class StreamDispatcher {
+    private static final String TAG = "StreamDispatcher";
+
+    /**
+     * The most batches waiting to be handled on each lane. When they are all waiting, dispatching
+     * another line to the lane blocks until a batch has been handled.
+     */
+    private static final int LANE_BATCHES = 4;
+
+    /** Initial size of the buffer of a batch. */
+    private static final int BATCH_CAPACITY = 8 * 1024;
+
+    /** Handles the lines of the lanes. Called on the thread of the lane. */
+    interface LaneSink {
+        /**
+         * Handle a line.
+         *
+         * @param lane The lane the line was dispatched to, there is one thread per lane.
+         * @param buffer Buffer holding the line, only valid for the duration of the call.
+         * @param offset Offset of the start of the line in buffer.
+         * @param length Length of the line.
+         */
+        void onLine(int lane, byte[] buffer, int offset, int length);
+
+        /** Called after the lines of a flush have been handled. */
+        void onLinesHandled(int lane);
+    }
+
+    private class Lane implements LineFramer.LineSink {
+        final int index;
+
+        /** Runs the batches of the lane, or null if it has been shut down. Guarded by this. */
+        private ExecutorService executor;
+
+        final LineBatchPool batches = new LineBatchPool(LANE_BATCHES, this, new Runnable() {
+            @Override
+            public void run() {
+                sink.onLinesHandled(index);
+            }
+        }, BATCH_CAPACITY);
+
+        /** The batch being filled by {@link #dispatch(int, byte[], int, int)}, or null. */
+        LineBatch pending;
+
+        /** Number of lines handed to the lane that have not been handled yet. */
+        final AtomicInteger queued = new AtomicInteger();
+
+        /** Most lines that were waiting to be handled at once. */
+        volatile int maxQueued;
+
+        // Only written by the thread of the lane.
+        volatile long handled;
+
+        volatile long handleNanos;
+
+        volatile long maxHandleNanos;
+
+        Lane(int index) {
+            this.index = index;
+        }
+
+        /** Run a batch on the thread of the lane, starting the thread if need be. */
+        synchronized void execute(LineBatch batch) {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor();
+            }
+            executor.execute(batch);
+        }
+
+        synchronized void shutdown() {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+
+        /** Handle a line of a batch, on the thread of the lane. */
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            long start = System.nanoTime();
+            try {
+                sink.onLine(index, buffer, offset, length);
+            } catch (RuntimeException e) {
+                // Don't lose the rest of the batch, or the lane's thread.
+                ProtocolLog.e(TAG, "Error handling line: "
+                        + TokenCursor.ascii(buffer, offset, length), e);
+            }
+            long elapsed = System.nanoTime() - start;
+            handled++;
+            handleNanos += elapsed;
+            if (elapsed > maxHandleNanos) {
+                maxHandleNanos = elapsed;
+            }
+            queued.decrementAndGet();
+        }
+    }
+
+    private final LaneSink sink;
+
+    private final Lane[] lanes;
+
+    /**
+     * @param laneCount The number of lanes, each handled by its own thread.
+     * @param sink Handles the lines of the lanes.
+     */
+    StreamDispatcher(int laneCount, LaneSink sink) {
+        this.sink = sink;
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+    /** @return The lane the lines of the stream are handled on. */
+    int laneOf(int stream) {
+        return (stream & 0x7fffffff) % lanes.length;
+    }
+
+    /**
+     * Queue a line to be handled after the lines queued before it for the same stream. The line
+     * is copied, and handed to its lane by the next {@link #flush()}. Blocks while the lane is
+     * too far behind.
+     *
+     * @param stream Hash of the stream the line belongs to.
+     */
+    void dispatch(int stream, byte[] buffer, int offset, int length) {
+        Lane lane = lanes[laneOf(stream)];
+        if (lane.pending == null) {
+            try {
+                lane.pending = lane.batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ProtocolLog.w(TAG, "Interrupted, dropped line: "
+                        + TokenCursor.ascii(buffer, offset, length));
+                return;
+            }
+        }
+        lane.pending.onLine(buffer, offset, length);
+    }
+
+    /** Hand the queued lines to their lanes. */
+    void flush() {
+        for (Lane lane : lanes) {
+            LineBatch batch = lane.pending;
+            if (batch != null) {
+                lane.pending = null;
+                int queued = lane.queued.addAndGet(batch.count());
+                if (queued > lane.maxQueued) {
+                    lane.maxQueued = queued;
+                }
+                lane.execute(batch);
+            }
+        }
+    }
+
+    /**
+     * Stop the threads of the lanes once they have handled the lines already handed to them.
+     * Lines handed to the lanes after this start new threads.
+     */
+    void shutdown() {
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /** @return The number of lanes. */
+    int getLaneCount() {
+        return lanes.length;
+    }
+
+    /** @return The batches of the lane, for their high-water mark and the time spent waiting. */
+    LineBatchPool getBatches(int lane) {
+        return lanes[lane].batches;
+    }
+
+    /** @return The number of lines handed to the lane that have not been handled yet. */
+    int getQueueDepth(int lane) {
+        return lanes[lane].queued.get();
+    }
+
+    /** @return The most lines that were waiting to be handled on the lane at once. */
+    int getMaxQueueDepth(int lane) {
+        return lanes[lane].maxQueued;
+    }
+
+    /** @return The number of lines handled on the lane. */
+    long getHandledCount(int lane) {
+        return lanes[lane].handled;
+    }
+
+    /**
+     * @return The average time taken to handle a line on the lane, in nanoseconds, or 0 if no
+     *     lines have been handled.
+     */
+    long getAverageHandleNanos(int lane) {
+        long handled = lanes[lane].handled;
+        return (handled == 0 ? 0 : lanes[lane].handleNanos / handled);
+    }
+
+    /** @return The longest time taken to handle a line on the lane, in nanoseconds. */
+    long getMaxHandleNanos(int lane) {
+        return lanes[lane].maxHandleNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StreamDispatcher{");
+        for (int i = 0; i < lanes.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(i).append(": queued=").append(getQueueDepth(i))
+                    .append(" maxQueued=").append(getMaxQueueDepth(i))
+                    .append(" handled=").append(getHandledCount(i))
+                    .append(" avgUs=").append(getAverageHandleNanos(i) / 1000)
+                    .append(" maxUs=").append(getMaxHandleNanos(i) / 1000)
+                    .append(" maxBatches=").append(getBatches(i).getMaxInUse())
+                    .append(" waits=").append(getBatches(i).getWaitCount());
+        }
+        return sb.append('}').toString();
+    }
+}
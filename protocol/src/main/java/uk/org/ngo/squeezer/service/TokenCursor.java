@@ -0,0 +1,698 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * Gives access to the tokens of a line received from the server without creating strings for
+ * them.
+ * <p>
+ * A CLI line is a sequence of URL encoded tokens separated by single spaces. Tagged parameters
+ * have the form <code>key:value</code>, where the colon is encoded as <code>%3A</code>.
+ * <p>
+ * {@link #reset(byte[], int, int)} finds the token boundaries in the line buffer. Tokens can then
+ * be examined by index, or the cursor can be walked over them with {@link #next()}, looking at
+ * the key and value of the current token. Nothing is decoded until it is asked for, and keys are
+ * looked up in a small cache (along with their {@link Tag} slot), so walking a long response only
+ * creates strings for the values that are actually read.
+ * <p>
+ * The cursor refers to the line buffer, which must not change until the cursor is reset. A
+ * cursor is not thread safe.
+ */
+class TokenCursor {
+
+    /** Number of entries in the key cache, must be a power of two. */
+    private static final int KEY_CACHE_SIZE = 256;
+
+    private byte[] buffer;
+
+    private int[] starts = new int[64];
+
+    private int[] ends = new int[64];
+
+    /** Offset of the encoded ':' in each token, or -1 if the token has no value. */
+    private int[] separators = new int[64];
+
+    private int count;
+
+    private int position;
+
+    /** Length of the line, in bytes. */
+    private int length;
+
+    /** Scratch space for decoding tokens with escaped characters. */
+    private byte[] scratch = new byte[256];
+
+    /** Raw (encoded) bytes of the cached keys. */
+    private final byte[][] keyCacheRaw = new byte[KEY_CACHE_SIZE][];
+
+    /** Decoded cached keys, parallel to {@link #keyCacheRaw}. */
+    private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+    /** {@link Tag} slots of the cached keys, parallel to {@link #keyCacheRaw}. */
+    private final int[] keyCacheTag = new int[KEY_CACHE_SIZE];
+
+    /**
+     * Point the cursor at a new line, and position it before the first token.
+     * <p>
+     * As with splitting the line on spaces with {@link java.util.regex.Pattern#split(CharSequence)},
+     * consecutive spaces give empty tokens, and trailing empty tokens are dropped.
+     *
+     * @param buffer Buffer holding the line.
+     * @param offset Offset of the start of the line in buffer.
+     * @param length Length of the line.
+     * @return this cursor.
+     */
+    TokenCursor reset(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        count = 0;
+        position = -1;
+
+        int end = offset + length;
+        int tokenStart = offset;
+        int nonEmptyCount = 0;
+        for (int i = offset; i <= end; i++) {
+            if (i == end || buffer[i] == ' ') {
+                addToken(tokenStart, i);
+                if (i > tokenStart) {
+                    nonEmptyCount = count;
+                }
+                tokenStart = i + 1;
+            }
+        }
+        // Like Pattern.split(), a line with no content gives a single empty token.
+        count = Math.max(nonEmptyCount, 1);
+        return this;
+    }
+
+    private void addToken(int start, int end) {
+        if (count == starts.length) {
+            starts = grow(starts);
+            ends = grow(ends);
+            separators = grow(separators);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        separators[count] = indexOfSeparator(start, end);
+        count++;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    private int indexOfSeparator(int start, int end) {
+        for (int i = start; i < end - 2; i++) {
+            if (buffer[i] == '%' && buffer[i + 1] == '3' && buffer[i + 2] == 'A') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of tokens in the line.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return The length of the line, in bytes.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return True if the token at index is exactly the given (unencoded) text.
+     */
+    boolean is(int index, String text) {
+        return index < count && rawEquals(starts[index], ends[index], text);
+    }
+
+    /**
+     * @return The token at index, as received (i.e. still URL encoded).
+     */
+    String raw(int index) {
+        return ascii(buffer, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * @return True if the token at index is exactly the given raw (still URL encoded) bytes.
+     */
+    boolean rawEquals(int index, byte[] bytes) {
+        return index < count && rawEquals(starts[index], ends[index], bytes);
+    }
+
+    /**
+     * @return The {@link #hash(byte[], int, int)} of the raw bytes of the token at index.
+     */
+    int rawHash(int index) {
+        return hash(buffer, starts[index], ends[index]);
+    }
+
+    /**
+     * @return A hash of the bytes from start to end (FNV-1a).
+     */
+    static int hash(byte[] bytes, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * @return The token at index, URL decoded.
+     */
+    String decode(int index) {
+        return decode(starts[index], ends[index]);
+    }
+
+    /**
+     * Parse the token at index as a decimal number. Anything after a decimal point is ignored.
+     *
+     * @return The parsed number, or defaultValue if the token isn't a number.
+     */
+    int intAt(int index, int defaultValue) {
+        return index < count ? parseDecimalInt(starts[index], ends[index], defaultValue)
+                : defaultValue;
+    }
+
+    /**
+     * Position the cursor so the next call to {@link #next()} moves to the token at index.
+     */
+    void moveTo(int index) {
+        position = index - 1;
+    }
+
+    /**
+     * @return The index of the current token.
+     */
+    int index() {
+        return position;
+    }
+
+    /**
+     * Advance the cursor to the next token.
+     *
+     * @return False if there are no more tokens.
+     */
+    boolean next() {
+        if (position + 1 >= count) {
+            position = count;
+            return false;
+        }
+        position++;
+        return true;
+    }
+
+    /**
+     * @return True if the current token is a tagged parameter, <code>key:value</code>.
+     */
+    boolean hasValue() {
+        return separators[position] != -1;
+    }
+
+    /**
+     * @return True if the decoded key of the current token is key. If the token has no value the
+     *     whole token is compared.
+     */
+    boolean keyIs(String key) {
+        return decodedEquals(starts[position], keyEnd(), key);
+    }
+
+    /**
+     * @return True if the current token has a value, and its decoded value is text. Nothing is
+     *     allocated, unlike comparing with {@link #value()}.
+     */
+    boolean valueIs(@Nullable String text) {
+        int separator = separators[position];
+        return separator != -1 && text != null
+                && decodedEquals(separator + 3, ends[position], text);
+    }
+
+    /**
+     * @return True if the decoded value of the current token is the items joined with the
+     *     separator, or if the token has no value and there are no items. Nothing is allocated.
+     */
+    boolean valueIsList(List<String> items, char separator) {
+        int valueSeparator = separators[position];
+        if (valueSeparator == -1 || valueSeparator + 3 == ends[position]) {
+            return items.isEmpty();
+        }
+        int start = valueSeparator + 3;
+        int end = ends[position];
+        for (int i = 0; i < items.size(); i++) {
+            int itemEnd = end;
+            int next = end;
+            if (i < items.size() - 1) {
+                itemEnd = indexOf(start, end, separator);
+                if (itemEnd == -1) {
+                    return false;
+                }
+                next = itemEnd + (buffer[itemEnd] == '%' ? 3 : 1);
+            }
+            if (!decodedEquals(start, itemEnd, items.get(i))) {
+                return false;
+            }
+            start = next;
+        }
+        return !items.isEmpty();
+    }
+
+    /**
+     * @return The index of the first c from start to end, either as it is or URL encoded, or -1.
+     *     c must be ASCII.
+     */
+    private int indexOf(int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+            if (buffer[i] == '%' && i + 2 < end
+                    && hexValue(buffer[i + 1]) == c >> 4 && hexValue(buffer[i + 2]) == (c & 0xf)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return True if the bytes from start to end, URL decoded as UTF-8 like
+     *     {@link #decode(int, int)}, are text. Malformed UTF-8 never matches.
+     */
+    private boolean decodedEquals(int start, int end, String text) {
+        int k = 0;
+        int codePoint = 0;
+        int remaining = 0;
+        for (int i = start; i < end; i++) {
+            int b = buffer[i] & 0xff;
+            if (b == '%' && i + 2 < end && hexValue(buffer[i + 1]) >= 0
+                    && hexValue(buffer[i + 2]) >= 0) {
+                b = (hexValue(buffer[i + 1]) << 4) | hexValue(buffer[i + 2]);
+                i += 2;
+            } else if (b == '+') {
+                b = ' ';
+            }
+
+            if (remaining > 0) {
+                if ((b & 0xc0) != 0x80) {
+                    return false;
+                }
+                codePoint = (codePoint << 6) | (b & 0x3f);
+                if (--remaining > 0) {
+                    continue;
+                }
+            } else if (b < 0x80) {
+                codePoint = b;
+            } else {
+                if ((b & 0xe0) == 0xc0) {
+                    codePoint = b & 0x1f;
+                    remaining = 1;
+                } else if ((b & 0xf0) == 0xe0) {
+                    codePoint = b & 0x0f;
+                    remaining = 2;
+                } else if ((b & 0xf8) == 0xf0) {
+                    codePoint = b & 0x07;
+                    remaining = 3;
+                } else {
+                    return false;
+                }
+                continue;
+            }
+
+            if (codePoint < 0x10000) {
+                if (k >= text.length() || text.charAt(k++) != codePoint) {
+                    return false;
+                }
+            } else {
+                // A surrogate pair in the string.
+                int offset = codePoint - 0x10000;
+                if (k + 1 >= text.length() || text.charAt(k) != 0xd800 + (offset >> 10)
+                        || text.charAt(k + 1) != 0xdc00 + (offset & 0x3ff)) {
+                    return false;
+                }
+                k += 2;
+            }
+        }
+        return remaining == 0 && k == text.length();
+    }
+
+    /**
+     * @return The decoded key of the current token, or the whole token if it has no value.
+     *     Repeated keys return the same string instance.
+     */
+    String key() {
+        return keyCache[cachedKey()];
+    }
+
+    /**
+     * @return The {@link Tag} slot of the key of the current token, or -1 if the key is not in
+     *     the tag table.
+     */
+    int tag() {
+        return keyCacheTag[cachedKey()];
+    }
+
+    /**
+     * Find the key of the current token in the key cache, adding it if necessary.
+     *
+     * @return The index of the key in the cache.
+     */
+    private int cachedKey() {
+        int start = starts[position];
+        int end = keyEnd();
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+
+        byte[] cachedRaw = keyCacheRaw[slot];
+        if (cachedRaw != null && rawEquals(start, end, cachedRaw)) {
+            return slot;
+        }
+
+        byte[] raw = new byte[end - start];
+        System.arraycopy(buffer, start, raw, 0, raw.length);
+        String key = decode(start, end);
+        keyCacheRaw[slot] = raw;
+        keyCache[slot] = key;
+        keyCacheTag[slot] = Tag.slotOf(key);
+        return slot;
+    }
+
+    /**
+     * @return The decoded value of the current token, or null if it has no value.
+     */
+    String value() {
+        int separator = separators[position];
+        return separator == -1 ? null : decode(separator + 3, ends[position]);
+    }
+
+    /**
+     * Parse the value of the current token as a decimal number. Anything after a decimal point is
+     * ignored.
+     *
+     * @return The parsed number, or defaultValue if the token has no value or it isn't a number.
+     */
+    int valueAsInt(int defaultValue) {
+        int separator = separators[position];
+        return separator == -1 ? defaultValue
+                : parseDecimalInt(separator + 3, ends[position], defaultValue);
+    }
+
+    /**
+     * Parse the value of the current token as a decimal number of seconds, such as a position in
+     * a song. Digits after the first three decimal places are ignored.
+     *
+     * @return The number of milliseconds, or defaultValue if the token has no value or it isn't
+     *     a number.
+     */
+    int valueAsMillis(int defaultValue) {
+        int separator = separators[position];
+        if (separator == -1) {
+            return defaultValue;
+        }
+        int start = separator + 3;
+        int end = ends[position];
+        int point = indexOf(start, end, '.');
+        if (point == start || (point == start + 1 && !isDigit(buffer[start]))) {
+            // No whole seconds, e.g. ".5" or "-.5".
+            return defaultValue;
+        }
+        long seconds = parseDecimalInt(start, end, Integer.MIN_VALUE);
+        if (seconds == Integer.MIN_VALUE) {
+            return defaultValue;
+        }
+        int millis = 0;
+        if (point != -1) {
+            int scale = 100;
+            for (int i = point + 1; i < end && scale > 0; i++, scale /= 10) {
+                if (!isDigit(buffer[i])) {
+                    return defaultValue;
+                }
+                millis += (buffer[i] - '0') * scale;
+            }
+        }
+        long result = seconds * 1000 + (buffer[start] == '-' ? -millis : millis);
+        return (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) ? defaultValue
+                : (int) result;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * @return The current token, as received (i.e. still URL encoded).
+     */
+    String raw() {
+        return raw(position);
+    }
+
+    /**
+     * Decode all the tokens in the line.
+     *
+     * @return Map from each token's key to its value. Tokens without a value map to null.
+     */
+    HashMap<String, String> decodeMap() {
+        HashMap<String, String> tokenMap = new HashMap<String, String>();
+        moveTo(0);
+        while (next()) {
+            if (!hasValue() && keyIs("")) {
+                continue;
+            }
+            tokenMap.put(key(), value());
+        }
+        return tokenMap;
+    }
+
+    /**
+     * Decode all the tokens in the line in to a record.
+     *
+     * @return Record of each token's key and value. Tokens without a value are recorded as null.
+     */
+    TagRecord decodeRecord() {
+        TagRecord record = new TagRecord();
+        moveTo(0);
+        while (next()) {
+            if (!hasValue() && keyIs("")) {
+                continue;
+            }
+            int tag = tag();
+            if (tag != -1) {
+                record.put(tag, value());
+            } else {
+                record.put(key(), value());
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Copy the line, leaving out one token.
+     *
+     * @param index Index of the token to leave out, or -1 to copy the whole line.
+     * @return The tokens, separated by single spaces.
+     */
+    byte[] copyWithout(int index) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (i != index) {
+                size += (size > 0 ? 1 : 0) + ends[i] - starts[i];
+            }
+        }
+        byte[] copy = new byte[size];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (i != index) {
+                if (length > 0) {
+                    copy[length++] = ' ';
+                }
+                System.arraycopy(buffer, starts[i], copy, length, ends[i] - starts[i]);
+                length += ends[i] - starts[i];
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Copy a range of tokens.
+     *
+     * @param from Index of the first token to copy.
+     * @param to Index after the last token to copy.
+     * @return The tokens, separated by single spaces.
+     */
+    byte[] copy(int from, int to) {
+        if (from >= to) {
+            return new byte[0];
+        }
+        int length = ends[to - 1] - starts[from];
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, starts[from], copy, 0, length);
+        return copy;
+    }
+
+    private int keyEnd() {
+        int separator = separators[position];
+        return separator == -1 ? ends[position] : separator;
+    }
+
+    private boolean rawEquals(int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer[i] != text.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean rawEquals(int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer[i] != bytes[i - start]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equivalent to {@link uk.org.ngo.squeezer.Util#parseDecimalInt(String, int)} on the bytes
+     * from start to end.
+     */
+    private int parseDecimalInt(int start, int end, int defaultValue) {
+        boolean negative = false;
+        int i = start;
+        if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        long result = 0;
+        int digits = 0;
+        for (; i < end && buffer[i] != '.'; i++, digits++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return defaultValue;
+            }
+            result = result * 10 + digit;
+            if (result > Integer.MAX_VALUE + 1L) {
+                return defaultValue;
+            }
+        }
+        if (digits == 0) {
+            return defaultValue;
+        }
+        result = negative ? -result : result;
+        return (result > Integer.MAX_VALUE) ? defaultValue : (int) result;
+    }
+
+    /**
+     * URL decode the bytes from start to end, in the same way as
+     * {@link uk.org.ngo.squeezer.Util#decode(String)}.
+     */
+    private String decode(int start, int end) {
+        int i = start;
+        while (i < end && buffer[i] != '%' && buffer[i] != '+') {
+            i++;
+        }
+        if (i == end) {
+            // Nothing to decode.
+            return ascii(buffer, start, end - start);
+        }
+
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(scratch.length * 2, end - start)];
+        }
+        int length = 0;
+        for (i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '%' && i + 2 < end && hexValue(buffer[i + 1]) >= 0
+                    && hexValue(buffer[i + 2]) >= 0) {
+                b = (byte) ((hexValue(buffer[i + 1]) << 4) | hexValue(buffer[i + 2]));
+                i += 2;
+            } else if (b == '+') {
+                b = ' ';
+            }
+            scratch[length++] = b;
+        }
+        try {
+            return new String(scratch, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Create a string from bytes that are known to be ASCII, as is everything the server sends
+     * on the CLI (anything else is URL encoded).
+     */
+    @SuppressWarnings("deprecation")
+    static String ascii(byte[] buffer, int offset, int length) {
+        // Unlike the Charset based constructors this is available on all API levels, and
+        // doesn't need to look up a decoder.
+        return new String(buffer, 0, offset, length);
+    }
+
+    /**
+     * @return The raw tokens, formatted like a list of strings.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(raw(i));
+        }
+        return sb.append(']').toString();
+    }
+}
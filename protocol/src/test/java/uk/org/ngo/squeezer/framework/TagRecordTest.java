@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.framework;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class TagRecordTest extends TestCase {
+
+    public void testTagTable() {
+        for (int slot = 0; slot < Tag.TAG_COUNT; slot++) {
+            assertEquals(slot, Tag.slotOf(Tag.nameOf(slot)));
+        }
+        assertEquals(Tag.PLAYLIST_INDEX, Tag.slotOf("playlist index"));
+        assertEquals(Tag.ARTWORK_TRACK_ID, Tag.slotOf("artwork_track_id"));
+        assertEquals(-1, Tag.slotOf("mixer volume"));
+    }
+
+    public void testKnownAndUnknownTags() {
+        TagRecord record = new TagRecord();
+        assertTrue(record.isEmpty());
+
+        record.put(Tag.TITLE, "Song");
+        record.put("album_id", "42");
+        record.put("mixer volume", "30");
+
+        assertFalse(record.isEmpty());
+        assertEquals("Song", record.get(Tag.TITLE));
+        assertEquals("Song", record.get("title"));
+        assertEquals("42", record.get(Tag.ALBUM_ID));
+        assertTrue(record.has(Tag.ALBUM_ID));
+        assertFalse(record.has(Tag.ARTIST));
+        assertEquals("30", record.get("mixer volume"));
+
+        record.clear();
+        assertTrue(record.isEmpty());
+        assertNull(record.get(Tag.TITLE));
+        assertNull(record.get("mixer volume"));
+    }
+
+    public void testEmptyAfterRemovingValues() {
+        TagRecord record = new TagRecord();
+        record.put(Tag.ID, "1");
+        record.put(Tag.ID, null);
+        assertTrue(record.isEmpty());
+    }
+
+    public void testFromMap() {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("id", "7");
+        map.put("sync_master", "00:04:20:17:7d:2e");
+
+        TagRecord record = TagRecord.fromMap(map);
+
+        assertEquals("7", record.get(Tag.ID));
+        assertEquals("00:04:20:17:7d:2e", record.get("sync_master"));
+        assertEquals("{id=7, sync_master=00:04:20:17:7d:2e}", record.toString());
+    }
+
+    public void testCopyFrom() {
+        TagRecord record = new TagRecord();
+        record.put(Tag.ID, "7");
+        record.put("sync_master", "00:04:20:17:7d:2e");
+
+        TagRecord copy = new TagRecord();
+        copy.put(Tag.TITLE, "Replaced");
+        copy.copyFrom(record);
+        record.clear();
+        assertEquals("{id=7, sync_master=00:04:20:17:7d:2e}", copy.toString());
+
+        copy.copyFrom(record);
+        assertTrue(copy.isEmpty());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+public class AdaptivePageSizerTest extends TestCase {
+
+    private static final long MILLIS = 1000000;
+
+    private final AdaptivePageSizer sizer = new AdaptivePageSizer(20, 5, 500);
+
+    /**
+     * Simulate responses over a link.
+     *
+     * @param rttMillis Round trip time.
+     * @param bytesPerSecond Bandwidth.
+     * @param bytesPerItem Size of an item.
+     */
+    private void simulate(String cmd, long rttMillis, long bytesPerSecond, int bytesPerItem) {
+        for (int i = 0; i < 10; i++) {
+            // The one item response at the start of a list.
+            int bytes = 100 + bytesPerItem;
+            sizer.onResponse(cmd, 1, bytes, (rttMillis + bytes * 1000 / bytesPerSecond) * MILLIS);
+
+            int items = sizer.pageSize(cmd);
+            bytes = 100 + items * bytesPerItem;
+            sizer.onResponse(cmd, items, bytes,
+                    (rttMillis + bytes * 1000L / bytesPerSecond) * MILLIS);
+        }
+    }
+
+    public void testDefaultUntilMeasured() {
+        assertEquals(20, sizer.pageSize("songs"));
+
+        sizer.onResponse("songs", 1, 300, 5 * MILLIS);
+        assertEquals("No bandwidth measurement yet", 20, sizer.pageSize("songs"));
+    }
+
+    public void testFastLanGivesLargePages() {
+        // 2ms round trip, 10MB/s.
+        simulate("songs", 2, 10000000, 300);
+
+        assertTrue("page size " + sizer.pageSize("songs"), sizer.pageSize("songs") >= 60);
+    }
+
+    public void testSlowLinkGivesSmallPages() {
+        // 150ms round trip, 20KB/s.
+        simulate("songs", 150, 20000, 300);
+
+        int pageSize = sizer.pageSize("songs");
+        assertTrue("page size " + pageSize, pageSize <= 20);
+        assertTrue("page size " + pageSize, pageSize >= 5);
+    }
+
+    public void testPageSizeDependsOnItemSize() {
+        simulate("songs", 50, 200000, 400);
+        simulate("genres", 50, 200000, 40);
+
+        assertTrue(sizer + "", sizer.pageSize("genres") > sizer.pageSize("songs"));
+    }
+
+    public void testSizeIsLimited() {
+        // Instant transfers.
+        simulate("songs", 20, Long.MAX_VALUE / 1000000, 300);
+
+        assertEquals(500, sizer.pageSize("songs"));
+    }
+
+    public void testReset() {
+        simulate("songs", 2, 10000000, 300);
+        sizer.reset();
+
+        assertEquals(20, sizer.pageSize("songs"));
+    }
+}
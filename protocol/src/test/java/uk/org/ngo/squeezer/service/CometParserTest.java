@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CometParserTest extends TestCase {
+
+    private final CometParser parser = new CometParser("playlist index", "id");
+
+    /** The messages parsed, as strings. */
+    private final List<String> messages = new ArrayList<String>();
+
+    private final CometParser.MessageHandler handler = new CometParser.MessageHandler() {
+        @Override
+        public void onMessage(CometParser.Message message) {
+            messages.add(message.toString());
+        }
+    };
+
+    private void parse(String json) throws IOException {
+        parser.parse(new StringReader(json.replace('\'', '"')), handler);
+    }
+
+    public void testMetaMessages() throws IOException {
+        parse("[{'channel':'/meta/handshake','version':'1.0','supportedConnectionTypes':"
+                + "['long-polling'],'clientId':'ab12','successful':true,"
+                + "'advice':{'reconnect':'retry','interval':0}},"
+                + " {'channel' : '/meta/connect', 'successful' : false,"
+                + " 'error' : '402::Unknown'}]");
+        assertEquals(2, messages.size());
+        assertEquals("Message{channel=/meta/handshake, id=null, successful=true, positional=[],"
+                + " tags=}", messages.get(0));
+        assertEquals("Message{channel=/meta/connect, id=null, successful=false, positional=[],"
+                + " tags=}", messages.get(1));
+    }
+
+    public void testQueryResult() throws IOException {
+        parse("{'channel':'/ab12/slim/request/7','id':7,'data':{'_p2':'9000'}}");
+        assertEquals("Message{channel=/ab12/slim/request/7, id=7, successful=true,"
+                + " positional=[9000], tags=}", messages.get(0));
+    }
+
+    public void testListIsFlattened() throws IOException {
+        parse("[{'data':{'count':2,'titles_loop':[{'title':'A b','id':1,'year':1999},"
+                + "{'id':2,'title':'Caf\\u00e9 \\\"x\\\"','compilation':false}],"
+                + "'ignored':{'a':[1,2]}},'channel':'/ab12/slim/request/3'}]");
+        assertEquals("Message{channel=/ab12/slim/request/3, id=null, successful=true,"
+                + " positional=[], tags= count%3A2 id%3A1 title%3AA%20b year%3A1999"
+                + " id%3A2 title%3ACaf%C3%A9%20%22x%22 compilation%3A0}", messages.get(0));
+    }
+
+    public void testPreferredDelimiterStartsTheItem() throws IOException {
+        parse("{'data':{'playlist_loop':[{'id':5,'playlist index':0,'title':'T'}],"
+                + "'mode':'play','empty_loop':[]}}");
+        assertEquals("Message{channel=null, id=null, successful=true, positional=[],"
+                + " tags= playlist%20index%3A0 id%3A5 title%3AT mode%3Aplay}", messages.get(0));
+    }
+
+    public void testEncodesLikeTheServer() throws IOException {
+        parse("{'data':{'name':'a:b/c+d*e_f.g-h~\\ud83c\\udfb5'}}");
+        assertEquals("Message{channel=null, id=null, successful=true, positional=[],"
+                + " tags= name%3Aa%3Ab%2Fc%2Bd*e_f.g-h%7E%F0%9F%8E%B5}", messages.get(0));
+    }
+
+    public void testEmptyResponse() throws IOException {
+        parse(" [ ] ");
+        assertTrue(messages.isEmpty());
+    }
+
+    public void testTruncatedResponse() {
+        try {
+            parse("[{'channel':'/meta/connect','data':{'count':1");
+            fail("Expected an exception");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CommandDispatcherTest extends TestCase {
+
+    private CommandDispatcher<String> dispatcher;
+
+    private static Map<String, String> handlers(String prefix, String... commands) {
+        Map<String, String> handlers = new HashMap<String, String>();
+        for (String command : commands) {
+            handlers.put(command, prefix + command);
+        }
+        return handlers;
+    }
+
+    private String find(String line) {
+        byte[] bytes = line.getBytes();
+        return dispatcher.find(new TokenCursor().reset(bytes, 0, bytes.length));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dispatcher = new CommandDispatcher.Builder<String>()
+                .add(0, handlers("global ", "rescan", "players", "serverstatus", "songs"))
+                .add(1, handlers("prefixed ", "playlists", "status"))
+                .add(1, handlers("player ", "status", "time", "mixer", "play", "pause"))
+                .add(2, handlers("prefixedPlayer ", "alarms", "songinfo"))
+                .build();
+    }
+
+    public void testPositions() {
+        assertEquals("global rescan", find("rescan done"));
+        assertEquals("player time", find("00%3A04%3A20%3A17%3A64%3A31 time 31.5"));
+        assertEquals("prefixedPlayer alarms",
+                find("00%3A04%3A20%3A17%3A64%3A31 playlist alarms 0 10 count%3A0"));
+    }
+
+    public void testEarlierPositionsAndHandlersWin() {
+        assertEquals("A global command wins over a command in the second token",
+                "global songs", find("songs status 0"));
+        assertEquals("Handlers added first win", "prefixed status",
+                find("00%3A04%3A20%3A17%3A64%3A31 status - 1"));
+    }
+
+    public void testNoMatch() {
+        assertNull(find("00%3A04%3A20%3A17%3A64%3A31 unknown 1"));
+        assertNull("Only whole tokens match", find("rescanning 1"));
+        assertNull("Encoded tokens are not decoded", find("re%73can 1"));
+        assertNull(find("x y"));
+        assertNull(find(""));
+    }
+
+    public void testEmptyDispatcher() {
+        dispatcher = new CommandDispatcher.Builder<String>().build();
+        assertNull(find("rescan done"));
+    }
+
+    public void testManyCommands() {
+        Map<String, String> handlers = handlers("", "a");
+        for (int i = 0; i < 200; i++) {
+            handlers.put("cmd" + i, "handler" + i);
+        }
+        dispatcher = new CommandDispatcher.Builder<String>().add(0, handlers).build();
+        for (int i = 0; i < 200; i++) {
+            assertEquals("handler" + i, find("cmd" + i + " 1"));
+        }
+        assertNull(find("cmd200 1"));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandWriterTest extends TestCase {
+
+    /** Records what is written, and how many times it is flushed. */
+    private static class RecordingStream extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int flushes;
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            flushes++;
+            notifyAll();
+        }
+
+        synchronized String written() {
+            return bytes.toString();
+        }
+
+        synchronized int flushes() {
+            return flushes;
+        }
+
+        /** Wait until the stream has been flushed at least count times. */
+        synchronized boolean awaitFlushes(int count, long timeoutMillis)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (flushes < count && System.currentTimeMillis() < end) {
+                wait(Math.max(1, end - System.currentTimeMillis()));
+            }
+            return flushes >= count;
+        }
+    }
+
+    private RecordingStream stream;
+
+    private final List<List<String>> batches = new ArrayList<List<String>>();
+
+    private final CommandWriter.BatchListener listener = new CommandWriter.BatchListener() {
+        @Override
+        public void onBatchWritten(List<String> commands) {
+            synchronized (batches) {
+                batches.add(new ArrayList<String>(commands));
+            }
+        }
+    };
+
+    private CommandWriter writer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        stream = new RecordingStream();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (writer != null) {
+            writer.close();
+        }
+        super.tearDown();
+    }
+
+    public void testCommandsInWindowAreWrittenTogether() throws InterruptedException {
+        writer = new CommandWriter(stream, 200, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_BROWSE, "listen 1");
+        writer.send(CommandWriter.PRIORITY_BROWSE, "can musicfolder ?", "can randomplay ?");
+        writer.send(CommandWriter.PRIORITY_BROWSE, "version ?");
+
+        assertTrue(stream.awaitFlushes(1, 2000));
+        Thread.sleep(300);
+
+        assertEquals("listen 1\ncan musicfolder ?\ncan randomplay ?\nversion ?\n",
+                stream.written());
+        assertEquals(1, stream.flushes());
+        assertEquals(4, writer.getCommandCount());
+        assertEquals(1, writer.getBatchCount());
+        synchronized (batches) {
+            assertEquals(1, batches.size());
+            assertEquals(4, batches.get(0).size());
+        }
+    }
+
+    public void testInteractiveCommandBypassesWindow() throws InterruptedException {
+        writer = new CommandWriter(stream, 10000, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_BROWSE, "players 0 10");
+        long start = System.currentTimeMillis();
+        writer.send(CommandWriter.PRIORITY_INTERACTIVE, "00%3A04%3A20%3A17%3A7d%3A2e pause 1");
+
+        assertTrue("Interactive command written before the window ends",
+                stream.awaitFlushes(1, 2000));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals("Interactive commands are written first",
+                "00%3A04%3A20%3A17%3A7d%3A2e pause 1\nplayers 0 10\n", stream.written());
+    }
+
+    public void testCommandsAreWrittenByPriority() throws InterruptedException {
+        writer = new CommandWriter(stream, 10000, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_BACKGROUND, "songs 100 100 full_list%3A1");
+        writer.send(CommandWriter.PRIORITY_BROWSE, "albums 0 1");
+        writer.send(CommandWriter.PRIORITY_BACKGROUND, "songs 200 100 full_list%3A1");
+        writer.send(CommandWriter.PRIORITY_BROWSE, "artists 0 1");
+        writer.send(CommandWriter.PRIORITY_INTERACTIVE, "00%3A04%3A20%3A17%3A7d%3A2e play");
+
+        assertTrue(stream.awaitFlushes(1, 2000));
+        assertEquals("00%3A04%3A20%3A17%3A7d%3A2e play\n"
+                        + "albums 0 1\nartists 0 1\n"
+                        + "songs 100 100 full_list%3A1\nsongs 200 100 full_list%3A1\n",
+                stream.written());
+    }
+
+    public void testStats() throws InterruptedException {
+        writer = new CommandWriter(stream, 100, listener);
+
+        writer.send(CommandWriter.PRIORITY_BACKGROUND, "songs 100 100", "songs 200 100");
+        writer.send(CommandWriter.PRIORITY_BROWSE, "albums 0 1");
+        CommandWriter.QueueStats background = writer.getStats(CommandWriter.PRIORITY_BACKGROUND);
+        assertEquals(2, background.depth);
+        assertEquals(0, background.written);
+        assertEquals(1, writer.getStats(CommandWriter.PRIORITY_BROWSE).depth);
+        assertEquals(0, writer.getStats(CommandWriter.PRIORITY_INTERACTIVE).depth);
+
+        // Nothing is written until the writer starts, so the commands wait at least 50ms.
+        Thread.sleep(50);
+        writer.start();
+        assertTrue(stream.awaitFlushes(1, 2000));
+        Thread.sleep(50);
+
+        background = writer.getStats(CommandWriter.PRIORITY_BACKGROUND);
+        assertEquals(0, background.depth);
+        assertEquals(2, background.written);
+        assertTrue(background.toString(), background.maxWaitMillis >= 50);
+        assertTrue(background.toString(), background.meanWaitMillis() >= 50);
+        assertEquals(1, writer.getStats(CommandWriter.PRIORITY_BROWSE).written);
+        assertEquals(0, writer.getStats(CommandWriter.PRIORITY_INTERACTIVE).written);
+    }
+
+    public void testFlushEndsWindow() throws InterruptedException {
+        writer = new CommandWriter(stream, 10000, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_BROWSE, "status - 1 subscribe:1", "status - 1 subscribe:-");
+        writer.flush();
+
+        assertTrue(stream.awaitFlushes(1, 2000));
+        assertEquals("status - 1 subscribe:1\nstatus - 1 subscribe:-\n", stream.written());
+    }
+
+    public void testCloseDiscardsQueuedCommands() throws InterruptedException {
+        writer = new CommandWriter(stream, 10000, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_BROWSE, "version ?");
+        writer.close();
+        writer.send(CommandWriter.PRIORITY_INTERACTIVE, "pause 1");
+
+        assertFalse(stream.awaitFlushes(1, 200));
+        assertEquals("", stream.written());
+    }
+
+    public void testNonAsciiCommand() throws Exception {
+        writer = new CommandWriter(stream, 0, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_INTERACTIVE, "playlists new name:café");
+
+        assertTrue(stream.awaitFlushes(1, 2000));
+        assertEquals("playlists new name:café\n",
+                new String(stream.bytes.toByteArray(), "UTF-8"));
+    }
+
+    public void testBatchWriter() throws InterruptedException {
+        final List<List<String>> written = new ArrayList<List<String>>();
+        writer = new CommandWriter(new CommandWriter.BatchWriter() {
+            @Override
+            public void writeBatch(List<String> commands) {
+                synchronized (written) {
+                    written.add(new ArrayList<String>(commands));
+                    written.notifyAll();
+                }
+            }
+        }, 10000, listener);
+        writer.start();
+
+        writer.send(CommandWriter.PRIORITY_BACKGROUND, "songs 100 100");
+        writer.send(CommandWriter.PRIORITY_BROWSE, "version ?");
+        writer.flush();
+
+        synchronized (written) {
+            long end = System.currentTimeMillis() + 2000;
+            while (written.isEmpty() && System.currentTimeMillis() < end) {
+                written.wait(100);
+            }
+            assertEquals(1, written.size());
+            assertEquals("[version ?, songs 100 100]", written.get(0).toString());
+        }
+        assertEquals("", stream.written());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+public class ExtendedQueryFormatCmdTest extends TestCase {
+
+    /** Keeps the records it's given as strings. */
+    private static class RecordListHandler implements ListHandler<String> {
+        private final List<String> items = new ArrayList<String>();
+
+        @Override
+        public Class<String> getDataType() {
+            return String.class;
+        }
+
+        @Override
+        public List<String> getItems() {
+            return items;
+        }
+
+        @Override
+        public void clear() {
+            items.clear();
+        }
+
+        @Override
+        public void add(TagRecord record) {
+            items.add(record.toString());
+        }
+    }
+
+    /** Parse a line, written with the colons of the tokens unencoded. */
+    private static ListResponse parse(ExtendedQueryFormatCmd cmd, String line) {
+        byte[] bytes = line.replace(":", "%3A").getBytes();
+        return cmd.parse(new TokenCursor().reset(bytes, 0, bytes.length));
+    }
+
+    public void testPage() {
+        RecordListHandler handler = new RecordListHandler();
+        ExtendedQueryFormatCmd cmd = new ExtendedQueryFormatCmd("songs",
+                new HashSet<String>(Arrays.asList("search", "tags")), handler);
+
+        ListResponse response = parse(cmd, "songs 0 2 tags:at correlationid:3 search:a%20b"
+                + " id:1 title:One%20Two id:2 title:Three rescan:1 count:10");
+        assertEquals(0, response.start);
+        assertEquals(2, response.itemsPerResponse);
+        assertEquals(Integer.valueOf(10), response.counts[0]);
+        assertEquals(3, response.correlationId);
+        assertEquals(4, response.correlationIndex);
+        assertTrue(response.rescan);
+        assertEquals("songs", response.command());
+
+        assertEquals(2, handler.getItems().size());
+        assertEquals(record(Tag.ID, "1", Tag.TITLE, "One Two"), handler.getItems().get(0));
+        assertEquals(record(Tag.ID, "2", Tag.TITLE, "Three", Tag.RESCAN, "1"),
+                handler.getItems().get(1));
+
+        String next = response.pageCommand(2, 5);
+        assertTrue(next, next.startsWith("songs 2 5 "));
+        assertEquals(new HashSet<String>(Arrays.asList("tags%3Aat", "search%3Aa%20b")),
+                new HashSet<String>(Arrays.asList(next.substring(10).split(" "))));
+    }
+
+    public void testHandlersAreClearedForEachResponse() {
+        RecordListHandler handler = new RecordListHandler();
+        ExtendedQueryFormatCmd cmd = new ExtendedQueryFormatCmd("songs",
+                new HashSet<String>(), handler);
+
+        parse(cmd, "songs 0 2 id:1 id:2 count:3");
+        ListResponse response = parse(cmd, "songs 2 2 id:3 count:3");
+        assertEquals(2, response.start);
+        assertEquals(Arrays.asList(record(Tag.ID, "3")), handler.getItems());
+    }
+
+    public void testGroups() {
+        RecordListHandler genres = new RecordListHandler();
+        RecordListHandler albums = new RecordListHandler();
+        RecordListHandler tracks = new RecordListHandler();
+        ExtendedQueryFormatCmd cmd = new ExtendedQueryFormatCmd(
+                ExtendedQueryFormatCmd.HANDLER_LIST_GLOBAL, "search",
+                new HashSet<String>(Arrays.asList("term")),
+                new SqueezeParserInfo("genres_count", genres, "genre_id"),
+                new SqueezeParserInfo("albums_count", albums, "album_id"),
+                new SqueezeParserInfo("tracks_count", tracks, "track_id"));
+
+        ListResponse response = parse(cmd, "search 0 20 term:rock count:3"
+                + " genres_count:1 genre_id:5 genre:Rock"
+                + " albums_count:1 album_id:7 album:Rocks"
+                + " tracks_count:1 track_id:9 track:Rock%20On");
+        assertEquals(Integer.valueOf(1), response.counts[0]);
+        assertEquals(Integer.valueOf(1), response.counts[1]);
+        assertEquals(Integer.valueOf(1), response.counts[2]);
+        assertEquals(Arrays.asList(record(Tag.GENRE_ID, "5", Tag.GENRE, "Rock")),
+                genres.getItems());
+        assertEquals(Arrays.asList(record(Tag.ALBUM_ID, "7", Tag.ALBUM, "Rocks")),
+                albums.getItems());
+        assertEquals(1, tracks.getItems().size());
+        assertEquals("term%3Arock", response.pageCommand(20, 20).substring(13));
+        assertEquals("3", response.parameters.get("count"));
+    }
+
+    public void testPlayerSpecificAndPrefixed() {
+        RecordListHandler handler = new RecordListHandler();
+        ExtendedQueryFormatCmd cmd = new ExtendedQueryFormatCmd(
+                ExtendedQueryFormatCmd.HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC, "alarms",
+                new HashSet<String>(Arrays.asList("filter")),
+                new SqueezeParserInfo(handler));
+        assertEquals(3, cmd.startIndex());
+
+        ListResponse response = parse(cmd, "00%3A04%3A20%3A17%3A64%3A31 playlist alarms 5 10"
+                + " filter:all count:6 id:a1 enabled:1");
+        assertEquals(5, response.start);
+        assertEquals("00%3A04%3A20%3A17%3A64%3A31 playlist alarms", response.command());
+        assertEquals(Arrays.asList(record(Tag.ID, "a1", Tag.ENABLED, "1")), handler.getItems());
+        assertEquals("00%3A04%3A20%3A17%3A64%3A31 playlist alarms 15 10 filter%3Aall",
+                response.pageCommand(15, 10));
+    }
+
+    public void testMalformed() {
+        ExtendedQueryFormatCmd cmd = new ExtendedQueryFormatCmd("songs",
+                new HashSet<String>(), new RecordListHandler());
+        assertNull(parse(cmd, "songs 0 2 id:1 title"));
+    }
+
+    public void testUnknownTag() {
+        try {
+            new SqueezeParserInfo(new RecordListHandler(), "not_a_tag");
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static String record(Object... tagsAndValues) {
+        TagRecord record = new TagRecord();
+        for (int i = 0; i < tagsAndValues.length; i += 2) {
+            record.put((Integer) tagsAndValues[i], (String) tagsAndValues[i + 1]);
+        }
+        return record.toString();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LineBatchPoolTest extends TestCase {
+
+    private final AtomicInteger delivered = new AtomicInteger();
+
+    private final LineBatchPool pool = new LineBatchPool(2, new LineFramer.LineSink() {
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            delivered.incrementAndGet();
+        }
+    }, null, 16);
+
+    private static void fill(LineBatch batch) {
+        byte[] line = "line".getBytes();
+        batch.onLine(line, 0, line.length);
+    }
+
+    public void testBatchesAreReused() throws InterruptedException {
+        LineBatch first = pool.take();
+        fill(first);
+        first.run();
+        assertSame(first, pool.take());
+        assertEquals(1, delivered.get());
+        assertEquals(1, pool.getMaxInUse());
+        assertEquals(0, pool.getWaitCount());
+    }
+
+    public void testTakeBlocksWhileAllBatchesAreInUse() throws InterruptedException {
+        final LineBatch first = pool.take();
+        LineBatch second = pool.take();
+        assertNotSame(first, second);
+        assertEquals(2, pool.getInUse());
+
+        final CountDownLatch taken = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pool.take();
+                    taken.countDown();
+                } catch (InterruptedException e) {
+                    // The test fails.
+                }
+            }
+        };
+        consumer.start();
+        assertFalse("No batch is free", taken.await(100, TimeUnit.MILLISECONDS));
+
+        fill(first);
+        first.run();
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getMaxInUse());
+        assertEquals(1, pool.getWaitCount());
+        consumer.join();
+    }
+
+    public void testDiscardedBatchIsReplaced() throws InterruptedException {
+        LineBatch first = pool.take();
+        LineBatch second = pool.take();
+        pool.discard(first);
+        assertEquals(1, pool.getInUse());
+
+        LineBatch third = pool.take();
+        assertNotSame(first, third);
+        assertNotSame(second, third);
+        assertEquals(0, pool.getWaitCount());
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class LineFramerTest extends TestCase {
+
+    /** Collects the lines it receives as strings. */
+    private static class CollectingSink implements LineFramer.LineSink {
+        final List<String> lines = new ArrayList<>();
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            lines.add(new String(buffer, offset, length));
+        }
+    }
+
+    /** Counts the lines it receives, without allocating. */
+    private static class CountingSink implements LineFramer.LineSink {
+        int lines;
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            lines++;
+        }
+    }
+
+    /** A channel that returns at most chunkSize bytes per read. */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        private final int chunkSize;
+
+        ChunkedChannel(byte[] data, int chunkSize) {
+            this.data = ByteBuffer.wrap(data);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunkSize, Math.min(dst.remaining(), data.remaining()));
+            for (int i = 0; i < n; i++) {
+                dst.put(data.get());
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<String> frameAll(LineFramer framer, ReadableByteChannel channel)
+            throws IOException {
+        CollectingSink sink = new CollectingSink();
+        while (framer.read(channel, sink)) {
+        }
+        return sink.lines;
+    }
+
+    public void testSplitsLines() throws IOException {
+        LineFramer framer = new LineFramer(64);
+        ReadableByteChannel channel = new ChunkedChannel("a\nbb\r\n\nccc".getBytes(), 64);
+
+        List<String> lines = frameAll(framer, channel);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("a");
+        expected.add("bb");
+        expected.add("");
+        assertEquals(expected, lines);
+        assertEquals("Unterminated line is kept", 3, framer.pending());
+    }
+
+    public void testLinesSpanningReads() throws IOException {
+        LineFramer framer = new LineFramer(64);
+        ReadableByteChannel channel = new ChunkedChannel(
+                "status - 1\r\nplayers 0 1\nversion 7.7.2\n".getBytes(), 3);
+
+        List<String> lines = frameAll(framer, channel);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("status - 1");
+        expected.add("players 0 1");
+        expected.add("version 7.7.2");
+        assertEquals(expected, lines);
+        assertEquals(0, framer.pending());
+    }
+
+    public void testGrowsForLongLines() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longLine.append(i % 10);
+        }
+        LineFramer framer = new LineFramer(4);
+        ReadableByteChannel channel = new ChunkedChannel(
+                ("x\n" + longLine + "\ny\n").getBytes(), 7);
+
+        List<String> lines = frameAll(framer, channel);
+
+        assertEquals(3, lines.size());
+        assertEquals("x", lines.get(0));
+        assertEquals(longLine.toString(), lines.get(1));
+        assertEquals("y", lines.get(2));
+        assertTrue(framer.capacity() >= 100);
+    }
+
+    public void testBatchDeliversLinesInOrder() throws IOException {
+        CollectingSink target = new CollectingSink();
+        BlockingQueue<LineBatch> pool = new ArrayBlockingQueue<>(1);
+        LineBatch batch = LineBatch.obtain(target, null, pool, 2);
+        LineFramer framer = new LineFramer(64);
+
+        framer.read(new ChunkedChannel("one\ntwo\nthree\n".getBytes(), 64), batch);
+        assertEquals(3, batch.count());
+        assertTrue("Nothing is delivered until the batch is run", target.lines.isEmpty());
+
+        batch.run();
+
+        List<String> expected = new ArrayList<>();
+        expected.add("one");
+        expected.add("two");
+        expected.add("three");
+        assertEquals(expected, target.lines);
+
+        // The batch is emptied and can be reused.
+        assertSame(batch, LineBatch.obtain(target, null, pool, 2));
+        assertEquals(0, batch.count());
+    }
+
+    /**
+     * Compares the memory allocated by receiving a burst of server lines with
+     * {@link BufferedReader#readLine()} and one {@link Runnable} per line (the previous receive
+     * path) against {@link LineFramer} and pooled {@link LineBatch}es.
+     * <p>
+     * Note that on Android strings are UTF-16, so the old path allocates about twice as much as
+     * measured here.
+     */
+    public void testAllocationAgainstBufferedReader() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            // Allocation counting is not supported on this JVM.
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        byte[] input = serverBurst(2000);
+        final List<Runnable> queue = new ArrayList<>(2000);
+        BlockingQueue<LineBatch> pool = new ArrayBlockingQueue<>(4);
+        long readerBytes = 0;
+        long framerBytes = 0;
+
+        // The first rounds warm up the JIT, only the last is measured.
+        for (int round = 0; round < 5; round++) {
+            queue.clear();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new ByteArrayInputStream(input)));
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String inputLine = line;
+                queue.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        inputLine.length();
+                    }
+                });
+            }
+            readerBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            queue.clear();
+            CountingSink target = new CountingSink();
+            ReadableByteChannel channel = new ChunkedChannel(input, 8 * 1024);
+            before = threadBean.getThreadAllocatedBytes(threadId);
+            LineFramer framer = new LineFramer(8 * 1024);
+            LineBatch batch = LineBatch.obtain(target, null, pool, 8 * 1024);
+            while (framer.read(channel, batch)) {
+                if (batch.count() > 0) {
+                    // Run the batch straight away, as an executor that keeps up would.
+                    batch.run();
+                    batch = LineBatch.obtain(target, null, pool, 8 * 1024);
+                }
+            }
+            framerBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+        }
+
+        assertTrue("Receiving " + input.length + " bytes: BufferedReader allocated "
+                + readerBytes + " bytes, LineFramer allocated " + framerBytes + " bytes",
+                framerBytes < readerBytes / 4);
+    }
+
+    /** @return lineCount lines like those sent by the server during a large browse. */
+    private static byte[] serverBurst(int lineCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            if (i % 10 == 0) {
+                sb.append("00%3A04%3A20%3A17%3A7d%3A2e status - 1 tags%3AaCdejJKlstxyu"
+                        + " subscribe%3A1 player_name%3ALiving%20Room power%3A1"
+                        + " signalstrength%3A0 mode%3Aplay time%3A").append(i)
+                        .append(" rate%3A1 duration%3A305.213 can_seek%3A1 mixer%20volume%3A42\n");
+            } else {
+                sb.append("songs 0 1 tags%3AaCdejJKlstxyu charset%3Autf8 correlationid%3A")
+                        .append(i).append(" id%3A").append(i)
+                        .append(" title%3ASong%20number%20").append(i)
+                        .append(" artist%3AThe%20Artist album%3AThe%20Album duration%3A245.2"
+                                + " year%3A1999 count%3A2000\n");
+            }
+        }
+        return sb.toString().getBytes();
+    }
+}
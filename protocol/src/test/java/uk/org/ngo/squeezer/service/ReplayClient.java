@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_GLOBAL;
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_PLAYER_SPECIFIC;
+import static uk.org.ngo.squeezer.service.ExtendedQueryFormatCmd.HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * The receive side of {@link CliClient} for {@link SessionReplay}, without the Android models.
+ * The list commands are the client's, parsed by {@link ExtendedQueryFormatCmd#parse(TokenCursor)}
+ * in to records, which are kept. The lines of the other commands the client handles are decoded
+ * with {@link TokenCursor#decodeMap()}. The handlers are found by a {@link CommandDispatcher}
+ * laid out as the client's, so lines the client drops are dropped here too.
+ */
+class ReplayClient {
+
+    /** Keeps a copy of each record of every response. */
+    private static class RecordListHandler implements ListHandler<TagRecord> {
+        private final List<TagRecord> items = new ArrayList<TagRecord>();
+
+        /** The records of all the responses. */
+        final List<TagRecord> records = new ArrayList<TagRecord>();
+
+        @Override
+        public Class<TagRecord> getDataType() {
+            return TagRecord.class;
+        }
+
+        @Override
+        public List<TagRecord> getItems() {
+            return items;
+        }
+
+        @Override
+        public void clear() {
+            items.clear();
+        }
+
+        @Override
+        public void add(TagRecord record) {
+            TagRecord copy = new TagRecord();
+            copy.copyFrom(record);
+            items.add(copy);
+            records.add(copy);
+        }
+    }
+
+    /** The client's commands that aren't lists, by their position in a line. */
+    private static final List<String> GLOBAL_COMMANDS = Arrays.asList("rescan", "serverstatus",
+            "playlists", "alarm", "login", "pref", "can", "getstring", "version");
+
+    private static final List<String> PLAYER_SPECIFIC_COMMANDS = Arrays.asList("play", "stop",
+            "pause", "playlist", "playerpref", "client", "prefset");
+
+    private final Map<String, ExtendedQueryFormatCmd> cmds
+            = new HashMap<String, ExtendedQueryFormatCmd>();
+
+    private final Map<String, ListResponse> responses = new HashMap<String, ListResponse>();
+
+    private final Map<String, HashMap<String, String>> decoded
+            = new HashMap<String, HashMap<String, String>>();
+
+    final CommandDispatcher<SessionReplay.LineHandler> dispatcher;
+
+    ReplayClient() {
+        add(new ExtendedQueryFormatCmd(
+                "players",
+                new HashSet<String>(Arrays.asList("playerprefs", "charset")),
+                "playerindex",
+                new RecordListHandler()));
+        add(new ExtendedQueryFormatCmd(
+                "artists",
+                new HashSet<String>(Arrays.asList("search", "genre_id", "album_id", "tags",
+                        "charset")),
+                new RecordListHandler()));
+        add(new ExtendedQueryFormatCmd(
+                "albums",
+                new HashSet<String>(Arrays.asList("search", "genre_id", "artist_id", "track_id",
+                        "year", "compilation", "sort", "tags", "charset")),
+                new RecordListHandler()));
+        add(new ExtendedQueryFormatCmd(
+                "genres",
+                new HashSet<String>(Arrays.asList("search", "artist_id", "album_id", "track_id",
+                        "year", "tags", "charset")),
+                new RecordListHandler()));
+        add(new ExtendedQueryFormatCmd(
+                "songs",
+                new HashSet<String>(Arrays.asList("genre_id", "artist_id", "album_id", "year",
+                        "search", "tags", "sort", "charset")),
+                new RecordListHandler()));
+        add(new ExtendedQueryFormatCmd(
+                HANDLER_LIST_GLOBAL,
+                "search",
+                new HashSet<String>(Arrays.asList("term", "charset")),
+                new SqueezeParserInfo("genres_count", new RecordListHandler(), "genre_id"),
+                new SqueezeParserInfo("albums_count", new RecordListHandler(), "album_id"),
+                new SqueezeParserInfo("contributors_count", new RecordListHandler(),
+                        "contributor_id"),
+                new SqueezeParserInfo("tracks_count", new RecordListHandler(), "track_id")));
+        add(new ExtendedQueryFormatCmd(
+                HANDLER_LIST_PLAYER_SPECIFIC,
+                "status",
+                new HashSet<String>(Arrays.asList("tags", "charset", "subscribe")),
+                new SqueezeParserInfo("playlist_tracks", new RecordListHandler(),
+                        "playlist index")));
+        add(new ExtendedQueryFormatCmd(
+                HANDLER_LIST_PREFIXED_PLAYER_SPECIFIC,
+                "items",
+                new HashSet<String>(Arrays.asList("item_id", "search", "want_url", "charset")),
+                new SqueezeParserInfo(new RecordListHandler())));
+
+        Map<String, SessionReplay.LineHandler> global
+                = new HashMap<String, SessionReplay.LineHandler>();
+        Map<String, SessionReplay.LineHandler> playerSpecific
+                = new HashMap<String, SessionReplay.LineHandler>();
+        Map<String, SessionReplay.LineHandler> prefixedPlayerSpecific
+                = new HashMap<String, SessionReplay.LineHandler>();
+        for (final ExtendedQueryFormatCmd cmd : cmds.values()) {
+            SessionReplay.LineHandler handler = new SessionReplay.LineHandler() {
+                @Override
+                public void handle(TokenCursor tokens) {
+                    ListResponse response = cmd.parse(tokens);
+                    if (response != null) {
+                        responses.put(cmd.cmd, response);
+                    }
+                }
+            };
+            if (cmd.handlerList == HANDLER_LIST_GLOBAL) {
+                global.put(cmd.cmd, handler);
+            } else if (cmd.handlerList == HANDLER_LIST_PLAYER_SPECIFIC) {
+                playerSpecific.put(cmd.cmd, handler);
+            } else {
+                prefixedPlayerSpecific.put(cmd.cmd, handler);
+            }
+        }
+        for (String command : GLOBAL_COMMANDS) {
+            global.put(command, decoder(command));
+        }
+        for (String command : PLAYER_SPECIFIC_COMMANDS) {
+            playerSpecific.put(command, decoder(command));
+        }
+
+        dispatcher = new CommandDispatcher.Builder<SessionReplay.LineHandler>()
+                .add(0, global)
+                .add(1, playerSpecific)
+                .add(2, prefixedPlayerSpecific)
+                .build();
+    }
+
+    private void add(ExtendedQueryFormatCmd cmd) {
+        cmds.put(cmd.cmd, cmd);
+    }
+
+    private SessionReplay.LineHandler decoder(final String command) {
+        return new SessionReplay.LineHandler() {
+            @Override
+            public void handle(TokenCursor tokens) {
+                decoded.put(command, tokens.decodeMap());
+            }
+        };
+    }
+
+    /**
+     * @param cmd The list command.
+     * @param list The index of the list in the responses, 0 unless the command has several.
+     * @return The records of the list in all the responses to the command.
+     */
+    List<TagRecord> records(String cmd, int list) {
+        return ((RecordListHandler) cmds.get(cmd).parserInfos[list].handler).records;
+    }
+
+    /** @return The last response to the list command, or null if there was none. */
+    ListResponse response(String cmd) {
+        return responses.get(cmd);
+    }
+
+    /** @return The tokens of the last line of the command, or null if there was none. */
+    HashMap<String, String> decoded(String command) {
+        return decoded.get(command);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+public class ServerUrlsTest extends TestCase {
+
+    private final ServerUrls urls = new ServerUrls();
+
+    private final TagRecord record = new TagRecord();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        urls.setServer("10.0.0.2", 9000);
+    }
+
+    public void testArtworkUrl() {
+        record.put(Tag.ID, "12");
+        urls.addArtworkUrlTag(record);
+        assertNull("No cover art", record.get(Tag.ARTWORK_URL));
+
+        record.put(Tag.COVERART, "1");
+        urls.addArtworkUrlTag(record);
+        assertEquals("http://10.0.0.2:9000/music/12/cover.jpg", record.get(Tag.ARTWORK_URL));
+
+        record.clear();
+        record.put(Tag.ARTWORK_TRACK_ID, "34");
+        urls.addArtworkUrlTag(record);
+        assertEquals("http://10.0.0.2:9000/music/34/cover.jpg", record.get(Tag.ARTWORK_URL));
+
+        record.put(Tag.ARTWORK_URL, "imageproxy/x.png");
+        urls.addArtworkUrlTag(record);
+        assertEquals("http://10.0.0.2:9000/imageproxy/x.png", record.get(Tag.ARTWORK_URL));
+
+        record.put(Tag.ARTWORK_URL, "http://example.com/x.png");
+        urls.addArtworkUrlTag(record);
+        assertEquals("http://example.com/x.png", record.get(Tag.ARTWORK_URL));
+    }
+
+    public void testDownloadUrl() {
+        record.put(Tag.ID, "12");
+        urls.addDownloadUrlTag(record);
+        assertEquals("http://10.0.0.2:9000/music/12/download", record.get(Tag.DOWNLOAD_URL));
+    }
+
+    public void testImageTag() {
+        urls.fixImageTag(Tag.ICON, record);
+        assertFalse(record.has(Tag.ICON));
+
+        record.put(Tag.ICON, "plugins/icon.png");
+        urls.fixImageTag(Tag.ICON, record);
+        assertEquals("http://10.0.0.2:9000/plugins/icon.png", record.get(Tag.ICON));
+
+        record.put(Tag.ICON, "/plugins/icon.png");
+        urls.fixImageTag(Tag.ICON, record);
+        assertEquals("http://10.0.0.2:9000/plugins/icon.png", record.get(Tag.ICON));
+
+        record.put(Tag.ICON, "https://example.com/icon.png");
+        urls.fixImageTag(Tag.ICON, record);
+        assertEquals("https://example.com/icon.png", record.get(Tag.ICON));
+    }
+}
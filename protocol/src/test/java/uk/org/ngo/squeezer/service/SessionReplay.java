@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a recording made by {@link SessionRecorder} on the JVM, through the receive path of
+ * {@link CliClient} as far as it goes without Android: the received lines are framed by a
+ * {@link LineFramer}, as if read from the socket, the handler of each line is found by a
+ * {@link CommandDispatcher}, and the handler parses it, see {@link ReplayClient}.
+ * <p>
+ * The replay can run at the recorded speed, with the received lines arriving in the reads and
+ * at the times they were recorded, or at maximum speed, all the lines in reads of the size of
+ * the framer's buffer. It reports the parse throughput, the number of lines of each command (the
+ * "events" of the session), and the bytes allocated on the replaying thread, where the JVM can
+ * measure them.
+ */
+class SessionReplay {
+
+    /** Handles a received line, as the command handlers of {@link CliClient} do. */
+    interface LineHandler {
+        void handle(TokenCursor tokens);
+    }
+
+    /** The results of a replay. */
+    static class Report {
+        /** Lines received, and the bytes in them, excluding the line terminators. */
+        int receivedLines;
+
+        long receivedBytes;
+
+        /** Received lines without a handler, which the client drops. */
+        int unhandledLines;
+
+        /** Commands sent by the client in the recording. */
+        int sentLines;
+
+        long elapsedNanos;
+
+        /** Bytes allocated on the replaying thread, or -1 if the JVM can't measure them. */
+        long allocatedBytes = -1;
+
+        /** Number of received lines of each command, excluding the player id. */
+        final Map<String, Integer> events = new TreeMap<String, Integer>();
+
+        double linesPerSecond() {
+            return receivedLines * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        double megabytesPerSecond() {
+            return receivedBytes * 1e9 / Math.max(1, elapsedNanos) / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Replayed %d lines (%d bytes, %d unhandled) and %d commands in"
+                            + " %.1fms: %.0f lines/s, %.1f MB/s, %s allocated per line;"
+                            + " events: %s",
+                    receivedLines, receivedBytes, unhandledLines, sentLines, elapsedNanos / 1e6,
+                    linesPerSecond(), megabytesPerSecond(), allocatedBytes < 0 ? "unknown"
+                            : String.valueOf(allocatedBytes / Math.max(1, receivedLines)),
+                    events);
+        }
+    }
+
+    /** The lines received between two pauses of the recording, as one read of the socket. */
+    private static class Read {
+        /** Milliseconds since the previous read. */
+        final long delayMillis;
+
+        /** The lines, each terminated by a newline. */
+        final byte[] bytes;
+
+        Read(long delayMillis, byte[] bytes) {
+            this.delayMillis = delayMillis;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The records of the recording, in order. */
+    private final List<Long> delays = new ArrayList<Long>();
+
+    private final List<Character> directions = new ArrayList<Character>();
+
+    private final List<byte[]> lines = new ArrayList<byte[]>();
+
+    /**
+     * Read a recording, compressed or not.
+     *
+     * @throws IOException If the recording could not be read, or is not a recording.
+     */
+    SessionReplay(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        in.mark(2);
+        boolean compressed = (in.read() == 0x1f && in.read() == 0x8b);
+        in.reset();
+        if (compressed) {
+            in = new GZIPInputStream(in);
+        }
+
+        String header = readLine(in);
+        if (header == null || !header.startsWith(SessionRecorder.HEADER + " ")) {
+            throw new IOException("Not a recording: " + header);
+        }
+        int version = Integer.parseInt(header.split(" ")[1]);
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+
+        String record;
+        while ((record = readLine(in)) != null) {
+            if (record.isEmpty() || record.startsWith("#")) {
+                continue;
+            }
+            int direction = 0;
+            while (direction < record.length() && Character.isDigit(record.charAt(direction))) {
+                direction++;
+            }
+            if (direction == 0 || direction + 1 >= record.length()
+                    || record.charAt(direction + 1) != ' ') {
+                throw new IOException("Bad record: " + record);
+            }
+            char c = record.charAt(direction);
+            if (c != SessionRecorder.SENT && c != SessionRecorder.RECEIVED) {
+                throw new IOException("Bad direction: " + record);
+            }
+            delays.add(Long.parseLong(record.substring(0, direction)));
+            directions.add(c);
+            lines.add(record.substring(direction + 2).getBytes("UTF-8"));
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                return line.size() == 0 ? null : line.toString("UTF-8");
+            }
+            line.write(c);
+        }
+        return line.toString("UTF-8");
+    }
+
+    /** @return The number of records in the recording. */
+    int size() {
+        return lines.size();
+    }
+
+    /**
+     * @return The line of a record.
+     */
+    String line(int index) {
+        return new String(lines.get(index));
+    }
+
+    /** @return True if the record is of a line received from the server. */
+    boolean isReceived(int index) {
+        return directions.get(index) == SessionRecorder.RECEIVED;
+    }
+
+    /** @return The milliseconds from the record before to the record. */
+    long delayMillis(int index) {
+        return delays.get(index);
+    }
+
+    /**
+     * Replay the received lines.
+     *
+     * @param recordedSpeed True to replay at the recorded speed, false for maximum speed.
+     * @param dispatcher Finds the handler of each line.
+     * @return The report of the replay.
+     */
+    Report replay(boolean recordedSpeed,
+                  final CommandDispatcher<? extends LineHandler> dispatcher)
+            throws IOException, InterruptedException {
+        List<Read> reads = reads(recordedSpeed);
+        final Report report = new Report();
+        final TokenCursor tokens = new TokenCursor();
+        LineFramer framer = new LineFramer(8 * 1024);
+        LineFramer.LineSink parser = new LineFramer.LineSink() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                report.receivedLines++;
+                report.receivedBytes += length;
+                tokens.reset(buffer, offset, length);
+                count(report.events, tokens);
+                LineHandler handler = (tokens.size() < 2 ? null : dispatcher.find(tokens));
+                if (handler == null) {
+                    report.unhandledLines++;
+                    return;
+                }
+                handler.handle(tokens);
+            }
+        };
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations
+                = (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = (allocations != null ? allocations.getThreadAllocatedBytes(thread)
+                : 0);
+        long start = System.nanoTime();
+        for (Read read : reads) {
+            if (recordedSpeed && read.delayMillis > 0) {
+                Thread.sleep(read.delayMillis);
+            }
+            ReadableByteChannel channel = Channels.newChannel(
+                    new ByteArrayInputStream(read.bytes));
+            while (framer.read(channel, parser)) {
+            }
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        if (allocations != null) {
+            report.allocatedBytes = allocations.getThreadAllocatedBytes(thread) - allocatedBefore;
+        }
+        report.sentLines = sentLines();
+        return report;
+    }
+
+    /** Count a line in the events, by its command. */
+    private static void count(Map<String, Integer> events, TokenCursor tokens) {
+        if (tokens.size() == 0) {
+            return;
+        }
+        int index = (isPlayerId(tokens.raw(0)) && tokens.size() > 1 ? 1 : 0);
+        String command = tokens.decode(index);
+        Integer count = events.get(command);
+        events.put(command, count == null ? 1 : count + 1);
+    }
+
+    /** @return True if the token is an encoded player id, a MAC address or an IP address. */
+    private static boolean isPlayerId(String raw) {
+        return raw.contains("%3A") || raw.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    private int sentLines() {
+        int sent = 0;
+        for (char direction : directions) {
+            if (direction == SessionRecorder.SENT) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Split the received lines in to reads. At the recorded speed each read is the lines received
+     * together, and waits for the time since the read before. At maximum speed there is one read.
+     */
+    private List<Read> reads(boolean recordedSpeed) {
+        List<Read> reads = new ArrayList<Read>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long delay = 0;
+        long readDelay = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            delay += delays.get(i);
+            if (!isReceived(i)) {
+                continue;
+            }
+            if (recordedSpeed && delay > 0 && bytes.size() > 0) {
+                reads.add(new Read(readDelay, bytes.toByteArray()));
+                bytes.reset();
+            }
+            if (bytes.size() == 0) {
+                readDelay = delay;
+            }
+            delay = 0;
+            bytes.write(lines.get(i), 0, lines.get(i).length);
+            bytes.write('\n');
+        }
+        if (bytes.size() > 0) {
+            reads.add(new Read(readDelay, bytes.toByteArray()));
+        }
+        return reads;
+    }
+}
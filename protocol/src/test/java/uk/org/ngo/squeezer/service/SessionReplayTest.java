@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import com.google.common.base.Ticker;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+/**
+ * Records sessions with {@link SessionRecorder}, and replays them and the recorded fixtures in
+ * <code>sessions/</code> with {@link SessionReplay}, checking what the {@link ReplayClient} makes
+ * of the lines.
+ */
+public class SessionReplayTest extends TestCase {
+
+    private static class FakeTicker extends Ticker {
+        long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advanceMillis(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    private SessionReplay fixture(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream("sessions/" + name);
+        assertNotNull(name, in);
+        try {
+            return new SessionReplay(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testRecordingRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(new GZIPOutputStream(out), ticker, 0);
+        recorder.onSent("login user%20name secret");
+        ticker.advanceMillis(12);
+        byte[] received = "xxlogin user%20name ******yy".getBytes();
+        recorder.onReceived(received, 2, received.length - 4);
+        ticker.advanceMillis(1);
+        recorder.onSent("version ?");
+        ticker.nanos += 600000;
+        received = "version 7.9.1".getBytes();
+        recorder.onReceived(received, 0, received.length);
+        // The rounding of the last record is carried to this one.
+        ticker.nanos += 600000;
+        recorder.onReceived(received, 0, received.length);
+        recorder.close();
+
+        SessionReplay replay = new SessionReplay(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(5, replay.size());
+        assertEquals("login ****** ******", replay.line(0));
+        assertFalse(replay.isReceived(0));
+        assertEquals(0, replay.delayMillis(0));
+        assertEquals("login ****** ******", replay.line(1));
+        assertTrue(replay.isReceived(1));
+        assertEquals(12, replay.delayMillis(1));
+        assertEquals("version ?", replay.line(2));
+        assertEquals(1, replay.delayMillis(2));
+        assertEquals("version 7.9.1", replay.line(3));
+        assertEquals(0, replay.delayMillis(3));
+        assertEquals(1, replay.delayMillis(4));
+    }
+
+    public void testNotARecording() {
+        try {
+            new SessionReplay(new ByteArrayInputStream("version 7.9.1\n".getBytes()));
+            fail("Expected an exception");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testRecordedSpeed() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(out, ticker, 0);
+        byte[] line = "serverstatus 0 0".getBytes();
+        recorder.onReceived(line, 0, line.length);
+        ticker.advanceMillis(100);
+        recorder.onReceived(line, 0, line.length);
+        ticker.advanceMillis(100);
+        recorder.onReceived(line, 0, line.length);
+        recorder.close();
+
+        SessionReplay replay = new SessionReplay(new ByteArrayInputStream(out.toByteArray()));
+        SessionReplay.Report report = replay.replay(true, new ReplayClient().dispatcher);
+        assertEquals(3, report.receivedLines);
+        assertTrue(report.toString(), report.elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    public void testLoginsAreRedacted() throws IOException {
+        SessionReplay replay = fixture("startup.cli");
+        for (int i = 0; i < replay.size(); i++) {
+            if (replay.line(i).startsWith("login ")) {
+                assertEquals("login ****** ******", replay.line(i));
+            }
+        }
+    }
+
+    public void testStartupFixture() throws Exception {
+        ReplayClient client = new ReplayClient();
+        SessionReplay.Report report = fixture("startup.cli").replay(false, client.dispatcher);
+
+        assertEquals(26, report.receivedLines);
+        assertEquals(17, report.sentLines);
+        assertEquals("{can=4, listen=1, login=1, mixer=1, pause=1, players=1, playlist=4, pref=3,"
+                + " prefset=1, serverstatus=2, status=6, version=1}", report.events.toString());
+        // The client has no handlers for "listen" and "mixer".
+        assertEquals(2, report.unhandledLines);
+
+        List<TagRecord> players = client.records("players", 0);
+        assertEquals(2, players.size());
+        assertEquals("Kitchen", players.get(0).get("name"));
+        assertEquals("Living Room", players.get(1).get("name"));
+        assertEquals(Integer.valueOf(2), client.response("players").counts[0]);
+
+        // Each status has the current song of the player as its playlist.
+        List<TagRecord> songs = client.records("status", 0);
+        assertEquals(6, songs.size());
+        assertEquals("Song 3", songs.get(0).get("title"));
+        ListResponse status = client.response("status");
+        assertEquals("00%3A04%3A20%3A12%3Ab3%3A17 ", status.playerId);
+        assertEquals("Kitchen", status.parameters.get("player_name"));
+        assertEquals("pause", status.parameters.get("mode"));
+
+        assertTrue(client.decoded("version").containsKey("7.9.1"));
+        assertEquals("1508200000", client.decoded("serverstatus").get("lastscan"));
+    }
+
+    public void testBrowseFixture() throws Exception {
+        ReplayClient client = new ReplayClient();
+        SessionReplay.Report report = fixture("browse.cli").replay(false, client.dispatcher);
+
+        assertEquals(3, report.receivedLines);
+        assertEquals(3, report.sentLines);
+        assertEquals("{search=1, songs=2}", report.events.toString());
+        assertEquals(0, report.unhandledLines);
+
+        List<TagRecord> songs = client.records("songs", 0);
+        assertEquals(200, songs.size());
+        assertEquals("Song 0", songs.get(0).get("title"));
+        assertEquals("Song 199", songs.get(199).get("title"));
+        assertEquals(100, client.response("songs").start);
+        assertEquals(Integer.valueOf(14000), client.response("songs").counts[0]);
+
+        assertEquals(1, client.records("search", 0).size());
+        assertEquals("Love Songs", client.records("search", 0).get(0).get("genre"));
+        assertEquals(3, client.records("search", 1).size());
+        assertEquals(2, client.records("search", 2).size());
+        assertEquals(12, client.records("search", 3).size());
+        assertEquals("Love Song 11", client.records("search", 3).get(11).get("track"));
+        assertEquals(Integer.valueOf(12), client.response("search").counts[3]);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StreamDispatcherTest extends TestCase {
+
+    /** Records the lines handled, and lets a test hold up a lane. */
+    private static class RecordingSink implements StreamDispatcher.LaneSink {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+        final CountDownLatch released = new CountDownLatch(1);
+
+        final CountDownLatch handled;
+
+        /** The threads the lines were handled on. */
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        RecordingSink(int expectedLines) {
+            handled = new CountDownLatch(expectedLines);
+        }
+
+        @Override
+        public void onLine(int lane, byte[] buffer, int offset, int length) {
+            String line = new String(buffer, offset, length);
+            if (line.startsWith("slow")) {
+                try {
+                    released.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            lines.add(line);
+            threads.add(Thread.currentThread());
+            handled.countDown();
+        }
+
+        @Override
+        public void onLinesHandled(int lane) {
+        }
+    }
+
+    private static void dispatch(StreamDispatcher dispatcher, int stream, String line) {
+        byte[] bytes = ("xx" + line + "yy").getBytes();
+        dispatcher.dispatch(stream, bytes, 2, bytes.length - 4);
+    }
+
+    public void testStreamsAreHandledInOrder() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(3000);
+        StreamDispatcher dispatcher = new StreamDispatcher(3, sink);
+        for (int i = 0; i < 1000; i++) {
+            for (int stream = 0; stream < 3; stream++) {
+                dispatch(dispatcher, stream, stream + " " + i);
+            }
+            if (i % 100 == 0) {
+                dispatcher.flush();
+            }
+        }
+        dispatcher.flush();
+        assertTrue(sink.handled.await(5, TimeUnit.SECONDS));
+
+        int[] next = new int[3];
+        synchronized (sink.lines) {
+            for (String line : sink.lines) {
+                String[] parts = line.split(" ");
+                int stream = Integer.parseInt(parts[0]);
+                assertEquals(line, next[stream]++, Integer.parseInt(parts[1]));
+            }
+        }
+    }
+
+    public void testSlowStreamDoesNotHoldUpOthers() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(3);
+        StreamDispatcher dispatcher = new StreamDispatcher(2, sink);
+        int slow = 0;
+        int fast = 1;
+        assertTrue(dispatcher.laneOf(slow) != dispatcher.laneOf(fast));
+
+        dispatch(dispatcher, slow, "slow songs page");
+        dispatch(dispatcher, fast, "player status 1");
+        dispatch(dispatcher, fast, "player status 2");
+        dispatcher.flush();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.lines.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("[player status 1, player status 2]", sink.lines.toString());
+        assertEquals(1, dispatcher.getQueueDepth(dispatcher.laneOf(slow)));
+
+        sink.released.countDown();
+        assertTrue(sink.handled.await(5, TimeUnit.SECONDS));
+        assertEquals("slow songs page", sink.lines.get(2));
+    }
+
+    public void testShutdown() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(2);
+        StreamDispatcher dispatcher = new StreamDispatcher(2, sink);
+
+        dispatch(dispatcher, 0, "before");
+        dispatcher.flush();
+        dispatcher.shutdown();
+
+        // The lines handed to the lane before the shutdown are still handled.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.threads.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("[before]", sink.lines.toString());
+        Thread thread = sink.threads.get(0);
+        thread.join(5000);
+        assertFalse("The thread of the lane has stopped", thread.isAlive());
+
+        // The dispatcher can be used again, e.g. after reconnecting.
+        dispatch(dispatcher, 0, "after");
+        dispatcher.flush();
+        assertTrue(sink.handled.await(5, TimeUnit.SECONDS));
+        assertEquals("[before, after]", sink.lines.toString());
+        assertNotSame(thread, sink.threads.get(1));
+        dispatcher.shutdown();
+    }
+
+    public void testStats() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(5);
+        StreamDispatcher dispatcher = new StreamDispatcher(2, sink);
+        int lane = dispatcher.laneOf(-7);
+        for (int i = 0; i < 5; i++) {
+            dispatch(dispatcher, -7, "line " + i);
+        }
+        assertEquals("Lines are handed over by flush()", 0, dispatcher.getQueueDepth(lane));
+        dispatcher.flush();
+        assertTrue(sink.handled.await(5, TimeUnit.SECONDS));
+
+        // The count is updated after the line has been recorded.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getHandledCount(lane) < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(5, dispatcher.getHandledCount(lane));
+        assertEquals(0, dispatcher.getHandledCount(1 - lane));
+        assertEquals(5, dispatcher.getMaxQueueDepth(lane));
+        assertEquals(0, dispatcher.getQueueDepth(lane));
+        assertTrue(dispatcher.getMaxHandleNanos(lane) >= dispatcher.getAverageHandleNanos(lane));
+        assertEquals(0, dispatcher.getAverageHandleNanos(1 - lane));
+    }
+}
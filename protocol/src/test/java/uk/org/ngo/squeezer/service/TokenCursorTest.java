@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2017 Google Inc.  All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.org.ngo.squeezer.service;
+
+import junit.framework.TestCase;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import uk.org.ngo.squeezer.framework.Tag;
+import uk.org.ngo.squeezer.framework.TagRecord;
+
+public class TokenCursorTest extends TestCase {
+
+    private static TokenCursor cursor(String line) {
+        byte[] bytes = ("xx" + line + "yy").getBytes();
+        return new TokenCursor().reset(bytes, 2, bytes.length - 4);
+    }
+
+    public void testSplitsLikePattern() {
+        Pattern space = Pattern.compile(" ");
+        String[] lines = {"players 0 1", "a  b", "a b  ", "", " a", "single"};
+        for (String line : lines) {
+            TokenCursor tokens = cursor(line);
+            String[] expected = space.split(line);
+            assertEquals(line, expected.length, tokens.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(line, expected[i], tokens.raw(i));
+                assertTrue(line, tokens.is(i, expected[i]));
+            }
+        }
+    }
+
+    public void testDecode() throws UnsupportedEncodingException {
+        TokenCursor tokens = cursor("Living%20Room caf%C3%A9 a+b 100%25 plain");
+
+        assertEquals("Living Room", tokens.decode(0));
+        assertEquals("café", tokens.decode(1));
+        assertEquals("a b", tokens.decode(2));
+        assertEquals(URLDecoder.decode("100%25", "UTF-8"), tokens.decode(3));
+        assertEquals("plain", tokens.decode(4));
+        assertFalse("is() compares the raw token", tokens.is(0, "Living Room"));
+    }
+
+    public void testDecodeAll() {
+        TokenCursor tokens = cursor("status  - 1 title%3ASome%20Song x%3Ay");
+
+        Map<String, String> map = tokens.decodeMap();
+        assertEquals(5, map.size());
+        assertTrue(map.containsKey("status"));
+        assertNull(map.get("status"));
+        assertEquals("Some Song", map.get("title"));
+        assertEquals("y", map.get("x"));
+        assertFalse("Empty tokens are skipped", map.containsKey(""));
+
+        TagRecord record = tokens.decodeRecord();
+        assertEquals("Some Song", record.get(Tag.TITLE));
+        assertEquals("y", record.get("x"));
+    }
+
+    public void testKeyValue() {
+        TokenCursor tokens = cursor("00%3A04%3A20 status - 1 mixer%20volume%3A42 title%3ASome%20Song"
+                + " time%3A12.75 mode%3Aplay");
+
+        tokens.moveTo(4);
+        assertTrue(tokens.next());
+        assertTrue(tokens.hasValue());
+        assertTrue(tokens.keyIs("mixer volume"));
+        assertFalse(tokens.keyIs("mixer"));
+        assertEquals("mixer volume", tokens.key());
+        assertEquals(42, tokens.valueAsInt(0));
+
+        assertTrue(tokens.next());
+        assertEquals("title", tokens.key());
+        assertEquals("Some Song", tokens.value());
+        assertEquals(-1, tokens.valueAsInt(-1));
+
+        assertTrue(tokens.next());
+        assertEquals(12, tokens.valueAsInt(0));
+
+        assertTrue(tokens.next());
+        assertEquals("mode%3Aplay", tokens.raw());
+        assertFalse(tokens.next());
+
+        tokens.moveTo(2);
+        assertTrue(tokens.next());
+        assertFalse(tokens.hasValue());
+        assertEquals("-", tokens.key());
+        assertNull(tokens.value());
+        assertEquals(1, tokens.intAt(3, 0));
+        assertEquals(7, tokens.intAt(42, 7));
+    }
+
+    public void testValueAsMillis() {
+        TokenCursor tokens = cursor("time%3A31.5 time%3A245.2345 time%3A12 time%3A-0.25"
+                + " time%3A.5 time%3A1.x time%3A3000000 time%3Aplay time");
+        int[] expected = {31500, 245234, 12000, -250, -1, -1, -1, -1, -1};
+        for (int millis : expected) {
+            assertTrue(tokens.next());
+            assertEquals(tokens.raw(), millis, tokens.valueAsMillis(-1));
+        }
+    }
+
+    public void testValueIs() {
+        TokenCursor tokens = cursor("playlist_name%3AMy+list%20two sync_master%3A00%3A04"
+                + " artist%3ABj%C3%B6rk clef%3A%F0%9D%84%9E bad%3A%C3 empty%3A mode");
+        tokens.next();
+        assertTrue(tokens.valueIs("My list two"));
+        assertFalse(tokens.valueIs("My list"));
+        assertFalse(tokens.valueIs("My list two!"));
+        assertFalse(tokens.valueIs(null));
+        tokens.next();
+        assertTrue(tokens.valueIs("00:04"));
+        tokens.next();
+        assertTrue("UTF-8 is decoded", tokens.valueIs("Bj\u00f6rk"));
+        tokens.next();
+        assertTrue("Surrogate pairs", tokens.valueIs("\ud834\udd1e"));
+        tokens.next();
+        assertFalse("Malformed UTF-8", tokens.valueIs("\u00c3"));
+        tokens.next();
+        assertTrue(tokens.valueIs(""));
+        tokens.next();
+        assertFalse("No value", tokens.valueIs("mode"));
+    }
+
+    public void testValueIsList() {
+        List<String> slaves = new ArrayList<String>();
+        slaves.add("00:04:20:17:64:31");
+        slaves.add("00:04:20:12:05:c2");
+        TokenCursor tokens = cursor("sync_slaves%3A00%3A04%3A20%3A17%3A64%3A31%2C"
+                + "00%3A04%3A20%3A12%3A05%3Ac2 one%3A00%3A04%3A20%3A17%3A64%3A31 empty%3A none");
+
+        tokens.next();
+        assertTrue(tokens.valueIsList(slaves, ','));
+        assertFalse(tokens.valueIsList(slaves.subList(0, 1), ','));
+        assertFalse(tokens.valueIsList(new ArrayList<String>(), ','));
+        tokens.next();
+        assertTrue(tokens.valueIsList(slaves.subList(0, 1), ','));
+        assertFalse(tokens.valueIsList(slaves, ','));
+        tokens.next();
+        assertTrue(tokens.valueIsList(new ArrayList<String>(), ','));
+        tokens.next();
+        assertTrue(tokens.valueIsList(new ArrayList<String>(), ','));
+        assertFalse(tokens.valueIsList(slaves, ','));
+    }
+
+    public void testKeysAreCached() {
+        TokenCursor tokens = new TokenCursor();
+        byte[] first = "id%3A1 title%3AOne".getBytes();
+        byte[] second = "id%3A2 title%3ATwo".getBytes();
+
+        tokens.reset(first, 0, first.length);
+        tokens.next();
+        String key = tokens.key();
+
+        tokens.reset(second, 0, second.length);
+        tokens.next();
+        assertSame(key, tokens.key());
+        assertEquals("2", tokens.value());
+    }
+
+    public void testCopyWithout() {
+        TokenCursor tokens = cursor("artists 0 2 correlationid%3A7 id%3A1 artist%3AOne");
+
+        tokens.moveTo(3);
+        tokens.next();
+        assertEquals(3, tokens.index());
+        assertEquals("artists 0 2 id%3A1 artist%3AOne", new String(tokens.copyWithout(3)));
+        assertEquals("artists 0 2 correlationid%3A7 id%3A1",
+                new String(tokens.copyWithout(5)));
+        assertEquals("artists 0 2 correlationid%3A7 id%3A1 artist%3AOne",
+                new String(tokens.copyWithout(-1)));
+    }
+
+    public void testTag() {
+        TokenCursor tokens = cursor("album_id%3A1 playlist%20index%3A3 mixer%20volume%3A42 album_id");
+
+        tokens.next();
+        assertEquals(Tag.ALBUM_ID, tokens.tag());
+        tokens.next();
+        assertEquals(Tag.PLAYLIST_INDEX, tokens.tag());
+        tokens.next();
+        assertEquals(-1, tokens.tag());
+        tokens.next();
+        assertEquals("The whole token is the key", Tag.ALBUM_ID, tokens.tag());
+    }
+
+    public void testParsesLikeStringSplitting() throws UnsupportedEncodingException {
+        byte[] line = songsPage(50);
+        String[] expected = new String(line).split(" ");
+
+        TokenCursor tokens = new TokenCursor().reset(line, 0, line.length);
+        Map<String, String> expectedMap = new HashMap<String, String>();
+        Map<String, String> actualMap = new HashMap<String, String>();
+        for (String token : expected) {
+            int colon = token.indexOf("%3A");
+            if (colon != -1) {
+                expectedMap.put(URLDecoder.decode(token.substring(0, colon), "UTF-8"),
+                        URLDecoder.decode(token.substring(colon + 3), "UTF-8"));
+            }
+        }
+        while (tokens.next()) {
+            if (tokens.hasValue()) {
+                actualMap.put(tokens.key(), tokens.value());
+            }
+        }
+        assertEquals(expected.length, tokens.size());
+        assertEquals(expectedMap, actualMap);
+    }
+
+    /**
+     * Compares the memory allocated walking the keys of a 500 song response by splitting it in to
+     * decoded strings (the previous parser) against walking it with a {@link TokenCursor}.
+     */
+    public void testAllocationAgainstStringSplitting() throws UnsupportedEncodingException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            // Allocation counting is not supported on this JVM.
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        byte[] line = songsPage(500);
+        Pattern space = Pattern.compile(" ");
+        TokenCursor tokens = new TokenCursor();
+        long splitBytes = 0;
+        long cursorBytes = 0;
+        int ids = 0;
+
+        // The first rounds warm up the JIT, only the last is measured.
+        for (int round = 0; round < 5; round++) {
+            ids = 0;
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (String token : space.split(new String(line, "UTF-8"))) {
+                int colon = token.indexOf("%3A");
+                if (colon != -1) {
+                    String key = URLDecoder.decode(token.substring(0, colon), "UTF-8");
+                    String value = URLDecoder.decode(token.substring(colon + 3), "UTF-8");
+                    if ("id".equals(key) && value.length() > 0) {
+                        ids++;
+                    }
+                }
+            }
+            splitBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+            before = threadBean.getThreadAllocatedBytes(threadId);
+            tokens.reset(line, 0, line.length);
+            while (tokens.next()) {
+                if (tokens.hasValue() && tokens.keyIs("id") && tokens.valueAsInt(-1) != -1) {
+                    ids++;
+                }
+            }
+            cursorBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+        }
+
+        assertEquals(1000, ids);
+        assertTrue("Walking a 500 song response: splitting allocated " + splitBytes
+                + " bytes, TokenCursor allocated " + cursorBytes + " bytes",
+                cursorBytes < splitBytes / 10);
+    }
+
+    /**
+     * Compares building a record for each song in a 500 song response as a
+     * {@link HashMap} of decoded strings (the previous parser) against reusing a
+     * {@link TagRecord} filled from a {@link TokenCursor}.
+     */
+    public void testRecordBuildingAgainstHashMap() throws UnsupportedEncodingException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            // Allocation counting is not supported on this JVM.
+            return;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        byte[] line = songsPage(500);
+        Pattern space = Pattern.compile(" ");
+        TokenCursor tokens = new TokenCursor();
+        TagRecord record = new TagRecord();
+        List<String> titles = new ArrayList<String>(500);
+        long mapBytes = 0;
+        long recordBytes = 0;
+
+        // The first rounds warm up the JIT, only the last is measured.
+        for (int round = 0; round < 20; round++) {
+            titles.clear();
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            Map<String, String> map = null;
+            for (String token : space.split(new String(line, "UTF-8"))) {
+                int colon = token.indexOf("%3A");
+                if (colon == -1) {
+                    continue;
+                }
+                String key = URLDecoder.decode(token.substring(0, colon), "UTF-8");
+                if ("id".equals(key)) {
+                    if (map != null) {
+                        titles.add(map.get("title"));
+                    }
+                    map = new HashMap<String, String>();
+                }
+                if (map != null) {
+                    map.put(key, URLDecoder.decode(token.substring(colon + 3), "UTF-8"));
+                }
+            }
+            titles.add(map.get("title"));
+            mapBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+            assertEquals(500, titles.size());
+
+            titles.clear();
+            before = threadBean.getThreadAllocatedBytes(threadId);
+            tokens.reset(line, 0, line.length);
+            boolean inItem = false;
+            while (tokens.next()) {
+                if (!tokens.hasValue()) {
+                    continue;
+                }
+                int tag = tokens.tag();
+                if (tag == Tag.ID) {
+                    if (inItem) {
+                        titles.add(record.get(Tag.TITLE));
+                        record.clear();
+                    }
+                    inItem = true;
+                }
+                if (inItem) {
+                    if (tag != -1) {
+                        record.put(tag, tokens.value());
+                    } else {
+                        record.put(tokens.key(), tokens.value());
+                    }
+                }
+            }
+            titles.add(record.get(Tag.TITLE));
+            record.clear();
+            recordBytes = threadBean.getThreadAllocatedBytes(threadId) - before;
+            assertEquals(500, titles.size());
+        }
+
+        assertTrue("Building 500 song records: HashMap allocated " + mapBytes
+                + " bytes, TagRecord allocated " + recordBytes + " bytes",
+                recordBytes < mapBytes / 2);
+    }
+
+    /** @return A "songs" response with count songs, like those used when browsing. */
+    private static byte[] songsPage(int count) {
+        StringBuilder sb = new StringBuilder("songs 0 ").append(count)
+                .append(" tags%3AaCdejJKlstxyu correlationid%3A3");
+        for (int i = 0; i < count; i++) {
+            sb.append(" id%3A").append(i)
+                    .append(" title%3ASong%20number%20").append(i)
+                    .append(" artist%3ABj%C3%B6rk album%3AThe+Album duration%3A245.2")
+                    .append(" year%3A1999 artwork_track_id%3Aabc").append(i);
+        }
+        sb.append(" count%3A").append(count);
+        return sb.toString().getBytes();
+    }
+}